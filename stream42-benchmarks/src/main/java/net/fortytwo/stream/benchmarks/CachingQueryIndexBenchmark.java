@@ -0,0 +1,105 @@
+package net.fortytwo.stream.benchmarks;
+
+import net.fortytwo.stream.StreamProcessor;
+import net.fortytwo.stream.caching.Bindings;
+import net.fortytwo.stream.caching.Query;
+import net.fortytwo.stream.caching.QueryIndex;
+import net.fortytwo.stream.model.VariableOrConstant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Measures the cost of adding a triple to the caching query engine, for comparison with
+ * {@link ShjQueryIndexBenchmark}. Triples arrive one millisecond apart, and expired solutions are removed
+ * periodically, as by the cleanup thread of the caching stream processor
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CachingQueryIndexBenchmark {
+    private static final int TRIPLES = 1 << 16;
+    // the number of triples after which expired solutions are removed. A power of two
+    private static final int CLEANUP_INTERVAL = 1024;
+
+    @Param({"STAR", "CHAIN"})
+    public Workload.Shape shape;
+
+    @Param({"2", "4"})
+    public int patternsPerQuery;
+
+    @Param({"1", "100"})
+    public int queries;
+
+    @Param({"100", "10000"})
+    public int distinctValues;
+
+    // the time-to-live of each triple, in seconds. The caching engine stores the combinations of partial solutions
+    // as well as the solutions themselves, so its windows are kept shorter than those of the SHJ benchmarks
+    @Param({"1"})
+    public int ttl;
+
+    private QueryIndex<String, Integer> queryIndex;
+    private BiConsumer<Integer, Bindings<String>> handler;
+    private String[][] triples;
+    private int next;
+    private long now;
+    private long solutions;
+
+    @Setup
+    public void setUp() {
+        Workload workload = new Workload(shape, patternsPerQuery, queries, distinctValues, 42);
+        queryIndex = new QueryIndex<>(3);
+        for (int i = 0; i < queries; i++) {
+            List<VariableOrConstant<String, String>[]> patterns = new ArrayList<>();
+            for (String[] terms : workload.getQuery(i)) {
+                patterns.add(Workload.toPattern(terms));
+            }
+            Query<String, Integer> query = new Query<>(patterns, StreamProcessor.NEVER_EXPIRE);
+            query.setSubscription(i);
+            queryIndex.add(query);
+        }
+        handler = (subscription, bindings) -> solutions++;
+
+        now = 1;
+        String[][] initial = workload.nextTriples(1000 * ttl);
+        for (String[] triple : initial) {
+            add(triple);
+        }
+        triples = workload.nextTriples(TRIPLES);
+        next = 0;
+    }
+
+    @Benchmark
+    public boolean add() {
+        String[] triple = triples[next];
+        next = (next + 1) & (TRIPLES - 1);
+        return add(triple);
+    }
+
+    private boolean add(final String[] triple) {
+        now++;
+        if (0 == (now & (CLEANUP_INTERVAL - 1))) {
+            queryIndex.removeExpired(now);
+        }
+        return queryIndex.add(triple, handler, ttl, now);
+    }
+}
@@ -0,0 +1,96 @@
+package net.fortytwo.stream.benchmarks;
+
+import net.fortytwo.stream.StreamProcessor;
+import net.fortytwo.stream.caching.Bindings;
+import net.fortytwo.stream.caching.Query;
+import net.fortytwo.stream.caching.Solution;
+import net.fortytwo.stream.caching.SolutionIndex;
+import net.fortytwo.stream.model.VariableOrConstant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of joining a new solution of one triple pattern with the stored solutions of a query
+ * in the caching engine, for comparison with {@link JoinHelperBenchmark}
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CachingSolutionIndexBenchmark {
+    private static final int SOLUTIONS = 1 << 12;
+
+    @Param({"STAR", "CHAIN"})
+    public Workload.Shape shape;
+
+    @Param({"2", "3", "4"})
+    public int patternsPerQuery;
+
+    @Param({"100", "1000", "10000"})
+    public int distinctValues;
+
+    // the number of stored solutions of the other patterns of the query
+    @Param({"10000"})
+    public int storedSolutions;
+
+    private SolutionIndex<String> index;
+    private Solution<String>[] matched;
+    private Bindings<String>[] bindings;
+    private final Stack<Solution<String>> solutions = new Stack<>();
+    private int next;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        Workload workload = new Workload(shape, patternsPerQuery, 1, distinctValues, 42);
+        List<VariableOrConstant<String, String>[]> patterns = new ArrayList<>();
+        for (String[] terms : workload.getQuery(0)) {
+            patterns.add(Workload.toPattern(terms));
+        }
+        Query<String, Integer> query = new Query<>(patterns, StreamProcessor.NEVER_EXPIRE);
+        Query.QueryVariables variables = query.getVariables();
+        index = query.getSolutionIndex();
+        now = 1;
+
+        // solutions of all patterns but the first
+        for (int i = 0; i < storedSolutions; i++) {
+            int pattern = 1 + workload.nextIndex(patternsPerQuery - 1);
+            Bindings<String> b = variables.bind(patterns.get(pattern), workload.nextTriple());
+            index.add(new Solution<>(patternsPerQuery, pattern, b, StreamProcessor.NEVER_EXPIRE), now);
+        }
+
+        // new solutions of the first pattern
+        matched = new Solution[SOLUTIONS];
+        bindings = new Bindings[SOLUTIONS];
+        for (int i = 0; i < SOLUTIONS; i++) {
+            bindings[i] = variables.bind(patterns.get(0), workload.nextTriple());
+            matched[i] = new Solution<>(patternsPerQuery, 0, bindings[i], StreamProcessor.NEVER_EXPIRE);
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public int joinSolutions() {
+        index.joinSolutions(matched[next], bindings[next], solutions, now);
+        next = (next + 1) & (SOLUTIONS - 1);
+        return solutions.size();
+    }
+}
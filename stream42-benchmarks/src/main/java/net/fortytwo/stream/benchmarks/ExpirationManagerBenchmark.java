@@ -0,0 +1,112 @@
+package net.fortytwo.stream.benchmarks;
+
+import net.fortytwo.stream.shj.Expirable;
+import net.fortytwo.stream.shj.ExpirationQueue;
+import net.fortytwo.stream.shj.HeapExpirationQueue;
+import net.fortytwo.stream.shj.TimingWheelExpirationQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of scheduling items for expiration and of evicting them, with either kind of queue.
+ * One item is added per millisecond of virtual time, with a random lifetime, so that the number of live items
+ * stays close to a fixed number
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpirationManagerBenchmark {
+    private static final int LIFETIMES = 1 << 16;
+
+    public enum Queue {HEAP, WHEEL}
+
+    @Param({"HEAP", "WHEEL"})
+    public Queue queue;
+
+    // the average number of live items
+    @Param({"1000", "100000"})
+    public int liveItems;
+
+    private VirtualTimeExpirationManager<Item> manager;
+    private long[] lifetimes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        ExpirationQueue<Item> q = Queue.HEAP == queue
+                ? new HeapExpirationQueue<>()
+                : new TimingWheelExpirationQueue<>();
+        manager = new VirtualTimeExpirationManager<>(q, 1);
+
+        Random random = new Random(42);
+        lifetimes = new long[LIFETIMES];
+        for (int i = 0; i < LIFETIMES; i++) {
+            lifetimes[i] = 1 + random.nextInt(2 * liveItems);
+        }
+        next = 0;
+
+        for (int i = 0; i < 2 * liveItems; i++) {
+            addAndEvictExpired();
+        }
+    }
+
+    @Benchmark
+    public int addAndEvictExpired() {
+        long now = manager.advance(1);
+        manager.add(new Item(now + lifetimes[next]));
+        next = (next + 1) & (LIFETIMES - 1);
+        return manager.evictExpired();
+    }
+
+    @Benchmark
+    public int addTombstoneAndEvictExpired() {
+        // an item which is removed before it expires, e.g. a rescheduled ticket, remains in the queue until then
+        long now = manager.advance(1);
+        Item item = new Item(now + lifetimes[next]);
+        next = (next + 1) & (LIFETIMES - 1);
+        manager.add(item);
+        manager.remove(item);
+        return manager.evictExpired();
+    }
+
+    private static class Item implements Expirable {
+        private final long expirationTime;
+        private boolean expired;
+
+        private Item(final long expirationTime) {
+            this.expirationTime = expirationTime;
+        }
+
+        @Override
+        public long getExpirationTime() {
+            return expirationTime;
+        }
+
+        @Override
+        public void expire() {
+            expired = true;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return expired;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.fortytwo.stream.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Measurement of the heap by differences in its use after garbage collection.
+ * Collection is requested repeatedly until the heap stops shrinking, as a single request may leave garbage behind.
+ * Differences are meaningful only to the extent that nothing else allocates meanwhile,
+ * and only for structures much larger than the noise of the JVM itself (a few hundred kilobytes)
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class Heap {
+    private static final int MAX_COLLECTIONS = 8;
+
+    private Heap() {
+    }
+
+    /**
+     * @return the number of bytes of the heap in use after garbage collection
+     */
+    public static long usedAfterGc() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < MAX_COLLECTIONS; i++) {
+            System.gc();
+            try {
+                // note: gives finalization and concurrent collectors a chance to finish
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            long current = memory.getHeapMemoryUsage().getUsed();
+            if (current >= used) {
+                return current;
+            }
+            used = current;
+        }
+
+        return used;
+    }
+}
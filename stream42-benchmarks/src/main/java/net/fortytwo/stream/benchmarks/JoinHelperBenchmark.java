@@ -0,0 +1,77 @@
+package net.fortytwo.stream.benchmarks;
+
+import net.fortytwo.stream.StreamProcessor;
+import net.fortytwo.stream.shj.JoinHelper;
+import net.fortytwo.stream.shj.Solution;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of joining a new partial solution of one triple pattern with the stored solutions of
+ * the other patterns of its query, in isolation from matching and storage.
+ * The expected number of complete solutions per join grows as the number of distinct values shrinks
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinHelperBenchmark {
+    private static final int SOLUTIONS = 1 << 12;
+
+    @Param({"STAR", "CHAIN"})
+    public Workload.Shape shape;
+
+    @Param({"2", "3", "4"})
+    public int patternsPerQuery;
+
+    @Param({"100", "1000", "10000"})
+    public int distinctValues;
+
+    // the number of stored triples against which solutions are joined
+    @Param({"10000"})
+    public int storedTriples;
+
+    private JoinHelper<String, String> helper;
+    private Solution<String>[] solutions;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Workload workload = new Workload(shape, patternsPerQuery, 1, distinctValues, 42);
+        ShjEngine engine = new ShjEngine(workload);
+        engine.fill(workload.nextTriples(storedTriples), StreamProcessor.NEVER_EXPIRE);
+
+        helper = engine.getQueries().get(0).getAllHelpers().get(0);
+        int width = helper.getSolutionIndex().getCardinality();
+        solutions = new Solution[SOLUTIONS];
+        for (int i = 0; i < SOLUTIONS; i++) {
+            String[] values = new String[width];
+            for (int j = 0; j < width; j++) {
+                values[j] = workload.nextValue();
+            }
+            solutions[i] = new Solution<>(values);
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public void accept() {
+        helper.accept(solutions[next]);
+        next = (next + 1) & (SOLUTIONS - 1);
+    }
+}
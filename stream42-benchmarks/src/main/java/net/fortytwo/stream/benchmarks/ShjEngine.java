@@ -0,0 +1,102 @@
+package net.fortytwo.stream.benchmarks;
+
+import net.fortytwo.stream.StreamProcessor;
+import net.fortytwo.stream.shj.ExpirationTicket;
+import net.fortytwo.stream.shj.GraphPattern;
+import net.fortytwo.stream.shj.Query;
+import net.fortytwo.stream.shj.QueryContext;
+import net.fortytwo.stream.shj.QueryIndex;
+import net.fortytwo.stream.shj.TuplePattern;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A symmetric hash join engine in virtual time, with the queries of a workload registered,
+ * for benchmarks of the components of the engine
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ShjEngine {
+    private final VirtualTimeExpirationManager<Query<String, String>> queryExpirationManager;
+    private final VirtualTimeExpirationManager<ExpirationTicket> solutionExpirationManager;
+    private final QueryContext<String, String> context;
+    private final QueryIndex<String, String> queryIndex;
+    private final List<Query<String, String>> queries = new ArrayList<>();
+
+    // note: benchmarks are single-threaded unless stated otherwise
+    private long solutions;
+
+    /**
+     * @param workload the workload whose queries are to be registered
+     */
+    public ShjEngine(final Workload workload) {
+        queryExpirationManager = new VirtualTimeExpirationManager<>(1);
+        solutionExpirationManager = new VirtualTimeExpirationManager<>(1);
+        context = new QueryContext<>(queryExpirationManager, solutionExpirationManager);
+        queryIndex = new QueryIndex<>(context);
+
+        for (int i = 0; i < workload.getQueries(); i++) {
+            List<String[]> patterns = workload.getQuery(i);
+            TuplePattern<String, String>[] tuplePatterns = new TuplePattern[patterns.size()];
+            int j = 0;
+            for (String[] terms : patterns) {
+                tuplePatterns[j++] = new TuplePattern<>(Workload.toPattern(terms));
+            }
+
+            Query<String, String> query = new Query<>(new GraphPattern<>(tuplePatterns),
+                    StreamProcessor.NEVER_EXPIRE, context.getTimeBase(), queryExpirationManager,
+                    (mapping, expirationTime) -> solutions++);
+            queryIndex.add(query);
+            queries.add(query);
+        }
+    }
+
+    public QueryContext<String, String> getContext() {
+        return context;
+    }
+
+    public QueryIndex<String, String> getQueryIndex() {
+        return queryIndex;
+    }
+
+    public List<Query<String, String>> getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return the number of complete solutions produced so far
+     */
+    public long getSolutions() {
+        return solutions;
+    }
+
+    public long getNow() {
+        return solutionExpirationManager.getNow();
+    }
+
+    /**
+     * Advances the clock of the engine. Expired solutions are evicted when the engine next calls for it
+     *
+     * @param millis the number of milliseconds by which to advance the clock
+     * @return the new time
+     */
+    public long advance(final long millis) {
+        queryExpirationManager.advance(millis);
+        return solutionExpirationManager.advance(millis);
+    }
+
+    /**
+     * Adds triples to the engine, one millisecond apart, in order to reach a steady state before measurement
+     *
+     * @param triples  the triples to add. They are not modified
+     * @param lifetime the lifetime of each triple, in milliseconds, or {@link StreamProcessor#NEVER_EXPIRE}
+     */
+    public void fill(final String[][] triples, final long lifetime) {
+        for (String[] triple : triples) {
+            long now = advance(1);
+            queryIndex.add(triple.clone(),
+                    StreamProcessor.NEVER_EXPIRE == lifetime ? StreamProcessor.NEVER_EXPIRE : now + lifetime);
+        }
+    }
+}
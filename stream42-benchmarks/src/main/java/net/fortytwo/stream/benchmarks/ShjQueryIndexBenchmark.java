@@ -0,0 +1,72 @@
+package net.fortytwo.stream.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of adding a triple to the symmetric hash join engine: matching it against the query index,
+ * storing the partial solutions it produces, joining them with the solutions of other patterns,
+ * and evicting expired solutions. Triples arrive one millisecond apart and live for a fixed window,
+ * so that the number of live partial solutions stays constant throughout the measurement
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShjQueryIndexBenchmark {
+    // the number of distinct triples cycled through during measurement
+    private static final int TRIPLES = 1 << 16;
+
+    @Param({"STAR", "CHAIN"})
+    public Workload.Shape shape;
+
+    @Param({"2", "4"})
+    public int patternsPerQuery;
+
+    @Param({"1", "100"})
+    public int queries;
+
+    @Param({"100", "10000"})
+    public int distinctValues;
+
+    // the lifetime of each triple, in milliseconds, and therefore the number of live triples
+    @Param({"10000"})
+    public int window;
+
+    private ShjEngine engine;
+    private String[][] triples;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Workload workload = new Workload(shape, patternsPerQuery, queries, distinctValues, 42);
+        engine = new ShjEngine(workload);
+        engine.fill(workload.nextTriples(window), window);
+        triples = workload.nextTriples(TRIPLES);
+        next = 0;
+    }
+
+    @Benchmark
+    public boolean add() {
+        long now = engine.advance(1);
+        String[] triple = triples[next];
+        next = (next + 1) & (TRIPLES - 1);
+        // note: the query index modifies the triples it is given
+        return engine.getQueryIndex().add(triple.clone(), now + window);
+    }
+}
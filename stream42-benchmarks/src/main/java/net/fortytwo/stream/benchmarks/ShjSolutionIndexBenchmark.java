@@ -0,0 +1,105 @@
+package net.fortytwo.stream.benchmarks;
+
+import net.fortytwo.stream.shj.ExpirationTicket;
+import net.fortytwo.stream.shj.Query;
+import net.fortytwo.stream.shj.QueryContext;
+import net.fortytwo.stream.shj.Solution;
+import net.fortytwo.stream.shj.SolutionIndex;
+import net.fortytwo.stream.shj.TimeBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of storing partial solutions in the hash-based solution index of a triple pattern,
+ * including their expiration, and of removing solutions by pattern
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShjSolutionIndexBenchmark {
+    private static final int SOLUTIONS = 1 << 16;
+
+    // the number of variables of the triple pattern
+    @Param({"1", "2", "3"})
+    public int cardinality;
+
+    @Param({"100", "10000"})
+    public int distinctValues;
+
+    // the lifetime of each solution, in milliseconds, and therefore the number of live solutions
+    @Param({"10000"})
+    public int window;
+
+    private VirtualTimeExpirationManager<ExpirationTicket> solutionExpirationManager;
+    private QueryContext<String, String> context;
+    private SolutionIndex<String> index;
+    private SolutionIndex<String> staticIndex;
+    private String[][] values;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        solutionExpirationManager = new VirtualTimeExpirationManager<>(1);
+        context = new QueryContext<>(new VirtualTimeExpirationManager<Query<String, String>>(1),
+                solutionExpirationManager);
+        index = new SolutionIndex<>(context, cardinality);
+        staticIndex = new SolutionIndex<>(context, cardinality);
+
+        Workload workload = new Workload(Workload.Shape.STAR, 1, 1, distinctValues, 42);
+        values = new String[SOLUTIONS][];
+        for (int i = 0; i < SOLUTIONS; i++) {
+            String[] v = new String[cardinality];
+            for (int j = 0; j < cardinality; j++) {
+                v[j] = workload.nextValue();
+            }
+            values[i] = v;
+        }
+
+        // a steady state of expiring solutions, and a fixed set of non-expiring solutions
+        for (int i = 0; i < window; i++) {
+            add();
+        }
+        for (int i = 0; i < window; i++) {
+            staticIndex.add(new Solution<>(values[workload.nextIndex(SOLUTIONS)]));
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public void add() {
+        TimeBase timeBase = context.getTimeBase();
+        long now = solutionExpirationManager.advance(1);
+        context.evictExpired();
+
+        // note: solutions share their arrays of values, which the index does not modify
+        index.add(new Solution<>(values[next], timeBase.toExpirationTick(now + window, now)));
+        next = (next + 1) & (SOLUTIONS - 1);
+    }
+
+    @Benchmark
+    public boolean removePatternAndRestore() {
+        String[] v = values[next];
+        next = (next + 1) & (SOLUTIONS - 1);
+
+        // remove all solutions with the same values, then add one back, so that the size of the index is stable
+        boolean removed = staticIndex.removePattern(v);
+        staticIndex.add(new Solution<>(v));
+        return removed;
+    }
+}
@@ -0,0 +1,43 @@
+package net.fortytwo.stream.benchmarks;
+
+import net.fortytwo.stream.shj.Expirable;
+import net.fortytwo.stream.shj.ExpirationManager;
+import net.fortytwo.stream.shj.ExpirationQueue;
+
+/**
+ * An expiration manager whose clock is advanced by the benchmark itself, so that the state of the engine
+ * (e.g. the number of live partial solutions) depends only on the number of operations, and not on the speed
+ * of the machine. The manager's thread is never started; items are evicted when the engine calls for it
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class VirtualTimeExpirationManager<T extends Expirable> extends ExpirationManager<T> {
+    private long now;
+
+    public VirtualTimeExpirationManager(final long now) {
+        this.now = now;
+    }
+
+    public VirtualTimeExpirationManager(final ExpirationQueue<T> queue, final long now) {
+        super(queue);
+        this.now = now;
+    }
+
+    @Override
+    public long getNow() {
+        return now;
+    }
+
+    public void setNow(final long now) {
+        this.now = now;
+    }
+
+    /**
+     * @param millis the number of milliseconds by which to advance the clock
+     * @return the new time
+     */
+    public long advance(final long millis) {
+        now += millis;
+        return now;
+    }
+}
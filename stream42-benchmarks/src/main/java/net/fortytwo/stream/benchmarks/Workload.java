@@ -0,0 +1,156 @@
+package net.fortytwo.stream.benchmarks;
+
+import net.fortytwo.stream.model.VariableOrConstant;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A seeded generator of queries and of the triples which match them, for benchmarks.
+ * Each query has its own predicates, one per triple pattern, so that queries are independent of each other.
+ * Subjects and objects are drawn uniformly from a fixed number of distinct values, which determines the
+ * selectivity of joins: the fewer the values, the more partial solutions each join finds.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class Workload {
+
+    /**
+     * The shape of the graph pattern of each query
+     */
+    public enum Shape {
+        /**
+         * all triple patterns share a subject, e.g. ?x p0 ?y0 . ?x p1 ?y1
+         */
+        STAR,
+        /**
+         * each triple pattern joins the object of the previous one, e.g. ?x0 p0 ?x1 . ?x1 p1 ?x2
+         */
+        CHAIN
+    }
+
+    private final Shape shape;
+    private final int patternsPerQuery;
+    private final int queries;
+    private final int distinctValues;
+    private final Random random;
+
+    /**
+     * @param shape            the shape of each query
+     * @param patternsPerQuery the number of triple patterns in each query
+     * @param queries          the number of queries
+     * @param distinctValues   the number of distinct subjects and objects of generated triples
+     * @param seed             the seed of the generator. Workloads with the same parameters and seed
+     *                         generate the same triples
+     */
+    public Workload(final Shape shape,
+                    final int patternsPerQuery,
+                    final int queries,
+                    final int distinctValues,
+                    final long seed) {
+        if (patternsPerQuery < 1 || queries < 1 || distinctValues < 1) {
+            throw new IllegalArgumentException("illegal workload parameters");
+        }
+
+        this.shape = shape;
+        this.patternsPerQuery = patternsPerQuery;
+        this.queries = queries;
+        this.distinctValues = distinctValues;
+        this.random = new Random(seed);
+    }
+
+    public int getQueries() {
+        return queries;
+    }
+
+    public int getPatternsPerQuery() {
+        return patternsPerQuery;
+    }
+
+    /**
+     * Gets the triple patterns of a query
+     *
+     * @param query the index of the query
+     * @return the triple patterns of the query, in which variables begin with "?"
+     */
+    public List<String[]> getQuery(final int query) {
+        List<String[]> patterns = new LinkedList<>();
+        for (int i = 0; i < patternsPerQuery; i++) {
+            String predicate = predicate(query, i);
+            switch (shape) {
+                case STAR:
+                    patterns.add(new String[]{"?x", predicate, "?y" + i});
+                    break;
+                case CHAIN:
+                    patterns.add(new String[]{"?x" + i, predicate, "?x" + (i + 1)});
+                    break;
+                default:
+                    throw new IllegalStateException("unexpected shape: " + shape);
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * @return a new triple which matches a randomly chosen pattern of a randomly chosen query
+     */
+    public String[] nextTriple() {
+        return new String[]{
+                value(random.nextInt(distinctValues)),
+                predicate(random.nextInt(queries), random.nextInt(patternsPerQuery)),
+                value(random.nextInt(distinctValues))};
+    }
+
+    /**
+     * @param count the number of triples to generate
+     * @return an array of new triples (see {@link #nextTriple})
+     */
+    public String[][] nextTriples(final int count) {
+        String[][] triples = new String[count][];
+        for (int i = 0; i < count; i++) {
+            triples[i] = nextTriple();
+        }
+        return triples;
+    }
+
+    /**
+     * @param bound an exclusive upper bound
+     * @return a random index below the bound, from the generator of this workload
+     */
+    public int nextIndex(final int bound) {
+        return random.nextInt(bound);
+    }
+
+    /**
+     * @return a randomly chosen subject or object
+     */
+    public String nextValue() {
+        return value(random.nextInt(distinctValues));
+    }
+
+    /**
+     * Converts the terms of a triple pattern to variables and constants
+     *
+     * @param terms the terms of a triple pattern, in which variables begin with "?"
+     * @return the triple pattern as variables and constants
+     */
+    public static VariableOrConstant<String, String>[] toPattern(final String[] terms) {
+        VariableOrConstant<String, String>[] pattern = new VariableOrConstant[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            String term = terms[i];
+            pattern[i] = term.startsWith("?")
+                    ? new VariableOrConstant<>(term.substring(1), null)
+                    : new VariableOrConstant<>(null, term);
+        }
+        return pattern;
+    }
+
+    private String predicate(final int query, final int pattern) {
+        return "p" + query + "_" + pattern;
+    }
+
+    private String value(final int index) {
+        return "v" + index;
+    }
+}
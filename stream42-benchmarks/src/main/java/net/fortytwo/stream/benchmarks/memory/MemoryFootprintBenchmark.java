@@ -0,0 +1,378 @@
+package net.fortytwo.stream.benchmarks.memory;
+
+import net.fortytwo.stream.StreamProcessor;
+import net.fortytwo.stream.benchmarks.Heap;
+import net.fortytwo.stream.benchmarks.VirtualTimeExpirationManager;
+import net.fortytwo.stream.benchmarks.Workload;
+import net.fortytwo.stream.caching.Bindings;
+import net.fortytwo.stream.model.VariableOrConstant;
+import net.fortytwo.stream.shj.BasicSolutionIndex;
+import net.fortytwo.stream.shj.GraphPattern;
+import net.fortytwo.stream.shj.LongSolutionIndex;
+import net.fortytwo.stream.shj.OffHeapSolutionIndex;
+import net.fortytwo.stream.shj.Query;
+import net.fortytwo.stream.shj.QueryContext;
+import net.fortytwo.stream.shj.QueryIndex;
+import net.fortytwo.stream.shj.Solution;
+import net.fortytwo.stream.shj.SolutionIndex;
+import net.fortytwo.stream.shj.TuplePattern;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Measures the retained heap of the stored partial solutions of the SHJ and caching engines, and of the nodes of
+ * their query indices, by difference in the heap after garbage collection (see {@link Heap}).
+ * Each structure is loaded with a known number of solutions or queries, and the costs of its parts
+ * (e.g. a posting entry, a posting set, a node of a linked list) are separated by measuring variants
+ * which differ only in the number of those parts, e.g. solutions of one variable versus three.
+ * Values are allocated before measurement, and are not counted.
+ * <p>
+ * With --check, the measurements are compared against the ceilings in memory-budget.properties,
+ * and the benchmark exits with an error if any is exceeded, so that a regression in the size of
+ * e.g. Solution, Bindings or LList fails the build of the benchmarks.
+ * Object layouts differ with the JVM and its options (e.g. compressed pointers), so the ceilings assume
+ * a 64-bit JVM with a heap small enough for compressed pointers, as in the benchmark build.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class MemoryFootprintBenchmark {
+    private static final String BUDGET_RESOURCE = "memory-budget.properties";
+
+    // the number of distinct values of the shared columns of solutions
+    private static final int SHARED_VALUES = 64;
+
+    // the number of times each structure is built and measured. Odd, so that the median is a measurement
+    private static final int TRIALS = 3;
+
+    private static final List<String> CACHING_VARIABLES = Arrays.asList("x", "y", "z");
+    private static final net.fortytwo.stream.caching.Query.QueryVariables CACHING_QUERY_VARIABLES
+            = new net.fortytwo.stream.caching.Query.QueryVariables(CACHING_VARIABLES);
+
+    private final int count;
+    private final String[] distinctValues, sharedValues;
+    private final Long[] distinctLongs, sharedLongs;
+
+    private final Map<String, Double> results = new LinkedHashMap<>();
+
+    // the structure being measured, kept reachable until it has been measured
+    private Object retained;
+
+    /**
+     * @param count the number of solutions, or of queries, with which to load each structure
+     */
+    public MemoryFootprintBenchmark(final int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("illegal count: " + count);
+        }
+        this.count = count;
+
+        distinctValues = new String[count];
+        distinctLongs = new Long[count];
+        for (int i = 0; i < count; i++) {
+            distinctValues[i] = "v" + i;
+            distinctLongs[i] = (long) i;
+        }
+        sharedValues = new String[SHARED_VALUES];
+        sharedLongs = new Long[SHARED_VALUES];
+        for (int i = 0; i < SHARED_VALUES; i++) {
+            sharedValues[i] = "s" + i;
+            sharedLongs[i] = (long) (count + i);
+        }
+    }
+
+    /**
+     * Measures all structures
+     *
+     * @return the measurements, in bytes, by name, e.g. "shj.SolutionIndex.bytesPerPostingEntry"
+     */
+    public Map<String, Double> run() {
+        results.clear();
+        measureShj();
+        measureCaching();
+        return results;
+    }
+
+    private void measureShj() {
+        // solutions of which the first value is distinct and the others are drawn from a small, shared set
+        double solution1 = perCount(() -> shjSolutions(1));
+        double solution2 = perCount(() -> shjSolutions(2));
+        double solution3 = perCount(() -> shjSolutions(3));
+        results.put("shj.Solution.bytesPerSolution", solution2);
+
+        double index1 = perCount(() -> shjIndex(SolutionIndex::new, 1, false));
+        double index2 = perCount(() -> shjIndex(SolutionIndex::new, 2, false));
+        double index3 = perCount(() -> shjIndex(SolutionIndex::new, 3, false));
+        results.put("shj.SolutionIndex.bytesPerSolution", index2);
+        results.put("shj.SolutionIndex.bytesPerPostingEntry", ((index3 - solution3) - (index1 - solution1)) / 2);
+        // a posting set of its own for the second value, rather than an entry in a shared set
+        results.put("shj.SolutionIndex.bytesPerPostingSet",
+                perCount(() -> shjIndex(SolutionIndex::new, 2, true)) - index2);
+
+        results.put("shj.LongSolutionIndex.bytesPerSolution",
+                perCount(() -> shjIndex(LongSolutionIndex::new, 2, false)));
+
+        results.put("shj.OffHeapSolutionIndex.heapBytesPerSolution",
+                perCount(() -> shjIndex(OffHeapSolutionIndex::new, 2, false)));
+        // note: direct buffers are freed only after their owners are collected
+        Heap.usedAfterGc();
+        long direct = getDirectMemory();
+        retained = shjIndex(OffHeapSolutionIndex::new, 2, false);
+        results.put("shj.OffHeapSolutionIndex.directBytesPerSolution",
+                (getDirectMemory() - direct) / (double) count);
+        retained = null;
+
+        // queries which add one new node to the index, or two
+        results.put("shj.QueryIndex.bytesPerNode",
+                perCount(() -> shjQueryIndex(true)) - perCount(() -> shjQueryIndex(false)));
+    }
+
+    private void measureCaching() {
+        double bindings1 = perCount(() -> cachingBindings(1));
+        double bindings2 = perCount(() -> cachingBindings(2));
+        double bindings3 = perCount(() -> cachingBindings(3));
+        results.put("caching.Bindings.bytesPerBindings", bindings2);
+
+        // solutions sharing a single set of bindings, which is not counted
+        double solution = perCount(() -> {
+            Bindings<String> b = newBindings(2, 0);
+            List<net.fortytwo.stream.caching.Solution<String>> solutions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                solutions.add(new net.fortytwo.stream.caching.Solution<>(2, 0, b, 0));
+            }
+            return solutions;
+        }) - 4; // note: less the list's reference to each solution, assuming compressed pointers
+        results.put("caching.Solution.bytesPerSolution", solution);
+
+        double index1 = perCount(() -> cachingIndex(1, 1));
+        double index2 = perCount(() -> cachingIndex(2, 1));
+        double index3 = perCount(() -> cachingIndex(3, 1));
+        results.put("caching.SolutionIndex.bytesPerSolution", index2);
+        results.put("caching.SolutionIndex.bytesPerPostingEntry",
+                ((index3 - bindings3) - (index1 - bindings1)) / 2);
+
+        // a second solution in each group, matching a different pattern with the same bindings
+        double additional = perCount(() -> cachingIndex(2, 2)) - index2;
+        results.put("caching.SolutionGroup.bytesPerAdditionalSolution", additional);
+        results.put("caching.LList.bytesPerNode", additional - solution);
+
+        results.put("caching.QueryIndex.bytesPerNode",
+                perCount(() -> cachingQueryIndex(true)) - perCount(() -> cachingQueryIndex(false)));
+    }
+
+    // takes the median of several trials, as a single trial is occasionally disturbed by the collector,
+    // e.g. by a partly-resized table or a buffer which is released late, by much more than a small part is worth
+    private double perCount(final Supplier<Object> builder) {
+        double[] trials = new double[TRIALS];
+        for (int i = 0; i < TRIALS; i++) {
+            long before = Heap.usedAfterGc();
+            retained = builder.get();
+            long after = Heap.usedAfterGc();
+            retained = null;
+            trials[i] = (after - before) / (double) count;
+        }
+        Arrays.sort(trials);
+        return trials[TRIALS / 2];
+    }
+
+    private String[] values(final int cardinality, final int i, final boolean distinct) {
+        String[] values = new String[cardinality];
+        values[0] = distinctValues[i];
+        for (int j = 1; j < cardinality; j++) {
+            values[j] = distinct ? distinctValues[(i + j) % count] : sharedValues[(i + j) % SHARED_VALUES];
+        }
+        return values;
+    }
+
+    private Object shjSolutions(final int cardinality) {
+        Solution<String>[] solutions = new Solution[count];
+        for (int i = 0; i < count; i++) {
+            solutions[i] = new Solution<>(values(cardinality, i, false));
+        }
+        // note: the array itself is a small constant per solution, and cancels out of all differences
+        return solutions;
+    }
+
+    private Object shjIndex(final BiFunction<QueryContext<String, Object>, Integer, BasicSolutionIndex<Object>> factory,
+                            final int cardinality,
+                            final boolean distinct) {
+        QueryContext<String, Object> context = new QueryContext<>(
+                new VirtualTimeExpirationManager<>(1), new VirtualTimeExpirationManager<>(1));
+        BasicSolutionIndex<Object> index = factory.apply(context, cardinality);
+        boolean longs = !(index instanceof SolutionIndex);
+        for (int i = 0; i < count; i++) {
+            Object[] values;
+            if (longs) {
+                values = new Object[cardinality];
+                values[0] = distinctLongs[i];
+                for (int j = 1; j < cardinality; j++) {
+                    values[j] = distinct ? distinctLongs[(i + j) % count] : sharedLongs[(i + j) % SHARED_VALUES];
+                }
+            } else {
+                values = values(cardinality, i, distinct);
+            }
+            index.add(new Solution<>(values));
+        }
+        return index;
+    }
+
+    private Object shjQueryIndex(final boolean twoConstants) {
+        VirtualTimeExpirationManager<Query<String, String>> queryExpirationManager
+                = new VirtualTimeExpirationManager<>(1);
+        QueryContext<String, String> context
+                = new QueryContext<>(queryExpirationManager, new VirtualTimeExpirationManager<>(1));
+        QueryIndex<String, String> index = new QueryIndex<>(context);
+        for (int i = 0; i < count; i++) {
+            TuplePattern<String, String> pattern = new TuplePattern<>(Workload.toPattern(queryPattern(i, twoConstants)));
+            index.add(new Query<>(new GraphPattern<>(pattern), StreamProcessor.NEVER_EXPIRE,
+                    context.getTimeBase(), queryExpirationManager, (mapping, expirationTime) -> {
+            }));
+        }
+        return index;
+    }
+
+    // note: variables are shared among queries, and constants are not,
+    // so that the variants differ only in the number of nodes which each query adds to the index
+    private String[] queryPattern(final int i, final boolean twoConstants) {
+        return twoConstants
+                ? new String[]{"?x", distinctValues[i], distinctValues[(i + 1) % count]}
+                : new String[]{"?x", "?x", distinctValues[i]};
+    }
+
+    private Object cachingBindings(final int cardinality) {
+        List<Bindings<String>> bindings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            bindings.add(newBindings(cardinality, i));
+        }
+        return bindings;
+    }
+
+    private Bindings<String> newBindings(final int cardinality, final int i) {
+        String[] values = values(cardinality, i, false);
+        Map<String, String> map = new HashMap<>();
+        for (int j = 0; j < cardinality; j++) {
+            map.put(CACHING_VARIABLES.get(j), values[j]);
+        }
+        return new Bindings<>(map, CACHING_QUERY_VARIABLES);
+    }
+
+    private Object cachingIndex(final int cardinality, final int solutionsPerGroup) {
+        // note: a query of three patterns, so that solutions of one pattern are partial
+        net.fortytwo.stream.caching.SolutionIndex<String> index
+                = new net.fortytwo.stream.caching.SolutionIndex<>(CACHING_QUERY_VARIABLES, 3);
+        for (int i = 0; i < count; i++) {
+            Bindings<String> b = newBindings(cardinality, i);
+            for (int j = 0; j < solutionsPerGroup; j++) {
+                index.add(new net.fortytwo.stream.caching.Solution<>(3, j, b, 0), 1);
+            }
+        }
+        return index;
+    }
+
+    private Object cachingQueryIndex(final boolean twoConstants) {
+        net.fortytwo.stream.caching.QueryIndex<String, Integer> index
+                = new net.fortytwo.stream.caching.QueryIndex<>(3);
+        for (int i = 0; i < count; i++) {
+            List<VariableOrConstant<String, String>[]> patterns = new ArrayList<>(1);
+            patterns.add(Workload.toPattern(queryPattern(i, twoConstants)));
+            net.fortytwo.stream.caching.Query<String, Integer> query
+                    = new net.fortytwo.stream.caching.Query<>(patterns, StreamProcessor.NEVER_EXPIRE);
+            query.setSubscription(i);
+            index.add(query);
+        }
+        return index;
+    }
+
+    private static long getDirectMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares measurements against ceilings
+     *
+     * @param results the measurements, by name
+     * @param budget  the ceilings, by name. Measurements without a ceiling are not checked
+     * @return a description of each measurement which exceeds its ceiling
+     */
+    public static List<String> check(final Map<String, Double> results, final Properties budget) {
+        List<String> violations = new ArrayList<>();
+        for (Map.Entry<String, Double> e : results.entrySet()) {
+            String ceiling = budget.getProperty(e.getKey());
+            if (null != ceiling && e.getValue() > Double.valueOf(ceiling)) {
+                violations.add(e.getKey() + " is " + String.format("%.1f", e.getValue())
+                        + " bytes, over its budget of " + ceiling);
+            }
+        }
+        return violations;
+    }
+
+    private static Properties loadBudget() throws IOException {
+        Properties budget = new Properties();
+        try (InputStream in = MemoryFootprintBenchmark.class.getResourceAsStream(BUDGET_RESOURCE)) {
+            if (null == in) {
+                throw new IllegalStateException("missing resource: " + BUDGET_RESOURCE);
+            }
+            budget.load(in);
+        }
+        return budget;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        boolean doCheck = false;
+        int count = 200000;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--check")) {
+                doCheck = true;
+            } else if (args[i].equals("--count") && i + 1 < args.length) {
+                count = Integer.valueOf(args[++i]);
+            } else {
+                printUsageAndExit();
+            }
+        }
+
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\tjava " + System.getProperty("java.version")
+                + ", max heap " + Runtime.getRuntime().maxMemory() / 1048576 + " MB, count " + count);
+
+        // a first, smaller run loads and initializes classes, which would otherwise be counted
+        new MemoryFootprintBenchmark(Math.max(1, count / 10)).run();
+        Map<String, Double> results = new MemoryFootprintBenchmark(count).run();
+        for (Map.Entry<String, Double> e : results.entrySet()) {
+            System.out.println("REPORT\t" + e.getKey() + "\t" + String.format("%.1f", e.getValue()));
+        }
+
+        if (doCheck) {
+            List<String> violations = check(results, loadBudget());
+            for (String v : violations) {
+                System.err.println("OVER BUDGET\t" + v);
+            }
+            if (!violations.isEmpty()) {
+                System.exit(1);
+            }
+        }
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\tfinished");
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: MemoryFootprintBenchmark [--count n] [--check]\n"
+                + "  --count n   the number of solutions, or queries, per structure (default: 200000)\n"
+                + "  --check     exit with an error if any measurement exceeds its budget in "
+                + BUDGET_RESOURCE);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,379 @@
+package net.fortytwo.stream.benchmarks.scaling;
+
+import net.fortytwo.stream.StreamProcessor;
+import net.fortytwo.stream.benchmarks.Heap;
+import net.fortytwo.stream.benchmarks.VirtualTimeExpirationManager;
+import net.fortytwo.stream.benchmarks.Workload;
+import net.fortytwo.stream.caching.Bindings;
+import net.fortytwo.stream.metrics.Histogram;
+import net.fortytwo.stream.metrics.MetricsRegistry;
+import net.fortytwo.stream.metrics.MetricsSnapshot;
+import net.fortytwo.stream.model.VariableOrConstant;
+import net.fortytwo.stream.shj.ExpirationTicket;
+import net.fortytwo.stream.shj.GraphPattern;
+import net.fortytwo.stream.shj.Query;
+import net.fortytwo.stream.shj.QueryContext;
+import net.fortytwo.stream.shj.QueryIndex;
+import net.fortytwo.stream.shj.TuplePattern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * A benchmark of the query indices of the SHJ and caching engines as the number of registered subscriptions grows,
+ * e.g. from ten thousand to a million, for each of a number of degrees of query-template diversity
+ * (see {@link SubscriptionWorkload}). For each point of the sweep, a fresh index is built and reported are:
+ * <ul>
+ * <li>the retained heap per subscription, by difference after garbage collection</li>
+ * <li>the number of nodes of the index, and the greatest number of subscriptions sharing a leaf</li>
+ * <li>the rate of registration, and the latency of each call to add(Query), which holds the index's lock</li>
+ * <li>the cost of matching a tuple against the registered subscriptions</li>
+ * </ul>
+ * Matching is measured in virtual time, for a bounded number of tuples or of seconds, whichever comes first,
+ * so that the points at which matching becomes impractically slow are still reported.
+ * Run with --help for the options.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryScalingBenchmark {
+    // the number of triples after which expired solutions of the caching engine are removed. A power of two
+    private static final int CLEANUP_INTERVAL = 1024;
+
+    /**
+     * A query index under test, with its subscriptions
+     */
+    private interface Target {
+        void register(int subscription, List<String[]> patterns);
+
+        void add(String[] triple, long now, long lifetime);
+
+        long getSolutions();
+
+        int getNodeCount();
+
+        int getLargestFanOut();
+
+        void clear();
+    }
+
+    private static class ShjTarget implements Target {
+        private final VirtualTimeExpirationManager<Query<String, String>> queryExpirationManager
+                = new VirtualTimeExpirationManager<>(1);
+        private final VirtualTimeExpirationManager<ExpirationTicket> solutionExpirationManager
+                = new VirtualTimeExpirationManager<>(1);
+        private final QueryContext<String, String> context
+                = new QueryContext<>(queryExpirationManager, solutionExpirationManager);
+        private final QueryIndex<String, String> queryIndex = new QueryIndex<>(context);
+        private long solutions;
+
+        @Override
+        public void register(final int subscription, final List<String[]> patterns) {
+            TuplePattern<String, String>[] tuplePatterns = new TuplePattern[patterns.size()];
+            int i = 0;
+            for (String[] terms : patterns) {
+                tuplePatterns[i++] = new TuplePattern<>(Workload.toPattern(terms));
+            }
+
+            queryIndex.add(new Query<>(new GraphPattern<>(tuplePatterns), StreamProcessor.NEVER_EXPIRE,
+                    context.getTimeBase(), queryExpirationManager, (mapping, expirationTime) -> solutions++));
+        }
+
+        @Override
+        public void add(final String[] triple, final long now, final long lifetime) {
+            queryExpirationManager.setNow(now);
+            solutionExpirationManager.setNow(now);
+            queryIndex.add(triple, now + lifetime);
+        }
+
+        @Override
+        public long getSolutions() {
+            return solutions;
+        }
+
+        @Override
+        public int getNodeCount() {
+            return queryIndex.getNodeCount();
+        }
+
+        @Override
+        public int getLargestFanOut() {
+            // note: metrics are enabled only long enough to read the gauge, as they add to the cost of matching
+            MetricsRegistry registry = new MetricsRegistry();
+            queryIndex.setMetricsRegistry(registry);
+            MetricsSnapshot snapshot = registry.snapshot();
+            queryIndex.setMetricsRegistry(null);
+            return snapshot.getValues().get("shj.largestConsumerCount").intValue();
+        }
+
+        @Override
+        public void clear() {
+            queryIndex.clear();
+        }
+    }
+
+    private static class CachingTarget implements Target {
+        private final net.fortytwo.stream.caching.QueryIndex<String, Integer> queryIndex
+                = new net.fortytwo.stream.caching.QueryIndex<>(3);
+        private long solutions;
+        private long added;
+        private final BiConsumer<Integer, Bindings<String>> handler = (subscription, bindings) -> solutions++;
+
+        @Override
+        public void register(final int subscription, final List<String[]> patterns) {
+            List<VariableOrConstant<String, String>[]> p = new ArrayList<>(patterns.size());
+            for (String[] terms : patterns) {
+                p.add(Workload.toPattern(terms));
+            }
+            net.fortytwo.stream.caching.Query<String, Integer> query
+                    = new net.fortytwo.stream.caching.Query<>(p, StreamProcessor.NEVER_EXPIRE);
+            query.setSubscription(subscription);
+            queryIndex.add(query);
+        }
+
+        @Override
+        public void add(final String[] triple, final long now, final long lifetime) {
+            if (0 == (++added & (CLEANUP_INTERVAL - 1))) {
+                queryIndex.removeExpired(now);
+            }
+            // note: the caching engine's lifetimes are in whole seconds
+            queryIndex.add(triple, handler, (int) Math.max(1, lifetime / 1000), now);
+        }
+
+        @Override
+        public long getSolutions() {
+            return solutions;
+        }
+
+        @Override
+        public int getNodeCount() {
+            return queryIndex.getNodeCount();
+        }
+
+        @Override
+        public int getLargestFanOut() {
+            return queryIndex.getLargestLeafSize();
+        }
+
+        @Override
+        public void clear() {
+            queryIndex.clear();
+        }
+    }
+
+    /**
+     * The parameters of a sweep
+     */
+    public static class Configuration {
+        public String engine = "shj";
+        public int[] subscriptions = {10000, 100000, 1000000};
+        public int[] templates = {1, 100, 10000};
+        public int patternsPerQuery = 2;
+        public int distinctValues = 1000;
+        // the lifetime of each triple, in milliseconds of virtual time; triples arrive one millisecond apart
+        public int window = 10000;
+        // the greatest number of triples, and of seconds, for which matching is measured, after as many for warmup
+        public int tuples = 100000;
+        public int seconds = 10;
+        public long seed = 42;
+
+        /**
+         * @param args command-line options, e.g. "--engine caching --subscriptions 10000,20000"
+         * @return a configuration with the given options, and defaults for all others
+         * @throws IllegalArgumentException if an option is unknown or has an invalid value
+         */
+        public static Configuration parse(final String[] args) {
+            Configuration config = new Configuration();
+
+            for (int i = 0; i < args.length; i += 2) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value of option " + option);
+                }
+                String value = args[i + 1];
+
+                try {
+                    switch (option) {
+                        case "--engine":
+                            config.engine = value;
+                            break;
+                        case "--subscriptions":
+                            config.subscriptions = parseList(value);
+                            break;
+                        case "--templates":
+                            config.templates = parseList(value);
+                            break;
+                        case "--patterns":
+                            config.patternsPerQuery = Integer.valueOf(value);
+                            break;
+                        case "--values":
+                            config.distinctValues = Integer.valueOf(value);
+                            break;
+                        case "--window":
+                            config.window = Integer.valueOf(value);
+                            break;
+                        case "--tuples":
+                            config.tuples = Integer.valueOf(value);
+                            break;
+                        case "--seconds":
+                            config.seconds = Integer.valueOf(value);
+                            break;
+                        case "--seed":
+                            config.seed = Long.valueOf(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown option: " + option);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid value of option " + option + ": " + value);
+                }
+            }
+
+            if (config.patternsPerQuery < 1 || config.distinctValues < 1 || config.window < 1
+                    || config.tuples < 1 || config.seconds < 1) {
+                throw new IllegalArgumentException("out-of-range value of a numeric option");
+            }
+
+            return config;
+        }
+
+        private static int[] parseList(final String value) {
+            String[] parts = value.split(",");
+            int[] values = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Integer.valueOf(parts[i]);
+                if (values[i] < 1) {
+                    throw new IllegalArgumentException("out-of-range value in list: " + value);
+                }
+            }
+            return values;
+        }
+    }
+
+    private final Configuration config;
+
+    public QueryScalingBenchmark(final Configuration config) {
+        this.config = config;
+    }
+
+    /**
+     * Runs the sweep, printing one REPORT line per point
+     */
+    public void run() {
+        for (int templates : config.templates) {
+            for (int subscriptions : config.subscriptions) {
+                System.out.println(runPoint(templates, subscriptions));
+            }
+        }
+    }
+
+    private String runPoint(final int templates, final int subscriptions) {
+        SubscriptionWorkload workload = new SubscriptionWorkload(
+                templates, config.patternsPerQuery, config.distinctValues, config.seed);
+
+        long baseline = Heap.usedAfterGc();
+        Target target = createTarget(config.engine);
+
+        Histogram registrationLatency = new Histogram();
+        long registrationNanos = 0;
+        for (int i = 0; i < subscriptions; i++) {
+            List<String[]> patterns = workload.getQuery(i);
+            long before = System.nanoTime();
+            target.register(i, patterns);
+            long elapsed = System.nanoTime() - before;
+            registrationNanos += elapsed;
+            registrationLatency.record(elapsed / 1000);
+        }
+
+        long retained = Heap.usedAfterGc() - baseline;
+        int nodes = target.getNodeCount();
+        int fanOut = target.getLargestFanOut();
+
+        // warmup and measurement are each bounded by both a number of tuples and a time
+        long now = 1;
+        long budget = config.seconds * 1000000000L;
+        long start = System.nanoTime();
+        for (int i = 0; i < config.tuples && System.nanoTime() - start < budget; i++) {
+            target.add(workload.nextTriple(subscriptions), now++, config.window);
+        }
+
+        long solutionsBefore = target.getSolutions();
+        int measured = 0;
+        long matchingNanos = 0;
+        start = System.nanoTime();
+        while (measured < config.tuples && matchingNanos < budget) {
+            String[] triple = workload.nextTriple(subscriptions);
+            long before = System.nanoTime();
+            target.add(triple, now++, config.window);
+            matchingNanos += System.nanoTime() - before;
+            measured++;
+        }
+        long solutions = target.getSolutions() - solutionsBefore;
+
+        target.clear();
+
+        Histogram.Snapshot latency = registrationLatency.getSnapshot();
+        return "REPORT"
+                + "\tengine=" + config.engine
+                + "\ttemplates=" + templates
+                + "\tsubscriptions=" + subscriptions
+                + "\tbytesPerSubscription=" + retained / subscriptions
+                + "\tnodes=" + nodes
+                + "\tnodesPerSubscription=" + String.format("%.2f", nodes / (double) subscriptions)
+                + "\tlargestFanOut=" + fanOut
+                + "\tregistrationsPerSecond=" + String.format("%.0f", subscriptions * 1e9 / registrationNanos)
+                + "\tregistrationP99Micros=" + latency.getValueAtPercentile(99)
+                + "\tregistrationMaxMicros=" + latency.getMax()
+                + "\ttuples=" + measured
+                + "\tnanosPerTuple=" + matchingNanos / measured
+                + "\tsolutionsPerTuple=" + String.format("%.3f", solutions / (double) measured);
+    }
+
+    private static Target createTarget(final String engine) {
+        switch (engine) {
+            case "shj":
+                return new ShjTarget();
+            case "caching":
+                return new CachingTarget();
+            default:
+                throw new IllegalArgumentException("no such engine: " + engine);
+        }
+    }
+
+    public static void main(final String[] args) {
+        if (1 == args.length && args[0].equals("--help")) {
+            printUsageAndExit();
+        }
+
+        Configuration config;
+        try {
+            config = Configuration.parse(args);
+            createTarget(config.engine);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsageAndExit();
+            return;
+        }
+
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\tjava " + System.getProperty("java.version")
+                + " on " + Runtime.getRuntime().availableProcessors() + " processors, max heap "
+                + Runtime.getRuntime().maxMemory() / 1048576 + " MB");
+        new QueryScalingBenchmark(config).run();
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\tfinished");
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: QueryScalingBenchmark [options]\n"
+                + "  --engine shj|caching      the query engine (default: shj)\n"
+                + "  --subscriptions n,n,...   the numbers of subscriptions (default: 10000,100000,1000000)\n"
+                + "  --templates n,n,...       the numbers of distinct query templates (default: 1,100,10000)\n"
+                + "  --patterns n              the number of triple patterns per query (default: 2)\n"
+                + "  --values n                the number of distinct subjects and objects (default: 1000)\n"
+                + "  --window ms               the lifetime of each triple, in virtual milliseconds (default: 10000)\n"
+                + "  --tuples n                the most triples matched, for warmup and again for measurement"
+                + " (default: 100000)\n"
+                + "  --seconds n               the most seconds of matching, likewise (default: 10)\n"
+                + "  --seed n                  the seed of the workload (default: 42)");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,82 @@
+package net.fortytwo.stream.benchmarks.scaling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A seeded generator of many small, per-user continuous queries, and of the triples which match them.
+ * Each subscription instantiates one of a fixed number of query templates with a constant of its own,
+ * e.g. "?x p0_0 u42 . ?x p0_1 ?y1", so that the diversity of the templates, and not only the number of
+ * subscriptions, may be varied: with a single template, all subscriptions share all but their first pattern.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SubscriptionWorkload {
+    private final int templates;
+    private final int patternsPerQuery;
+    private final int distinctValues;
+    private final Random random;
+
+    /**
+     * @param templates        the number of distinct query templates
+     * @param patternsPerQuery the number of triple patterns in each query
+     * @param distinctValues   the number of distinct subjects, and of distinct objects of variable patterns,
+     *                         of generated triples
+     * @param seed             the seed of the generator
+     */
+    public SubscriptionWorkload(final int templates,
+                                final int patternsPerQuery,
+                                final int distinctValues,
+                                final long seed) {
+        if (templates < 1 || patternsPerQuery < 1 || distinctValues < 1) {
+            throw new IllegalArgumentException("illegal workload parameters");
+        }
+
+        this.templates = templates;
+        this.patternsPerQuery = patternsPerQuery;
+        this.distinctValues = distinctValues;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Gets the triple patterns of a subscription
+     *
+     * @param subscription the index of the subscription
+     * @return the triple patterns of the subscription's query, in which variables begin with "?"
+     */
+    public List<String[]> getQuery(final int subscription) {
+        int template = subscription % templates;
+        List<String[]> patterns = new ArrayList<>(patternsPerQuery);
+        patterns.add(new String[]{"?x", predicate(template, 0), user(subscription)});
+        for (int i = 1; i < patternsPerQuery; i++) {
+            patterns.add(new String[]{"?x", predicate(template, i), "?y" + i});
+        }
+        return patterns;
+    }
+
+    /**
+     * @param subscriptions the number of subscriptions registered
+     * @return a new triple which matches a randomly chosen pattern of a randomly chosen subscription
+     */
+    public String[] nextTriple(final int subscriptions) {
+        int subscription = random.nextInt(subscriptions);
+        int pattern = random.nextInt(patternsPerQuery);
+        return new String[]{
+                value(random.nextInt(distinctValues)),
+                predicate(subscription % templates, pattern),
+                0 == pattern ? user(subscription) : value(random.nextInt(distinctValues))};
+    }
+
+    private String predicate(final int template, final int pattern) {
+        return "p" + template + "_" + pattern;
+    }
+
+    private String user(final int subscription) {
+        return "u" + subscription;
+    }
+
+    private String value(final int index) {
+        return "v" + index;
+    }
+}
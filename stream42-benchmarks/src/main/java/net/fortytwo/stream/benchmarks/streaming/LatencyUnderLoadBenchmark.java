@@ -0,0 +1,410 @@
+package net.fortytwo.stream.benchmarks.streaming;
+
+import net.fortytwo.stream.metrics.Histogram;
+import net.fortytwo.stream.sparql.RDFStreamProcessor;
+import org.openrdf.model.Statement;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load driver which offers statements to a SPARQL stream processor at a fixed rate, and measures latency
+ * against the schedule rather than against the moment each statement was actually sent.
+ * A driver which waits for each call to addInputs before timing the next one measures only the calls it manages
+ * to make, and so omits the statements which would have arrived, and waited, during a pause of the processor
+ * (coordinated omission). Here, each batch of statements has an intended send time on a virtual schedule,
+ * and its latency is measured from that time, so that a pause (e.g. for garbage collection, for the eviction of
+ * expired solutions, or for the registration of a query) is charged to every batch it delays.
+ * <p>
+ * For each engine and each offered rate, a new processor is loaded with a warm-up stream and then driven
+ * on schedule. Reported are the achieved rate, and percentiles of:
+ * <ul>
+ * <li>response time: from the intended send time of a batch until addInputs returns</li>
+ * <li>solution latency: from the intended send time of a batch until each solution it produces is received</li>
+ * <li>service time: from the actual send time until addInputs returns, uncorrected, for comparison</li>
+ * </ul>
+ * The CURVE lines of the output, one per engine and rate, form a latency-versus-throughput curve.
+ * Once an engine falls behind its schedule by more than the duration of a step, it is saturated,
+ * and higher rates are skipped.
+ * Run with --help for the options.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class LatencyUnderLoadBenchmark {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+    // waits longer than this are parked rather than spun, in nanoseconds
+    private static final long SPIN_THRESHOLD = 100000;
+
+    /**
+     * The parameters of a sweep
+     */
+    public static class Configuration {
+        public List<String> engines = Arrays.asList("shj", "caching");
+        public String workload = "lubm";
+        // the names of the queries in the mix, or null for all queries of the workload
+        public List<String> mix = null;
+        // the number of instances of each query in the mix
+        public int instances = 1;
+        // the offered rates, in statements per second
+        public int[] rates = {1000, 2000, 5000, 10000, 20000, 50000};
+        // the duration of each step of the sweep, in seconds
+        public int duration = 10;
+        public int warmup = 100000;
+        public int batchSize = 1;
+        // the time-to-live of each statement, in seconds
+        public int ttl = 60;
+        public long seed = 42;
+
+        /**
+         * @param args command-line options, e.g. "--engines shj --rates 1000,10000"
+         * @return a configuration with the given options, and defaults for all others
+         * @throws IllegalArgumentException if an option is unknown or has an invalid value
+         */
+        public static Configuration parse(final String[] args) {
+            Configuration config = new Configuration();
+
+            for (int i = 0; i < args.length; i += 2) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value of option " + option);
+                }
+                String value = args[i + 1];
+
+                try {
+                    switch (option) {
+                        case "--engines":
+                            config.engines = Arrays.asList(value.split(","));
+                            break;
+                        case "--workload":
+                            config.workload = value;
+                            break;
+                        case "--mix":
+                            config.mix = Arrays.asList(value.split(","));
+                            break;
+                        case "--queries":
+                            config.instances = Integer.valueOf(value);
+                            break;
+                        case "--rates":
+                            String[] rates = value.split(",");
+                            config.rates = new int[rates.length];
+                            for (int j = 0; j < rates.length; j++) {
+                                config.rates[j] = Integer.valueOf(rates[j]);
+                            }
+                            break;
+                        case "--duration":
+                            config.duration = Integer.valueOf(value);
+                            break;
+                        case "--warmup":
+                            config.warmup = Integer.valueOf(value);
+                            break;
+                        case "--batch":
+                            config.batchSize = Integer.valueOf(value);
+                            break;
+                        case "--ttl":
+                            config.ttl = Integer.valueOf(value);
+                            break;
+                        case "--seed":
+                            config.seed = Long.valueOf(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown option: " + option);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid value of option " + option + ": " + value);
+                }
+            }
+
+            if (config.instances < 1 || config.duration < 1 || config.warmup < 0
+                    || config.batchSize < 1 || config.ttl < 0) {
+                throw new IllegalArgumentException("out-of-range value of a numeric option");
+            }
+            for (int rate : config.rates) {
+                if (rate < 1) {
+                    throw new IllegalArgumentException("out-of-range rate: " + rate);
+                }
+            }
+
+            return config;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder rates = new StringBuilder();
+            for (int rate : this.rates) {
+                if (rates.length() > 0) {
+                    rates.append(",");
+                }
+                rates.append(rate);
+            }
+            return "engines=" + String.join(",", engines)
+                    + " workload=" + workload
+                    + " mix=" + (null == mix ? "all" : String.join(",", mix))
+                    + " queries=" + instances
+                    + " rates=" + rates
+                    + " duration=" + duration
+                    + " warmup=" + warmup
+                    + " batch=" + batchSize
+                    + " ttl=" + ttl
+                    + " seed=" + seed;
+        }
+    }
+
+    /**
+     * The measurements of one step of a sweep: one engine at one offered rate
+     */
+    public static class Result {
+        private final String engine;
+        private final int offeredRate;
+        private final double achievedRate;
+        private final long inputs;
+        private final long solutions;
+        private final boolean saturated;
+        // latencies in microseconds
+        private final Histogram.Snapshot response, solutionLatency, service;
+
+        Result(final String engine,
+               final int offeredRate,
+               final double achievedRate,
+               final long inputs,
+               final long solutions,
+               final boolean saturated,
+               final Histogram.Snapshot response,
+               final Histogram.Snapshot solutionLatency,
+               final Histogram.Snapshot service) {
+            this.engine = engine;
+            this.offeredRate = offeredRate;
+            this.achievedRate = achievedRate;
+            this.inputs = inputs;
+            this.solutions = solutions;
+            this.saturated = saturated;
+            this.response = response;
+            this.solutionLatency = solutionLatency;
+            this.service = service;
+        }
+
+        public boolean isSaturated() {
+            return saturated;
+        }
+
+        public Histogram.Snapshot getResponse() {
+            return response;
+        }
+
+        public Histogram.Snapshot getSolutionLatency() {
+            return solutionLatency;
+        }
+
+        public Histogram.Snapshot getService() {
+            return service;
+        }
+
+        public double getAchievedRate() {
+            return achievedRate;
+        }
+
+        /**
+         * Prints the measurements as tab-separated REPORT lines, in the style of {@code TestRunner}
+         *
+         * @param out the stream to print to
+         */
+        public void print(final PrintStream out) {
+            String prefix = "REPORT\t" + engine + "\t" + offeredRate + "\t";
+            out.println(prefix + "achieved inputs/s\t" + String.format("%.1f", achievedRate));
+            out.println(prefix + "inputs\t" + inputs);
+            out.println(prefix + "solutions\t" + solutions);
+            out.println(prefix + "saturated\t" + saturated);
+            print(out, prefix + "response", response);
+            print(out, prefix + "solution latency", solutionLatency);
+            print(out, prefix + "service (uncorrected)", service);
+        }
+
+        private static void print(final PrintStream out, final String prefix, final Histogram.Snapshot h) {
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                out.println(prefix + " " + PERCENTILE_NAMES[i] + " us\t" + h.getValueAtPercentile(PERCENTILES[i]));
+            }
+            out.println(prefix + " max us\t" + h.getMax());
+        }
+
+        /**
+         * @return a point of the latency-versus-throughput curve, as a tab-separated CURVE line
+         */
+        public String toCurvePoint() {
+            StringBuilder sb = new StringBuilder("CURVE\t" + engine + "\t" + offeredRate + "\t"
+                    + String.format("%.1f", achievedRate));
+            for (double p : PERCENTILES) {
+                sb.append("\t").append(response.getValueAtPercentile(p));
+            }
+            sb.append("\t").append(response.getMax());
+            sb.append("\t").append(saturated ? "saturated" : "");
+            return sb.toString();
+        }
+    }
+
+    private final Configuration config;
+
+    // the intended send time of the batch being added, against which solutions are timed
+    private volatile long intendedTime;
+    private volatile Histogram solutionHistogram;
+
+    public LatencyUnderLoadBenchmark(final Configuration config) {
+        this.config = config;
+    }
+
+    /**
+     * Runs the sweep, for each engine in turn
+     *
+     * @return the measurements of each step which was run
+     */
+    public List<Result> run() throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (String engine : config.engines) {
+            for (int rate : config.rates) {
+                Result result = runStep(engine, rate);
+                results.add(result);
+                System.out.println("RUN\t" + System.currentTimeMillis() + "\t" + result.toCurvePoint());
+                if (result.isSaturated()) {
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Drives a new processor at a fixed rate
+     *
+     * @param engine the name of the engine
+     * @param rate   the offered rate, in statements per second
+     * @return the measurements of the step
+     */
+    public Result runStep(final String engine, final int rate) throws Exception {
+        RDFStreamProcessor<?, ?> processor = StreamingBenchmark.createProcessor(engine);
+        StatementGenerator generator = StreamingBenchmark.createGenerator(config.workload, config.seed);
+
+        Histogram response = new Histogram();
+        Histogram service = new Histogram();
+        Histogram solutionLatency = new Histogram();
+        LongAdder solutions = new LongAdder();
+        StreamingBenchmark.addQueries(processor, generator, config.mix, config.instances,
+                (bindings, expirationTime) -> {
+                    Histogram h = solutionHistogram;
+                    if (null != h) {
+                        h.record((System.nanoTime() - intendedTime) / 1000);
+                        solutions.increment();
+                    }
+                });
+
+        try {
+            solutionHistogram = null;
+            for (int i = 0; i < config.warmup; i += config.batchSize) {
+                processor.addInputs(config.ttl, generator.next(Math.min(config.batchSize, config.warmup - i)));
+            }
+
+            // note: statements are generated in advance, so that generation does not compete with the schedule
+            int batchCount = (int) Math.max(1, (long) rate * config.duration / config.batchSize);
+            List<Statement[]> batches = new ArrayList<>(batchCount);
+            for (int i = 0; i < batchCount; i++) {
+                batches.add(generator.next(config.batchSize));
+            }
+
+            long interval = 1000000000L * config.batchSize / rate;
+            long maxLag = 1000000000L * config.duration;
+            boolean saturated = false;
+            int sent = 0;
+
+            System.gc();
+            solutionHistogram = solutionLatency;
+            long start = System.nanoTime() + interval;
+            long end = start;
+            for (Statement[] batch : batches) {
+                long intended = start + sent * interval;
+                long now = waitUntil(intended);
+                if (now - intended > maxLag) {
+                    saturated = true;
+                    break;
+                }
+
+                intendedTime = intended;
+                processor.addInputs(config.ttl, batch);
+                end = System.nanoTime();
+
+                response.record((end - intended) / 1000);
+                service.record((end - now) / 1000);
+                sent++;
+            }
+            solutionHistogram = null;
+
+            long inputs = (long) sent * config.batchSize;
+            double achieved = end > start ? inputs * 1e9 / (end - start) : 0;
+            return new Result(engine, rate, achieved, inputs, solutions.sum(), saturated,
+                    response.getSnapshot(), solutionLatency.getSnapshot(), service.getSnapshot());
+        } finally {
+            processor.shutDown();
+        }
+    }
+
+    // waits until the given time on the schedule, if it has not already passed, and returns the actual time
+    private static long waitUntil(final long time) {
+        long now;
+        while ((now = System.nanoTime()) < time) {
+            long remaining = time - now;
+            if (remaining > SPIN_THRESHOLD) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD / 2);
+            }
+        }
+        return now;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (1 == args.length && args[0].equals("--help")) {
+            printUsageAndExit();
+        }
+
+        Configuration config;
+        try {
+            config = Configuration.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsageAndExit();
+            return;
+        }
+
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\t" + config);
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\tjava " + System.getProperty("java.version")
+                + " on " + Runtime.getRuntime().availableProcessors() + " processors");
+
+        List<Result> results = new LatencyUnderLoadBenchmark(config).run();
+
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\tfinished");
+        for (Result result : results) {
+            result.print(System.out);
+        }
+        System.out.println("CURVE\tengine\toffered inputs/s\tachieved inputs/s"
+                + "\tp50 us\tp90 us\tp99 us\tp99.9 us\tmax us\tstatus");
+        for (Result result : results) {
+            System.out.println(result.toCurvePoint());
+        }
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: LatencyUnderLoadBenchmark [options]\n"
+                + "  --engines shj,caching     the query engines (default: shj,caching)\n"
+                + "  --workload lubm|sp2bench  the generated workload (default: lubm)\n"
+                + "  --mix q1,q2,...           the queries of the workload to register (default: all)\n"
+                + "  --queries n               the number of instances of each query (default: 1)\n"
+                + "  --rates n,n,...           the offered rates, in statements per second"
+                + " (default: 1000,2000,5000,10000,20000,50000)\n"
+                + "  --duration s              the duration of each rate, in seconds (default: 10)\n"
+                + "  --warmup n                the number of statements added before each rate (default: 100000)\n"
+                + "  --batch n                 the number of statements per call to addInputs (default: 1)\n"
+                + "  --ttl s                   the time-to-live of statements, in seconds; 0 for none (default: 60)\n"
+                + "  --seed n                  the seed of the generator (default: 42)");
+        System.exit(1);
+    }
+}
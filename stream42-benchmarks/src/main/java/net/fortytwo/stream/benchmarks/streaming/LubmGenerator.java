@@ -0,0 +1,194 @@
+package net.fortytwo.stream.benchmarks.streaming;
+
+import org.openrdf.model.IRI;
+import org.openrdf.model.Statement;
+import org.openrdf.model.ValueFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A generator of statements in the shape of the Lehigh University Benchmark (LUBM):
+ * universities made up of departments, each with its courses, professors and students.
+ * One department is generated at a time. Unlike LUBM, the types of entities are stated explicitly,
+ * including their supertypes (e.g. a graduate student is also a student), as the query engines do no inference
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class LubmGenerator extends StatementGenerator {
+    private static final String UB = "http://lubm.franz.com#";
+
+    private static final int DEPARTMENTS_PER_UNIVERSITY = 15;
+    private static final int COURSES = 20, GRADUATE_COURSES = 10, PROFESSORS = 8,
+            GRADUATE_STUDENTS = 25, UNDERGRADUATE_STUDENTS = 60;
+
+    private static final String PREFIXES = "PREFIX ub: <" + UB + ">\n"
+            + "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n";
+
+    private final IRI university, department, course, graduateCourse, professor, faculty,
+            student, graduateStudent, undergraduateStudent;
+    private final IRI subOrganizationOf, worksFor, memberOf, teacherOf, takesCourse, advisor,
+            undergraduateDegreeFrom, name, emailAddress, telephone;
+
+    // the index of the next department to generate, over all universities
+    private int nextDepartment;
+
+    public LubmGenerator(final ValueFactory valueFactory, final long seed) {
+        super(valueFactory, seed);
+
+        university = iri(UB + "University");
+        department = iri(UB + "Department");
+        course = iri(UB + "Course");
+        graduateCourse = iri(UB + "GraduateCourse");
+        professor = iri(UB + "Professor");
+        faculty = iri(UB + "Faculty");
+        student = iri(UB + "Student");
+        graduateStudent = iri(UB + "GraduateStudent");
+        undergraduateStudent = iri(UB + "UndergraduateStudent");
+
+        subOrganizationOf = iri(UB + "subOrganizationOf");
+        worksFor = iri(UB + "worksFor");
+        memberOf = iri(UB + "memberOf");
+        teacherOf = iri(UB + "teacherOf");
+        takesCourse = iri(UB + "takesCourse");
+        advisor = iri(UB + "advisor");
+        undergraduateDegreeFrom = iri(UB + "undergraduateDegreeFrom");
+        name = iri(UB + "name");
+        emailAddress = iri(UB + "emailAddress");
+        telephone = iri(UB + "telephone");
+    }
+
+    @Override
+    public String getName() {
+        return "lubm";
+    }
+
+    @Override
+    public List<String> getQueryNames() {
+        return Arrays.asList("q1", "q2", "q4", "q9");
+    }
+
+    @Override
+    public String getQuery(final String name, final int instance) {
+        switch (name) {
+            case "q1":
+                // the students of a graduate course
+                return PREFIXES + "SELECT ?X WHERE {\n"
+                        + "?X ub:takesCourse <" + departmentIri(instance / GRADUATE_COURSES)
+                        + "/GraduateCourse" + instance % GRADUATE_COURSES + "> .\n"
+                        + "?X rdf:type ub:GraduateStudent .\n"
+                        + "}";
+            case "q2":
+                // graduate students who are members of a department of the university of their first degree
+                return PREFIXES + "SELECT ?X ?Y ?Z WHERE {\n"
+                        + "?Z rdf:type ub:Department .\n"
+                        + "?Z ub:subOrganizationOf ?Y .\n"
+                        + "?X ub:undergraduateDegreeFrom ?Y .\n"
+                        + "?X ub:memberOf ?Z .\n"
+                        + "?X rdf:type ub:GraduateStudent .\n"
+                        + "?Y rdf:type ub:University .\n"
+                        + "}";
+            case "q4":
+                // the professors of a department, with their contact details
+                return PREFIXES + "SELECT ?X ?Y1 ?Y2 ?Y3 WHERE {\n"
+                        + "?X ub:worksFor <" + departmentIri(instance) + "> .\n"
+                        + "?X rdf:type ub:Professor .\n"
+                        + "?X ub:name ?Y1 .\n"
+                        + "?X ub:emailAddress ?Y2 .\n"
+                        + "?X ub:telephone ?Y3 .\n"
+                        + "}";
+            case "q9":
+                // students who take a course taught by their advisor
+                return PREFIXES + "SELECT ?X ?Y ?Z WHERE {\n"
+                        + "?Y rdf:type ub:Faculty .\n"
+                        + "?Y ub:teacherOf ?Z .\n"
+                        + "?X ub:advisor ?Y .\n"
+                        + "?X ub:takesCourse ?Z .\n"
+                        + "?X rdf:type ub:Student .\n"
+                        + "?Z rdf:type ub:Course .\n"
+                        + "}";
+            default:
+                throw noSuchQuery(name);
+        }
+    }
+
+    @Override
+    protected void generate(final List<Statement> statements) {
+        int index = nextDepartment++;
+        int universityIndex = index / DEPARTMENTS_PER_UNIVERSITY;
+        IRI univ = iri(universityIri(universityIndex));
+        if (0 == index % DEPARTMENTS_PER_UNIVERSITY) {
+            addType(statements, univ, university);
+        }
+
+        String deptIri = departmentIri(index);
+        IRI dept = iri(deptIri);
+        addType(statements, dept, department);
+        add(statements, dept, subOrganizationOf, univ);
+
+        IRI[] courses = new IRI[COURSES];
+        for (int i = 0; i < COURSES; i++) {
+            courses[i] = iri(deptIri + "/Course" + i);
+            addType(statements, courses[i], course);
+        }
+        IRI[] graduateCourses = new IRI[GRADUATE_COURSES];
+        for (int i = 0; i < GRADUATE_COURSES; i++) {
+            graduateCourses[i] = iri(deptIri + "/GraduateCourse" + i);
+            addType(statements, graduateCourses[i], graduateCourse);
+            addType(statements, graduateCourses[i], course);
+        }
+
+        IRI[] professors = new IRI[PROFESSORS];
+        for (int i = 0; i < PROFESSORS; i++) {
+            IRI prof = iri(deptIri + "/Professor" + i);
+            professors[i] = prof;
+            addType(statements, prof, professor);
+            addType(statements, prof, faculty);
+            add(statements, prof, worksFor, dept);
+            add(statements, prof, name, valueFactory.createLiteral("Professor" + i));
+            add(statements, prof, emailAddress,
+                    valueFactory.createLiteral("Professor" + i + "@Department" + index + ".edu"));
+            add(statements, prof, telephone, valueFactory.createLiteral("xxx-xxx-" + random.nextInt(10000)));
+            add(statements, prof, teacherOf, courses[random.nextInt(COURSES)]);
+            add(statements, prof, teacherOf, graduateCourses[random.nextInt(GRADUATE_COURSES)]);
+        }
+
+        for (int i = 0; i < GRADUATE_STUDENTS; i++) {
+            IRI grad = iri(deptIri + "/GraduateStudent" + i);
+            addType(statements, grad, graduateStudent);
+            addType(statements, grad, student);
+            add(statements, grad, memberOf, dept);
+            add(statements, grad, name, valueFactory.createLiteral("GraduateStudent" + i));
+            // most first degrees are from other universities, among those generated so far
+            int degreeFrom = random.nextInt(5) == 0 ? universityIndex : random.nextInt(universityIndex + 1);
+            add(statements, grad, undergraduateDegreeFrom, iri(universityIri(degreeFrom)));
+            add(statements, grad, advisor, professors[random.nextInt(PROFESSORS)]);
+            for (int j = 1 + random.nextInt(3); j > 0; j--) {
+                add(statements, grad, takesCourse, graduateCourses[random.nextInt(GRADUATE_COURSES)]);
+            }
+        }
+
+        for (int i = 0; i < UNDERGRADUATE_STUDENTS; i++) {
+            IRI undergrad = iri(deptIri + "/UndergraduateStudent" + i);
+            addType(statements, undergrad, undergraduateStudent);
+            addType(statements, undergrad, student);
+            add(statements, undergrad, memberOf, dept);
+            add(statements, undergrad, name, valueFactory.createLiteral("UndergraduateStudent" + i));
+            if (0 == random.nextInt(5)) {
+                add(statements, undergrad, advisor, professors[random.nextInt(PROFESSORS)]);
+            }
+            for (int j = 2 + random.nextInt(3); j > 0; j--) {
+                add(statements, undergrad, takesCourse, courses[random.nextInt(COURSES)]);
+            }
+        }
+    }
+
+    private static String universityIri(final int university) {
+        return "http://www.University" + university + ".edu";
+    }
+
+    private static String departmentIri(final int department) {
+        return "http://www.Department" + department % DEPARTMENTS_PER_UNIVERSITY
+                + ".University" + department / DEPARTMENTS_PER_UNIVERSITY + ".edu";
+    }
+}
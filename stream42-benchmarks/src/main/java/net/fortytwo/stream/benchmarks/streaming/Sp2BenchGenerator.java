@@ -0,0 +1,166 @@
+package net.fortytwo.stream.benchmarks.streaming;
+
+import org.openrdf.model.IRI;
+import org.openrdf.model.Statement;
+import org.openrdf.model.ValueFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A generator of statements in the shape of the SP2Bench DBLP-like bibliography:
+ * for each year, a journal, the articles published in it, and inproceedings of a conference,
+ * all written by a growing population of authors, many of whom publish repeatedly.
+ * One year is generated at a time, beginning with 1940
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class Sp2BenchGenerator extends StatementGenerator {
+    private static final String BENCH = "http://localhost/vocabulary/bench/";
+    private static final String DC = "http://purl.org/dc/elements/1.1/";
+    private static final String DCTERMS = "http://purl.org/dc/terms/";
+    private static final String SWRC = "http://swrc.ontoware.org/ontology#";
+    private static final String FOAF = "http://xmlns.com/foaf/0.1/";
+    private static final String INSTANCES = "http://localhost/";
+
+    private static final int FIRST_YEAR = 1940;
+    private static final int ARTICLES_PER_YEAR = 50, INPROCEEDINGS_PER_YEAR = 30;
+    // the probability that an author is new, rather than an author of an earlier publication
+    private static final double NEW_AUTHOR_PROBABILITY = 0.3;
+
+    private static final String PREFIXES = "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n"
+            + "PREFIX bench: <" + BENCH + ">\n"
+            + "PREFIX dc: <" + DC + ">\n"
+            + "PREFIX dcterms: <" + DCTERMS + ">\n"
+            + "PREFIX swrc: <" + SWRC + ">\n"
+            + "PREFIX foaf: <" + FOAF + ">\n";
+
+    private final IRI journal, article, inproceedings, proceedings, person;
+    private final IRI title, creator, issued, partOf, journalProperty, pages, booktitle, name;
+
+    private final List<IRI> authors = new ArrayList<>();
+    private int nextYear = FIRST_YEAR;
+    private int nextArticle, nextInproceedings;
+
+    public Sp2BenchGenerator(final ValueFactory valueFactory, final long seed) {
+        super(valueFactory, seed);
+
+        journal = iri(BENCH + "Journal");
+        article = iri(BENCH + "Article");
+        inproceedings = iri(BENCH + "Inproceedings");
+        proceedings = iri(BENCH + "Proceedings");
+        person = iri(FOAF + "Person");
+
+        title = iri(DC + "title");
+        creator = iri(DC + "creator");
+        issued = iri(DCTERMS + "issued");
+        partOf = iri(DCTERMS + "partOf");
+        journalProperty = iri(SWRC + "journal");
+        pages = iri(SWRC + "pages");
+        booktitle = iri(BENCH + "booktitle");
+        name = iri(FOAF + "name");
+    }
+
+    @Override
+    public String getName() {
+        return "sp2bench";
+    }
+
+    @Override
+    public List<String> getQueryNames() {
+        return Arrays.asList("q1", "q2", "q3a", "q5b");
+    }
+
+    @Override
+    public String getQuery(final String name, final int instance) {
+        switch (name) {
+            case "q1":
+                // the year of a journal
+                return PREFIXES + "SELECT ?yr WHERE {\n"
+                        + "?journal rdf:type bench:Journal .\n"
+                        + "?journal dc:title \"" + journalTitle(FIRST_YEAR + instance) + "\" .\n"
+                        + "?journal dcterms:issued ?yr .\n"
+                        + "}";
+            case "q2":
+                // inproceedings with their details (SP2Bench Q2 without OPTIONAL and ORDER BY)
+                return PREFIXES + "SELECT ?inproc ?author ?booktitle ?proc WHERE {\n"
+                        + "?inproc rdf:type bench:Inproceedings .\n"
+                        + "?inproc dc:creator ?author .\n"
+                        + "?inproc bench:booktitle ?booktitle .\n"
+                        + "?inproc dcterms:partOf ?proc .\n"
+                        + "}";
+            case "q3a":
+                // articles with a page count
+                return PREFIXES + "SELECT ?article WHERE {\n"
+                        + "?article rdf:type bench:Article .\n"
+                        + "?article swrc:pages ?value .\n"
+                        + "}";
+            case "q5b":
+                // authors of both articles and inproceedings
+                return PREFIXES + "SELECT ?person ?name WHERE {\n"
+                        + "?article rdf:type bench:Article .\n"
+                        + "?article dc:creator ?person .\n"
+                        + "?inproc rdf:type bench:Inproceedings .\n"
+                        + "?inproc dc:creator ?person .\n"
+                        + "?person foaf:name ?name .\n"
+                        + "}";
+            default:
+                throw noSuchQuery(name);
+        }
+    }
+
+    @Override
+    protected void generate(final List<Statement> statements) {
+        int year = nextYear++;
+        String yearLabel = String.valueOf(year);
+
+        IRI j = iri(INSTANCES + "journal/Journal1/" + year);
+        addType(statements, j, journal);
+        add(statements, j, title, valueFactory.createLiteral(journalTitle(year)));
+        add(statements, j, issued, valueFactory.createLiteral(yearLabel));
+
+        for (int i = 0; i < ARTICLES_PER_YEAR; i++) {
+            IRI a = iri(INSTANCES + "articles/Article" + nextArticle++);
+            addType(statements, a, article);
+            add(statements, a, title, valueFactory.createLiteral("article title " + random.nextInt()));
+            add(statements, a, journalProperty, j);
+            add(statements, a, issued, valueFactory.createLiteral(yearLabel));
+            if (random.nextBoolean()) {
+                add(statements, a, pages, valueFactory.createLiteral(String.valueOf(1 + random.nextInt(100))));
+            }
+            addAuthors(statements, a);
+        }
+
+        IRI proc = iri(INSTANCES + "proceedings/Proceeding" + year);
+        addType(statements, proc, proceedings);
+        add(statements, proc, issued, valueFactory.createLiteral(yearLabel));
+        for (int i = 0; i < INPROCEEDINGS_PER_YEAR; i++) {
+            IRI inproc = iri(INSTANCES + "inproceedings/Inproceeding" + nextInproceedings++);
+            addType(statements, inproc, inproceedings);
+            add(statements, inproc, title, valueFactory.createLiteral("inproceedings title " + random.nextInt()));
+            add(statements, inproc, booktitle, valueFactory.createLiteral("Conference " + year));
+            add(statements, inproc, partOf, proc);
+            addAuthors(statements, inproc);
+        }
+    }
+
+    private void addAuthors(final List<Statement> statements, final IRI publication) {
+        for (int k = 1 + random.nextInt(3); k > 0; k--) {
+            IRI author;
+            if (authors.isEmpty() || random.nextDouble() < NEW_AUTHOR_PROBABILITY) {
+                author = iri(INSTANCES + "persons/Person" + authors.size());
+                addType(statements, author, person);
+                add(statements, author, name, valueFactory.createLiteral("Person " + authors.size()));
+                authors.add(author);
+            } else {
+                author = authors.get(random.nextInt(authors.size()));
+            }
+            add(statements, publication, creator, author);
+        }
+    }
+
+    private static String journalTitle(final int year) {
+        return "Journal 1 (" + year + ")";
+    }
+}
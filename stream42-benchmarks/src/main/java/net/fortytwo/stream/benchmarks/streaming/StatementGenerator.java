@@ -0,0 +1,110 @@
+package net.fortytwo.stream.benchmarks.streaming;
+
+import org.openrdf.model.IRI;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A seeded, unbounded generator of RDF statements, together with the continuous queries which are answered
+ * by them. Statements are generated a few entities at a time, so that the stream can be consumed for as long
+ * as needed in constant memory. Generators with the same seed produce the same stream
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public abstract class StatementGenerator {
+    protected static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+
+    protected final ValueFactory valueFactory;
+    protected final Random random;
+
+    private final IRI rdfType;
+    private final List<Statement> pending = new ArrayList<>();
+    private int nextPending;
+
+    /**
+     * @param valueFactory a factory for the values of generated statements
+     * @param seed         the seed of the generator
+     */
+    protected StatementGenerator(final ValueFactory valueFactory, final long seed) {
+        this.valueFactory = valueFactory;
+        this.random = new Random(seed);
+        rdfType = valueFactory.createIRI(RDF_TYPE);
+    }
+
+    /**
+     * @return the name of the workload, e.g. "lubm"
+     */
+    public abstract String getName();
+
+    /**
+     * @return the names of the queries of the workload, e.g. "q1", in the order of a default query mix
+     */
+    public abstract List<String> getQueryNames();
+
+    /**
+     * Gets an instance of a query of the workload.
+     * Instances of parameterized queries differ in their constants, e.g. the course whose students are sought;
+     * instances of other queries are identical
+     *
+     * @param name     the name of the query
+     * @param instance the index of the instance, from 0
+     * @return the SPARQL text of the query
+     * @throws IllegalArgumentException if there is no such query
+     */
+    public abstract String getQuery(String name, int instance);
+
+    /**
+     * Generates the statements of the next few entities of the stream
+     *
+     * @param statements a list to which to add the statements
+     */
+    protected abstract void generate(List<Statement> statements);
+
+    /**
+     * @return the next statement of the stream
+     */
+    public Statement next() {
+        while (nextPending >= pending.size()) {
+            pending.clear();
+            nextPending = 0;
+            generate(pending);
+        }
+
+        return pending.get(nextPending++);
+    }
+
+    /**
+     * @param count the number of statements to generate
+     * @return the next statements of the stream
+     */
+    public Statement[] next(final int count) {
+        Statement[] statements = new Statement[count];
+        for (int i = 0; i < count; i++) {
+            statements[i] = next();
+        }
+        return statements;
+    }
+
+    protected IRI iri(final String iri) {
+        return valueFactory.createIRI(iri);
+    }
+
+    protected void add(final List<Statement> statements, final Resource subject, final IRI predicate,
+                       final Value object) {
+        statements.add(valueFactory.createStatement(subject, predicate, object));
+    }
+
+    protected void addType(final List<Statement> statements, final Resource subject, final IRI type) {
+        add(statements, subject, rdfType, type);
+    }
+
+    protected static IllegalArgumentException noSuchQuery(final String name) {
+        return new IllegalArgumentException("no such query: " + name);
+    }
+}
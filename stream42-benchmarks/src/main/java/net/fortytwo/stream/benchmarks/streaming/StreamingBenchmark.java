@@ -0,0 +1,398 @@
+package net.fortytwo.stream.benchmarks.streaming;
+
+import net.fortytwo.stream.StreamProcessor;
+import net.fortytwo.stream.metrics.Histogram;
+import net.fortytwo.stream.sparql.RDFStreamProcessor;
+import net.fortytwo.stream.sparql.impl.caching.CachingSparqlStreamProcessor;
+import net.fortytwo.stream.sparql.impl.shj.SHJSparqlStreamProcessor;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.SimpleValueFactory;
+import org.openrdf.query.BindingSet;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * An end-to-end benchmark of a SPARQL stream processor, which registers a mix of continuous queries
+ * and then pushes a seeded stream of generated statements through the processor as fast as it will accept them.
+ * The same configuration and seed always produce the same queries and the same stream, so that runs
+ * may be compared across engines and across revisions.
+ * <p>
+ * Statements are generated before they are measured, so that the cost of generation is not included.
+ * Reported are the sustained rates of inputs and solutions, the latency of each call to addInputs,
+ * and the high-water mark of the heap.
+ * Run without arguments for the defaults, or with --help for the options.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class StreamingBenchmark {
+    private static final int QUERY_TTL = StreamProcessor.INFINITE_TTL;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+    /**
+     * The parameters of a run of the benchmark
+     */
+    public static class Configuration {
+        public String engine = "shj";
+        public String workload = "lubm";
+        // the names of the queries in the mix, or null for all queries of the workload
+        public List<String> mix = null;
+        // the number of instances of each query in the mix
+        public int instances = 1;
+        public int statements = 500000;
+        public int warmup = 100000;
+        public int batchSize = 1;
+        // the time-to-live of each statement, in seconds
+        public int ttl = 60;
+        public long seed = 42;
+
+        /**
+         * @param args command-line options, e.g. "--engine caching --statements 100000"
+         * @return a configuration with the given options, and defaults for all others
+         * @throws IllegalArgumentException if an option is unknown or has an invalid value
+         */
+        public static Configuration parse(final String[] args) {
+            Configuration config = new Configuration();
+
+            for (int i = 0; i < args.length; i += 2) {
+                String option = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value of option " + option);
+                }
+                String value = args[i + 1];
+
+                try {
+                    switch (option) {
+                        case "--engine":
+                            config.engine = value;
+                            break;
+                        case "--workload":
+                            config.workload = value;
+                            break;
+                        case "--mix":
+                            config.mix = Arrays.asList(value.split(","));
+                            break;
+                        case "--queries":
+                            config.instances = Integer.valueOf(value);
+                            break;
+                        case "--statements":
+                            config.statements = Integer.valueOf(value);
+                            break;
+                        case "--warmup":
+                            config.warmup = Integer.valueOf(value);
+                            break;
+                        case "--batch":
+                            config.batchSize = Integer.valueOf(value);
+                            break;
+                        case "--ttl":
+                            config.ttl = Integer.valueOf(value);
+                            break;
+                        case "--seed":
+                            config.seed = Long.valueOf(value);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown option: " + option);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid value of option " + option + ": " + value);
+                }
+            }
+
+            if (config.instances < 1 || config.statements < 1 || config.warmup < 0
+                    || config.batchSize < 1 || config.ttl < 0) {
+                throw new IllegalArgumentException("out-of-range value of a numeric option");
+            }
+
+            return config;
+        }
+
+        @Override
+        public String toString() {
+            return "engine=" + engine
+                    + " workload=" + workload
+                    + " mix=" + (null == mix ? "all" : String.join(",", mix))
+                    + " queries=" + instances
+                    + " statements=" + statements
+                    + " warmup=" + warmup
+                    + " batch=" + batchSize
+                    + " ttl=" + ttl
+                    + " seed=" + seed;
+        }
+    }
+
+    /**
+     * The measurements of a run of the benchmark
+     */
+    public static class Result {
+        private final long inputs;
+        private final long solutions;
+        private final long elapsedNanos;
+        private final long baselineHeapBytes;
+        private final long peakHeapBytes;
+        // the latency of each call to addInputs, in microseconds
+        private final Histogram.Snapshot latency;
+
+        Result(final long inputs,
+               final long solutions,
+               final long elapsedNanos,
+               final long baselineHeapBytes,
+               final long peakHeapBytes,
+               final Histogram.Snapshot latency) {
+            this.inputs = inputs;
+            this.solutions = solutions;
+            this.elapsedNanos = elapsedNanos;
+            this.baselineHeapBytes = baselineHeapBytes;
+            this.peakHeapBytes = peakHeapBytes;
+            this.latency = latency;
+        }
+
+        public long getInputs() {
+            return inputs;
+        }
+
+        public long getSolutions() {
+            return solutions;
+        }
+
+        public double getInputsPerSecond() {
+            return perSecond(inputs);
+        }
+
+        public double getSolutionsPerSecond() {
+            return perSecond(solutions);
+        }
+
+        /**
+         * @return the heap in use before the measured stream, after garbage collection
+         */
+        public long getBaselineHeapBytes() {
+            return baselineHeapBytes;
+        }
+
+        /**
+         * @return the high-water mark of the heap during the measured stream.
+         * This is the sum of the peaks of the heap's memory pools, which need not have been reached together;
+         * it is an upper bound
+         */
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        public Histogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /**
+         * Prints the measurements as tab-separated REPORT lines, in the style of {@code TestRunner}
+         *
+         * @param out the stream to print to
+         */
+        public void print(final PrintStream out) {
+            out.println("REPORT\tinputs\t" + inputs);
+            out.println("REPORT\tsolutions\t" + solutions);
+            out.println("REPORT\tseconds\t" + String.format("%.3f", elapsedNanos / 1e9));
+            out.println("REPORT\tinputs/s\t" + String.format("%.1f", getInputsPerSecond()));
+            out.println("REPORT\tsolutions/s\t" + String.format("%.1f", getSolutionsPerSecond()));
+            out.println("REPORT\theap baseline MB\t" + String.format("%.1f", baselineHeapBytes / 1048576.0));
+            out.println("REPORT\theap peak MB\t" + String.format("%.1f", peakHeapBytes / 1048576.0));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                out.println("REPORT\tlatency " + PERCENTILE_NAMES[i] + " us\t"
+                        + latency.getValueAtPercentile(PERCENTILES[i]));
+            }
+            out.println("REPORT\tlatency max us\t" + latency.getMax());
+        }
+
+        private double perSecond(final long count) {
+            return 0 == elapsedNanos ? 0 : count * 1e9 / elapsedNanos;
+        }
+    }
+
+    private final Configuration config;
+
+    public StreamingBenchmark(final Configuration config) {
+        this.config = config;
+    }
+
+    /**
+     * @param engine the name of a query engine: "shj" or "caching"
+     * @return a new stream processor using the given engine
+     * @throws IllegalArgumentException if there is no such engine
+     */
+    public static RDFStreamProcessor<?, ?> createProcessor(final String engine) {
+        switch (engine) {
+            case "shj":
+                return new SHJSparqlStreamProcessor();
+            case "caching":
+                return new CachingSparqlStreamProcessor();
+            default:
+                throw new IllegalArgumentException("no such engine: " + engine);
+        }
+    }
+
+    /**
+     * @param workload the name of a workload: "lubm" or "sp2bench"
+     * @param seed     the seed of the generator
+     * @return a new generator of the given workload
+     * @throws IllegalArgumentException if there is no such workload
+     */
+    public static StatementGenerator createGenerator(final String workload, final long seed) {
+        switch (workload) {
+            case "lubm":
+                return new LubmGenerator(SimpleValueFactory.getInstance(), seed);
+            case "sp2bench":
+                return new Sp2BenchGenerator(SimpleValueFactory.getInstance(), seed);
+            default:
+                throw new IllegalArgumentException("no such workload: " + workload);
+        }
+    }
+
+    /**
+     * Registers the configured mix of queries with a stream processor
+     *
+     * @param processor the stream processor
+     * @param generator the generator whose queries are to be registered
+     * @param mix       the names of the queries, or null for all queries of the generator
+     * @param instances the number of instances of each query
+     * @param consumer  a consumer for the solutions of all queries
+     * @return the number of queries registered
+     */
+    public static int addQueries(final RDFStreamProcessor<?, ?> processor,
+                                 final StatementGenerator generator,
+                                 final List<String> mix,
+                                 final int instances,
+                                 final BiConsumer<BindingSet, Long> consumer)
+            throws IOException, StreamProcessor.IncompatibleQueryException, StreamProcessor.InvalidQueryException {
+
+        int count = 0;
+        for (String name : null == mix ? generator.getQueryNames() : mix) {
+            for (int i = 0; i < instances; i++) {
+                processor.addQuery(QUERY_TTL, generator.getQuery(name, i), consumer);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs the benchmark once, with a new stream processor
+     *
+     * @return the measurements of the run
+     */
+    public Result run()
+            throws IOException, StreamProcessor.IncompatibleQueryException, StreamProcessor.InvalidQueryException {
+
+        RDFStreamProcessor<?, ?> processor = createProcessor(config.engine);
+        StatementGenerator generator = createGenerator(config.workload, config.seed);
+
+        LongAdder solutions = new LongAdder();
+        addQueries(processor, generator, config.mix, config.instances, (bindings, expirationTime) -> solutions.increment());
+
+        try {
+            addAll(processor, generate(generator, config.warmup), null);
+
+            List<Statement[]> batches = generate(generator, config.statements);
+            Histogram latency = new Histogram();
+
+            System.gc();
+            long baselineHeap = getUsedHeap();
+            List<MemoryPoolMXBean> heapPools = getHeapPools();
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+            solutions.reset();
+
+            long start = System.nanoTime();
+            addAll(processor, batches, latency);
+            long elapsed = System.nanoTime() - start;
+
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+
+            return new Result(config.statements, solutions.sum(), elapsed, baselineHeap, peakHeap,
+                    latency.getSnapshot());
+        } finally {
+            processor.shutDown();
+        }
+    }
+
+    private List<Statement[]> generate(final StatementGenerator generator, final int count) {
+        List<Statement[]> batches = new ArrayList<>(1 + count / config.batchSize);
+        for (int remaining = count; remaining > 0; remaining -= config.batchSize) {
+            batches.add(generator.next(Math.min(remaining, config.batchSize)));
+        }
+        return batches;
+    }
+
+    private void addAll(final RDFStreamProcessor<?, ?> processor,
+                        final List<Statement[]> batches,
+                        final Histogram latency) {
+        for (Statement[] batch : batches) {
+            long before = System.nanoTime();
+            processor.addInputs(config.ttl, batch);
+            if (null != latency) {
+                latency.record((System.nanoTime() - before) / 1000);
+            }
+        }
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (MemoryType.HEAP == pool.getType()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static long getUsedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (1 == args.length && args[0].equals("--help")) {
+            printUsageAndExit();
+        }
+
+        Configuration config;
+        try {
+            config = Configuration.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsageAndExit();
+            return;
+        }
+
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\t" + config);
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\tjava " + System.getProperty("java.version")
+                + " on " + Runtime.getRuntime().availableProcessors() + " processors");
+
+        Result result = new StreamingBenchmark(config).run();
+
+        System.out.println("RUN\t" + System.currentTimeMillis() + "\tfinished");
+        result.print(System.out);
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Usage: StreamingBenchmark [options]\n"
+                + "  --engine shj|caching      the query engine (default: shj)\n"
+                + "  --workload lubm|sp2bench  the generated workload (default: lubm)\n"
+                + "  --mix q1,q2,...           the queries of the workload to register (default: all)\n"
+                + "  --queries n               the number of instances of each query (default: 1)\n"
+                + "  --statements n            the number of measured statements (default: 500000)\n"
+                + "  --warmup n                the number of statements added before measuring (default: 100000)\n"
+                + "  --batch n                 the number of statements per call to addInputs (default: 1)\n"
+                + "  --ttl s                   the time-to-live of statements, in seconds; 0 for none (default: 60)\n"
+                + "  --seed n                  the seed of the generator (default: 42)");
+        System.exit(1);
+    }
+}
@@ -1,5 +1,7 @@
 package net.fortytwo.stream;
 
+import net.fortytwo.stream.metrics.Counter;
+
 import java.io.IOException;
 import java.util.function.BiConsumer;
 
@@ -21,6 +23,8 @@ public class BasicSubscription<C, Q, S> implements Subscription {
 
     private boolean active;
 
+    private volatile Counter solutionCounter;
+
     private final String id;
 
     private synchronized static String getNextId() {
@@ -98,4 +102,15 @@ public class BasicSubscription<C, Q, S> implements Subscription {
     public void setSolutionConsumer(BiConsumer<S, Long> solutionConsumer) {
         this.solutionConsumer = solutionConsumer;
     }
+
+    /**
+     * @return the counter of this subscription's solutions, or null if solutions are not counted
+     */
+    public Counter getSolutionCounter() {
+        return solutionCounter;
+    }
+
+    public void setSolutionCounter(Counter solutionCounter) {
+        this.solutionCounter = solutionCounter;
+    }
 }
@@ -70,6 +70,9 @@ public class QueryIndex<T, C> {
      */
     public synchronized void add(final Query<T, C> query) {
         rootMetadata.add(query);
+        if (Integer.MAX_VALUE != rootMetadata.maxSolutionsPerQuery) {
+            query.getSolutionIndex().setMaxSolutions(rootMetadata.maxSolutionsPerQuery);
+        }
 
         logger.fine("adding query " + query.getSubscription());
 
@@ -82,6 +85,71 @@ public class QueryIndex<T, C> {
         }
     }
 
+    /**
+     * Bounds the number of partial and complete solutions stored for each query, as a proxy for their memory.
+     * A query which exceeds the bound loses its earliest-expiring solutions, and with them any complete solutions
+     * which they would have produced, rather than exhausting memory.
+     * This affects only queries added afterwards.
+     * Unlike the symmetric hash join engine, this engine bounds each query separately, with no overall bound
+     * across queries and no choice of eviction order.
+     *
+     * @param maxSolutionsPerQuery the maximum number of solutions of each query,
+     *                             or {@link Integer#MAX_VALUE} for no bound (the default)
+     */
+    public synchronized void setSolutionBudget(final int maxSolutionsPerQuery) {
+        if (maxSolutionsPerQuery < 1) {
+            throw new IllegalArgumentException("illegal solution budget: " + maxSolutionsPerQuery);
+        }
+
+        rootMetadata.maxSolutionsPerQuery = maxSolutionsPerQuery;
+    }
+
+    /**
+     * @return the total number of solutions which have been evicted over the solution budget,
+     * including those of queries which have since been removed
+     */
+    public synchronized long getEvictedSolutions() {
+        long total = rootMetadata.evictedByRemovedQueries;
+        for (Query<T, C> query : rootMetadata.queries) {
+            total += query.getSolutionIndex().getEvictedSolutions();
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of nodes of this index, including this one, as a measure of the size of the index
+     * independent of the solutions it holds
+     */
+    public synchronized int getNodeCount() {
+        int count = 1;
+        if (null != wildcardIndex) {
+            count += wildcardIndex.getNodeCount();
+        }
+        if (null != valueIndexes) {
+            for (QueryIndex<T, C> idx : valueIndexes.values()) {
+                count += idx.getNodeCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the greatest number of tuple patterns at any leaf of this index,
+     * i.e. the greatest number of patterns which a single tuple is matched against at a single leaf
+     */
+    public synchronized int getLargestLeafSize() {
+        int max = null == patterns ? 0 : patterns.size();
+        if (null != wildcardIndex) {
+            max = Math.max(max, wildcardIndex.getLargestLeafSize());
+        }
+        if (null != valueIndexes) {
+            for (QueryIndex<T, C> idx : valueIndexes.values()) {
+                max = Math.max(max, idx.getLargestLeafSize());
+            }
+        }
+        return max;
+    }
+
     /**
      * Removes a previously added query.
      * The given query will no longer match incoming tuples, and the memory it previously occupied will be freed.
@@ -92,6 +160,7 @@ public class QueryIndex<T, C> {
         logger.fine("removing query " + query.getSubscription());
 
         if (rootMetadata.remove(query)) {
+            rootMetadata.evictedByRemovedQueries += query.getSolutionIndex().getEvictedSolutions();
             for (Query.PatternInQuery<T, C> p : query.getPatterns()) {
                 remove(p, 0);
             }
@@ -294,6 +363,8 @@ public class QueryIndex<T, C> {
     private static class RootMetadata<T, C> {
         private final int tupleSize;
         private final PriorityQueue<Query<T, C>> queries = new PriorityQueue<>();
+        private int maxSolutionsPerQuery = Integer.MAX_VALUE;
+        private long evictedByRemovedQueries;
 
         private RootMetadata(final int tupleSize) {
             this.tupleSize = tupleSize;
@@ -301,6 +372,7 @@ public class QueryIndex<T, C> {
 
         public void clear() {
             queries.clear();
+            evictedByRemovedQueries = 0;
         }
 
         public void add(final Query<T, C> query) {
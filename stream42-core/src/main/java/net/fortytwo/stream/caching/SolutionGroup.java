@@ -2,6 +2,8 @@ package net.fortytwo.stream.caching;
 
 import net.fortytwo.stream.model.LList;
 
+import java.util.function.Predicate;
+
 /**
  * A group of solutions with identical bindings but potentially different sets of matched tuple patterns.
  * The group takes advantage of containment relationships to eliminate redundant or weak solutions, saving work.
@@ -12,6 +14,7 @@ import net.fortytwo.stream.model.LList;
 public class SolutionGroup<T> {
     private final Bindings<T> bindings;
     private LList<SolutionPattern> solutions = LList.NIL;
+    private int size;
 
     /**
      * Creates a new solution group for a set of bindings
@@ -43,6 +46,13 @@ public class SolutionGroup<T> {
         return solutions;
     }
 
+    /**
+     * @return the number of solutions contained in this group
+     */
+    public int size() {
+        return size;
+    }
+
     /**
      * Adds a solution, logically, to this group.
      * The provided solution may simply be appended to the list of solution patterns or, if it is equal to, contains
@@ -113,6 +123,7 @@ public class SolutionGroup<T> {
                 LList<SolutionPattern> tmp = cur.getRest();
                 cur.setRest(null);
                 cur = tmp;
+                size--;
                 continue;
             }
             prev = cur;
@@ -123,6 +134,7 @@ public class SolutionGroup<T> {
         solutions = solutions.push(
                 // as the group stores the bindings, we omit them here
                 new SolutionPattern(sol));
+        size++;
 
         return true;
     }
@@ -135,12 +147,23 @@ public class SolutionGroup<T> {
      * @return the number of solutions removed from this group
      */
     public int removeExpired(final long now) {
+        return removeIf(ps -> ps.isExpired(now));
+    }
+
+    /**
+     * Removes all solutions which satisfy a predicate from this group.
+     * Note that this operation may cause the group to become empty.
+     *
+     * @param predicate a predicate which is true for each solution pattern to be removed
+     * @return the number of solutions removed from this group
+     */
+    public int removeIf(final Predicate<SolutionPattern> predicate) {
         int removed = 0;
 
         LList<SolutionPattern> cur = solutions, prev = null;
         while (!cur.isNil()) {
             SolutionPattern curPs = cur.getValue();
-            if (curPs.isExpired(now)) {
+            if (predicate.test(curPs)) {
                 removed++;
 
                 if (null == prev) {
@@ -155,6 +178,7 @@ public class SolutionGroup<T> {
             cur = cur.getRest();
         }
 
+        size -= removed;
         return removed;
     }
 
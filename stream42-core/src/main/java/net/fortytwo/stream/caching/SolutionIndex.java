@@ -2,6 +2,7 @@ package net.fortytwo.stream.caching;
 
 import net.fortytwo.stream.model.LList;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -11,13 +12,23 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * An index of partial and complete solutions for a particular query
+ * An index of partial and complete solutions for a particular query.
+ * The number of solutions may be bounded, in which case the earliest-expiring solutions are evicted
+ * in batches when the bound is exceeded, at the cost of any complete solutions they would have produced.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class SolutionIndex<T> {
+    private static final Logger logger = Logger.getLogger(SolutionIndex.class.getName());
+
+    // when the bound is exceeded, this fraction of the bound is evicted at once, amortizing the cost of eviction
+    private static final int EVICTION_FRACTION = 8;
+
     private final Query.QueryVariables queryVariables;
     private final int totalPatterns;
 
@@ -26,6 +37,11 @@ public class SolutionIndex<T> {
     private final Map<Integer, SolutionGroup<T>> groupsByHash
             = new HashMap<>();
 
+    // the number of solutions in all groups
+    private int size;
+    private int maxSolutions = Integer.MAX_VALUE;
+    private long evictedSolutions;
+
     /**
      * Constructs a new solution index
      *
@@ -71,7 +87,44 @@ public class SolutionIndex<T> {
             }
         }
 
-        return g.add(s, now);
+        int groupSize = g.size();
+        boolean added = g.add(s, now);
+        size += g.size() - groupSize;
+
+        if (size > maxSolutions) {
+            evictEarliestExpiring();
+        }
+
+        return added;
+    }
+
+    /**
+     * @return the number of solutions in this index, including any expired solutions which have not yet been removed
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Bounds the number of solutions in this index.
+     * When a new solution exceeds the bound, the earliest-expiring solutions (finally including those which never
+     * expire) are evicted, down to somewhat below the bound.
+     *
+     * @param maxSolutions the maximum number of solutions, or {@link Integer#MAX_VALUE} for no bound
+     */
+    public synchronized void setMaxSolutions(final int maxSolutions) {
+        if (maxSolutions < 1) {
+            throw new IllegalArgumentException("illegal maximum number of solutions: " + maxSolutions);
+        }
+
+        this.maxSolutions = maxSolutions;
+    }
+
+    /**
+     * @return the total number of solutions which have been evicted from this index over its bound
+     */
+    public synchronized long getEvictedSolutions() {
+        return evictedSolutions;
     }
 
     /**
@@ -171,15 +224,56 @@ public class SolutionIndex<T> {
      * @return the number of solutions removed
      */
     public synchronized int removeExpired(final long now) {
+        return removeIf(ps -> ps.isExpired(now));
+    }
+
+    private void evictEarliestExpiring() {
+        // evict at least one solution beyond the bound, even when the bound is smaller than the fraction
+        int toEvict = size - maxSolutions + Math.max(1, maxSolutions / EVICTION_FRACTION);
+
+        // find the expiration time of the last solution to be evicted
+        long[] times = new long[size];
+        int n = 0;
+        for (SolutionGroup<T> g : groupsByHash.values()) {
+            for (LList<SolutionPattern> cur = g.getSolutions(); !cur.isNil(); cur = cur.getRest()) {
+                times[n++] = evictionOrder(cur.getValue());
+            }
+        }
+        Arrays.sort(times, 0, n);
+        final long threshold = times[toEvict - 1];
+
+        // evict all solutions expiring before the threshold, and as many as needed of those expiring at the threshold
+        int belowThreshold = 0;
+        while (times[belowThreshold] < threshold) {
+            belowThreshold++;
+        }
+        final int[] atThreshold = new int[]{toEvict - belowThreshold};
+        int evicted = removeIf(ps -> {
+            long t = evictionOrder(ps);
+            return t < threshold || (t == threshold && atThreshold[0]-- > 0);
+        });
+        evictedSolutions += evicted;
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("evicted " + evicted + " solutions over bound of " + maxSolutions);
+        }
+    }
+
+    // never-expiring solutions are evicted last
+    private static long evictionOrder(final SolutionPattern ps) {
+        return 0 == ps.expirationTime ? Long.MAX_VALUE : ps.expirationTime;
+    }
+
+    private int removeIf(final Predicate<SolutionPattern> predicate) {
         int count = 0;
 
         //System.out.println("removing from " + groupsByHash.size() + " solution groups");
 
         Collection<SolutionGroup<T>> toRemove = new LinkedList<>();
 
-        // note: if there are few expired solutions, this phase is relatively quick
+        // note: if there are few solutions to remove, this phase is relatively quick
         for (SolutionGroup<T> g : groupsByHash.values()) {
-            count += g.removeExpired(now);
+            count += g.removeIf(predicate);
             if (g.getSolutions().isNil()) {
                 toRemove.add(g);
             }
@@ -205,6 +299,7 @@ public class SolutionIndex<T> {
             }
         }
 
+        size -= count;
         return count;
     }
 
@@ -0,0 +1,28 @@
+package net.fortytwo.stream.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter which may be incremented by many threads without contention
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class Counter {
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(final long amount) {
+        count.add(amount);
+    }
+
+    public void reset() {
+        count.reset();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,115 @@
+package net.fortytwo.stream.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A read-only view of a metrics registry as a JMX MBean, whose attributes follow the metrics of the registry
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class MetricsMBean implements DynamicMBean {
+
+    // the attributes of each histogram, by suffix
+    private static final String[] HISTOGRAM_ATTRIBUTES = {"count", "mean", "max", "p50", "p90", "p99", "p999"};
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final MetricsRegistry registry;
+
+    MetricsMBean(final MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(final String name) throws AttributeNotFoundException {
+        Counter counter = registry.getCounters().get(name);
+        if (null != counter) {
+            return counter.getCount();
+        }
+
+        DoubleSupplier gauge = registry.getGauges().get(name);
+        if (null != gauge) {
+            return gauge.getAsDouble();
+        }
+
+        int i = name.lastIndexOf('.');
+        Histogram histogram = i < 0 ? null : registry.getHistograms().get(name.substring(0, i));
+        if (null != histogram) {
+            Histogram.Snapshot snapshot = histogram.getSnapshot();
+            String suffix = name.substring(i + 1);
+            for (int j = 0; j < HISTOGRAM_ATTRIBUTES.length; j++) {
+                if (HISTOGRAM_ATTRIBUTES[j].equals(suffix)) {
+                    switch (j) {
+                        case 0:
+                            return (double) snapshot.getCount();
+                        case 1:
+                            return snapshot.getMean();
+                        case 2:
+                            return (double) snapshot.getMax();
+                        default:
+                            return (double) snapshot.getValueAtPercentile(PERCENTILES[j - 3]);
+                    }
+                }
+            }
+        }
+
+        throw new AttributeNotFoundException(name);
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                // note: metrics may be removed at any time; missing attributes are omitted
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+        throw new UnsupportedOperationException("no operations on metrics");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : registry.getCounters().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "counter", true, false, false));
+        }
+        for (String name : registry.getGauges().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Double", "gauge", true, false, false));
+        }
+        for (String name : registry.getHistograms().keySet()) {
+            for (String suffix : HISTOGRAM_ATTRIBUTES) {
+                attributes.add(new MBeanAttributeInfo(
+                        name + "." + suffix, "java.lang.Double", "histogram", true, false, false));
+            }
+        }
+
+        return new MBeanInfo(MetricsMBean.class.getName(), "stream processor metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,151 @@
+package net.fortytwo.stream.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A registry of named metrics: counters, histograms, and gauges, which are read only when a snapshot is taken.
+ * Instrumented components obtain their metrics from the registry once, and update them without locking,
+ * so that the cost of instrumentation is a few uncontended atomic operations per event.
+ * Metrics are read either by taking a {@link MetricsSnapshot}, or through JMX (see {@link #registerMBean}).
+ * <p>
+ * Names are dot-separated paths, e.g. "shj.probes" or "subscription.42.solutions",
+ * so that related metrics may be removed together (see {@link #removeAll}).
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Gets or creates a counter
+     *
+     * @param name the name of the counter
+     * @return the counter with the given name
+     */
+    public Counter counter(final String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * Gets or creates a histogram
+     *
+     * @param name the name of the histogram
+     * @return the histogram with the given name
+     */
+    public Histogram histogram(final String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Adds or replaces a gauge: a value which is computed only when read
+     *
+     * @param name  the name of the gauge
+     * @param gauge a function which computes the current value of the gauge.
+     *              It is called from the thread which takes a snapshot, and must be thread-safe
+     */
+    public void gauge(final String name, final DoubleSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Removes the metric with the given name, if any
+     *
+     * @param name the name of a metric, e.g. "subscription.42.solutions"
+     */
+    public void remove(final String name) {
+        counters.remove(name);
+        histograms.remove(name);
+        gauges.remove(name);
+    }
+
+    /**
+     * Removes the metric with the given name, or all metrics beneath it in the hierarchy of names
+     *
+     * @param prefix the name of a metric, or a prefix of names, e.g. "subscription.42"
+     */
+    public void removeAll(final String prefix) {
+        String path = prefix + ".";
+        for (Map<String, ?> metrics : new Map[]{counters, histograms, gauges}) {
+            metrics.keySet().removeIf(name -> name.equals(prefix) || name.startsWith(path));
+        }
+    }
+
+    /**
+     * @return the current values of all metrics
+     */
+    public MetricsSnapshot snapshot() {
+        long time = System.currentTimeMillis();
+
+        // note: sorted by name, for reporting
+        Map<String, Long> counts = new TreeMap<>();
+        counters.forEach((name, counter) -> counts.put(name, counter.getCount()));
+        Map<String, Double> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsDouble()));
+        Map<String, Histogram.Snapshot> distributions = new TreeMap<>();
+        histograms.forEach((name, histogram) -> distributions.put(name, histogram.getSnapshot()));
+
+        return new MetricsSnapshot(time, counts, values, distributions);
+    }
+
+    /**
+     * Exposes the metrics of this registry through the platform MBean server.
+     * Each counter and gauge becomes a read-only attribute of the same name,
+     * and each histogram a family of attributes, e.g. "shj.joinFanOut.p99"
+     *
+     * @param objectName the JMX name of the metrics, e.g. "net.fortytwo.stream:type=Metrics,name=engine"
+     * @throws IllegalArgumentException if the name is malformed or already in use
+     */
+    public void registerMBean(final String objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new MetricsMBean(this), new ObjectName(objectName));
+        } catch (MalformedObjectNameException | InstanceAlreadyExistsException | NotCompliantMBeanException e) {
+            throw new IllegalArgumentException("cannot register metrics as " + objectName, e);
+        } catch (MBeanRegistrationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Removes the metrics of this registry from the platform MBean server
+     *
+     * @param objectName the JMX name under which the metrics were registered
+     */
+    public void unregisterMBean(final String objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(new ObjectName(objectName));
+        } catch (MalformedObjectNameException | InstanceNotFoundException e) {
+            throw new IllegalArgumentException("no metrics registered as " + objectName, e);
+        } catch (MBeanRegistrationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    Map<String, Counter> getCounters() {
+        return counters;
+    }
+
+    Map<String, Histogram> getHistograms() {
+        return histograms;
+    }
+
+    Map<String, DoubleSupplier> getGauges() {
+        return gauges;
+    }
+}
@@ -0,0 +1,76 @@
+package net.fortytwo.stream.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The values of the metrics of a registry at a point in time.
+ * Rates, e.g. inputs per second, are found by comparing the counts of two snapshots (see {@link #getRate})
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class MetricsSnapshot {
+    private final long time;
+    private final Map<String, Long> counts;
+    private final Map<String, Double> values;
+    private final Map<String, Histogram.Snapshot> histograms;
+
+    MetricsSnapshot(final long time,
+                    final Map<String, Long> counts,
+                    final Map<String, Double> values,
+                    final Map<String, Histogram.Snapshot> histograms) {
+        this.time = time;
+        this.counts = Collections.unmodifiableMap(counts);
+        this.values = Collections.unmodifiableMap(values);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /**
+     * @return the time at which the snapshot was taken, in milliseconds since the Unix epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the count of each counter, by name
+     */
+    public Map<String, Long> getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return the value of each gauge, by name
+     */
+    public Map<String, Double> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the recorded values of each histogram, by name
+     */
+    public Map<String, Histogram.Snapshot> getHistograms() {
+        return histograms;
+    }
+
+    /**
+     * @param name the name of a counter
+     * @return the count of the counter, or 0 if there is no such counter
+     */
+    public long getCount(final String name) {
+        Long count = counts.get(name);
+        return null == count ? 0 : count;
+    }
+
+    /**
+     * Finds the average rate of a counter between an earlier snapshot and this one
+     *
+     * @param name    the name of a counter
+     * @param earlier an earlier snapshot of the same registry
+     * @return the increase of the counter per second
+     */
+    public double getRate(final String name, final MetricsSnapshot earlier) {
+        long elapsed = time - earlier.time;
+        return elapsed <= 0 ? 0 : 1000.0 * (getCount(name) - earlier.getCount(name)) / elapsed;
+    }
+}
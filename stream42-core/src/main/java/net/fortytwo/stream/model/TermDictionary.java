@@ -0,0 +1,112 @@
+package net.fortytwo.stream.model;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A dictionary which interns terms (e.g. RDF values) as dense, non-negative integer ids.
+ * Ids are handed out as canonical <code>Long</code> instances, one per term,
+ * so that a query engine may use them as values without further boxing;
+ * hashing and comparing an id is much cheaper than hashing and comparing the term itself.
+ * Note: the dictionary only grows. Terms are released only when the dictionary is cleared.
+ *
+ * @param <T> the term type, e.g. an RDF value class
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TermDictionary<T> {
+
+    /**
+     * A special id value for terms which are not in the dictionary
+     */
+    public static final long NO_ID = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // note: must be thread-safe, as we read and write concurrently
+    private final Map<T, Long> idsByTerm = new ConcurrentHashMap<>();
+
+    // the term for each id. The array is replaced, never modified, on growth
+    private volatile Object[] terms = new Object[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Finds or creates the id of a term
+     *
+     * @param term the term to encode
+     * @return the canonical id of the term. The same instance is returned for every call with an equal term
+     */
+    public Long encode(final T term) {
+        if (null == term) {
+            throw new IllegalArgumentException("null term");
+        }
+
+        Long id = idsByTerm.get(term);
+        if (null == id) {
+            // synchronize on write
+            synchronized (this) {
+                id = idsByTerm.get(term);
+                if (null == id) {
+                    id = (long) size;
+                    Object[] termsSafe = terms;
+                    if (size == termsSafe.length) {
+                        Object[] newTerms = new Object[termsSafe.length * 2];
+                        System.arraycopy(termsSafe, 0, newTerms, 0, size);
+                        terms = termsSafe = newTerms;
+                    }
+                    termsSafe[size++] = term;
+
+                    // note: the term is stored before the id is published
+                    idsByTerm.put(term, id);
+                }
+            }
+        }
+
+        return id;
+    }
+
+    /**
+     * Finds the id of a term without adding the term to the dictionary
+     *
+     * @param term the term to look up
+     * @return the id of the term, or {@link #NO_ID} if the term has not been encoded
+     */
+    public long lookup(final T term) {
+        Long id = idsByTerm.get(term);
+        return null == id ? NO_ID : id;
+    }
+
+    /**
+     * Finds the term with a given id
+     *
+     * @param id an id previously produced by this dictionary
+     * @return the corresponding term
+     */
+    public T decode(final long id) {
+        Object[] termsSafe = terms;
+        if (id < 0 || id >= termsSafe.length) {
+            throw new IllegalArgumentException("no such id: " + id);
+        }
+
+        T term = (T) termsSafe[(int) id];
+        if (null == term) {
+            throw new IllegalArgumentException("no such id: " + id);
+        }
+        return term;
+    }
+
+    /**
+     * @return the number of distinct terms in this dictionary
+     */
+    public int size() {
+        return idsByTerm.size();
+    }
+
+    /**
+     * Removes all terms at once. Ids produced before this call are no longer valid.
+     */
+    public synchronized void clear() {
+        idsByTerm.clear();
+        terms = new Object[INITIAL_CAPACITY];
+        size = 0;
+    }
+}
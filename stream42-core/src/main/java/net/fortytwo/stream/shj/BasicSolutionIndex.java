@@ -0,0 +1,469 @@
+package net.fortytwo.stream.shj;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A base class for indices of the partial solutions of a tuple pattern.
+ * The index stores solutions locally and pushes each new solution to its consumers
+ * (the join helpers of any queries containing the pattern), completing the symmetric hash join.
+ * Subclasses define how solutions are stored.
+ * <p>
+ * Each index keeps track of the expiration of its own solutions, and holds at most one live
+ * {@link ExpirationTicket} in the solution expiration manager, for its earliest expiration time.
+ * When the ticket comes due, the index evicts its expired solutions and schedules a new ticket, if necessary.
+ * <p>
+ * New solutions are pushed to consumers sequentially, or, for indices with many consumers,
+ * optionally in parallel (see {@link QueryContext#setParallelDispatch}).
+ * <p>
+ * Each index counts its stored solutions against the solution budget of its query context
+ * (see {@link QueryContext#setSolutionBudget}). An index evicts solutions of its own only when it exceeds
+ * the per-index limit; over the overall limit, the context evicts from its largest indices.
+ *
+ * @param <V> the value type, e.g. an RDF value class
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public abstract class BasicSolutionIndex<V> implements Index<Solution<V>> {
+
+    // the number of variables bound in solutions
+    protected final int cardinality;
+
+    protected final QueryContext<?, V> queryContext;
+
+    // the number of solutions stored, as counted against the solution budget
+    private final AtomicInteger storedCount = new AtomicInteger();
+
+    // running statistics of the values of each column, for join planning
+    private final ColumnStatistics<V>[] statistics;
+
+    // note: must be thread-safe because we may iterate over and add subscribers concurrently
+    private final Set<Consumer<Solution<V>>> consumers = QueryContext.newConcurrentSet();
+
+    // the expiration tick of this index's live ticket in the solution expiration manager, if any
+    private volatile int scheduledExpirationTick = TimeBase.NEVER_EXPIRE;
+    private final Object scheduleLock = new Object();
+
+    // consumers grouped by query, for parallel dispatch. Rebuilt as needed after the set of consumers changes
+    private volatile Consumer<Solution<V>>[][] dispatchGroups;
+    private final Object dispatchLock = new Object();
+
+    private final Index<Consumer<Solution<V>>> consumerIndex = new Index<Consumer<Solution<V>>>() {
+        @Override
+        public void add(Consumer<Solution<V>> toAdd) {
+            synchronized (dispatchLock) {
+                consumers.add(toAdd);
+                dispatchGroups = null;
+            }
+        }
+
+        @Override
+        public boolean remove(Consumer<Solution<V>> toRemove) {
+            synchronized (dispatchLock) {
+                dispatchGroups = null;
+                return consumers.remove(toRemove);
+            }
+        }
+
+        @Override
+        public void clear() {
+            synchronized (dispatchLock) {
+                consumers.clear();
+                dispatchGroups = null;
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return consumers.isEmpty();
+        }
+    };
+
+    protected BasicSolutionIndex(QueryContext<?, V> queryContext, int cardinality) {
+        this.cardinality = cardinality;
+        this.queryContext = queryContext;
+
+        if (null == queryContext) {
+            throw new IllegalArgumentException("null context");
+        }
+
+        if (cardinality < 1) {
+            throw new IllegalArgumentException("illegal index length: " + cardinality);
+        }
+
+        statistics = new ColumnStatistics[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+            // note: the statistics age with the number of stored solutions, so as to follow the live window
+            statistics[i] = new ColumnStatistics<>(ColumnStatistics.DEFAULT_HEAVY_HITTERS, storedCount::get);
+        }
+    }
+
+    /**
+     * The effect of storing a solution
+     */
+    protected enum Addition {
+        /**
+         * The solution is new to the index
+         */
+        ADDED,
+        /**
+         * An equal solution was stored, and has been displaced by the new solution, which expires later
+         */
+        REFRESHED,
+        /**
+         * An equal solution which expires no earlier than the new solution was stored, and has been kept
+         */
+        UNCHANGED
+    }
+
+    /**
+     * Stores a solution locally, making it available for retrieval through all join indices.
+     * Identical but earlier-expiring solutions are displaced
+     *
+     * @param solution the solution to be stored
+     * @return the effect of storing the solution
+     */
+    protected abstract Addition addInternal(Solution<V> solution);
+
+    /**
+     * Removes any matching solution from the index.
+     * Removal is idempotent; it is possible to "remove" without error a pattern which has already been removed
+     *
+     * @param pattern a pattern matching the solutions to be removed
+     * @return whether any matching solutions were found and removed
+     */
+    public abstract boolean removePattern(V[] pattern);
+
+    /**
+     * Evicts all solutions which have expired
+     *
+     * @param nowTick the current tick of the time base of the query context
+     * @return the expiration tick of the earliest-expiring solution remaining in the index,
+     * or {@link TimeBase#NEVER_EXPIRE} if there is none
+     */
+    protected abstract int evictExpired(int nowTick);
+
+    /**
+     * Evicts one live solution, chosen according to the given policy
+     *
+     * @param policy the eviction policy of the query context
+     * @return the evicted solution, or null if the index is empty
+     */
+    protected abstract Solution<V> evict(EvictionPolicy policy);
+
+    /**
+     * @return all solutions in this index
+     */
+    public abstract Set<Solution<V>> getSolutions();
+
+    /**
+     * Finds all solutions with the given value for the given variable
+     *
+     * @param index the index of a variable of this index's solutions
+     * @param value the value of the variable in any matching solutions
+     * @return a set of all matching solutions. A null is returned for a logically empty set.
+     */
+    public abstract Set<Solution<V>> getSolutions(int index, V value);
+
+    /**
+     * Finds the solutions with the given value for the given variable which also agree with the bindings of a join,
+     * adding them to a cursor.
+     * By default, this iterates over the set of solutions found by {@link #getSolutions(int, Object)},
+     * at the cost of an iterator per probe.
+     * Indices which do not store solutions as objects override it to avoid materializing each solution
+     *
+     * @param index        the index of a variable of this index's solutions
+     * @param value        the value of the variable in any matching solutions
+     * @param checkColumns any further variables of this index's solutions whose values must agree with the bindings
+     * @param checkSlots   the positions in the bindings of the values of the respective check columns
+     * @param bindings     the bindings of the join
+     * @param cursor       an empty cursor, to which all matching solutions are added
+     */
+    void probe(int index, V value, int[] checkColumns, int[] checkSlots, V[] bindings, SolutionCursor<V> cursor) {
+        cursor.start(cardinality, false);
+        Set<Solution<V>> solutions = getSolutions(index, value);
+        if (null == solutions) {
+            return;
+        }
+
+        for (Solution<V> solution : solutions) {
+            V[] values = solution.getValues();
+            // note: solutions which expire in the meantime are skipped
+            if (null != values && agrees(values, checkColumns, checkSlots, bindings)) {
+                cursor.add(values, solution.getExpirationTick());
+            }
+        }
+    }
+
+    private static <V> boolean agrees(V[] values, int[] checkColumns, int[] checkSlots, V[] bindings) {
+        for (int i = 0; i < checkColumns.length; i++) {
+            if (!values[checkColumns[i]].equals(bindings[checkSlots[i]])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the variable-cardinality of this index
+     *
+     * @return the number of distinct variables of each solution in this index
+     */
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    public Index<Consumer<Solution<V>>> getConsumerIndex() {
+        return consumerIndex;
+    }
+
+    /**
+     * Gets the running statistics of one column of this index's solutions
+     *
+     * @param index the index of a variable of this index's solutions
+     * @return the statistics of the variable's values
+     */
+    public ColumnStatistics<V> getStatistics(int index) {
+        return statistics[index];
+    }
+
+    Set<Consumer<Solution<V>>> getConsumers() {
+        return consumers;
+    }
+
+    /**
+     * Adds a solution to the index, and pushes it to the index's consumers.
+     * Identical but earlier-expiring solutions are displaced.
+     * A solution which is already stored is not pushed again
+     * (nor, if duplicates are suppressed, one which merely extends the expiration time of a stored solution),
+     * so that consumers added after a solution was stored do not receive it through repeats
+     *
+     * @param solution the solution to be added
+     */
+    @Override
+    public void add(Solution<V> solution) {
+        // step 1 of symmetric hash join: index locally
+        // this immediately makes the solution available for retrieval through all join indices
+        switch (addInternal(solution)) {
+            case UNCHANGED:
+                // nothing can be joined which has not been joined already
+                return;
+            case REFRESHED:
+                if (queryContext.isDuplicateSuppression()) {
+                    // only the expiration time has changed. Shared joins store results derived from the solution,
+                    // and must extend them in turn, but queries need not re-join
+                    for (Consumer<Solution<V>> c : consumers) {
+                        if (c instanceof SharedJoin.Input) {
+                            c.accept(solution);
+                        }
+                    }
+                    return;
+                }
+                break;
+            case ADDED:
+                V[] values = solution.getValues();
+                for (int i = 0; i < cardinality; i++) {
+                    statistics[i].add(values[i]);
+                }
+                if (storedCount.get() > queryContext.getMaxSolutionsPerIndex()) {
+                    // note: the new solution itself may be evicted, but is still pushed to consumers
+                    evictOverIndexBudget();
+                }
+                if (queryContext.isOverBudget()) {
+                    queryContext.evictOverBudget();
+                }
+                break;
+        }
+
+        // step 2 of symmetric hash join: resolve and push to join indices for join operations
+        ForkJoinPool pool = queryContext.getDispatchPool();
+        if (null != pool && consumers.size() >= queryContext.getParallelDispatchThreshold()) {
+            Consumer<Solution<V>>[][] groups = getDispatchGroups();
+            int leafSize = Math.max(1, groups.length / (4 * pool.getParallelism()));
+            // note: returns only when all consumers have received the solution,
+            // so that each query sees the solutions added by a given thread in order
+            pool.invoke(new DispatchTask<>(groups, 0, groups.length, leafSize, solution));
+        } else {
+            for (Consumer<Solution<V>> s : consumers) {
+                s.accept(solution);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        consumerIndex.clear();
+
+        for (ColumnStatistics<V> s : statistics) {
+            s.clear();
+        }
+
+        queryContext.countStored(-storedCount.getAndSet(0));
+
+        // any outstanding ticket becomes a tombstone
+        synchronized (scheduleLock) {
+            if (TimeBase.NEVER_EXPIRE != scheduledExpirationTick) {
+                queryContext.ticketRetired();
+            }
+            scheduledExpirationTick = TimeBase.NEVER_EXPIRE;
+        }
+    }
+
+    /**
+     * Updates the number of stored solutions. Subclasses call this method whenever they store a new solution
+     * or remove a stored solution, except when the index is cleared
+     *
+     * @param delta the change in the number of stored solutions
+     */
+    protected void countStored(int delta) {
+        if (storedCount.addAndGet(delta) == delta && delta > 0) {
+            // the index was empty, and becomes a candidate for eviction over the overall budget
+            queryContext.indexOccupied(this);
+        }
+        queryContext.countStored(delta);
+    }
+
+    /**
+     * @return the number of solutions stored in this index, including any expired solutions
+     * which have not yet been evicted
+     */
+    int getStoredCount() {
+        return storedCount.get();
+    }
+
+    private void evictOverIndexBudget() {
+        EvictionPolicy policy = queryContext.getEvictionPolicy();
+        while (storedCount.get() > queryContext.getMaxSolutionsPerIndex()) {
+            Solution<V> evicted = evict(policy);
+            if (null == evicted) {
+                break;
+            }
+            queryContext.solutionEvicted(this, evicted);
+        }
+    }
+
+    private Consumer<Solution<V>>[][] getDispatchGroups() {
+        Consumer<Solution<V>>[][] groups = dispatchGroups;
+        if (null != groups) {
+            return groups;
+        }
+
+        synchronized (dispatchLock) {
+            groups = dispatchGroups;
+            if (null != groups) {
+                return groups;
+            }
+
+            // the join helpers of a query (e.g. for repeated tuple patterns) share a group
+            Map<Object, List<Consumer<Solution<V>>>> byQuery = new HashMap<>();
+            for (Consumer<Solution<V>> c : consumers) {
+                Object key = c instanceof JoinHelper ? ((JoinHelper<?, V>) c).getQuery() : c;
+                byQuery.computeIfAbsent(key, k -> new ArrayList<>(1)).add(c);
+            }
+
+            groups = new Consumer[byQuery.size()][];
+            int i = 0;
+            for (List<Consumer<Solution<V>>> group : byQuery.values()) {
+                groups[i++] = group.toArray(new Consumer[group.size()]);
+            }
+
+            dispatchGroups = groups;
+            return groups;
+        }
+    }
+
+    /**
+     * Ensures that this index will be notified no later than the given time, so that it can evict expired solutions.
+     * Subclasses call this method for each solution which they store with a finite expiration time
+     *
+     * @param expirationTick the expiration tick of a stored solution
+     */
+    protected void scheduleExpiration(int expirationTick) {
+        // note: non-expiring solutions are ignored, as nothing is earlier than a scheduled tick of NEVER_EXPIRE
+        if (TimeBase.compare(expirationTick, scheduledExpirationTick) < 0) {
+            synchronized (scheduleLock) {
+                if (TimeBase.compare(expirationTick, scheduledExpirationTick) >= 0) {
+                    return;
+                }
+                if (TimeBase.NEVER_EXPIRE == scheduledExpirationTick) {
+                    queryContext.ticketScheduled();
+                }
+                // any later ticket becomes a tombstone
+                scheduledExpirationTick = expirationTick;
+            }
+
+            // note: solutions which expire in the same tick share a ticket
+            long expirationTime = queryContext.getTimeBase().toExpirationTime(expirationTick, queryContext.getNow());
+            queryContext.getSolutionExpirationManager().add(
+                    new ExpirationTicket(this, expirationTick, expirationTime));
+        }
+    }
+
+    boolean isScheduled(ExpirationTicket ticket) {
+        return ticket.getExpirationTick() == scheduledExpirationTick;
+    }
+
+    void expire(ExpirationTicket ticket) {
+        synchronized (scheduleLock) {
+            if (!isScheduled(ticket)) {
+                return;
+            }
+            scheduledExpirationTick = TimeBase.NEVER_EXPIRE;
+            queryContext.ticketRetired();
+        }
+
+        long now = queryContext.getNow();
+        EngineMetrics metrics = queryContext.getMetrics();
+        if (null != metrics) {
+            metrics.expirationLag.record(now - ticket.getExpirationTime());
+        }
+
+        // note: solutions added concurrently schedule tickets of their own, so none are missed
+        int nowTick = queryContext.getTimeBase().toTick(now);
+        scheduleExpiration(evictExpired(nowTick));
+    }
+
+    /**
+     * A task which pushes a solution to a range of consumer groups, splitting the range among subtasks
+     */
+    private static class DispatchTask<V> extends RecursiveAction {
+        private final Consumer<Solution<V>>[][] groups;
+        private final int from;
+        private final int to;
+        private final int leafSize;
+        private final Solution<V> solution;
+
+        private DispatchTask(Consumer<Solution<V>>[][] groups,
+                             int from,
+                             int to,
+                             int leafSize,
+                             Solution<V> solution) {
+            this.groups = groups;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+            this.solution = solution;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= leafSize) {
+                for (int i = from; i < to; i++) {
+                    for (Consumer<Solution<V>> c : groups[i]) {
+                        c.accept(solution);
+                    }
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DispatchTask<>(groups, from, mid, leafSize, solution),
+                        new DispatchTask<>(groups, mid, to, leafSize, solution));
+            }
+        }
+    }
+}
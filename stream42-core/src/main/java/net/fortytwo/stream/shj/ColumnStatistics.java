@@ -0,0 +1,312 @@
+package net.fortytwo.stream.shj;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Cheap running statistics of the values in one column of a solution index, for use in join planning:
+ * a HyperLogLog sketch of the number of distinct values, and a Space-Saving summary of the most frequent values
+ * (the heavy hitters) with their approximate counts.
+ * Together, these estimate the size of the posting set of a value, both on average and as weighted by skew.
+ * <p>
+ * Adding a value takes no lock. The sketch is updated racily, and the summary is updated only for a sample of
+ * values, once it has seen enough to be representative, and only when no other thread is updating it;
+ * heavy-hitter counts are scaled up from the sample.
+ * <p>
+ * Values are not subtracted as solutions are removed or expire. Instead, given the number of live values,
+ * the statistics age in generations: once as many values have been added as are live, the sketch starts afresh
+ * (keeping the previous generation) and the counts of the summary are halved,
+ * so that the statistics follow a sliding window of the stream rather than its entire history.
+ *
+ * @param <V> the value type, e.g. an RDF value class
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ColumnStatistics<V> {
+
+    // 2^8 registers give a standard error of about 6.5%, which is plenty for join planning
+    private static final int REGISTER_BITS = 8;
+    private static final int REGISTERS = 1 << REGISTER_BITS;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    // every value is offered to the summary until it has this many samples; afterwards, one in SAMPLE_INTERVAL
+    private static final int EXACT_SAMPLES = 1024;
+    private static final int SAMPLE_INTERVAL = 8;
+
+    // the least number of values in a generation, so that small indices do not age with every few values
+    private static final int MIN_GENERATION = 1024;
+
+    /**
+     * The number of most frequent values tracked by default
+     */
+    public static final int DEFAULT_HEAVY_HITTERS = 8;
+
+    // the registers of the current and of the previous generation of the sketch
+    private volatile byte[] registers = new byte[REGISTERS];
+    private volatile byte[] previousRegisters = new byte[REGISTERS];
+
+    // the number of values added in the current generation, and in the previous one
+    private final LongAdder count = new LongAdder();
+    private volatile long previousCount;
+
+    private final IntSupplier liveCount;
+
+    private final ReentrantLock summaryLock = new ReentrantLock();
+    private final Object[] heavyHitters;
+    private final long[] heavyHitterCounts;
+    // the count inherited by each heavy hitter from the value it displaced, i.e. the maximum overestimate
+    private final long[] heavyHitterErrors;
+    private int heavyHitterSize;
+    // the number of values which the summary has seen, with the same aging as the counts of its heavy hitters
+    private long samples;
+    private volatile int sampleInterval = 1;
+
+    public ColumnStatistics() {
+        this(DEFAULT_HEAVY_HITTERS, null);
+    }
+
+    /**
+     * @param heavyHitters the number of most frequent values to track
+     */
+    public ColumnStatistics(int heavyHitters) {
+        this(heavyHitters, null);
+    }
+
+    /**
+     * @param heavyHitters the number of most frequent values to track
+     * @param liveCount    a supplier of the number of live values of the column, which sets the length of a
+     *                     generation, or null if the statistics are to cover all values ever added
+     */
+    public ColumnStatistics(int heavyHitters, IntSupplier liveCount) {
+        if (heavyHitters < 1) {
+            throw new IllegalArgumentException("illegal number of heavy hitters: " + heavyHitters);
+        }
+
+        this.heavyHitters = new Object[heavyHitters];
+        this.heavyHitterCounts = new long[heavyHitters];
+        this.heavyHitterErrors = new long[heavyHitters];
+        this.liveCount = liveCount;
+    }
+
+    /**
+     * Adds a value to the statistics
+     *
+     * @param value a value of the column
+     */
+    public void add(V value) {
+        int hash = mix(value.hashCode());
+        int register = hash >>> (32 - REGISTER_BITS);
+        // the position of the first 1 bit in the rest of the hash; a guard bit bounds the rank
+        byte rank = (byte) (Integer.numberOfLeadingZeros((hash << REGISTER_BITS) | (1 << (REGISTER_BITS - 1))) + 1);
+        // note: racing updates of a register may be lost, which only makes the sketch slightly less accurate
+        byte[] r = registers;
+        if (rank > r[register]) {
+            r[register] = rank;
+        }
+
+        count.increment();
+
+        int interval = sampleInterval;
+        // note: a value which is not sampled, or which finds the summary busy, is simply not counted in it
+        if ((1 == interval || 0 == ThreadLocalRandom.current().nextInt(interval)) && summaryLock.tryLock()) {
+            try {
+                sample(value);
+            } finally {
+                summaryLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the number of values added, over the current and the previous generation
+     */
+    public long getCount() {
+        return previousCount + count.sum();
+    }
+
+    /**
+     * @return the estimated number of distinct values added, over the current and the previous generation
+     */
+    public long getDistinctCount() {
+        byte[] current = registers, previous = previousRegisters;
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            byte r = (byte) Math.max(current[i], previous[i]);
+            sum += 1.0 / (1L << r);
+            if (0 == r) {
+                zeros++;
+            }
+        }
+
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // small-range correction: linear counting
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+
+        // note: there cannot be more distinct values than values
+        return Math.min(Math.round(estimate), getCount());
+    }
+
+    /**
+     * @return the average number of occurrences of each distinct value,
+     * i.e. the average size of a posting set in the column
+     */
+    public double getAveragePostingSize() {
+        long distinct = getDistinctCount();
+        return 0 == distinct ? 0 : (double) getCount() / distinct;
+    }
+
+    /**
+     * Estimates the number of occurrences of a value
+     *
+     * @param value a value of the column
+     * @return the guaranteed count of the value, if it is a heavy hitter and this exceeds the average posting size,
+     * otherwise the average posting size
+     */
+    public double getEstimatedPostingSize(V value) {
+        double average = getAveragePostingSize();
+        long total = getCount();
+        summaryLock.lock();
+        try {
+            for (int i = 0; i < heavyHitterSize; i++) {
+                if (heavyHitters[i].equals(value)) {
+                    return Math.max(average, scale(heavyHitterCounts[i] - heavyHitterErrors[i], total));
+                }
+            }
+        } finally {
+            summaryLock.unlock();
+        }
+
+        return average;
+    }
+
+    /**
+     * Estimates the size of the posting set of a value drawn at random from the column,
+     * e.g. a join key taken from a solution.
+     * Frequent values are drawn more often than rare ones, so under skew this is larger than the average
+     * posting size, which weights all distinct values equally
+     *
+     * @return the expected posting size of a value chosen in proportion to its frequency
+     */
+    public double getExpectedPostingSize() {
+        long distinct = getDistinctCount();
+        long total = getCount();
+        if (0 == total) {
+            return 0;
+        }
+
+        double heavyTotal = 0;
+        double sumOfSquares = 0;
+        int heavy;
+        summaryLock.lock();
+        try {
+            heavy = heavyHitterSize;
+            for (int i = 0; i < heavyHitterSize; i++) {
+                // note: only the guaranteed part of each count is attributed to the heavy hitter
+                double c = Math.min(scale(heavyHitterCounts[i] - heavyHitterErrors[i], total), total - heavyTotal);
+                heavyTotal += c;
+                sumOfSquares += c * c;
+            }
+        } finally {
+            summaryLock.unlock();
+        }
+
+        // the remaining values are assumed to be spread evenly over the remaining distinct values
+        double rest = total - heavyTotal;
+        if (rest > 0) {
+            sumOfSquares += rest * rest / Math.max(1, distinct - heavy);
+        }
+
+        return sumOfSquares / total;
+    }
+
+    public void clear() {
+        summaryLock.lock();
+        try {
+            registers = new byte[REGISTERS];
+            previousRegisters = new byte[REGISTERS];
+            count.reset();
+            previousCount = 0;
+            for (int i = 0; i < heavyHitters.length; i++) {
+                heavyHitters[i] = null;
+                heavyHitterCounts[i] = 0;
+                heavyHitterErrors[i] = 0;
+            }
+            heavyHitterSize = 0;
+            samples = 0;
+            sampleInterval = 1;
+        } finally {
+            summaryLock.unlock();
+        }
+    }
+
+    // called with the summary lock held
+    private void sample(V value) {
+        samples++;
+        if (samples >= EXACT_SAMPLES) {
+            sampleInterval = SAMPLE_INTERVAL;
+        }
+
+        int min = -1;
+        boolean found = false;
+        for (int i = 0; i < heavyHitterSize; i++) {
+            if (heavyHitters[i].equals(value)) {
+                heavyHitterCounts[i]++;
+                found = true;
+                break;
+            }
+            if (-1 == min || heavyHitterCounts[i] < heavyHitterCounts[min]) {
+                min = i;
+            }
+        }
+
+        if (!found) {
+            if (heavyHitterSize < heavyHitters.length) {
+                heavyHitters[heavyHitterSize] = value;
+                heavyHitterErrors[heavyHitterSize] = 0;
+                heavyHitterCounts[heavyHitterSize++] = 1;
+            } else {
+                // the new value displaces the least frequent one, inheriting its count as an upper bound
+                heavyHitters[min] = value;
+                heavyHitterErrors[min] = heavyHitterCounts[min];
+                heavyHitterCounts[min]++;
+            }
+        }
+
+        if (null != liveCount && count.sum() >= Math.max(MIN_GENERATION, liveCount.getAsInt())) {
+            startGeneration();
+        }
+    }
+
+    // called with the summary lock held
+    private void startGeneration() {
+        previousRegisters = registers;
+        registers = new byte[REGISTERS];
+        // note: values added concurrently may be counted in either generation
+        previousCount = count.sumThenReset();
+
+        for (int i = 0; i < heavyHitterSize; i++) {
+            heavyHitterCounts[i] >>= 1;
+            heavyHitterErrors[i] >>= 1;
+        }
+        samples >>= 1;
+    }
+
+    // scales a count in the sample of the summary up to the given number of values
+    private double scale(long sampledCount, long total) {
+        return 0 == samples ? 0 : (double) sampledCount * total / samples;
+    }
+
+    // spreads the bits of a hash code, as the sketch relies on their uniformity (cf. the MurmurHash3 finalizer)
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,161 @@
+package net.fortytwo.stream.shj;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A blocked, counting Bloom filter of hash codes, which supports removal as well as addition.
+ * Each entry sets {@link #HASHES} 4-bit counters within a single block of 64 bytes (one cache line),
+ * so that a lookup touches only one block of memory.
+ * Counters which reach their maximum value are never decremented, so that overflow may cause false positives,
+ * but never false negatives.
+ * <p>
+ * Counters are updated atomically, so that any number of threads may add, remove and test entries concurrently.
+ * The filter itself does not grow; its expected false positive rate is a few percent at {@link #getCapacity()}
+ * entries, and rises as more entries are added.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class CountingBloomFilter {
+
+    // the number of counters set per entry
+    static final int HASHES = 3;
+
+    private static final int COUNTER_BITS = 4;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final int COUNTERS_PER_WORD = 64 / COUNTER_BITS;
+    // a block of 8 words is 64 bytes, or 128 counters
+    private static final int WORDS_PER_BLOCK = 8;
+    private static final int COUNTERS_PER_BLOCK = WORDS_PER_BLOCK * COUNTERS_PER_WORD;
+    // about 8 counters per entry, for a false positive rate of a few percent
+    private static final int ENTRIES_PER_BLOCK = COUNTERS_PER_BLOCK / 8;
+
+    private final AtomicLongArray words;
+    private final int blockMask;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param capacity the number of entries for which the filter is sized. It is rounded up to a power of two
+     */
+    CountingBloomFilter(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("illegal capacity: " + capacity);
+        }
+
+        int needed = (capacity + ENTRIES_PER_BLOCK - 1) / ENTRIES_PER_BLOCK;
+        int blocks = 1 == needed ? 1 : Integer.highestOneBit(needed - 1) << 1;
+        blockMask = blocks - 1;
+        words = new AtomicLongArray(blocks * WORDS_PER_BLOCK);
+    }
+
+    /**
+     * @return the number of entries for which the filter is sized
+     */
+    int getCapacity() {
+        return (blockMask + 1) * ENTRIES_PER_BLOCK;
+    }
+
+    /**
+     * @return the number of entries added and not removed
+     */
+    int size() {
+        return size.get();
+    }
+
+    void add(int hashCode) {
+        long h = mix(hashCode);
+        int base = blockOf(h);
+        for (int i = 0; i < HASHES; i++) {
+            h >>>= 7;
+            increment(base, (int) (h & (COUNTERS_PER_BLOCK - 1)));
+        }
+        size.incrementAndGet();
+    }
+
+    /**
+     * Removes an entry. The entry must have been added
+     *
+     * @param hashCode the hash code of the entry
+     */
+    void remove(int hashCode) {
+        long h = mix(hashCode);
+        int base = blockOf(h);
+        for (int i = 0; i < HASHES; i++) {
+            h >>>= 7;
+            decrement(base, (int) (h & (COUNTERS_PER_BLOCK - 1)));
+        }
+        size.decrementAndGet();
+    }
+
+    /**
+     * @param hashCode the hash code of an entry
+     * @return false if the entry has certainly not been added, otherwise true
+     */
+    boolean mightContain(int hashCode) {
+        long h = mix(hashCode);
+        int base = blockOf(h);
+        for (int i = 0; i < HASHES; i++) {
+            h >>>= 7;
+            int counter = (int) (h & (COUNTERS_PER_BLOCK - 1));
+            long word = words.get(base + counter / COUNTERS_PER_WORD);
+            if (0 == ((word >>> shiftOf(counter)) & COUNTER_MASK)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, 0);
+        }
+        size.set(0);
+    }
+
+    private int blockOf(long h) {
+        // note: the high bits choose the block, and the low bits the counters within it
+        return ((int) (h >>> 40) & blockMask) * WORDS_PER_BLOCK;
+    }
+
+    private static int shiftOf(int counter) {
+        return (counter % COUNTERS_PER_WORD) * COUNTER_BITS;
+    }
+
+    private void increment(int base, int counter) {
+        int index = base + counter / COUNTERS_PER_WORD;
+        int shift = shiftOf(counter);
+        while (true) {
+            long word = words.get(index);
+            long value = (word >>> shift) & COUNTER_MASK;
+            if (COUNTER_MASK == value
+                    || words.compareAndSet(index, word, word + (1L << shift))) {
+                // note: a saturated counter remains saturated
+                return;
+            }
+        }
+    }
+
+    private void decrement(int base, int counter) {
+        int index = base + counter / COUNTERS_PER_WORD;
+        int shift = shiftOf(counter);
+        while (true) {
+            long word = words.get(index);
+            long value = (word >>> shift) & COUNTER_MASK;
+            if (0 == value || COUNTER_MASK == value
+                    || words.compareAndSet(index, word, word - (1L << shift))) {
+                return;
+            }
+        }
+    }
+
+    // spreads a 32-bit hash code over 64 bits (the finalizer of MurmurHash3's 64-bit variant)
+    private static long mix(int hashCode) {
+        long h = hashCode;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
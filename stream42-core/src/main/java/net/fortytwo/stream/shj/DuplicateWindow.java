@@ -0,0 +1,181 @@
+package net.fortytwo.stream.shj;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A record of recently stored tuples, together with their expiration ticks, for recognizing repeated input.
+ * Only tuples which matched at least one tuple pattern are recorded.
+ * A tuple is remembered until it expires, i.e. for the lifetime of the solutions it produced,
+ * so that a repeat of a tuple which is still stored can be skipped, or can merely extend the tuple's expiration.
+ * Expired tuples are swept out periodically, in amortized constant time per tuple.
+ * <p>
+ * A tuple is forgotten individually when its solutions are removed or evicted.
+ * When new tuple patterns are added, which have not seen any previous tuple, the whole window is invalidated
+ * at once by starting a new generation; tuples of older generations are treated as unseen, and are swept out
+ * along with expired tuples.
+ *
+ * @param <V> the value type, e.g. an RDF value class
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class DuplicateWindow<V> {
+
+    /**
+     * The tick returned for a tuple which has not been seen, or which has expired
+     */
+    static final int NONE = Integer.MIN_VALUE;
+
+    private static final int MIN_SWEEP_INTERVAL = 1024;
+
+    // the expiration tick of each tuple, in the low 32 bits, and the generation in which it was recorded
+    private final Map<TupleKey<V>, Long> ticksByTuple = new ConcurrentHashMap<>();
+
+    private volatile int generation;
+    // the length of the longest tuple recorded, as a shorter tuple pattern may match a longer tuple
+    private final AtomicInteger maxTupleLength = new AtomicInteger();
+
+    private final AtomicInteger recordedSinceSweep = new AtomicInteger();
+    private volatile int sweepInterval = MIN_SWEEP_INTERVAL;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * Looks up the expiration tick of a tuple
+     *
+     * @param tuple   the tuple. It is not retained
+     * @param nowTick the current tick
+     * @return the expiration tick of the tuple, if it has been recorded in the current generation and has not yet
+     * expired, otherwise {@link #NONE}
+     */
+    int get(V[] tuple, int nowTick) {
+        Long entry = ticksByTuple.get(new TupleKey<>(tuple));
+        return null == entry || isStale(entry, nowTick) ? NONE : tickOf(entry);
+    }
+
+    /**
+     * Records a stored tuple, keeping the later of its new and any previous expiration tick
+     *
+     * @param tuple          the tuple. It is copied, and may be modified afterwards
+     * @param expirationTick the expiration tick of the tuple
+     * @param nowTick        the current tick
+     */
+    void record(V[] tuple, int expirationTick, int nowTick) {
+        if (tuple.length > maxTupleLength.get()) {
+            maxTupleLength.accumulateAndGet(tuple.length, Math::max);
+        }
+
+        long newEntry = entryOf(expirationTick, generation);
+        ticksByTuple.merge(new TupleKey<>(tuple.clone()), newEntry, (entry, e) -> isStale(entry, nowTick)
+                ? e : entryOf(TimeBase.max(tickOf(entry), expirationTick), (int) (e >>> 32)));
+
+        if (recordedSinceSweep.incrementAndGet() >= sweepInterval) {
+            sweep(nowTick);
+        }
+    }
+
+    /**
+     * Forgets all tuples matching a pattern, e.g. after their solutions have been removed or evicted.
+     * A complete tuple is forgotten directly; a pattern with wildcards, or one shorter than some recorded tuple,
+     * requires a scan of the window
+     *
+     * @param pattern a tuple in which any element may be null, representing a wildcard.
+     *                A pattern also matches any longer tuple which it matches as a prefix
+     */
+    void forget(V[] pattern) {
+        boolean complete = pattern.length >= maxTupleLength.get();
+        for (V value : pattern) {
+            if (null == value) {
+                complete = false;
+                break;
+            }
+        }
+
+        if (complete) {
+            ticksByTuple.remove(new TupleKey<>(pattern));
+        } else {
+            ticksByTuple.keySet().removeIf(key -> key.matches(pattern));
+        }
+    }
+
+    /**
+     * Treats all tuples recorded so far as unseen, e.g. after new solution indices have been added,
+     * in constant time
+     */
+    void invalidate() {
+        generation++;
+    }
+
+    /**
+     * Forgets all tuples
+     */
+    void clear() {
+        ticksByTuple.clear();
+        recordedSinceSweep.set(0);
+    }
+
+    int size() {
+        return ticksByTuple.size();
+    }
+
+    private boolean isStale(long entry, int nowTick) {
+        return (int) (entry >>> 32) != generation || TimeBase.isExpired(tickOf(entry), nowTick);
+    }
+
+    private static long entryOf(int tick, int generation) {
+        return ((long) generation << 32) | (tick & 0xffffffffL);
+    }
+
+    private static int tickOf(long entry) {
+        return (int) entry;
+    }
+
+    private void sweep(int nowTick) {
+        // note: if another thread is already sweeping, there is no need for this thread to wait for it
+        if (sweeping.compareAndSet(false, true)) {
+            try {
+                ticksByTuple.values().removeIf(entry -> isStale(entry, nowTick));
+                recordedSinceSweep.set(0);
+                // sweep again once as many tuples have been recorded as remain, so that each sweep pays for itself
+                sweepInterval = Math.max(MIN_SWEEP_INTERVAL, ticksByTuple.size());
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+
+    private static class TupleKey<V> {
+        private final V[] tuple;
+        private final int hashCode;
+
+        private TupleKey(V[] tuple) {
+            this.tuple = tuple;
+            this.hashCode = Arrays.hashCode(tuple);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof TupleKey
+                    && hashCode == ((TupleKey) other).hashCode
+                    && Arrays.equals(tuple, ((TupleKey) other).tuple);
+        }
+
+        private boolean matches(V[] pattern) {
+            if (tuple.length < pattern.length) {
+                return false;
+            }
+            for (int i = 0; i < pattern.length; i++) {
+                if (null != pattern[i] && !pattern[i].equals(tuple[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
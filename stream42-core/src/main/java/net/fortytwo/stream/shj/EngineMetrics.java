@@ -0,0 +1,36 @@
+package net.fortytwo.stream.shj;
+
+import net.fortytwo.stream.metrics.Counter;
+import net.fortytwo.stream.metrics.Histogram;
+import net.fortytwo.stream.metrics.MetricsRegistry;
+
+/**
+ * The instruments which a query context updates as tuples are added and solutions are joined and expired
+ * (see {@link QueryContext#setMetricsRegistry})
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class EngineMetrics {
+    static final String PREFIX = "shj.";
+
+    // tuples added to the query index
+    final Counter inputs;
+    // lookups of the solutions of a tuple pattern by the value of a join variable, and those which found none
+    final Counter probes;
+    final Counter probeMisses;
+    // complete solutions produced for all queries
+    final Counter solutions;
+    // the number of partial solutions found by each successful probe
+    final Histogram joinFanOut;
+    // the delay, in milliseconds, between the expiration time of solutions and their eviction
+    final Histogram expirationLag;
+
+    EngineMetrics(MetricsRegistry registry) {
+        inputs = registry.counter(PREFIX + "inputs");
+        probes = registry.counter(PREFIX + "probes");
+        probeMisses = registry.counter(PREFIX + "probeMisses");
+        solutions = registry.counter(PREFIX + "solutions");
+        joinFanOut = registry.histogram(PREFIX + "joinFanOut");
+        expirationLag = registry.histogram(PREFIX + "expirationLag");
+    }
+}
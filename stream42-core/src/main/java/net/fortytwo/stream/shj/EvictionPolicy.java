@@ -0,0 +1,26 @@
+package net.fortytwo.stream.shj;
+
+/**
+ * The order in which a solution index evicts live solutions when it exceeds its solution budget
+ * (see {@link QueryContext#setSolutionBudget}).
+ * Eviction trades completeness for bounded memory: a query may miss the complete solutions which
+ * an evicted partial solution would have produced.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public enum EvictionPolicy {
+    /**
+     * Evict the solution which would expire soonest anyway, losing the least remaining lifetime.
+     * Solutions which never expire are evicted, in random order, only when no other solutions remain
+     */
+    EARLIEST_EXPIRING,
+    /**
+     * Evict, among a random sample of solutions, the one whose values were least recently probed for joins
+     * (or, if never probed, least recently added), so that solutions which take part in joins are kept
+     */
+    LEAST_RECENTLY_JOINED,
+    /**
+     * Evict a random solution. This is the cheapest policy
+     */
+    RANDOM
+}
@@ -2,9 +2,8 @@ package net.fortytwo.stream.shj;
 
 import net.fortytwo.stream.StreamProcessor;
 
-import java.util.AbstractQueue;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,39 +30,64 @@ public abstract class ExpirationManager<T extends Expirable> implements Index<T>
 
     @Override
     public boolean isEmpty() {
-        // must catch up with the current time and remove any tombstones from the top of the heap
-        // before we can say whether the heap is empty
+        // must catch up with the current time and remove any tombstones from the queue
+        // before we can say whether the queue is empty
         evictExpired();
 
-        return heap.isEmpty();
+        synchronized (this) {
+            return 0 == queue.size();
+        }
+    }
+
+    private ExpirationQueue<T> queue;
+
+    /**
+     * Creates a new expiration manager backed by a {@link HeapExpirationQueue}
+     */
+    protected ExpirationManager() {
+        this(new HeapExpirationQueue<>());
+    }
+
+    /**
+     * Creates a new expiration manager
+     *
+     * @param queue the storage for items, e.g. a {@link HeapExpirationQueue} or {@link TimingWheelExpirationQueue}
+     */
+    protected ExpirationManager(ExpirationQueue<T> queue) {
+        if (null == queue) {
+            throw new IllegalArgumentException("null queue");
+        }
+
+        this.queue = queue;
     }
 
-    /*
-    PriorityQueue complexity:
-      O(log(n)) time for the enqueing and dequeing methods (offer, poll, remove() and add)
-      linear time for the remove(Object) and contains(Object) methods
-      constant time for the retrieval methods (peek, element, and size)
-    See: https://docs.oracle.com/javase/7/docs/api/java/util/PriorityQueue.html
+    /**
+     * Replaces the storage for items. Any items already present are moved to the new queue.
+     *
+     * @param queue the new storage for items
      */
-    private final AbstractQueue<T> heap = new PriorityQueue<>(new Comparator<T>() {
-        @Override
-        public int compare(T o1, T o2) {
-            long t1 = o1.getExpirationTime();
-            long t2 = o2.getExpirationTime();
-
-            // note: it is assumed that no items in the heap have the special infinite TTL timestamp
-            return ((Long) t1).compareTo(t2);
+    public synchronized void setQueue(ExpirationQueue<T> queue) {
+        if (null == queue) {
+            throw new IllegalArgumentException("null queue");
         }
-    });
 
-    public void clear() {
-        // simply clear the heap. Do not evict individual heap items.
-        heap.clear();
+        ExpirationQueue<T> old = this.queue;
+        this.queue = queue;
+        old.drainTo(item -> {
+            if (!item.isExpired()) {
+                queue.add(item);
+            }
+        });
+    }
+
+    public synchronized void clear() {
+        // simply clear the queue. Do not evict individual items.
+        queue.clear();
     }
 
     /**
      * Adds an item. It is assumed that the item is not already present.
-     * The time complexity of this operation is O(log(n)), from PriorityQueue.add
+     * The time complexity of this operation is that of the queue, e.g. O(log(n)) for a heap
      *
      * @param toAdd the item to add
      */
@@ -71,16 +95,16 @@ public abstract class ExpirationManager<T extends Expirable> implements Index<T>
         // non-expiring items are ignored
         if (isFinite(toAdd)) {
             synchronized (this) {
-                heap.add(toAdd);
+                queue.add(toAdd);
             }
         }
     }
 
     // note: no need for synchronization here
     public boolean remove(T toRemove) {
-        // non-expiring items should not be in the heap, and are ignored
+        // non-expiring items should not be in the queue, and are ignored
         if (isFinite(toRemove)) {
-            // PriorityQueue.remove is O(n) in time, so we leave the item in the heap, but make it a "tombstone"
+            // removal from the queue may be expensive, so we leave the item in the queue, but make it a "tombstone"
             toRemove.expire();
             return true;
         }
@@ -99,7 +123,7 @@ public abstract class ExpirationManager<T extends Expirable> implements Index<T>
        return System.currentTimeMillis();
     }
 
-    public synchronized int evictExpired() {
+    public int evictExpired() {
         long startTime = 0;
         int startSize = 0;
 
@@ -110,30 +134,33 @@ public abstract class ExpirationManager<T extends Expirable> implements Index<T>
             startTime = getClockTime();
         }
 
-        int count = 0;
-        try {
-            while (!heap.isEmpty()) {
-                T first = heap.peek();
-
-                if (first.isExpired()) {
-                    // discard tombstones without counting
-                    heap.poll();
-                } else if (first.getExpirationTime() > now) {
-                    // top of the heap is unexpired, therefore the rest of the heap is also unexpired.
-                    return count;
-                } else {
-                    heap.poll().expire();
-                    count++;
+        // note: items are expired outside of the lock, as expiring an item may lock the index which holds it,
+        // while a thread adding to that index may be waiting to add to this manager
+        List<T> expired = new ArrayList<>();
+        synchronized (this) {
+            queue.pollExpired(now, item -> {
+                // discard tombstones without counting
+                if (!item.isExpired()) {
+                    expired.add(item);
                 }
-            }
+            });
+        }
 
-            return count;
-        } finally {
-            if (verbose && count > 0) {
-                long after = getClockTime();
-                logger.info("evicted " + count + " of " + startSize + " items in " + (after - startTime) + " ms");
+        int count = 0;
+        for (T item : expired) {
+            // note: an item may have become a tombstone in the meantime
+            if (!item.isExpired()) {
+                item.expire();
+                count++;
             }
         }
+
+        if (verbose && count > 0) {
+            long after = getClockTime();
+            logger.info("evicted " + count + " of " + startSize + " items in " + (after - startTime) + " ms");
+        }
+
+        return count;
     }
 
     private boolean isFinite(T toCheck) {
@@ -152,11 +179,14 @@ public abstract class ExpirationManager<T extends Expirable> implements Index<T>
 
                 // repeatedly evict all expired data, pausing appropriately
                 while (!stopped) {
-                    long firstExpiringTimestamp = heap.isEmpty() ? 0 : heap.peek().getExpirationTime();
+                    long firstExpiringTimestamp;
+                    synchronized (this) {
+                        firstExpiringTimestamp = queue.getNextExpirationTime();
+                    }
 
                     try {
                         synchronized (waitLock) {
-                            if (0 == firstExpiringTimestamp) {
+                            if (StreamProcessor.NEVER_EXPIRE == firstExpiringTimestamp) {
                                 // wait indefinitely, or until notified
                                 waitLock.wait();
                             } else {
@@ -185,8 +215,11 @@ public abstract class ExpirationManager<T extends Expirable> implements Index<T>
         stopped = true;
     }
 
-    public int getHeapSize() {
-        return heap.size();
+    /**
+     * @return the number of items in the queue, including any tombstones
+     */
+    public synchronized int getHeapSize() {
+        return queue.size();
     }
 
     public void setVerbose(boolean verbose) {
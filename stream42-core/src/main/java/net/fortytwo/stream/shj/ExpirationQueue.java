@@ -0,0 +1,52 @@
+package net.fortytwo.stream.shj;
+
+import java.util.function.Consumer;
+
+/**
+ * The storage behind an {@link ExpirationManager}: a collection of expirable items,
+ * from which items are retrieved in approximate order of expiration.
+ * Implementations need not be thread-safe; the expiration manager synchronizes access.
+ *
+ * @param <T> the type of item
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface ExpirationQueue<T extends Expirable> {
+
+    /**
+     * Adds an item with a finite expiration time
+     *
+     * @param item the item to add
+     */
+    void add(T item);
+
+    /**
+     * Removes expired items, passing each of them to the given consumer.
+     * An implementation may retain an expired item until a later call, but it must never release an item
+     * before its expiration time.
+     *
+     * @param now      the current time, in milliseconds since the Unix epoch
+     * @param consumer a consumer for each removed item, including any tombstones
+     */
+    void pollExpired(long now, Consumer<T> consumer);
+
+    /**
+     * Removes all items, passing each of them to the given consumer
+     *
+     * @param consumer a consumer for each removed item, including any tombstones
+     */
+    void drainTo(Consumer<T> consumer);
+
+    /**
+     * @return a time at or before which the first item in this queue will be released by {@link #pollExpired},
+     * in milliseconds since the Unix epoch, or {@link net.fortytwo.stream.StreamProcessor#NEVER_EXPIRE}
+     * if the queue is empty
+     */
+    long getNextExpirationTime();
+
+    /**
+     * @return the number of items in the queue, including any tombstones
+     */
+    int size();
+
+    void clear();
+}
@@ -0,0 +1,47 @@
+package net.fortytwo.stream.shj;
+
+/**
+ * An entry in the solution expiration manager, standing for the earliest expiration time
+ * of any solution in a particular solution index.
+ * Solutions themselves are ordered by expiration time within each index,
+ * so that the manager orders only the indices, and solutions need not refer to the index which holds them.
+ * A ticket is superseded (becoming a tombstone) when the index schedules an earlier time,
+ * or when the index is cleared.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public final class ExpirationTicket implements Expirable {
+
+    private final BasicSolutionIndex<?> index;
+    private final int expirationTick;
+    private final long expirationTime;
+
+    ExpirationTicket(BasicSolutionIndex<?> index, int expirationTick, long expirationTime) {
+        this.index = index;
+        this.expirationTick = expirationTick;
+        this.expirationTime = expirationTime;
+    }
+
+    public BasicSolutionIndex<?> getIndex() {
+        return index;
+    }
+
+    public int getExpirationTick() {
+        return expirationTick;
+    }
+
+    @Override
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    @Override
+    public void expire() {
+        index.expire(this);
+    }
+
+    @Override
+    public boolean isExpired() {
+        return !index.isScheduled(this);
+    }
+}
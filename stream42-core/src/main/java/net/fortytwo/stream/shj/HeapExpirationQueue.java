@@ -0,0 +1,71 @@
+package net.fortytwo.stream.shj;
+
+import net.fortytwo.stream.StreamProcessor;
+
+import java.util.AbstractQueue;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * An expiration queue backed by a binary heap, and the default.
+ * Items are released in exact order of expiration, at a cost of O(log(n)) time per addition and removal.
+ *
+ * @param <T> the type of item
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class HeapExpirationQueue<T extends Expirable> implements ExpirationQueue<T> {
+
+    /*
+    PriorityQueue complexity:
+      O(log(n)) time for the enqueing and dequeing methods (offer, poll, remove() and add)
+      linear time for the remove(Object) and contains(Object) methods
+      constant time for the retrieval methods (peek, element, and size)
+    See: https://docs.oracle.com/javase/7/docs/api/java/util/PriorityQueue.html
+     */
+    // note: it is assumed that no items in the heap have the special infinite TTL timestamp
+    private final AbstractQueue<T> heap = new PriorityQueue<>(
+            (o1, o2) -> Long.compare(o1.getExpirationTime(), o2.getExpirationTime()));
+
+    @Override
+    public void add(T item) {
+        heap.add(item);
+    }
+
+    @Override
+    public void pollExpired(long now, Consumer<T> consumer) {
+        while (!heap.isEmpty()) {
+            T first = heap.peek();
+
+            // tombstones are released regardless of their expiration time
+            if (first.isExpired() || first.getExpirationTime() <= now) {
+                consumer.accept(heap.poll());
+            } else {
+                // top of the heap is unexpired, therefore the rest of the heap is also unexpired.
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void drainTo(Consumer<T> consumer) {
+        while (!heap.isEmpty()) {
+            consumer.accept(heap.poll());
+        }
+    }
+
+    @Override
+    public long getNextExpirationTime() {
+        T first = heap.peek();
+        return null == first ? StreamProcessor.NEVER_EXPIRE : first.getExpirationTime();
+    }
+
+    @Override
+    public int size() {
+        return heap.size();
+    }
+
+    @Override
+    public void clear() {
+        heap.clear();
+    }
+}
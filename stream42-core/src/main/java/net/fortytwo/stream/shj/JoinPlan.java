@@ -0,0 +1,350 @@
+package net.fortytwo.stream.shj;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A join plan for a query, compiled when the query is registered.
+ * For each set of tuple patterns which may have been joined so far, the plan holds the possible next steps:
+ * the join helper to probe, the variable to probe it with, and the variables to check for compatibility.
+ * Where only one step is possible, it is taken directly;
+ * only where the plan leaves a real choice is a join set chosen at runtime, by its size together with
+ * the expected fan-out of the following step (see {@link ColumnStatistics}).
+ * <p>
+ * Each variable of the query is assigned an integer slot, and a join in progress binds variables in a
+ * reusable frame of values, indexed by slot, so that probing allocates no intermediate mappings.
+ * Each probe fills a reusable {@link SolutionCursor} with only those solutions which agree with the frame.
+ * Frames and cursors are pooled per thread by the query context, rather than per query (see {@link QueryContext}).
+ *
+ * @param <K> the key type, e.g. String
+ * @param <V> the value type, e.g. an RDF value class
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class JoinPlan<K, V> {
+
+    // plans for queries with up to this many tuple patterns are tabulated in advance;
+    // plans for larger queries are compiled as they are needed
+    private static final int MAX_TABULATED_PATTERNS = 16;
+
+    // the number of joins after which the planner's view of column statistics is refreshed. A power of two
+    private static final int STATISTICS_REFRESH_INTERVAL = 1024;
+
+    private final JoinHelper<K, V>[] helpers;
+    private final long allJoined;
+    private final TimeBase timeBase;
+    private final QueryContext<?, V> queryContext;
+    private final BiConsumer<Map<K, V>, Long> solutionHandler;
+
+    // the variables of the query, by slot
+    private final K[] variables;
+    private final Map<K, Integer> slotByVariable;
+    // for each helper, the slot of the variable in each column of its solutions
+    private final int[][] slotsByHelper;
+
+    private final Step[][] stepsByJoined;
+    private final Map<Long, Step[]> stepsByJoinedMap;
+
+    // note: updated without synchronization, as a lost increment merely delays a refresh
+    private int joinCount;
+    private volatile int statisticsVersion;
+
+    /**
+     * Compiles a join plan
+     *
+     * @param helpers         the join helpers of the query, one per tuple pattern.
+     *                        The tuple patterns are assumed to form a connected graph,
+     *                        and to number no more than {@link Query#MAX_TUPLE_PATTERNS}
+     * @param timeBase        the time base of the expiration ticks of solutions
+     * @param solutionHandler a handler for complete solutions
+     */
+    JoinPlan(List<JoinHelper<K, V>> helpers, TimeBase timeBase, BiConsumer<Map<K, V>, Long> solutionHandler) {
+        this.helpers = helpers.toArray(new JoinHelper[helpers.size()]);
+        this.timeBase = timeBase;
+        this.solutionHandler = solutionHandler;
+        queryContext = this.helpers[0].getSolutionIndex().queryContext;
+        allJoined = (1L << helpers.size()) - 1;
+
+        slotByVariable = new HashMap<>();
+        slotsByHelper = new int[this.helpers.length][];
+        for (int i = 0; i < this.helpers.length; i++) {
+            K[] keys = this.helpers[i].getKeys();
+            int[] slots = new int[keys.length];
+            for (int j = 0; j < keys.length; j++) {
+                Integer slot = slotByVariable.get(keys[j]);
+                if (null == slot) {
+                    slot = slotByVariable.size();
+                    slotByVariable.put(keys[j], slot);
+                }
+                slots[j] = slot;
+            }
+            slotsByHelper[i] = slots;
+        }
+        variables = (K[]) new Object[slotByVariable.size()];
+        for (Map.Entry<K, Integer> e : slotByVariable.entrySet()) {
+            variables[e.getValue()] = e.getKey();
+        }
+
+        if (helpers.size() <= MAX_TABULATED_PATTERNS) {
+            stepsByJoined = new Step[1 << helpers.size()][];
+            stepsByJoinedMap = null;
+
+            // tabulate steps for every set of joined patterns reachable from a single pattern
+            LinkedList<Long> toVisit = new LinkedList<>();
+            for (int i = 0; i < helpers.size(); i++) {
+                toVisit.add(1L << i);
+            }
+            while (!toVisit.isEmpty()) {
+                long joined = toVisit.removeFirst();
+                if (joined == allJoined || null != stepsByJoined[(int) joined]) {
+                    continue;
+                }
+                Step[] steps = compileSteps(joined);
+                stepsByJoined[(int) joined] = steps;
+                for (Step step : steps) {
+                    toVisit.add(joined | (1L << step.helper));
+                }
+            }
+        } else {
+            stepsByJoined = null;
+            stepsByJoinedMap = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * Joins a new partial solution, received by one of the query's join helpers,
+     * with the partial solutions of all other tuple patterns in the query
+     *
+     * @param helperIndex the index of the join helper which received the new solution
+     * @param solution    the new solution
+     */
+    void join(int helperIndex, Solution<V> solution) {
+        V[] values = solution.getValues();
+        if (null == values) {
+            // the solution has expired in the meantime
+            return;
+        }
+
+        if (0 == (++joinCount & (STATISTICS_REFRESH_INTERVAL - 1))) {
+            statisticsVersion++;
+        }
+
+        V[] bindings = (V[]) queryContext.acquireJoinFrame(variables.length);
+        try {
+            int[] slots = slotsByHelper[helperIndex];
+            for (int i = 0; i < slots.length; i++) {
+                bindings[slots[i]] = values[i];
+            }
+
+            // note: read once per join, as metrics may be enabled or disabled at any time
+            extend(bindings, 1L << helperIndex, solution.getExpirationTick(), queryContext.getMetrics());
+        } finally {
+            queryContext.releaseJoinFrame(bindings, variables.length);
+        }
+    }
+
+    private void extend(V[] bindings, long joined, int expirationTick, EngineMetrics metrics) {
+        if (joined == allJoined) {
+            if (null != metrics) {
+                metrics.solutions.increment();
+            }
+            // copy the bindings, as the frame will continue to change, and may be longer than this query needs.
+            // Expiration ticks are converted back to milliseconds only here, at the boundary of the engine
+            solutionHandler.accept(new SolutionMapping<>(variables, slotByVariable,
+                            Arrays.copyOf(bindings, variables.length)),
+                    timeBase.toExpirationTime(expirationTick, queryContext.getNow()));
+            return;
+        }
+
+        Step[] steps = getSteps(joined);
+        Step bestStep;
+        SolutionCursor<V> bestSet;
+        if (1 == steps.length) {
+            bestStep = steps[0];
+            bestSet = probe(bestStep, bindings, metrics);
+            if (null == bestSet) {
+                return;
+            }
+        } else {
+            // a real branch in the plan; as a computation-saving heuristic, choose the set with the least
+            // estimated cost: the size of the set, scaled by the expected fan-out of the step which follows it.
+            // This steers the join away from small sets whose solutions lead into heavily skewed columns
+            bestStep = null;
+            bestSet = null;
+            double minCost = Double.MAX_VALUE;
+            for (Step step : steps) {
+                SolutionCursor<V> sols = probe(step, bindings, metrics);
+                if (null == sols) {
+                    // there is at least one pattern containing this key without a partial solution,
+                    // so a complete solution is not possible
+                    if (null != bestSet) {
+                        queryContext.releaseCursor(bestSet);
+                    }
+                    return;
+                }
+
+                double cost = sols.size() * (1 + getFanOut(step, joined));
+                if (cost < minCost) {
+                    if (null != bestSet) {
+                        queryContext.releaseCursor(bestSet);
+                    }
+                    bestStep = step;
+                    bestSet = sols;
+                    minCost = cost;
+                } else {
+                    queryContext.releaseCursor(sols);
+                }
+            }
+        }
+
+        try {
+            if (null != metrics) {
+                metrics.joinFanOut.record(bestSet.size());
+            }
+
+            long nextJoined = joined | (1L << bestStep.helper);
+            int[] bindColumns = bestStep.bindColumns, bindSlots = bestStep.bindSlots;
+            // note: the probe has already checked each solution against the bindings
+            while (bestSet.next()) {
+                // note: these slots are bound only in later steps, so they may be overwritten here
+                for (int i = 0; i < bindColumns.length; i++) {
+                    bindings[bindSlots[i]] = bestSet.getValue(bindColumns[i]);
+                }
+
+                extend(bindings, nextJoined, TimeBase.min(expirationTick, bestSet.getExpirationTick()), metrics);
+            }
+        } finally {
+            queryContext.releaseCursor(bestSet);
+        }
+    }
+
+    // probes the index of a step for the solutions compatible with the bindings,
+    // returning a pooled cursor over them, or null if there are none
+    private SolutionCursor<V> probe(Step step, V[] bindings, EngineMetrics metrics) {
+        SolutionCursor<V> solutions = queryContext.acquireCursor();
+        helpers[step.helper].getSolutionIndex().probe(
+                step.keyColumn, bindings[step.keySlot], step.checkColumns, step.checkSlots, bindings, solutions);
+        if (null != metrics) {
+            metrics.probes.increment();
+        }
+        if (0 == solutions.size()) {
+            if (null != metrics) {
+                metrics.probeMisses.increment();
+            }
+            queryContext.releaseCursor(solutions);
+            return null;
+        }
+        return solutions;
+    }
+
+    // estimates the number of solutions which each solution of a step will be joined with in the next step,
+    // from the column statistics of the solution indices involved
+    private double getFanOut(Step step, long joined) {
+        int version = statisticsVersion;
+        if (step.fanOutVersion != version) {
+            long nextJoined = joined | (1L << step.helper);
+            double fanOut = 0;
+            if (nextJoined != allJoined) {
+                fanOut = Double.MAX_VALUE;
+                for (Step next : getSteps(nextJoined)) {
+                    fanOut = Math.min(fanOut, helpers[next.helper].getSolutionIndex()
+                            .getStatistics(next.keyColumn).getExpectedPostingSize());
+                }
+            }
+
+            step.fanOut = fanOut;
+            step.fanOutVersion = version;
+        }
+
+        return step.fanOut;
+    }
+
+    private Step[] getSteps(long joined) {
+        return null == stepsByJoined
+                ? stepsByJoinedMap.computeIfAbsent(joined, this::compileSteps)
+                : stepsByJoined[(int) joined];
+    }
+
+    private Step[] compileSteps(long joined) {
+        boolean[] bound = new boolean[variables.length];
+        for (int i = 0; i < helpers.length; i++) {
+            if (0 != (joined & (1L << i))) {
+                for (int slot : slotsByHelper[i]) {
+                    bound[slot] = true;
+                }
+            }
+        }
+
+        List<Step> steps = new LinkedList<>();
+        for (int i = 0; i < helpers.length; i++) {
+            if (0 == (joined & (1L << i))) {
+                int[] slots = slotsByHelper[i];
+                // every bound variable of the pattern is a possible join key
+                for (int keyColumn = 0; keyColumn < slots.length; keyColumn++) {
+                    if (bound[slots[keyColumn]]) {
+                        steps.add(new Step(i, keyColumn, slots, bound));
+                    }
+                }
+            }
+        }
+
+        if (steps.isEmpty()) {
+            throw new IllegalStateException("graph pattern is not fully connected");
+        }
+
+        return steps.toArray(new Step[steps.size()]);
+    }
+
+    /**
+     * A single step of a join: a probe into the solution index of a not-yet-joined tuple pattern
+     */
+    private static class Step {
+        private final int helper;
+        private final int keyColumn;
+        private final int keySlot;
+        // bound variables, other than the join key, which solutions must agree with
+        private final int[] checkColumns;
+        private final int[] checkSlots;
+        // variables which solutions newly bind
+        private final int[] bindColumns;
+        private final int[] bindSlots;
+
+        // the estimated fan-out of the following step, as of a given version of the column statistics
+        private volatile double fanOut;
+        private volatile int fanOutVersion = -1;
+
+        private Step(int helper, int keyColumn, int[] slots, boolean[] bound) {
+            this.helper = helper;
+            this.keyColumn = keyColumn;
+            this.keySlot = slots[keyColumn];
+
+            int checkCount = 0;
+            for (int i = 0; i < slots.length; i++) {
+                if (i != keyColumn && bound[slots[i]]) {
+                    checkCount++;
+                }
+            }
+            checkColumns = new int[checkCount];
+            checkSlots = new int[checkCount];
+            bindColumns = new int[slots.length - checkCount - 1];
+            bindSlots = new int[slots.length - checkCount - 1];
+
+            int c = 0, b = 0;
+            for (int i = 0; i < slots.length; i++) {
+                if (i != keyColumn) {
+                    if (bound[slots[i]]) {
+                        checkColumns[c] = i;
+                        checkSlots[c++] = slots[i];
+                    } else {
+                        bindColumns[b] = i;
+                        bindSlots[b++] = slots[i];
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,888 @@
+package net.fortytwo.stream.shj;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A solution index for id-encoded values (see {@link net.fortytwo.stream.model.TermDictionary})
+ * which stores solutions as rows of primitive values rather than as objects.
+ * All values must be {@link Long}s; the value type is left open only so that the index fits generic join code.
+ * Each row occupies a slot in a {@link RowStore}, by default a set of parallel primitive arrays.
+ * For each variable, an open-addressing hash table maps each distinct value to the head of a doubly-linked
+ * posting list of rows, threaded through the rows themselves, so that a stored solution costs roughly
+ * 16 bytes per variable plus 16 bytes, with no per-solution objects.
+ * <p>
+ * Solutions are materialized as objects only when they are retrieved; joins read the rows of a posting list
+ * in place, and copy out only the values of matching rows.
+ * Expired rows are never retrieved, and are evicted from the index as new solutions are added,
+ * or when the index's ticket in the solution expiration manager comes due.
+ * The index blocks for concurrent write operations, and retrieval blocks only for writes.
+ * <p>
+ * Solutions evicted over budget, other than the earliest-expiring, are sampled from runs of rows at random positions.
+ * For the {@link EvictionPolicy#LEAST_RECENTLY_JOINED} policy, each posting table also keeps the tick at which
+ * each of its values was last added or probed.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class LongSolutionIndex<V> extends BasicSolutionIndex<V> {
+
+    private static final int NONE = -1;
+
+    // the number of rows compared by the least-recently-joined eviction policy
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    // note: never used as an expiration tick by a time base; free rows are checked for explicitly, as ticks wrap around
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // row storage. Free rows have an expiration tick which is never live
+    private final RowStore store;
+
+    // a binary min-heap of finite-lifetime rows, by expiration time.
+    // The position of each row in the heap is kept in the row store
+    private int[] heap;
+    private int heapSize;
+
+    // rows which have been used, and the first of a list of rows which have been freed for reuse,
+    // linked through their heap positions
+    private int highWater;
+    private int freeHead;
+    private int rowCount;
+
+    private RowTable rowTable;
+    private final PostingTable[] postings;
+
+    // whether the posting tables keep the tick at which each value was last added or probed
+    private final boolean trackJoins;
+
+    public LongSolutionIndex(QueryContext<?, V> queryContext, int cardinality) {
+        this(queryContext, cardinality, null);
+    }
+
+    /**
+     * @param store the row storage of the index, or null for the default storage in primitive arrays
+     */
+    LongSolutionIndex(QueryContext<?, V> queryContext, int cardinality, RowStore store) {
+        super(queryContext, cardinality);
+
+        this.store = null == store ? new ArrayRowStore(cardinality) : store;
+        postings = new LongSolutionIndex.PostingTable[cardinality];
+        trackJoins = EvictionPolicy.LEAST_RECENTLY_JOINED == queryContext.getEvictionPolicy();
+        reset();
+    }
+
+    @Override
+    protected Addition addInternal(Solution<V> solution) {
+        V[] vals = solution.getValues();
+        int expirationTick = solution.getExpirationTick();
+
+        lock.writeLock().lock();
+        try {
+            int nowTick = nowTick();
+            evictExpiredRows(nowTick);
+
+            int existing = rowTable.find(vals);
+            if (NONE != existing) {
+                if (TimeBase.compare(expirationTick, store.getExpirationTick(existing)) > 0) {
+                    // new solution supersedes the existing solution
+                    setExpirationTick(existing, expirationTick);
+                    scheduleExpiration(expirationTick);
+                    return Addition.REFRESHED;
+                }
+                // otherwise, the existing solution already contains the new one
+                return Addition.UNCHANGED;
+            }
+
+            int row = allocateRow();
+            for (int i = 0; i < cardinality; i++) {
+                long value = (Long) vals[i];
+                store.setValue(row, i, value);
+                postings[i].link(row, value, nowTick);
+            }
+            rowTable.add(row);
+            store.setExpirationTick(row, expirationTick);
+            store.setHeapPosition(row, NONE);
+            if (expirationTick != TimeBase.NEVER_EXPIRE) {
+                heapPush(row);
+                scheduleExpiration(expirationTick);
+            }
+            rowCount++;
+            countStored(1);
+            return Addition.ADDED;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Solution<V> solution) {
+        lock.writeLock().lock();
+        try {
+            int row = rowTable.find(solution.getValues());
+            if (NONE == row) {
+                return false;
+            } else {
+                removeRow(row);
+                return true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean removePattern(V[] pattern) {
+        lock.writeLock().lock();
+        try {
+            // select the smallest posting list for iteration and filtering
+            int minCount = Integer.MAX_VALUE;
+            int bestIndex = -1;
+            int bestSlot = NONE;
+            for (int i = 0; i < cardinality; i++) {
+                V val = pattern[i];
+                if (null != val) {
+                    int slot = postings[i].find((Long) val);
+                    if (NONE == slot) {
+                        return false;
+                    }
+                    int count = postings[i].counts[slot];
+                    if (count < minCount) {
+                        minCount = count;
+                        bestIndex = i;
+                        bestSlot = slot;
+                    }
+                }
+            }
+
+            if (-1 == bestIndex) {
+                // all wildcards; remove all
+                boolean removed = rowCount > 0;
+                countStored(-rowCount);
+                reset();
+                return removed;
+            }
+
+            int[] toRemove = new int[minCount];
+            int n = 0;
+            int row = postings[bestIndex].heads[bestSlot];
+            while (NONE != row) {
+                if (matches(row, pattern)) {
+                    toRemove[n++] = row;
+                }
+                row = store.getNext(row, bestIndex);
+            }
+            for (int i = 0; i < n; i++) {
+                removeRow(toRemove[i]);
+            }
+            return n > 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            reset();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        super.clear();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return 0 == rowCount;
+    }
+
+    @Override
+    public Set<Solution<V>> getSolutions() {
+        int nowTick = nowTick();
+
+        lock.readLock().lock();
+        try {
+            Solution<V>[] solutions = new Solution[rowCount];
+            int n = 0;
+            for (int row = 0; row < highWater; row++) {
+                if (isLive(row, nowTick)) {
+                    solutions[n++] = toSolution(row);
+                }
+            }
+            return new SolutionArraySet<>(solutions, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<Solution<V>> getSolutions(int index, V value) {
+        int nowTick = nowTick();
+
+        lock.readLock().lock();
+        try {
+            PostingTable table = postings[index];
+            int slot = findAndMark(table, (Long) value, nowTick);
+            if (NONE == slot) {
+                return null;
+            }
+
+            Solution<V>[] solutions = new Solution[table.counts[slot]];
+            int n = 0;
+            for (int row = table.heads[slot]; NONE != row; row = store.getNext(row, index)) {
+                if (isLive(row, nowTick)) {
+                    solutions[n++] = toSolution(row);
+                }
+            }
+            return 0 == n ? null : new SolutionArraySet<>(solutions, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walks the posting list of the key value in place, under the read lock,
+     * copying into the cursor only the live rows which agree with the bindings.
+     * Values are compared and copied as primitives; they are boxed only as the join binds them
+     */
+    @Override
+    void probe(int index, V value, int[] checkColumns, int[] checkSlots, V[] bindings, SolutionCursor<V> cursor) {
+        cursor.start(cardinality, true);
+        int nowTick = nowTick();
+
+        lock.readLock().lock();
+        try {
+            PostingTable table = postings[index];
+            int slot = findAndMark(table, (Long) value, nowTick);
+            if (NONE == slot) {
+                return;
+            }
+
+            for (int row = table.heads[slot]; NONE != row; row = store.getNext(row, index)) {
+                if (isLive(row, nowTick) && agrees(row, checkColumns, checkSlots, bindings)) {
+                    int offset = cursor.addRow(store.getExpirationTick(row));
+                    long[] longs = cursor.getLongs();
+                    for (int i = 0; i < cardinality; i++) {
+                        longs[offset + i] = store.getValue(row, i);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // finds the posting slot of a value, noting that the value has been joined. Called with a lock held
+    private int findAndMark(PostingTable table, long value, int nowTick) {
+        int slot = table.find(value);
+        if (NONE != slot && trackJoins) {
+            // note: concurrent readers may race to set the tick, with no harm done
+            table.joinedTicks[slot] = nowTick;
+        }
+        return slot;
+    }
+
+    private boolean agrees(int row, int[] checkColumns, int[] checkSlots, V[] bindings) {
+        for (int i = 0; i < checkColumns.length; i++) {
+            if (store.getValue(row, checkColumns[i]) != (Long) bindings[checkSlots[i]]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected Solution<V> evict(EvictionPolicy policy) {
+        lock.writeLock().lock();
+        try {
+            if (0 == rowCount) {
+                return null;
+            }
+
+            int row = EvictionPolicy.EARLIEST_EXPIRING == policy && heapSize > 0 ? heap[0] : sampleRow(policy);
+            Solution<V> evicted = toSolution(row);
+            removeRow(row);
+            return evicted;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of rows in this index, including any expired rows which have not yet been evicted
+     */
+    public int size() {
+        return rowCount;
+    }
+
+    private void reset() {
+        store.reset();
+        heap = new int[store.getCapacity()];
+        heapSize = 0;
+        highWater = 0;
+        freeHead = NONE;
+        rowCount = 0;
+
+        rowTable = new RowTable();
+        for (int i = 0; i < cardinality; i++) {
+            postings[i] = new PostingTable(i);
+        }
+    }
+
+    // samples a least-recently-joined or, for any other policy, a random row. There must be at least one row
+    private int sampleRow(EvictionPolicy policy) {
+        Random random = ThreadLocalRandom.current();
+        int row = nextUsedRow(random.nextInt(highWater));
+        if (EvictionPolicy.LEAST_RECENTLY_JOINED != policy || !trackJoins) {
+            return row;
+        }
+
+        // compare a run of rows from a random start, which covers all rows of a small index.
+        // Note: rows are compared by the time since they were last joined, as ticks wrap around
+        int nowTick = nowTick();
+        int best = NONE;
+        int bestAge = 0;
+        int sampleSize = Math.min(EVICTION_SAMPLE_SIZE, rowCount);
+        for (int i = 0; i < sampleSize; i++) {
+            int age = Integer.MAX_VALUE;
+            for (int j = 0; j < cardinality; j++) {
+                PostingTable table = postings[j];
+                age = Math.min(age, nowTick - table.joinedTicks[table.find(store.getValue(row, j))]);
+            }
+            if (NONE == best || age > bestAge) {
+                best = row;
+                bestAge = age;
+            }
+            row = nextUsedRow(row + 1 == highWater ? 0 : row + 1);
+        }
+        return best;
+    }
+
+    // finds the first row, at or after the given row and wrapping around, which is not free
+    private int nextUsedRow(int row) {
+        while (FREE == store.getExpirationTick(row)) {
+            row = row + 1 == highWater ? 0 : row + 1;
+        }
+        return row;
+    }
+
+    private boolean isLive(int row, int nowTick) {
+        int tick = store.getExpirationTick(row);
+        return FREE != tick && !TimeBase.isExpired(tick, nowTick);
+    }
+
+    private int nowTick() {
+        return queryContext.getTimeBase().toTick(queryContext.getNow());
+    }
+
+    private boolean matches(int row, V[] pattern) {
+        for (int i = 0; i < cardinality; i++) {
+            V val = pattern[i];
+            if (null != val && (Long) val != store.getValue(row, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Solution<V> toSolution(int row) {
+        V[] vals = (V[]) new Long[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+            vals[i] = (V) Long.valueOf(store.getValue(row, i));
+        }
+        return new Solution<>(vals, store.getExpirationTick(row));
+    }
+
+    @Override
+    protected int evictExpired(int nowTick) {
+        lock.writeLock().lock();
+        try {
+            evictExpiredRows(nowTick);
+            return 0 == heapSize ? TimeBase.NEVER_EXPIRE : store.getExpirationTick(heap[0]);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void evictExpiredRows(int nowTick) {
+        while (heapSize > 0 && TimeBase.isExpired(store.getExpirationTick(heap[0]), nowTick)) {
+            removeRow(heap[0]);
+        }
+    }
+
+    private int allocateRow() {
+        if (NONE != freeHead) {
+            int row = freeHead;
+            freeHead = store.getHeapPosition(row);
+            return row;
+        }
+
+        if (highWater == store.getCapacity()) {
+            store.grow();
+            heap = Arrays.copyOf(heap, store.getCapacity());
+        }
+
+        return highWater++;
+    }
+
+    private void removeRow(int row) {
+        for (int i = 0; i < cardinality; i++) {
+            postings[i].unlink(row, store.getValue(row, i));
+        }
+        rowTable.remove(row);
+        if (NONE != store.getHeapPosition(row)) {
+            heapRemove(row);
+        }
+
+        store.setExpirationTick(row, FREE);
+        store.setHeapPosition(row, freeHead);
+        freeHead = row;
+        rowCount--;
+        countStored(-1);
+    }
+
+    private void setExpirationTick(int row, int expirationTick) {
+        if (NONE != store.getHeapPosition(row)) {
+            heapRemove(row);
+        }
+        store.setExpirationTick(row, expirationTick);
+        if (expirationTick != TimeBase.NEVER_EXPIRE) {
+            heapPush(row);
+        }
+    }
+
+    private void heapPush(int row) {
+        heap[heapSize] = row;
+        store.setHeapPosition(row, heapSize);
+        siftUp(heapSize++);
+    }
+
+    private void heapRemove(int row) {
+        int pos = store.getHeapPosition(row);
+        store.setHeapPosition(row, NONE);
+        int last = heap[--heapSize];
+        if (pos != heapSize) {
+            heap[pos] = last;
+            store.setHeapPosition(last, pos);
+            siftDown(pos);
+            siftUp(store.getHeapPosition(last));
+        }
+    }
+
+    private void siftUp(int pos) {
+        int row = heap[pos];
+        int tick = store.getExpirationTick(row);
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            int parentRow = heap[parent];
+            if (TimeBase.compare(store.getExpirationTick(parentRow), tick) <= 0) {
+                break;
+            }
+            heap[pos] = parentRow;
+            store.setHeapPosition(parentRow, pos);
+            pos = parent;
+        }
+        heap[pos] = row;
+        store.setHeapPosition(row, pos);
+    }
+
+    private void siftDown(int pos) {
+        int row = heap[pos];
+        int tick = store.getExpirationTick(row);
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < heapSize
+                    && TimeBase.compare(store.getExpirationTick(heap[right]), store.getExpirationTick(heap[child])) < 0) {
+                child = right;
+            }
+            int childRow = heap[child];
+            if (TimeBase.compare(tick, store.getExpirationTick(childRow)) <= 0) {
+                break;
+            }
+            heap[pos] = childRow;
+            store.setHeapPosition(childRow, pos);
+            pos = child;
+        }
+        heap[pos] = row;
+        store.setHeapPosition(row, pos);
+    }
+
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int tableSize(int count) {
+        // keep the load factor at or below 0.75
+        int size = 16;
+        while (size * 3 < count * 4) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * An open-addressing hash table from the distinct values of one variable to their posting lists
+     */
+    private class PostingTable {
+        private final int index;
+
+        private long[] keys;
+        private int[] heads;
+        // a count of 0 marks an empty slot
+        private int[] counts;
+        // the tick at which each value was last added or probed, or null if this is not tracked
+        private int[] joinedTicks;
+        private int size;
+        private int mask;
+
+        private PostingTable(int index) {
+            this.index = index;
+            allocate(16);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            heads = new int[capacity];
+            counts = new int[capacity];
+            if (trackJoins) {
+                joinedTicks = new int[capacity];
+            }
+            mask = capacity - 1;
+        }
+
+        private int find(long key) {
+            int slot = hash(key) & mask;
+            while (0 != counts[slot]) {
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return NONE;
+        }
+
+        private void link(int row, long key, int nowTick) {
+            int slot = find(key);
+            if (NONE == slot) {
+                if ((size + 1) * 4 > keys.length * 3) {
+                    rehash(keys.length * 2);
+                }
+                slot = hash(key) & mask;
+                while (0 != counts[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                heads[slot] = NONE;
+                if (trackJoins) {
+                    joinedTicks[slot] = nowTick;
+                }
+                size++;
+            }
+
+            // push the row onto the front of the posting list
+            int head = heads[slot];
+            store.setNext(row, index, head);
+            store.setPrev(row, index, NONE);
+            if (NONE != head) {
+                store.setPrev(head, index, row);
+            }
+            heads[slot] = row;
+            counts[slot]++;
+        }
+
+        private void unlink(int row, long key) {
+            int slot = find(key);
+            int nextRow = store.getNext(row, index);
+            int prevRow = store.getPrev(row, index);
+            if (NONE == prevRow) {
+                heads[slot] = nextRow;
+            } else {
+                store.setNext(prevRow, index, nextRow);
+            }
+            if (NONE != nextRow) {
+                store.setPrev(nextRow, index, prevRow);
+            }
+
+            if (0 == --counts[slot]) {
+                size--;
+                deleteSlot(slot);
+            }
+        }
+
+        // backward-shift deletion, which keeps probe sequences intact without tombstones
+        private void deleteSlot(int slot) {
+            int gap = slot;
+            int cur = (slot + 1) & mask;
+            while (0 != counts[cur]) {
+                int home = hash(keys[cur]) & mask;
+                if (((cur - home) & mask) >= ((cur - gap) & mask)) {
+                    keys[gap] = keys[cur];
+                    heads[gap] = heads[cur];
+                    counts[gap] = counts[cur];
+                    if (trackJoins) {
+                        joinedTicks[gap] = joinedTicks[cur];
+                    }
+                    counts[cur] = 0;
+                    gap = cur;
+                }
+                cur = (cur + 1) & mask;
+            }
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldHeads = heads;
+            int[] oldCounts = counts;
+            int[] oldJoinedTicks = joinedTicks;
+            allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (0 != oldCounts[i]) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while (0 != counts[slot]) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    heads[slot] = oldHeads[i];
+                    counts[slot] = oldCounts[i];
+                    if (trackJoins) {
+                        joinedTicks[slot] = oldJoinedTicks[i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An open-addressing hash set of rows, keyed on the values of each row, for finding identical solutions
+     */
+    private class RowTable {
+        // each slot holds a row plus one, so that 0 marks an empty slot
+        private int[] slots = new int[tableSize(RowStore.INITIAL_ROWS)];
+        private int size;
+
+        private int hashOf(int row) {
+            int h = 1;
+            for (int i = 0; i < cardinality; i++) {
+                h = 31 * h + hash(store.getValue(row, i));
+            }
+            return h;
+        }
+
+        private int hashOf(V[] vals) {
+            int h = 1;
+            for (int i = 0; i < cardinality; i++) {
+                h = 31 * h + hash((Long) vals[i]);
+            }
+            return h;
+        }
+
+        private boolean rowEquals(int row, V[] vals) {
+            for (int i = 0; i < cardinality; i++) {
+                if (store.getValue(row, i) != (Long) vals[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int find(V[] vals) {
+            int mask = slots.length - 1;
+            int slot = hashOf(vals) & mask;
+            int entry;
+            while (0 != (entry = slots[slot])) {
+                if (rowEquals(entry - 1, vals)) {
+                    return entry - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return NONE;
+        }
+
+        private void add(int row) {
+            if ((size + 1) * 4 > slots.length * 3) {
+                int[] old = slots;
+                slots = new int[old.length * 2];
+                for (int entry : old) {
+                    if (0 != entry) {
+                        insert(entry - 1);
+                    }
+                }
+            }
+            insert(row);
+            size++;
+        }
+
+        private void insert(int row) {
+            int mask = slots.length - 1;
+            int slot = hashOf(row) & mask;
+            while (0 != slots[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = row + 1;
+        }
+
+        private void remove(int row) {
+            int mask = slots.length - 1;
+            int slot = hashOf(row) & mask;
+            while (slots[slot] != row + 1) {
+                slot = (slot + 1) & mask;
+            }
+            size--;
+
+            // backward-shift deletion
+            int gap = slot;
+            int cur = (slot + 1) & mask;
+            slots[gap] = 0;
+            int entry;
+            while (0 != (entry = slots[cur])) {
+                int home = hashOf(entry - 1) & mask;
+                if (((cur - home) & mask) >= ((cur - gap) & mask)) {
+                    slots[gap] = entry;
+                    slots[cur] = 0;
+                    gap = cur;
+                }
+                cur = (cur + 1) & mask;
+            }
+        }
+    }
+
+    /**
+     * Row storage in parallel primitive arrays on the heap.
+     * The values and posting links of row r, variable i are at r * cardinality + i
+     */
+    private static class ArrayRowStore extends RowStore {
+        private long[] values;
+        private int[] next;
+        private int[] prev;
+        private int[] expirationTicks;
+        private int[] heapPositions;
+
+        private ArrayRowStore(int cardinality) {
+            super(cardinality);
+            reset();
+        }
+
+        @Override
+        int getCapacity() {
+            return expirationTicks.length;
+        }
+
+        @Override
+        void grow() {
+            int capacity = expirationTicks.length * 2;
+            values = Arrays.copyOf(values, capacity * cardinality);
+            next = Arrays.copyOf(next, capacity * cardinality);
+            prev = Arrays.copyOf(prev, capacity * cardinality);
+            expirationTicks = Arrays.copyOf(expirationTicks, capacity);
+            heapPositions = Arrays.copyOf(heapPositions, capacity);
+        }
+
+        @Override
+        void reset() {
+            values = new long[INITIAL_ROWS * cardinality];
+            next = new int[INITIAL_ROWS * cardinality];
+            prev = new int[INITIAL_ROWS * cardinality];
+            expirationTicks = new int[INITIAL_ROWS];
+            heapPositions = new int[INITIAL_ROWS];
+        }
+
+        @Override
+        long getValue(int row, int index) {
+            return values[row * cardinality + index];
+        }
+
+        @Override
+        void setValue(int row, int index, long value) {
+            values[row * cardinality + index] = value;
+        }
+
+        @Override
+        int getNext(int row, int index) {
+            return next[row * cardinality + index];
+        }
+
+        @Override
+        void setNext(int row, int index, int next) {
+            this.next[row * cardinality + index] = next;
+        }
+
+        @Override
+        int getPrev(int row, int index) {
+            return prev[row * cardinality + index];
+        }
+
+        @Override
+        void setPrev(int row, int index, int prev) {
+            this.prev[row * cardinality + index] = prev;
+        }
+
+        @Override
+        int getExpirationTick(int row) {
+            return expirationTicks[row];
+        }
+
+        @Override
+        void setExpirationTick(int row, int expirationTick) {
+            expirationTicks[row] = expirationTick;
+        }
+
+        @Override
+        int getHeapPosition(int row) {
+            return heapPositions[row];
+        }
+
+        @Override
+        void setHeapPosition(int row, int position) {
+            heapPositions[row] = position;
+        }
+    }
+
+    /**
+     * An immutable set view of an array of distinct solutions
+     */
+    private static class SolutionArraySet<V> extends AbstractSet<Solution<V>> {
+        private final Solution<V>[] solutions;
+        private final int size;
+
+        private SolutionArraySet(Solution<V>[] solutions, int size) {
+            this.solutions = solutions;
+            this.size = size;
+        }
+
+        @Override
+        public Iterator<Solution<V>> iterator() {
+            return new Iterator<Solution<V>>() {
+                private int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < size;
+                }
+
+                @Override
+                public Solution<V> next() {
+                    if (i >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return solutions[i++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
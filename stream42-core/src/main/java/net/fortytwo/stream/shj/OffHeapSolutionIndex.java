@@ -0,0 +1,162 @@
+package net.fortytwo.stream.shj;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A solution index for id-encoded values which, like {@link LongSolutionIndex}, stores solutions as rows of
+ * primitive values, but keeps the rows outside of the Java heap, in direct byte buffers.
+ * Rows are allocated from slabs of {@link #SLAB_ROWS} rows each (the first slab starts small and doubles
+ * until it reaches that size), so that the store grows without copying existing rows,
+ * and the garbage collector neither traces nor moves the rows of large windows.
+ * The hash tables and the expiration heap of the index, which refer to rows by number,
+ * remain on the heap as primitive arrays.
+ * <p>
+ * Direct memory is limited separately from the heap, e.g. by the -XX:MaxDirectMemorySize option of the JVM.
+ * The memory of an index is released when its buffers are garbage-collected after the index is cleared
+ * or discarded.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class OffHeapSolutionIndex<V> extends LongSolutionIndex<V> {
+
+    private static final int SLAB_SHIFT = 16;
+
+    /**
+     * The number of rows in each full slab of direct memory
+     */
+    public static final int SLAB_ROWS = 1 << SLAB_SHIFT;
+
+    public OffHeapSolutionIndex(QueryContext<?, V> queryContext, int cardinality) {
+        super(queryContext, cardinality, new SlabRowStore(cardinality));
+    }
+
+    /**
+     * Row storage in slabs of direct memory.
+     * Each row holds the values of its variables, then their next and previous posting links,
+     * then its expiration tick and heap position
+     */
+    private static class SlabRowStore extends RowStore {
+        private static final int SLAB_MASK = SLAB_ROWS - 1;
+
+        private final int rowBytes;
+        private final int nextOffset;
+        private final int prevOffset;
+        private final int tickOffset;
+
+        private ByteBuffer[] slabs;
+        private int capacity;
+
+        private SlabRowStore(int cardinality) {
+            super(cardinality);
+
+            if (cardinality < 1) {
+                throw new IllegalArgumentException("illegal index length: " + cardinality);
+            }
+            // note: a full slab must be addressable by a single buffer
+            if (SLAB_ROWS * (16L * cardinality + 8) > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("index length too large for off-heap storage: " + cardinality);
+            }
+
+            nextOffset = 8 * cardinality;
+            prevOffset = 12 * cardinality;
+            tickOffset = 16 * cardinality;
+            rowBytes = tickOffset + 8;
+
+            reset();
+        }
+
+        @Override
+        int getCapacity() {
+            return capacity;
+        }
+
+        @Override
+        void grow() {
+            if (capacity < SLAB_ROWS) {
+                // the first slab grows by doubling, so that small indices use little memory
+                ByteBuffer old = slabs[0].duplicate();
+                old.clear();
+                capacity *= 2;
+                slabs[0] = allocate(capacity);
+                slabs[0].put(old);
+            } else {
+                if (capacity > Integer.MAX_VALUE - SLAB_ROWS) {
+                    throw new IllegalStateException("off-heap index is full");
+                }
+                slabs = Arrays.copyOf(slabs, slabs.length + 1);
+                slabs[slabs.length - 1] = allocate(SLAB_ROWS);
+                capacity += SLAB_ROWS;
+            }
+        }
+
+        @Override
+        void reset() {
+            capacity = INITIAL_ROWS;
+            slabs = new ByteBuffer[]{allocate(capacity)};
+        }
+
+        @Override
+        long getValue(int row, int index) {
+            return slabOf(row).getLong(offsetOf(row) + 8 * index);
+        }
+
+        @Override
+        void setValue(int row, int index, long value) {
+            slabOf(row).putLong(offsetOf(row) + 8 * index, value);
+        }
+
+        @Override
+        int getNext(int row, int index) {
+            return slabOf(row).getInt(offsetOf(row) + nextOffset + 4 * index);
+        }
+
+        @Override
+        void setNext(int row, int index, int next) {
+            slabOf(row).putInt(offsetOf(row) + nextOffset + 4 * index, next);
+        }
+
+        @Override
+        int getPrev(int row, int index) {
+            return slabOf(row).getInt(offsetOf(row) + prevOffset + 4 * index);
+        }
+
+        @Override
+        void setPrev(int row, int index, int prev) {
+            slabOf(row).putInt(offsetOf(row) + prevOffset + 4 * index, prev);
+        }
+
+        @Override
+        int getExpirationTick(int row) {
+            return slabOf(row).getInt(offsetOf(row) + tickOffset);
+        }
+
+        @Override
+        void setExpirationTick(int row, int expirationTick) {
+            slabOf(row).putInt(offsetOf(row) + tickOffset, expirationTick);
+        }
+
+        @Override
+        int getHeapPosition(int row) {
+            return slabOf(row).getInt(offsetOf(row) + tickOffset + 4);
+        }
+
+        @Override
+        void setHeapPosition(int row, int position) {
+            slabOf(row).putInt(offsetOf(row) + tickOffset + 4, position);
+        }
+
+        private ByteBuffer slabOf(int row) {
+            return slabs[row >>> SLAB_SHIFT];
+        }
+
+        private int offsetOf(int row) {
+            return (row & SLAB_MASK) * rowBytes;
+        }
+
+        private ByteBuffer allocate(int rows) {
+            return ByteBuffer.allocateDirect(rows * rowBytes).order(ByteOrder.nativeOrder());
+        }
+    }
+}
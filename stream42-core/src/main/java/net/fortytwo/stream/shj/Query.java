@@ -2,29 +2,47 @@ package net.fortytwo.stream.shj;
 
 import net.fortytwo.stream.model.VariableOrConstant;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.function.BiConsumer;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class Query<K, V> implements Expirable {
-    
+
+    /**
+     * The maximum number of tuple patterns in a query, as joined patterns are tracked in a bit set
+     */
+    public static final int MAX_TUPLE_PATTERNS = 63;
+
     private GraphPattern<K, V> graphPattern;
     private BiConsumer<Map<K, V>, Long> solutionHandler;
+    private final TimeBase timeBase;
+    // note: kept in milliseconds, as a query may outlive the span of its time base
     private final long expirationTime;
     private final Index<Query<K, V>> expirationIndex;
 
     private List<JoinHelper<K, V>> allHelpers;
-
+    private List<SharedJoin<K, V>> sharedJoins = Collections.emptyList();
+
+    /**
+     * @param graphPattern    the graph pattern of the query
+     * @param expirationTime  the expiration time of the query, in milliseconds since the Unix epoch,
+     *                        or {@link net.fortytwo.stream.StreamProcessor#NEVER_EXPIRE}
+     * @param timeBase        the time base of the query context, in which solutions keep their expiration times
+     * @param expirationIndex the index from which the query is removed when it expires
+     * @param solutionHandler a handler for complete solutions, together with their expiration times,
+     *                        in milliseconds since the Unix epoch
+     */
     public Query(GraphPattern<K, V> graphPattern,
                  long expirationTime,
+                 TimeBase timeBase,
                  Index<Query<K, V>> expirationIndex,
                  BiConsumer<Map<K, V>, Long> solutionHandler) {
         this.graphPattern = graphPattern;
+        this.timeBase = timeBase;
         this.expirationTime = expirationTime;
         this.expirationIndex = expirationIndex;
         this.solutionHandler = solutionHandler;
@@ -65,26 +83,26 @@ public class Query<K, V> implements Expirable {
 
         this.allHelpers = allHelpers;
 
-        Map<K, Set<JoinHelper<K, V>>> helpersByVariable = new HashMap<>();
-        for (JoinHelper<K, V> wrapper : allHelpers) {
-            for (K key : wrapper.getKeys()) {
-                Set<JoinHelper<K, V>> set = helpersByVariable.get(key);
-                if (null == set) {
-                    set = QueryContext.newConcurrentSet();
-                    helpersByVariable.put(key, set);
-                }
-                set.add(wrapper);
-            }
+        JoinPlan<K, V> plan = new JoinPlan<>(allHelpers, timeBase, solutionHandler);
+        int i = 0;
+        for (JoinHelper<K, V> helper : allHelpers) {
+            helper.initialize(plan, i++);
         }
+    }
 
-        // TODO: now construct the query plan. Use solutionHandler.
+    List<SharedJoin<K, V>> getSharedJoins() {
+        return sharedJoins;
+    }
 
-        for (JoinHelper<K, V> helper : allHelpers) {
-            helper.initialize(allHelpers, helpersByVariable, solutionHandler);
-        }
+    void setSharedJoins(List<SharedJoin<K, V>> sharedJoins) {
+        this.sharedJoins = sharedJoins;
     }
 
     private void checkValid() {
+        if (graphPattern.getPatterns().length > MAX_TUPLE_PATTERNS) {
+            throw new IllegalArgumentException("too many tuple patterns: " + graphPattern.getPatterns().length);
+        }
+
         int i = 0;
         for (TuplePattern<K, V> pattern : graphPattern.getPatterns()) {
             boolean hasVariables = false;
@@ -1,33 +1,475 @@
 package net.fortytwo.stream.shj;
 
-import java.util.Collections;
-import java.util.HashMap;
+import net.fortytwo.stream.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class QueryContext<K, V> {
 
-    private final ExpirationManager<Solution<V>> solutionExpirationManager;
+    private final ExpirationManager<ExpirationTicket> solutionExpirationManager;
     private final ExpirationManager<Query<K, V>> queryExpirationManager;
 
+    private volatile TimeBase timeBase;
+
+    private volatile ForkJoinPool dispatchPool;
+    private volatile int parallelDispatchThreshold;
+
+    private volatile boolean joinSharing;
+
+    private volatile boolean duplicateSuppression;
+
+    private final Lock evictionLock = new ReentrantLock();
+
+    // evictions over the overall budget go a little below it, so that the largest indices are not sought
+    // for every new solution
+    private static final int EVICTION_BATCH_FRACTION = 64;
+    private final Lock budgetLock = new ReentrantLock();
+    // the solution indices which may store solutions, among which the largest are chosen for eviction
+    private final Set<BasicSolutionIndex<V>> occupiedIndices = newConcurrentSet();
+
+    private volatile long maxSolutions = Long.MAX_VALUE;
+    private volatile int maxSolutionsPerIndex = Integer.MAX_VALUE;
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.EARLIEST_EXPIRING;
+    private volatile BiConsumer<BasicSolutionIndex<V>, Solution<V>> evictionListener;
+    // the query index's own listener, notified of evictions along with any user listener
+    private volatile BiConsumer<BasicSolutionIndex<V>, Solution<V>> indexEvictionListener;
+
+    // the number of solutions stored in all solution indices of this context, and the number evicted over budget
+    private final AtomicLong storedSolutions = new AtomicLong();
+    private final AtomicLong evictedSolutions = new AtomicLong();
+
+    // instruments of the engine, if metrics are enabled
+    private volatile EngineMetrics metrics;
+    // the number of solution indices with a live ticket in the solution expiration manager;
+    // any other tickets in the manager are tombstones
+    private final AtomicInteger liveTickets = new AtomicInteger();
+
+    // reusable frames of variable bindings for joins, shared by all queries, with a stack per thread for re-entrant
+    // joins. Frames grow to the largest number of variables of any query, so memory is independent of query count
+    private final ThreadLocal<ArrayDeque<Object[]>> joinFrames = ThreadLocal.withInitial(ArrayDeque::new);
+    // reusable cursors for the probes of joins, likewise with a stack per thread, one cursor per level of a join
+    private final ThreadLocal<ArrayDeque<SolutionCursor<V>>> cursors = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private BiFunction<QueryContext<K, V>, Integer, BasicSolutionIndex<V>> solutionIndexFactory = SolutionIndex::new;
+
+    /**
+     * Creates a new query context with a time base of {@link TimeBase#DEFAULT_TICK_DURATION} ticks,
+     * beginning at the current time of the solution expiration manager
+     *
+     * @param queryExpirationManager    the manager for the expiration of queries
+     * @param solutionExpirationManager the manager for the expiration of solutions
+     */
     public QueryContext(ExpirationManager<Query<K, V>> queryExpirationManager,
-                        ExpirationManager<Solution<V>> solutionExpirationManager) {
+                        ExpirationManager<ExpirationTicket> solutionExpirationManager) {
+        this(queryExpirationManager, solutionExpirationManager, new TimeBase(solutionExpirationManager.getNow(), TimeBase.DEFAULT_TICK_DURATION));
+    }
+
+    /**
+     * Creates a new query context
+     *
+     * @param queryExpirationManager    the manager for the expiration of queries
+     * @param solutionExpirationManager the manager for the expiration of solutions
+     * @param timeBase                  the time base for the expiration times of solutions and queries
+     */
+    public QueryContext(ExpirationManager<Query<K, V>> queryExpirationManager,
+                        ExpirationManager<ExpirationTicket> solutionExpirationManager,
+                        TimeBase timeBase) {
         this.queryExpirationManager = queryExpirationManager;
         this.solutionExpirationManager = solutionExpirationManager;
+        setTimeBase(timeBase);
     }
 
+    /**
+     * @return a new set which may be iterated over and modified concurrently by any number of threads
+     */
     public static <T> Set<T> newConcurrentSet() {
-        return Collections.newSetFromMap(new HashMap<>());
+        return ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Sets the factory for the solution indices of new tuple patterns.
+     * Indices which already exist are not affected, so this is normally done before any queries are added.
+     *
+     * @param solutionIndexFactory a function of this context and the cardinality of the new index.
+     *                             The default factory creates a hash-based {@link SolutionIndex}
+     */
+    public void setSolutionIndexFactory(
+            BiFunction<QueryContext<K, V>, Integer, BasicSolutionIndex<V>> solutionIndexFactory) {
+        this.solutionIndexFactory = solutionIndexFactory;
+    }
+
+    public TimeBase getTimeBase() {
+        return timeBase;
+    }
+
+    /**
+     * Sets the time base for the expiration times of solutions and queries.
+     * Solutions and queries already stored keep ticks of the old time base, so this must be done before any
+     * queries are added.
+     *
+     * @param timeBase the new time base
+     */
+    public void setTimeBase(TimeBase timeBase) {
+        if (null == timeBase) {
+            throw new IllegalArgumentException("null time base");
+        }
+
+        this.timeBase = timeBase;
+    }
+
+    /**
+     * Enables or disables the parallel dispatch of new solutions to the consumers of a solution index.
+     * By default, each new solution is pushed to the consumers of its index one after another,
+     * on the thread which added it. In parallel mode, once an index has at least the given number of consumers,
+     * its consumers are instead split across the tasks of a work-stealing pool,
+     * and the adding thread waits for all of them to finish.
+     * The consumers belonging to any one query are always called in sequence, within a single task.
+     *
+     * @param pool      the pool in which to dispatch solutions, or null for sequential dispatch only
+     * @param threshold the minimum number of consumers of an index for which solutions are dispatched in parallel
+     */
+    public void setParallelDispatch(ForkJoinPool pool, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("illegal parallel dispatch threshold: " + threshold);
+        }
+
+        this.parallelDispatchThreshold = threshold;
+        this.dispatchPool = pool;
+    }
+
+    /**
+     * @return the pool in which new solutions are dispatched in parallel, or null if dispatch is sequential
+     */
+    public ForkJoinPool getDispatchPool() {
+        return dispatchPool;
+    }
+
+    public int getParallelDispatchThreshold() {
+        return parallelDispatchThreshold;
+    }
+
+    /**
+     * Enables or disables the sharing of joins among queries.
+     * When enabled, the queries added to a query index cover pairs of connected tuple patterns
+     * with materialized joins, which are shared by all queries containing the same pair of patterns,
+     * up to variable renaming. Shared joins save computation when many queries overlap,
+     * at the cost of storing the joined solutions of each pair.
+     * Queries which have already been added are not affected.
+     *
+     * @param joinSharing whether to share joins among queries. Joins are not shared by default
+     */
+    public void setJoinSharing(boolean joinSharing) {
+        this.joinSharing = joinSharing;
+    }
+
+    public boolean isJoinSharing() {
+        return joinSharing;
+    }
+
+    /**
+     * Enables or disables the suppression of repeated tuples.
+     * When enabled, a query index remembers each tuple it stores until the tuple expires,
+     * or until any solutions are evicted over the solution budget, as the repeat of an evicted tuple is new input.
+     * A repeat of a tuple which is still stored is then skipped, unless it expires later than before,
+     * in which case it only extends the expiration times of the stored solutions, without re-running joins.
+     * Complete solutions which have already been produced are not produced again with later expiration times,
+     * and queries added later do not receive repeats of tuples which are still stored for earlier queries
+     * with the same tuple patterns.
+     *
+     * @param duplicateSuppression whether to suppress repeated tuples. Repeats are not suppressed by default
+     */
+    public void setDuplicateSuppression(boolean duplicateSuppression) {
+        this.duplicateSuppression = duplicateSuppression;
+    }
+
+    public boolean isDuplicateSuppression() {
+        return duplicateSuppression;
+    }
+
+    /**
+     * Bounds the number of solutions stored in the solution indices of this context, as a proxy for their memory.
+     * When a new solution takes an index over the per-index limit, the index evicts live solutions of its own,
+     * in the order of the eviction policy, until the limit is met again.
+     * When the overall limit is exceeded, solutions are evicted from the largest indices instead,
+     * until each is no larger than the next largest, and until the total is somewhat below the limit,
+     * so that the cost of a burst of input falls on the tuple patterns which receive it,
+     * rather than on whichever index receives the next solution.
+     * Each eviction is reported to the eviction listener, if any.
+     * The limits are enforced as solutions are added, and may be overshot briefly by concurrent additions.
+     * By default, the number of solutions is unbounded.
+     *
+     * @param maxSolutions         the maximum number of solutions in all indices together
+     * @param maxSolutionsPerIndex the maximum number of solutions in any one index
+     */
+    public void setSolutionBudget(long maxSolutions, int maxSolutionsPerIndex) {
+        if (maxSolutions < 1 || maxSolutionsPerIndex < 1) {
+            throw new IllegalArgumentException(
+                    "illegal solution budget: " + maxSolutions + " overall, " + maxSolutionsPerIndex + " per index");
+        }
+
+        this.maxSolutions = maxSolutions;
+        this.maxSolutionsPerIndex = maxSolutionsPerIndex;
+    }
+
+    public long getMaxSolutions() {
+        return maxSolutions;
+    }
+
+    public int getMaxSolutionsPerIndex() {
+        return maxSolutionsPerIndex;
+    }
+
+    /**
+     * Sets the order in which solutions are evicted over budget.
+     * Some policies require indices to keep additional information, so this must be done before any queries are
+     * added. The default is {@link EvictionPolicy#EARLIEST_EXPIRING}
+     *
+     * @param evictionPolicy the new eviction policy
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        if (null == evictionPolicy) {
+            throw new IllegalArgumentException("null eviction policy");
+        }
+
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Sets a listener for solutions evicted over budget. Solutions which merely expire are not reported
+     *
+     * @param evictionListener a function of the index and the solution it has evicted, or null for no listener
+     */
+    public void setEvictionListener(BiConsumer<BasicSolutionIndex<V>, Solution<V>> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * @return the number of solutions currently stored in the solution indices of this context,
+     * including any expired solutions which have not yet been evicted
+     */
+    public long getStoredSolutions() {
+        return storedSolutions.get();
+    }
+
+    /**
+     * @return the total number of solutions which have been evicted over budget
+     */
+    public long getEvictedSolutions() {
+        return evictedSolutions.get();
+    }
+
+    /**
+     * Enables metrics of the join engine: counts of input tuples, probes of solution indices, misses among them,
+     * and complete solutions; distributions of join fan-out and of the delay with which solutions are evicted after
+     * they expire; and gauges of stored and evicted solutions, and of the size and proportion of tombstones of
+     * the expiration queues. All names begin with "shj."
+     *
+     * @param registry the registry in which to keep metrics, or null to disable metrics.
+     *                 Metrics are disabled by default
+     */
+    public void setMetricsRegistry(MetricsRegistry registry) {
+        if (null == registry) {
+            metrics = null;
+            return;
+        }
+
+        String prefix = EngineMetrics.PREFIX;
+        registry.gauge(prefix + "storedSolutions", storedSolutions::get);
+        registry.gauge(prefix + "evictedSolutions", evictedSolutions::get);
+        registry.gauge(prefix + "solutionExpirationQueueSize", solutionExpirationManager::getHeapSize);
+        registry.gauge(prefix + "queryExpirationQueueSize", queryExpirationManager::getHeapSize);
+        registry.gauge(prefix + "expirationTombstoneRatio", () -> {
+            int size = solutionExpirationManager.getHeapSize();
+            return 0 == size ? 0 : Math.max(0, size - liveTickets.get()) / (double) size;
+        });
+
+        metrics = new EngineMetrics(registry);
+    }
+
+    /**
+     * @return the instruments of the join engine, or null if metrics are disabled
+     */
+    EngineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Takes a frame of variable bindings from the current thread's pool, for the duration of a join
+     *
+     * @param size the number of variables to be bound
+     * @return a frame of at least the given size, whose contents are arbitrary
+     */
+    Object[] acquireJoinFrame(int size) {
+        Object[] frame = joinFrames.get().pollFirst();
+        return null == frame || frame.length < size ? new Object[size] : frame;
+    }
+
+    /**
+     * Returns a frame to the current thread's pool once a join is done with it,
+     * clearing the bindings so that the pooled frame does not keep their values alive
+     *
+     * @param frame a frame previously acquired by this thread
+     * @param size  the number of variables which the join may have bound
+     */
+    void releaseJoinFrame(Object[] frame, int size) {
+        Arrays.fill(frame, 0, size, null);
+        joinFrames.get().addFirst(frame);
+    }
+
+    /**
+     * Takes a cursor from the current thread's pool, for the duration of a probe and the join which follows it
+     *
+     * @return an empty cursor
+     */
+    SolutionCursor<V> acquireCursor() {
+        SolutionCursor<V> cursor = cursors.get().pollFirst();
+        return null == cursor ? new SolutionCursor<>() : cursor;
+    }
+
+    /**
+     * Returns a cursor to the current thread's pool once a join is done with it
+     *
+     * @param cursor a cursor previously acquired by this thread
+     */
+    void releaseCursor(SolutionCursor<V> cursor) {
+        cursor.clear();
+        cursors.get().addFirst(cursor);
+    }
+
+    void ticketScheduled() {
+        liveTickets.incrementAndGet();
+    }
+
+    void ticketRetired() {
+        liveTickets.decrementAndGet();
+    }
+
+    void countStored(int delta) {
+        storedSolutions.addAndGet(delta);
+    }
+
+    boolean isOverBudget() {
+        return storedSolutions.get() > maxSolutions;
+    }
+
+    void indexOccupied(BasicSolutionIndex<V> index) {
+        occupiedIndices.add(index);
+    }
+
+    // evicts solutions from the largest indices until the total number of solutions is somewhat below the budget
+    void evictOverBudget() {
+        // note: if another thread is already evicting, there is no need for this thread to wait for it
+        if (!budgetLock.tryLock()) {
+            return;
+        }
+        try {
+            long target = maxSolutions - maxSolutions / EVICTION_BATCH_FRACTION;
+            EvictionPolicy policy = evictionPolicy;
+            while (storedSolutions.get() > target) {
+                BasicSolutionIndex<V> largest = null;
+                int largestCount = 0, nextCount = 0;
+                for (Iterator<BasicSolutionIndex<V>> iter = occupiedIndices.iterator(); iter.hasNext(); ) {
+                    BasicSolutionIndex<V> index = iter.next();
+                    int count = index.getStoredCount();
+                    if (0 == count) {
+                        // note: an index discarded by its query index has been cleared, and is forgotten here
+                        iter.remove();
+                        if (index.getStoredCount() > 0) {
+                            occupiedIndices.add(index);
+                        }
+                    } else if (count > largestCount) {
+                        nextCount = largestCount;
+                        largest = index;
+                        largestCount = count;
+                    } else if (count > nextCount) {
+                        nextCount = count;
+                    }
+                }
+                if (null == largest) {
+                    return;
+                }
+
+                // evict from the largest index until it is no longer the largest, or the budget is met
+                long toEvict = Math.min(storedSolutions.get() - target, largestCount - nextCount + 1);
+                for (long i = 0; i < toEvict; i++) {
+                    Solution<V> evicted = largest.evict(policy);
+                    if (null == evicted) {
+                        return;
+                    }
+                    solutionEvicted(largest, evicted);
+                }
+            }
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    /**
+     * Sets a listener for solutions evicted over budget, for the bookkeeping of the query index,
+     * independently of any listener set by {@link #setEvictionListener}
+     *
+     * @param listener a function of the index and the solution it has evicted, or null for no listener
+     */
+    void setIndexEvictionListener(BiConsumer<BasicSolutionIndex<V>, Solution<V>> listener) {
+        this.indexEvictionListener = listener;
+    }
+
+    void solutionEvicted(BasicSolutionIndex<V> index, Solution<V> solution) {
+        evictedSolutions.incrementAndGet();
+
+        BiConsumer<BasicSolutionIndex<V>, Solution<V>> indexListener = indexEvictionListener;
+        if (null != indexListener) {
+            indexListener.accept(index, solution);
+        }
+
+        BiConsumer<BasicSolutionIndex<V>, Solution<V>> listener = evictionListener;
+        if (null != listener) {
+            listener.accept(index, solution);
+        }
+    }
+
+    public BasicSolutionIndex<V> newSolutionIndex(int cardinality) {
+        return solutionIndexFactory.apply(this, cardinality);
+    }
+
+    /**
+     * @return the current time, in milliseconds, according to the clock of the solution expiration manager
+     */
+    public long getNow() {
+        return solutionExpirationManager.getNow();
     }
 
     public void evictExpired() {
-        queryExpirationManager.evictExpired();
-        solutionExpirationManager.evictExpired();
+        // note: if another thread is already evicting, there is no need for this thread to wait for it
+        if (evictionLock.tryLock()) {
+            try {
+                queryExpirationManager.evictExpired();
+                solutionExpirationManager.evictExpired();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
     }
 
-    public ExpirationManager<Solution<V>> getSolutionExpirationManager() {
+    public ExpirationManager<ExpirationTicket> getSolutionExpirationManager() {
         return solutionExpirationManager;
     }
 
@@ -38,5 +480,6 @@ public class QueryContext<K, V> {
     public void clear() {
         solutionExpirationManager.clear();
         queryExpirationManager.clear();
+        occupiedIndices.clear();
     }
 }
@@ -1,13 +1,18 @@
 package net.fortytwo.stream.shj;
 
+import net.fortytwo.stream.metrics.MetricsRegistry;
 import net.fortytwo.stream.model.VariableOrConstant;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -23,18 +28,48 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
 
     private QueryIndex<K, V>[] variableIndices;
     private Map<V, QueryIndex<K, V>> constantIndices;
-    private SolutionIndex<V> solutionIndex;
+    private BasicSolutionIndex<V> solutionIndex;
 
     private final Set<Query<K, V>> queries;
 
+    // joins of pairs of tuple patterns shared among queries, by the canonical form of the pair
+    private final Map<SharedJoin.Key, SharedJoin<K, V>> sharedJoins;
+
+    // recently stored tuples, for the suppression of repeats
+    private final DuplicateWindow<V> duplicates;
+    // the canonical form of the tuple pattern of each solution index, and the shared join of each join index,
+    // by which the tuples of evicted solutions are found and forgotten
+    private final Map<BasicSolutionIndex<V>, PatternKey> patternsByIndex;
+    private final Map<BasicSolutionIndex<V>, SharedJoin<K, V>> joinsByIndex;
+
+    // solutions restored from a checkpoint, by the canonical form of their tuple pattern,
+    // until the pattern is added again (see SolutionCheckpoint)
+    private final Map<PatternKey, List<Solution<V>>> stagedSolutions;
+
     private QueryIndex() {
         queryContext = null;
         queries = null;
+        sharedJoins = null;
+        duplicates = null;
+        patternsByIndex = null;
+        joinsByIndex = null;
+        stagedSolutions = null;
     }
 
     public QueryIndex(QueryContext<K, V> queryContext) {
         this.queryContext = queryContext;
         this.queries = new HashSet<>();
+        this.sharedJoins = new HashMap<>();
+        this.duplicates = new DuplicateWindow<>();
+        this.patternsByIndex = new ConcurrentHashMap<>();
+        this.joinsByIndex = new ConcurrentHashMap<>();
+        this.stagedSolutions = new HashMap<>();
+
+        queryContext.setIndexEvictionListener(this::solutionEvicted);
+    }
+
+    QueryContext<K, V> getQueryContext() {
+        return queryContext;
     }
 
     // note: we manually break up cyclical references for the benefit of the garbage collector
@@ -64,6 +99,23 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
             solutionIndex = null;
         }
 
+        if (null != sharedJoins) {
+            for (SharedJoin<K, V> join : sharedJoins.values()) {
+                join.clear();
+            }
+            sharedJoins.clear();
+        }
+
+        if (null != duplicates) {
+            duplicates.clear();
+            patternsByIndex.clear();
+            joinsByIndex.clear();
+        }
+
+        if (null != stagedSolutions) {
+            stagedSolutions.clear();
+        }
+
         if (null != queries) {
             queries.clear();
         }
@@ -90,13 +142,28 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
             // although the order plays no role in query evaluation.
             List<JoinHelper<K, V>> wrappers = new LinkedList<>();
 
-            GraphPattern<K, V> graphPattern = query.getGraphPattern();
-            for (TuplePattern<K, V> tuplePattern : graphPattern.getPatterns()) {
-                Map<K, Integer> indexByKey = new HashMap<>();
-                wrappers.add(addTuplePattern(tuplePattern, indexByKey, 0, queryContext));
+            TuplePattern<K, V>[] patterns = query.getGraphPattern().getPatterns();
+            boolean[] shared = new boolean[patterns.length];
+            if (queryContext.isJoinSharing()) {
+                addSharedJoins(query, patterns, shared, wrappers);
+            }
+
+            for (int i = 0; i < patterns.length; i++) {
+                if (!shared[i]) {
+                    TuplePattern<K, V> tuplePattern = patterns[i];
+                    Map<K, Integer> indexByKey = new HashMap<>();
+                    BasicSolutionIndex<V> index = addTuplePattern(tuplePattern, indexByKey);
+                    JoinHelper<K, V> helper = new JoinHelper<>(query, index, indexByKey);
+                    tuplePattern.setJoinHelper(helper);
+                    index.getConsumerIndex().add(helper);
+                    wrappers.add(helper);
+                }
             }
 
             query.setAllHelpers(wrappers);
+
+            // note: non-expiring queries have no effect on the manager
+            queryContext.getQueryExpirationManager().add(query);
             queryContext.getQueryExpirationManager().notifyFinishedAdding();
 
             success = true;
@@ -116,13 +183,36 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
             try {
                 boolean allRemoved = true;
                 for (TuplePattern<K, V> tuplePattern : query.getGraphPattern().getPatterns()) {
+                    JoinHelper<K, V> helper = tuplePattern.getJoinHelper();
+                    if (null == helper) {
+                        // the pattern is covered by a shared join
+                        continue;
+                    }
+
                     Map<K, Integer> indexByKey = new HashMap<>();
-                    if (!removeTuplePattern(tuplePattern, 0, indexByKey)) {
+                    if (!removeTuplePattern(tuplePattern, 0, indexByKey, helper)) {
                         logger.warning("failed to remove tuple pattern " + tuplePattern + " of query " + query);
                         allRemoved = false;
                         // even in case of failure, attempt to remove any remaining patterns
                     }
                 }
+
+                for (SharedJoin<K, V> join : query.getSharedJoins()) {
+                    if (join.removeHelpers(query) && sharedJoins.remove(join.getKey()) == join) {
+                        // the join is no longer used by any query
+                        for (SharedJoin<K, V>.Input input : new SharedJoin.Input[]{join.getLeft(), join.getRight()}) {
+                            if (!removeTuplePattern(input.getPattern(), 0, new HashMap<>(), input)) {
+                                allRemoved = false;
+                            }
+                        }
+                        joinsByIndex.remove(join.getSolutionIndex());
+                        join.clear();
+                    }
+                }
+
+                // forget the patterns of any solution indices which are no longer used
+                patternsByIndex.keySet().removeIf(index -> index.getConsumers().isEmpty());
+
                 success = allRemoved;
                 return success;
             } finally {
@@ -140,6 +230,69 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
         return null == solutionIndex && null == variableIndices && null == constantIndices;
     }
 
+    /**
+     * Enables metrics of this index and of its query context (see {@link QueryContext#setMetricsRegistry}),
+     * adding gauges of the number of queries, of nodes and of solution indices, of the solutions stored in the
+     * largest solution index, and of the consumers of the most widely shared solution index
+     *
+     * @param registry the registry in which to keep metrics, or null to disable metrics
+     */
+    public void setMetricsRegistry(MetricsRegistry registry) {
+        queryContext.setMetricsRegistry(registry);
+        if (null == registry) {
+            return;
+        }
+
+        String prefix = EngineMetrics.PREFIX;
+        registry.gauge(prefix + "queries", () -> {
+            synchronized (this) {
+                return queries.size();
+            }
+        });
+        registry.gauge(prefix + "solutionIndices", () -> {
+            AtomicInteger count = new AtomicInteger();
+            visitSolutionIndices((columns, constants, index) -> count.incrementAndGet());
+            return count.get();
+        });
+        registry.gauge(prefix + "largestSolutionIndex", () -> {
+            AtomicInteger max = new AtomicInteger();
+            visitSolutionIndices((columns, constants, index) -> max.accumulateAndGet(
+                    index.getStoredCount(), Math::max));
+            return max.get();
+        });
+        registry.gauge(prefix + "largestConsumerCount", () -> {
+            AtomicInteger max = new AtomicInteger();
+            visitSolutionIndices((columns, constants, index) -> max.accumulateAndGet(
+                    index.getConsumers().size(), Math::max));
+            return max.get();
+        });
+        registry.gauge(prefix + "nodes", this::getNodeCount);
+    }
+
+    /**
+     * @return the number of nodes of this index, including this one, as a measure of the size of the index
+     * independent of the solutions it holds
+     */
+    public synchronized int getNodeCount() {
+        int count = 1;
+
+        if (null != variableIndices) {
+            for (QueryIndex<K, V> index : variableIndices) {
+                if (null != index) {
+                    count += index.getNodeCount();
+                }
+            }
+        }
+
+        if (null != constantIndices) {
+            for (QueryIndex<K, V> index : constantIndices.values()) {
+                count += index.getNodeCount();
+            }
+        }
+
+        return count;
+    }
+
     /**
      * Note: the provided tuple is modified in the process of indexing
      * Note: thread-safe without synchronization; we only read from this index,
@@ -152,11 +305,19 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
     public boolean add(V[] tuple, long expirationTime) {
         evictExpired();
 
+        EngineMetrics metrics = queryContext.getMetrics();
+        if (null != metrics) {
+            metrics.inputs.increment();
+        }
+
         boolean success = false;
         try {
             V[] values = (V[]) new Object[tuple.length];
+            TimeBase timeBase = queryContext.getTimeBase();
+            long now = queryContext.getNow();
+            int expirationTick = timeBase.toExpirationTick(expirationTime, now);
 
-            boolean ret = addTuple(tuple, values, 0, 0, expirationTime);
+            boolean ret = addTuple(tuple, values, expirationTick, timeBase.toTick(now));
 
             if (ret) {
                 queryContext.getSolutionExpirationManager().notifyFinishedAdding();
@@ -171,6 +332,69 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
         }
     }
 
+    /**
+     * Adds a batch of tuples. This is equivalent to adding each tuple in turn,
+     * except that expired items are evicted, and the expiration manager notified, only once for the batch.
+     * Note: the provided tuples are modified in the process of indexing
+     *
+     * @param tuples          the tuples to index
+     * @param expirationTimes the expiration time of each tuple, in milliseconds since the Unix epoch
+     * @return whether each tuple was added to any solution index
+     */
+    public boolean[] addAll(V[][] tuples, long[] expirationTimes) {
+        if (tuples.length != expirationTimes.length) {
+            throw new IllegalArgumentException("expected one expiration time per tuple");
+        }
+
+        evictExpired();
+
+        EngineMetrics metrics = queryContext.getMetrics();
+        if (null != metrics) {
+            metrics.inputs.add(tuples.length);
+        }
+
+        boolean success = false;
+        try {
+            boolean[] added = new boolean[tuples.length];
+            boolean anyAdded = false;
+
+            TimeBase timeBase = queryContext.getTimeBase();
+            long now = queryContext.getNow();
+            int nowTick = timeBase.toTick(now);
+            // note: the values array is only scratch space, and is reused throughout the batch
+            V[] values = null;
+            long lastTime = 0;
+            int lastTick = 0;
+            for (int i = 0; i < tuples.length; i++) {
+                V[] tuple = tuples[i];
+                if (null == values || values.length < tuple.length) {
+                    values = (V[]) new Object[tuple.length];
+                }
+
+                // the tuples of a batch commonly share an expiration time
+                long expirationTime = expirationTimes[i];
+                if (0 == i || expirationTime != lastTime) {
+                    lastTime = expirationTime;
+                    lastTick = timeBase.toExpirationTick(expirationTime, now);
+                }
+
+                added[i] = addTuple(tuple, values, lastTick, nowTick);
+                anyAdded |= added[i];
+            }
+
+            if (anyAdded) {
+                queryContext.getSolutionExpirationManager().notifyFinishedAdding();
+            }
+
+            success = true;
+            return added;
+        } finally {
+            if (!success) {
+                logger.warning("tuples uncleanly added");
+            }
+        }
+    }
+
     /**
      * Removes all matching tuples from solution indices.
      *
@@ -180,6 +404,9 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
     public boolean remove(V[] tuple) {
         evictExpired();
 
+        // note: removed tuples may be added again, and must not then be mistaken for repeats
+        duplicates.forget(tuple);
+
         boolean success = false;
         try {
             V[] values = (V[]) new Object[tuple.length];
@@ -194,6 +421,58 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
         }
     }
 
+    // adds a tuple, unless it is a repeat of a tuple which is still stored
+    private boolean addTuple(V[] tuple, V[] values, int expirationTick, int nowTick) {
+        boolean suppress = queryContext.isDuplicateSuppression();
+        if (suppress) {
+            // note: the tuples of solutions evicted over budget are forgotten as they are evicted (see solutionEvicted)
+            int previousTick = duplicates.get(tuple, nowTick);
+            if (DuplicateWindow.NONE != previousTick && TimeBase.compare(previousTick, expirationTick) >= 0) {
+                // the repeat would neither add nor extend any solution
+                return false;
+            }
+        }
+
+        boolean stored = addTuple(tuple, values, 0, 0, expirationTick);
+
+        // note: a tuple which matched no tuple pattern is not remembered.
+        // Concurrent adds of the same new tuple may both be joined, which is harmless
+        if (suppress && stored) {
+            duplicates.record(tuple, expirationTick, nowTick);
+        }
+
+        return stored;
+    }
+
+    int getDuplicateWindowSize() {
+        return duplicates.size();
+    }
+
+    // forgets the tuples from which a solution evicted over budget derives, so that a repeat of any of them
+    // is stored again, rather than taken for a repeat of a tuple which is still stored
+    private void solutionEvicted(BasicSolutionIndex<V> index, Solution<V> solution) {
+        if (0 == duplicates.size()) {
+            return;
+        }
+
+        V[] values = solution.getValues();
+        PatternKey pattern = patternsByIndex.get(index);
+        if (null != pattern) {
+            duplicates.forget(pattern.toTuple(values));
+            return;
+        }
+
+        SharedJoin<K, V> join = joinsByIndex.get(index);
+        if (null != join) {
+            for (SharedJoin<K, V>.Input input : new SharedJoin.Input[]{join.getLeft(), join.getRight()}) {
+                PatternKey sourcePattern = patternsByIndex.get(input.getSource());
+                if (null != sourcePattern) {
+                    duplicates.forget(sourcePattern.toTuple(input.toSourceValues(values)));
+                }
+            }
+        }
+    }
+
     private void evictExpired() {
         QueryContext<K, V> queryContextSafe = queryContext;
         if (null != queryContextSafe) {
@@ -201,22 +480,191 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
         }
     }
 
+    // Covers pairs of connected tuple patterns of the query with shared joins,
+    // first reusing any existing joins, then creating new joins for any remaining pairs
+    private void addSharedJoins(Query<K, V> query,
+                                TuplePattern<K, V>[] patterns,
+                                boolean[] shared,
+                                List<JoinHelper<K, V>> wrappers) {
+        List<SharedJoin<K, V>> used = new LinkedList<>();
+
+        for (boolean create : new boolean[]{false, true}) {
+            for (int i = 0; i < patterns.length; i++) {
+                for (int j = i + 1; j < patterns.length && !shared[i]; j++) {
+                    if (shared[j]) {
+                        continue;
+                    }
+
+                    Map<K, Integer> columnByVariable = new HashMap<>();
+                    SharedJoin.Key key = SharedJoin.keyOf(patterns[i], patterns[j], columnByVariable);
+                    if (null == key) {
+                        // the patterns have no variable in common
+                        continue;
+                    }
+
+                    SharedJoin<K, V> join = sharedJoins.get(key);
+                    if (null == join) {
+                        // the pair may have been registered in the opposite order
+                        Map<K, Integer> reversedColumnByVariable = new HashMap<>();
+                        join = sharedJoins.get(
+                                SharedJoin.keyOf(patterns[j], patterns[i], reversedColumnByVariable));
+                        if (null != join) {
+                            columnByVariable = reversedColumnByVariable;
+                        } else if (create) {
+                            join = newSharedJoin(key, patterns[i], patterns[j], columnByVariable);
+                        } else {
+                            continue;
+                        }
+                    }
+
+                    wrappers.add(join.addHelper(query, columnByVariable));
+                    used.add(join);
+                    shared[i] = true;
+                    shared[j] = true;
+                }
+            }
+        }
+
+        query.setSharedJoins(used);
+    }
+
+    private SharedJoin<K, V> newSharedJoin(SharedJoin.Key key,
+                                           TuplePattern<K, V> left,
+                                           TuplePattern<K, V> right,
+                                           Map<K, Integer> columnByVariable) {
+        SharedJoin<K, V> join = new SharedJoin<>(key, queryContext.newSolutionIndex(columnByVariable.size()));
+
+        Map<K, Integer> leftByVariable = new HashMap<>();
+        BasicSolutionIndex<V> leftIndex = addTuplePattern(left, leftByVariable);
+        Map<K, Integer> rightByVariable = new HashMap<>();
+        BasicSolutionIndex<V> rightIndex = addTuplePattern(right, rightByVariable);
+        join.connect(left, leftIndex, leftByVariable, right, rightIndex, rightByVariable, columnByVariable);
+
+        sharedJoins.put(key, join);
+        joinsByIndex.put(join.getSolutionIndex(), join);
+        return join;
+    }
+
+    /**
+     * Holds solutions restored from a checkpoint until their tuple pattern is added again.
+     * When a query adds the pattern, and its solution index is new, the solutions are stored in the index
+     * before any consumer is subscribed, so that they are joined with future solutions
+     * without producing any complete solutions again
+     *
+     * @param columns   the canonical form of the pattern: for each element, the index of its variable
+     *                  in order of first appearance, or -1 for a constant
+     * @param constants the constant of each element of the pattern, or null for a variable
+     * @param solutions the solutions of the pattern
+     */
+    synchronized void stageSolutions(int[] columns, V[] constants, List<Solution<V>> solutions) {
+        stagedSolutions.put(new PatternKey(columns, constants), solutions);
+    }
+
+    /**
+     * Discards any staged solutions whose tuple patterns have not been added again
+     *
+     * @return the number of solutions discarded
+     */
+    synchronized int clearStagedSolutions() {
+        int count = 0;
+        for (List<Solution<V>> solutions : stagedSolutions.values()) {
+            count += solutions.size();
+        }
+        stagedSolutions.clear();
+        return count;
+    }
+
+    /**
+     * Visits the solution index of each tuple pattern in this query index,
+     * together with the canonical form of the pattern (see {@link #stageSolutions})
+     *
+     * @param visitor a visitor for each solution index
+     */
+    synchronized void visitSolutionIndices(SolutionIndexVisitor<V> visitor) {
+        visitSolutionIndices(new int[0], (V[]) new Object[0], 0, visitor);
+    }
+
+    /**
+     * A visitor for the solution indices of a query index
+     *
+     * @param <V> the value type
+     */
+    interface SolutionIndexVisitor<V> {
+        void visit(int[] columns, V[] constants, BasicSolutionIndex<V> index);
+    }
+
+    // note: reverses the offsets of addTuplePattern, whereby a variable is either new, or refers back to
+    // the index of its first appearance
+    private void visitSolutionIndices(int[] columns, V[] constants, int variables, SolutionIndexVisitor<V> visitor) {
+        int depth = columns.length;
+
+        if (null != solutionIndex) {
+            visitor.visit(columns, constants, solutionIndex);
+        }
+
+        QueryIndex<K, V>[] variableIndicesSafe = variableIndices;
+        if (null != variableIndicesSafe) {
+            for (int offset = 0; offset < variableIndicesSafe.length; offset++) {
+                QueryIndex<K, V> index = variableIndicesSafe[offset];
+                if (null != index) {
+                    int[] c = Arrays.copyOf(columns, depth + 1);
+                    c[depth] = 0 == offset ? variables : depth - offset;
+                    index.visitSolutionIndices(c, Arrays.copyOf(constants, depth + 1),
+                            0 == offset ? variables + 1 : variables, visitor);
+                }
+            }
+        }
+
+        Map<V, QueryIndex<K, V>> constantIndicesSafe = constantIndices;
+        if (null != constantIndicesSafe) {
+            for (Map.Entry<V, QueryIndex<K, V>> e : constantIndicesSafe.entrySet()) {
+                int[] c = Arrays.copyOf(columns, depth + 1);
+                c[depth] = -1;
+                V[] k = Arrays.copyOf(constants, depth + 1);
+                k[depth] = e.getKey();
+                e.getValue().visitSolutionIndices(c, k, variables, visitor);
+            }
+        }
+    }
+
+    // adds a tuple pattern to this (root) index, storing any solutions staged for it in a new solution index
+    private BasicSolutionIndex<V> addTuplePattern(TuplePattern<K, V> tuplePattern, Map<K, Integer> indexByKey) {
+        BasicSolutionIndex<V> index = addTuplePattern(tuplePattern, indexByKey, 0, queryContext);
+        PatternKey key = PatternKey.of(tuplePattern, indexByKey);
+
+        if (null == patternsByIndex.putIfAbsent(index, key)) {
+            // the new index has not seen any previous tuples, so repeats must not be skipped
+            duplicates.invalidate();
+        }
+
+        if (!stagedSolutions.isEmpty()) {
+            List<Solution<V>> staged = stagedSolutions.remove(key);
+            // note: an index which already has consumers already has solutions of its own
+            if (null != staged && index.getConsumers().isEmpty()) {
+                for (Solution<V> solution : staged) {
+                    index.add(solution);
+                }
+                queryContext.getSolutionExpirationManager().notifyFinishedAdding();
+            }
+        }
+
+        return index;
+    }
+
     // There is one solution index per tuple pattern, ignoring variable names
     // For simplicity, we block entirely on writing so as to avoid race conditions.
     // Addition of tuple patterns is expected to be infrequent, so multi-threading is unimportant.
-    private synchronized JoinHelper<K, V> addTuplePattern(TuplePattern<K, V> tuplePattern,
-                                                                Map<K, Integer> indexByKey,
-                                                                int depth,
-                                                                QueryContext<K, V> queryContext) {
+    // note: the caller is expected to subscribe a consumer to the index
+    private synchronized BasicSolutionIndex<V> addTuplePattern(TuplePattern<K, V> tuplePattern,
+                                                               Map<K, Integer> indexByKey,
+                                                               int depth,
+                                                               QueryContext<K, V> queryContext) {
         if (depth == tuplePattern.getLength()) {
             if (null == solutionIndex) {
-                solutionIndex = new SolutionIndex<>(queryContext, indexByKey.size());
+                solutionIndex = queryContext.newSolutionIndex(indexByKey.size());
             }
 
-            JoinHelper<K, V> helper = new JoinHelper<>(solutionIndex, indexByKey);
-            tuplePattern.setJoinHelper(helper);
-            solutionIndex.getConsumerIndex().add(helper);
-            return helper;
+            return solutionIndex;
         } else {
             VariableOrConstant<K, V> el = tuplePattern.getPattern()[depth];
             QueryIndex<K, V> queryIndex;
@@ -259,7 +707,10 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
         }
     }
 
-    private boolean removeTuplePattern(TuplePattern<K, V> tuplePattern, int depth, Map<K, Integer> indexByKey) {
+    private boolean removeTuplePattern(TuplePattern<K, V> tuplePattern,
+                                       int depth,
+                                       Map<K, Integer> indexByKey,
+                                       Consumer<Solution<V>> consumer) {
         boolean removed;
 
         if (depth == tuplePattern.getLength()) {
@@ -267,11 +718,13 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
                 throw new IllegalStateException();
             }
 
-            if (!solutionIndex.getConsumerIndex().remove(tuplePattern.getJoinHelper())) {
+            if (!solutionIndex.getConsumerIndex().remove(consumer)) {
                 throw new IllegalStateException();
             }
 
             if (solutionIndex.getConsumerIndex().isEmpty()) {
+                // note: releases the index's solutions from the solution budget
+                solutionIndex.clear();
                 solutionIndex = null;
             }
 
@@ -298,7 +751,7 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
                     throw new IllegalStateException();
                 }
 
-                removed = index.removeTuplePattern(tuplePattern, depth + 1, indexByKey);
+                removed = index.removeTuplePattern(tuplePattern, depth + 1, indexByKey, consumer);
 
                 if (removed) {
                     if (index.isEmpty()) {
@@ -323,7 +776,7 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
                     throw new IllegalStateException();
                 }
 
-                removed = index.removeTuplePattern(tuplePattern, depth + 1, indexByKey);
+                removed = index.removeTuplePattern(tuplePattern, depth + 1, indexByKey, consumer);
                 if (removed) {
                     if (index.isEmpty()) {
                         constantIndices.remove(constant);
@@ -339,18 +792,18 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
     }
 
     // non-blocking, although individual solution indices may block on writing
-    private boolean addTuple(V[] tuple, V[] values, int tupleDepth, int variableDepth, long expirationTime) {
+    private boolean addTuple(V[] tuple, V[] values, int tupleDepth, int variableDepth, int expirationTick) {
         boolean added = false;
 
         // Note: it is possible for a shorter tuple pattern to match a longer tuple;
         // the rest of the tuple is ignored in this case, matched by default.
-        SolutionIndex<V> solutionIndexSafe = solutionIndex;
+        BasicSolutionIndex<V> solutionIndexSafe = solutionIndex;
         if (null != solutionIndexSafe) {
             int card = solutionIndexSafe.getCardinality();
             V[] valuesCopy = (V[]) new Object[card];
             System.arraycopy(values, 0, valuesCopy, 0, card);
 
-            Solution<V> solution = new Solution<>(valuesCopy, expirationTime, solutionIndexSafe);
+            Solution<V> solution = new Solution<>(valuesCopy, expirationTick);
             // there is a solution index at every leaf node
             solutionIndexSafe.add(solution);
             added = true;
@@ -371,11 +824,11 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
                             if (!value.equals(tuple[tupleDepth - offset])) continue;
 
                             added |= queryIndex.addTuple(
-                                    tuple, values, tupleDepth + 1, variableDepth, expirationTime);
+                                    tuple, values, tupleDepth + 1, variableDepth, expirationTick);
                         } else {
                             values[variableDepth] = value;
                             added |= queryIndex.addTuple(
-                                    tuple, values, tupleDepth + 1, variableDepth + 1, expirationTime);
+                                    tuple, values, tupleDepth + 1, variableDepth + 1, expirationTick);
                         }
                     }
                 }
@@ -385,7 +838,7 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
             if (null != constantIndicesSafe) {
                 QueryIndex<K, V> index = constantIndicesSafe.get(value);
                 if (null != index) {
-                    added |= index.addTuple(tuple, values, tupleDepth + 1, variableDepth, expirationTime);
+                    added |= index.addTuple(tuple, values, tupleDepth + 1, variableDepth, expirationTick);
                 }
             }
         }
@@ -396,9 +849,18 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
     private boolean removeTuple(V[] tuple, V[] values, int tupleDepth, int variableDepth) {
         boolean removed = false;
 
-        SolutionIndex<V> solutionIndexSafe = solutionIndex;
+        BasicSolutionIndex<V> solutionIndexSafe = solutionIndex;
         if (null != solutionIndexSafe) {
             removed = solutionIndexSafe.removePattern(values);
+
+            if (removed) {
+                // solutions of shared joins are removed along with the solutions from which they were derived
+                for (Consumer<Solution<V>> consumer : solutionIndexSafe.getConsumers()) {
+                    if (consumer instanceof SharedJoin.Input) {
+                        ((SharedJoin<K, V>.Input) consumer).removePattern(values);
+                    }
+                }
+            }
         }
 
         if (tupleDepth != tuple.length) {
@@ -440,4 +902,57 @@ public class QueryIndex<K, V> implements Index<Query<K, V>> {
 
         return removed;
     }
-}
\ No newline at end of file
+
+    /**
+     * The canonical form of a tuple pattern, up to variable renaming
+     */
+    private static class PatternKey {
+        private final int[] columns;
+        private final Object[] constants;
+
+        private PatternKey(int[] columns, Object[] constants) {
+            this.columns = columns;
+            this.constants = constants;
+        }
+
+        private static <K, V> PatternKey of(TuplePattern<K, V> tuplePattern, Map<K, Integer> indexByKey) {
+            VariableOrConstant<K, V>[] pattern = tuplePattern.getPattern();
+            int[] columns = new int[pattern.length];
+            Object[] constants = new Object[pattern.length];
+            for (int i = 0; i < pattern.length; i++) {
+                K variable = pattern[i].getVariable();
+                if (null == variable) {
+                    columns[i] = -1;
+                    constants[i] = pattern[i].getConstant();
+                } else {
+                    columns[i] = indexByKey.get(variable);
+                }
+            }
+            return new PatternKey(columns, constants);
+        }
+
+        /**
+         * @param values the values of a solution of the pattern
+         * @return the tuple which the solution matched, or its prefix, if the tuple was longer than the pattern
+         */
+        private <V> V[] toTuple(V[] values) {
+            V[] tuple = (V[]) new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                tuple[i] = columns[i] < 0 ? (V) constants[i] : values[columns[i]];
+            }
+            return tuple;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PatternKey
+                    && Arrays.equals(columns, ((PatternKey) other).columns)
+                    && Arrays.equals(constants, ((PatternKey) other).constants);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(columns) + Arrays.hashCode(constants);
+        }
+    }
+}
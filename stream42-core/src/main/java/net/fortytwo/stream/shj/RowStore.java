@@ -0,0 +1,59 @@
+package net.fortytwo.stream.shj;
+
+/**
+ * The row storage of a {@link LongSolutionIndex}.
+ * Each row holds, for each variable, an id-encoded value and the links of the row in that value's posting list,
+ * together with an expiration tick and a position in the index's expiration heap
+ * (or, for a free row, the next free row).
+ * Rows are addressed by number, from 0 up to the capacity of the store.
+ * <p>
+ * A store is not thread-safe; the index guards it with its own lock.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+abstract class RowStore {
+
+    static final int INITIAL_ROWS = 16;
+
+    // the number of variables of each row
+    protected final int cardinality;
+
+    protected RowStore(int cardinality) {
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * @return the number of rows which the store can hold without growing
+     */
+    abstract int getCapacity();
+
+    /**
+     * Increases the capacity of the store, preserving all rows
+     */
+    abstract void grow();
+
+    /**
+     * Discards all rows, returning the store to its initial capacity
+     */
+    abstract void reset();
+
+    abstract long getValue(int row, int index);
+
+    abstract void setValue(int row, int index, long value);
+
+    abstract int getNext(int row, int index);
+
+    abstract void setNext(int row, int index, int next);
+
+    abstract int getPrev(int row, int index);
+
+    abstract void setPrev(int row, int index, int prev);
+
+    abstract int getExpirationTick(int row);
+
+    abstract void setExpirationTick(int row, int expirationTick);
+
+    abstract int getHeapPosition(int row);
+
+    abstract void setHeapPosition(int row, int position);
+}
@@ -0,0 +1,333 @@
+package net.fortytwo.stream.shj;
+
+import net.fortytwo.stream.model.VariableOrConstant;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A materialized join of two connected tuple patterns, shared by all queries which contain the same pair of
+ * patterns, up to variable renaming (compare the beta memories of a Rete network).
+ * The join subscribes to the solution indices of both patterns, joins each new solution of either pattern
+ * with the stored solutions of the other, and stores the results in a solution index of its own.
+ * Each query containing the pair then joins against that index through a single join helper, in place of two,
+ * so that the join of the pair is computed once rather than once per query.
+ * <p>
+ * Each variable of the pair is assigned a column of the join's solutions, in order of first appearance.
+ *
+ * @param <K> the key type, e.g. String
+ * @param <V> the value type, e.g. an RDF value class
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class SharedJoin<K, V> {
+
+    private final Key key;
+    private final BasicSolutionIndex<V> solutionIndex;
+
+    private Input left;
+    private Input right;
+
+    // the join helpers of the queries using this join. The join is released when there are none left
+    private final List<JoinHelper<K, V>> helpers = new LinkedList<>();
+
+    SharedJoin(Key key, BasicSolutionIndex<V> solutionIndex) {
+        this.key = key;
+        this.solutionIndex = solutionIndex;
+    }
+
+    /**
+     * Finds the canonical form of a pair of tuple patterns, in which variables are numbered in order of
+     * first appearance. Pairs with the same canonical form have the same solutions, up to variable renaming
+     *
+     * @param first            the first tuple pattern
+     * @param second           the second tuple pattern
+     * @param columnByVariable a map to be filled with the column of each variable of the pair
+     * @return the canonical form of the pair, or null if the patterns have no variable in common
+     */
+    static <K, V> Key keyOf(TuplePattern<K, V> first,
+                            TuplePattern<K, V> second,
+                            Map<K, Integer> columnByVariable) {
+        int length = first.getLength() + second.getLength();
+        int[] columns = new int[length];
+        Object[] constants = new Object[length];
+        boolean connected = false;
+
+        int i = 0;
+        int firstVariables = 0;
+        for (TuplePattern<K, V> pattern : new TuplePattern[]{first, second}) {
+            for (VariableOrConstant<K, V> vc : pattern.getPattern()) {
+                K variable = vc.getVariable();
+                if (null == variable) {
+                    columns[i] = -1;
+                    constants[i] = vc.getConstant();
+                } else {
+                    Integer column = columnByVariable.get(variable);
+                    if (null == column) {
+                        column = columnByVariable.size();
+                        columnByVariable.put(variable, column);
+                    } else if (column < firstVariables) {
+                        // a variable of the first pattern reappears in the second
+                        connected = true;
+                    }
+                    columns[i] = column;
+                }
+                i++;
+            }
+            if (0 == firstVariables) {
+                firstVariables = columnByVariable.size();
+            }
+        }
+
+        return connected ? new Key(first.getLength(), columns, constants) : null;
+    }
+
+    Key getKey() {
+        return key;
+    }
+
+    BasicSolutionIndex<V> getSolutionIndex() {
+        return solutionIndex;
+    }
+
+    Input getLeft() {
+        return left;
+    }
+
+    Input getRight() {
+        return right;
+    }
+
+    /**
+     * Subscribes this join to the solution indices of its two tuple patterns,
+     * and joins any solutions which those indices already contain
+     *
+     * @param leftPattern      the first tuple pattern of the pair
+     * @param leftIndex        the solution index of the first pattern
+     * @param leftByVariable   the column of each variable in the solutions of the first pattern
+     * @param rightPattern     the second tuple pattern of the pair
+     * @param rightIndex       the solution index of the second pattern
+     * @param rightByVariable  the column of each variable in the solutions of the second pattern
+     * @param columnByVariable the column of each variable in the solutions of this join
+     */
+    void connect(TuplePattern<K, V> leftPattern,
+                 BasicSolutionIndex<V> leftIndex,
+                 Map<K, Integer> leftByVariable,
+                 TuplePattern<K, V> rightPattern,
+                 BasicSolutionIndex<V> rightIndex,
+                 Map<K, Integer> rightByVariable,
+                 Map<K, Integer> columnByVariable) {
+        left = new Input(leftPattern, leftIndex, toColumns(leftByVariable, columnByVariable));
+        right = new Input(rightPattern, rightIndex, toColumns(rightByVariable, columnByVariable));
+        left.link(right);
+        right.link(left);
+
+        leftIndex.getConsumerIndex().add(left);
+        rightIndex.getConsumerIndex().add(right);
+
+        // note: solutions added concurrently may be joined twice, which the index of this join tolerates
+        for (Solution<V> solution : leftIndex.getSolutions()) {
+            left.accept(solution);
+        }
+    }
+
+    /**
+     * Subscribes a query to this join
+     *
+     * @param query            the query
+     * @param columnByVariable the column of each of the query's variables in the solutions of this join
+     * @return a new join helper for the query
+     */
+    JoinHelper<K, V> addHelper(Query<K, V> query, Map<K, Integer> columnByVariable) {
+        JoinHelper<K, V> helper = new JoinHelper<>(query, solutionIndex, columnByVariable);
+        helpers.add(helper);
+        solutionIndex.getConsumerIndex().add(helper);
+        return helper;
+    }
+
+    /**
+     * Unsubscribes all join helpers of a query from this join
+     *
+     * @param query the query
+     * @return whether the join is no longer used by any query
+     */
+    boolean removeHelpers(Query<K, V> query) {
+        Iterator<JoinHelper<K, V>> iter = helpers.iterator();
+        while (iter.hasNext()) {
+            JoinHelper<K, V> helper = iter.next();
+            if (helper.getQuery() == query) {
+                solutionIndex.getConsumerIndex().remove(helper);
+                iter.remove();
+            }
+        }
+
+        return helpers.isEmpty();
+    }
+
+    void clear() {
+        helpers.clear();
+        solutionIndex.clear();
+    }
+
+    private static <K> int[] toColumns(Map<K, Integer> byVariable, Map<K, Integer> columnByVariable) {
+        int[] columns = new int[byVariable.size()];
+        for (Map.Entry<K, Integer> e : byVariable.entrySet()) {
+            columns[e.getValue()] = columnByVariable.get(e.getKey());
+        }
+        return columns;
+    }
+
+    /**
+     * A subscription of the join to the solution index of one of its tuple patterns
+     */
+    class Input implements Consumer<Solution<V>> {
+        private final TuplePattern<K, V> pattern;
+        private final BasicSolutionIndex<V> source;
+        // for each column of the source's solutions, the corresponding column of the join's solutions
+        private final int[] columns;
+
+        private Input other;
+        // columns of this input's and the other input's solutions which bind the same variable.
+        // The first pair is the probe key; any others are checked for compatibility
+        private int[] sharedColumns;
+        private int[] otherSharedColumns;
+        // the shared columns other than the probe key, of the other input's and of this input's solutions
+        private int[] checkColumns;
+        private int[] checkSlots;
+
+        private Input(TuplePattern<K, V> pattern, BasicSolutionIndex<V> source, int[] columns) {
+            this.pattern = pattern;
+            this.source = source;
+            this.columns = columns;
+        }
+
+        TuplePattern<K, V> getPattern() {
+            return pattern;
+        }
+
+        BasicSolutionIndex<V> getSource() {
+            return source;
+        }
+
+        /**
+         * @param joined the values of a solution of the join
+         * @return the values of the solution of this input's tuple pattern from which the joined solution derives
+         */
+        V[] toSourceValues(V[] joined) {
+            V[] values = (V[]) new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = joined[columns[i]];
+            }
+            return values;
+        }
+
+        private void link(Input other) {
+            this.other = other;
+
+            List<int[]> shared = new LinkedList<>();
+            for (int i = 0; i < columns.length; i++) {
+                for (int j = 0; j < other.columns.length; j++) {
+                    if (columns[i] == other.columns[j]) {
+                        shared.add(new int[]{i, j});
+                    }
+                }
+            }
+
+            sharedColumns = new int[shared.size()];
+            otherSharedColumns = new int[shared.size()];
+            int k = 0;
+            for (int[] pair : shared) {
+                sharedColumns[k] = pair[0];
+                otherSharedColumns[k++] = pair[1];
+            }
+            checkColumns = Arrays.copyOfRange(otherSharedColumns, 1, otherSharedColumns.length);
+            checkSlots = Arrays.copyOfRange(sharedColumns, 1, sharedColumns.length);
+        }
+
+        @Override
+        public void accept(Solution<V> solution) {
+            V[] values = solution.getValues();
+            if (null == values) {
+                // the solution has expired in the meantime
+                return;
+            }
+
+            // note: the probe copies only compatible candidates into a pooled cursor,
+            // so that memory is allocated only for the joined solutions which are stored
+            QueryContext<?, V> queryContext = solutionIndex.queryContext;
+            SolutionCursor<V> candidates = queryContext.acquireCursor();
+            try {
+                other.source.probe(otherSharedColumns[0], values[sharedColumns[0]],
+                        checkColumns, checkSlots, values, candidates);
+
+                while (candidates.next()) {
+                    V[] joined = (V[]) new Object[solutionIndex.getCardinality()];
+                    for (int i = 0; i < columns.length; i++) {
+                        joined[columns[i]] = values[i];
+                    }
+                    for (int i = 0; i < other.columns.length; i++) {
+                        joined[other.columns[i]] = candidates.getValue(i);
+                    }
+
+                    solutionIndex.add(new Solution<>(joined,
+                            TimeBase.min(solution.getExpirationTick(), candidates.getExpirationTick())));
+                }
+            } finally {
+                queryContext.releaseCursor(candidates);
+            }
+        }
+
+        /**
+         * Removes all joined solutions derived from solutions of this input's tuple pattern which match a pattern
+         *
+         * @param sourcePattern a pattern, in the columns of the source index, in which any element may be null,
+         *                      representing a wildcard
+         */
+        void removePattern(V[] sourcePattern) {
+            V[] joinedPattern = (V[]) new Object[solutionIndex.getCardinality()];
+            for (int i = 0; i < columns.length; i++) {
+                joinedPattern[columns[i]] = sourcePattern[i];
+            }
+
+            solutionIndex.removePattern(joinedPattern);
+        }
+    }
+
+    /**
+     * The canonical form of a pair of tuple patterns
+     */
+    static class Key {
+        private final int firstLength;
+        // the column of the variable at each position, or -1 for a constant
+        private final int[] columns;
+        private final Object[] constants;
+        private final int hashCode;
+
+        private Key(int firstLength, int[] columns, Object[] constants) {
+            this.firstLength = firstLength;
+            this.columns = columns;
+            this.constants = constants;
+            hashCode = 31 * (31 * firstLength + Arrays.hashCode(columns)) + Arrays.hashCode(constants);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key otherKey = (Key) other;
+            return firstLength == otherKey.firstLength
+                    && Arrays.equals(columns, otherKey.columns)
+                    && Arrays.equals(constants, otherKey.constants);
+        }
+    }
+}
@@ -1,64 +1,69 @@
 package net.fortytwo.stream.shj;
 
-import net.fortytwo.stream.StreamProcessor;
-
 import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * A partial solution of a tuple pattern: the values bound to the pattern's variables, and an expiration time.
+ * Solutions do not refer to the index which holds them; each solution index keeps track of the expiration
+ * of its own solutions (see {@link BasicSolutionIndex}).
+ *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
-public class Solution<V> implements Expirable {
+public class Solution<V> {
     private static final Logger logger = Logger.getLogger(Solution.class.getName());
 
     private V[] values;
-    private Integer hashCode;
-
-    // TODO: consider using a heap of heaps (one per solution index) in the expiration manager in order to
-    // avoid this extra space taken up by each solution
-    private final Index<Solution<V>> expirationIndex;
+    // note: computed lazily; 0 until computed
+    private int hashCode;
 
-    // TODO: consider using int to save space, and chunk timestamps accordingly
-    private final long expirationTime;
+    // note: a compact, 32-bit expiration time, relative to the time base of the query context
+    private final int expirationTick;
 
-    public Solution(V[] values, long expirationTime, Index<Solution<V>> expirationIndex) {
+    /**
+     * @param values         the values of the solution
+     * @param expirationTick the expiration time of the solution, in ticks of a {@link TimeBase},
+     *                       or {@link TimeBase#NEVER_EXPIRE}
+     */
+    public Solution(V[] values, int expirationTick) {
         this.values = values;
-        this.expirationTime = expirationTime;
-        this.expirationIndex = expirationIndex;
+        this.expirationTick = expirationTick;
     }
 
-    public Solution(V[] values, Index<Solution<V>> expirationIndex) {
-        this(values, StreamProcessor.NEVER_EXPIRE, expirationIndex);
+    public Solution(V[] values) {
+        this(values, TimeBase.NEVER_EXPIRE);
     }
 
     public V[] getValues() {
         return values;
     }
 
-    @Override
-    public long getExpirationTime() {
-        return expirationTime;
+    /**
+     * @return the expiration time of this solution, in ticks of a {@link TimeBase},
+     * or {@link TimeBase#NEVER_EXPIRE}
+     */
+    public int getExpirationTick() {
+        return expirationTick;
     }
 
-    @Override
+    /**
+     * Turns this solution into a "tombstone" which must no longer be used, e.g. after it has been removed
+     * from its index. Any joins in progress skip tombstones
+     */
     public void expire() {
-        expirationIndex.remove(this);
-
         values = null;
-        hashCode = null;
     }
 
-    @Override
+    /**
+     * @return whether this solution is a tombstone
+     */
     public boolean isExpired() {
         return null == values;
     }
 
     public int compareByExpirationTime(Solution<V> other) {
-        return expirationTime == StreamProcessor.NEVER_EXPIRE
-                ? (other.expirationTime == StreamProcessor.NEVER_EXPIRE ? 0 : 1)
-                : (other.expirationTime == StreamProcessor.NEVER_EXPIRE
-                ? -1 : ((Long) expirationTime).compareTo(other.expirationTime));
+        return TimeBase.compare(expirationTick, other.expirationTick);
     }
 
     /*
@@ -101,10 +106,13 @@ public class Solution<V> implements Expirable {
 
     @Override
     public int hashCode() {
-        if (null == hashCode) {
-            hashCode = Arrays.hashCode(values);
+        int h = hashCode;
+        // note: a tombstone keeps its hash code, if already computed, so that it may still be found in a hash table
+        if (0 == h && null != values) {
+            h = Arrays.hashCode(values);
+            hashCode = h;
         }
-        return hashCode;
+        return h;
     }
 
     @Override
@@ -114,7 +122,9 @@ public class Solution<V> implements Expirable {
     }
 
     private static <V> boolean equals(Solution<V> s1, Solution<V> s2) {
-        if (s1.hashCode() != s2.hashCode() || s1.values.length != s2.values.length) {
+        V[] v1 = s1.values, v2 = s2.values;
+        // note: a tombstone is equal only to itself
+        if (null == v1 || null == v2 || s1.hashCode() != s2.hashCode() || v1.length != v2.length) {
             return false;
         }
 
@@ -123,8 +133,8 @@ public class Solution<V> implements Expirable {
             logger.fine("solution equality or hash collision. Performing (expensive) element-wise comparison");
         }
 
-        for (int i = 0; i < s1.values.length; i++) {
-            if (!s2.values[i].equals(s1.values[i])) {
+        for (int i = 0; i < v1.length; i++) {
+            if (!v2[i].equals(v1[i])) {
                 return false;
             }
         }
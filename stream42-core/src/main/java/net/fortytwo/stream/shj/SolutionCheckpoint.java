@@ -0,0 +1,282 @@
+package net.fortytwo.stream.shj;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A compact binary checkpoint of the partial solutions of a query index, so that a restarted processor
+ * need not wait for its stored data to be sent again.
+ * A checkpoint holds the canonical form of each tuple pattern in the index (see {@link QueryIndex}),
+ * followed by the pattern's unexpired solutions. Each distinct value is written once, and later referred to by
+ * number, and expiration times are written relative to the time of the checkpoint.
+ * <p>
+ * Queries themselves are not written, as their solution handlers are application code.
+ * Instead, a checkpoint is restored in three steps: its solutions are read and staged in an empty query index,
+ * the application registers its queries again, and the staged solutions of each newly added tuple pattern are
+ * stored in its new solution index. Restored solutions are joined with new solutions as usual,
+ * but do not produce complete solutions of their own a second time.
+ * Expiration times are re-anchored to the clock and time base of the restoring query context,
+ * so that solutions expire at the same time as they would have without the restart.
+ * Solutions which have expired in the meantime are discarded.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SolutionCheckpoint {
+    private static final Logger logger = Logger.getLogger(SolutionCheckpoint.class.getName());
+
+    // "SHJC"
+    private static final int MAGIC = 0x53484a43;
+    private static final int VERSION = 1;
+
+    /**
+     * A serializer for values
+     *
+     * @param <V> the value type
+     */
+    public interface ValueWriter<V> {
+        void write(V value, DataOutput out) throws IOException;
+    }
+
+    /**
+     * A deserializer for values
+     *
+     * @param <V> the value type
+     */
+    public interface ValueReader<V> {
+        V read(DataInput in) throws IOException;
+    }
+
+    private SolutionCheckpoint() {
+    }
+
+    /**
+     * Writes a checkpoint of the unexpired solutions of a query index.
+     * Solutions added concurrently may or may not be included
+     *
+     * @param queryIndex  the query index to write
+     * @param out         the output to which the checkpoint is written
+     * @param valueWriter a serializer for values
+     * @param <V>         the value type
+     * @return the number of solutions written
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public static <V> long write(QueryIndex<?, V> queryIndex,
+                                 DataOutput out,
+                                 ValueWriter<V> valueWriter) throws IOException {
+        QueryContext<?, V> context = queryIndex.getQueryContext();
+        long now = context.getNow();
+        TimeBase timeBase = context.getTimeBase();
+        int nowTick = timeBase.toTick(now);
+
+        // note: the solutions are gathered first, so as not to block the query index on output
+        List<PatternSolutions<V>> patterns = new ArrayList<>();
+        queryIndex.visitSolutionIndices((columns, constants, index) -> {
+            List<Solution<V>> solutions = new ArrayList<>();
+            for (Solution<V> solution : index.getSolutions()) {
+                // note: a solution may become a tombstone concurrently, so its values are taken only once.
+                // Expired solutions may not have been evicted yet
+                V[] values = solution.getValues();
+                int tick = solution.getExpirationTick();
+                if (null != values && !TimeBase.isExpired(tick, nowTick)) {
+                    solutions.add(new Solution<>(values, tick));
+                }
+            }
+            patterns.add(new PatternSolutions<>(columns, constants, solutions));
+        });
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(now);
+        writeVarInt(patterns.size(), out);
+
+        Map<V, Integer> valueIds = new HashMap<>();
+        long count = 0;
+        for (PatternSolutions<V> p : patterns) {
+            writeVarInt(p.columns.length, out);
+            for (int i = 0; i < p.columns.length; i++) {
+                // note: 0 for a constant, otherwise the variable index plus 1
+                writeVarInt(p.columns[i] + 1, out);
+                if (p.columns[i] < 0) {
+                    writeValue(p.constants[i], valueIds, out, valueWriter);
+                }
+            }
+
+            writeVarInt(p.solutions.size(), out);
+            for (Solution<V> solution : p.solutions) {
+                for (V value : solution.getValues()) {
+                    writeValue(value, valueIds, out, valueWriter);
+                }
+
+                // note: 0 for a solution which never expires, otherwise the remaining lifetime in milliseconds
+                int tick = solution.getExpirationTick();
+                writeVarLong(TimeBase.NEVER_EXPIRE == tick
+                        ? 0 : Math.max(1, timeBase.toExpirationTime(tick, now) - now), out);
+            }
+            count += p.solutions.size();
+        }
+
+        logger.info("wrote checkpoint of " + count + " solutions of " + patterns.size() + " tuple patterns");
+        return count;
+    }
+
+    /**
+     * Restores a checkpoint into a query index.
+     * The solutions of the checkpoint are staged, and the given registration is run to add queries to the index,
+     * after which any solutions of tuple patterns which were not added again are discarded
+     *
+     * @param queryIndex   the query index to restore, which is normally empty
+     * @param in           the input from which the checkpoint is read
+     * @param valueReader  a deserializer for values
+     * @param registration an action which adds queries to the query index
+     * @param <V>          the value type
+     * @return the number of solutions restored
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public static <V> long read(QueryIndex<?, V> queryIndex,
+                                DataInput in,
+                                ValueReader<V> valueReader,
+                                Runnable registration) throws IOException {
+        if (MAGIC != in.readInt()) {
+            throw new IOException("not a solution checkpoint");
+        }
+        int version = in.readInt();
+        if (VERSION != version) {
+            throw new IOException("unsupported checkpoint version: " + version);
+        }
+
+        long checkpointTime = in.readLong();
+        QueryContext<?, V> context = queryIndex.getQueryContext();
+        long now = context.getNow();
+        TimeBase timeBase = context.getTimeBase();
+
+        List<V> values = new ArrayList<>();
+        long staged = 0;
+        try {
+            int patternCount = readVarInt(in);
+            for (int p = 0; p < patternCount; p++) {
+                int length = readVarInt(in);
+                int[] columns = new int[length];
+                V[] constants = (V[]) new Object[length];
+                int cardinality = 0;
+                for (int i = 0; i < length; i++) {
+                    columns[i] = readVarInt(in) - 1;
+                    if (columns[i] < 0) {
+                        constants[i] = readValue(values, in, valueReader);
+                    } else {
+                        cardinality = Math.max(cardinality, columns[i] + 1);
+                    }
+                }
+
+                int solutionCount = readVarInt(in);
+                List<Solution<V>> solutions = new ArrayList<>(solutionCount);
+                for (int s = 0; s < solutionCount; s++) {
+                    V[] solutionValues = (V[]) new Object[cardinality];
+                    for (int i = 0; i < cardinality; i++) {
+                        solutionValues[i] = readValue(values, in, valueReader);
+                    }
+
+                    long remaining = readVarLong(in);
+                    if (0 == remaining) {
+                        solutions.add(new Solution<>(solutionValues, TimeBase.NEVER_EXPIRE));
+                    } else {
+                        long expirationTime = checkpointTime + remaining;
+                        if (expirationTime > now) {
+                            solutions.add(new Solution<>(solutionValues, timeBase.toExpirationTick(expirationTime, now)));
+                        }
+                    }
+                }
+
+                queryIndex.stageSolutions(columns, constants, solutions);
+                staged += solutions.size();
+            }
+
+            registration.run();
+        } finally {
+            long discarded = queryIndex.clearStagedSolutions();
+            staged -= discarded;
+            logger.info("restored " + staged + " solutions from checkpoint"
+                    + (discarded > 0 ? "; discarded " + discarded + " solutions of patterns not added again" : ""));
+        }
+
+        return staged;
+    }
+
+    private static <V> void writeValue(V value,
+                                       Map<V, Integer> valueIds,
+                                       DataOutput out,
+                                       ValueWriter<V> valueWriter) throws IOException {
+        // note: 0 for a new value, which follows, otherwise the number of a value already written plus 1
+        Integer id = valueIds.get(value);
+        if (null == id) {
+            valueIds.put(value, valueIds.size());
+            writeVarInt(0, out);
+            valueWriter.write(value, out);
+        } else {
+            writeVarInt(id + 1, out);
+        }
+    }
+
+    private static <V> V readValue(List<V> values, DataInput in, ValueReader<V> valueReader) throws IOException {
+        int id = readVarInt(in);
+        if (0 == id) {
+            V value = valueReader.read(in);
+            values.add(value);
+            return value;
+        } else if (id > values.size()) {
+            throw new IOException("undefined value in checkpoint: " + id);
+        } else {
+            return values.get(id - 1);
+        }
+    }
+
+    private static void writeVarInt(int value, DataOutput out) throws IOException {
+        writeVarLong(value, out);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IOException("integer out of range in checkpoint: " + value);
+        }
+        return (int) value;
+    }
+
+    // unsigned, seven bits per byte, least significant bits first
+    private static void writeVarLong(long value, DataOutput out) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if (0 == (b & 0x80)) {
+                return value;
+            }
+        }
+        throw new IOException("malformed integer in checkpoint");
+    }
+
+    private static class PatternSolutions<V> {
+        private final int[] columns;
+        private final V[] constants;
+        private final List<Solution<V>> solutions;
+
+        private PatternSolutions(int[] columns, V[] constants, List<Solution<V>> solutions) {
+            this.columns = columns;
+            this.constants = constants;
+            this.solutions = solutions;
+        }
+    }
+}
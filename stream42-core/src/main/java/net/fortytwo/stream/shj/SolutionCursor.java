@@ -0,0 +1,128 @@
+package net.fortytwo.stream.shj;
+
+import java.util.Arrays;
+
+/**
+ * A buffer of the solutions found by a single probe of a solution index, for use in joins.
+ * A probe copies into the cursor only those solutions which agree with the bindings of the join,
+ * either as references to the values of stored solutions, or, for an index of primitive values, as the values
+ * themselves, which are boxed only as the join binds them.
+ * Cursors are pooled per thread by the query context (see {@link QueryContext#acquireCursor}),
+ * so that in the steady state a probe allocates no buffers of its own
+ * (although an index may allocate in finding its solutions; see {@link BasicSolutionIndex#probe}).
+ * The cursor starts before the first solution
+ *
+ * @param <V> the value type, e.g. an RDF value class
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+final class SolutionCursor<V> {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // the values of each solution, as a reference to the solution's own array
+    private Object[] references = new Object[INITIAL_CAPACITY];
+    // or else the primitive values of each solution, one row of the given cardinality after another
+    private long[] longs = new long[0];
+    private int[] ticks = new int[INITIAL_CAPACITY];
+
+    private boolean primitive;
+    private int cardinality;
+    private int size;
+    private int current;
+
+    /**
+     * Empties the cursor, ready for a new probe
+     *
+     * @param cardinality the number of values of each solution
+     * @param primitive   whether solutions are added as primitive values, rather than as references
+     */
+    void start(int cardinality, boolean primitive) {
+        this.cardinality = cardinality;
+        this.primitive = primitive;
+        size = 0;
+        current = -1;
+    }
+
+    /**
+     * Adds a solution by reference to its values
+     *
+     * @param values         the values of a stored solution, which are not copied
+     * @param expirationTick the expiration tick of the solution
+     */
+    void add(V[] values, int expirationTick) {
+        if (size == ticks.length) {
+            grow();
+        }
+        references[size] = values;
+        ticks[size++] = expirationTick;
+    }
+
+    /**
+     * Adds a solution of primitive values, which the caller then writes into {@link #getLongs()}
+     *
+     * @param expirationTick the expiration tick of the solution
+     * @return the offset in {@link #getLongs()} of the first value of the new solution
+     */
+    int addRow(int expirationTick) {
+        if (size == ticks.length) {
+            grow();
+        }
+        if (longs.length < (size + 1) * cardinality) {
+            longs = Arrays.copyOf(longs, ticks.length * cardinality);
+        }
+        ticks[size] = expirationTick;
+        return size++ * cardinality;
+    }
+
+    long[] getLongs() {
+        return longs;
+    }
+
+    /**
+     * @return the number of solutions found by the probe
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Moves to the next solution
+     *
+     * @return whether there is a next solution
+     */
+    boolean next() {
+        return ++current < size;
+    }
+
+    /**
+     * @param column the index of a variable of the current solution
+     * @return the value of the variable in the current solution
+     */
+    V getValue(int column) {
+        return primitive
+                ? (V) Long.valueOf(longs[current * cardinality + column])
+                : ((V[]) references[current])[column];
+    }
+
+    /**
+     * @return the expiration tick of the current solution
+     */
+    int getExpirationTick() {
+        return ticks[current];
+    }
+
+    /**
+     * Drops the references held by this cursor, so that it does not keep stored values alive while pooled
+     */
+    void clear() {
+        if (!primitive) {
+            Arrays.fill(references, 0, size, null);
+        }
+        size = 0;
+    }
+
+    private void grow() {
+        int capacity = ticks.length * 2;
+        references = Arrays.copyOf(references, capacity);
+        ticks = Arrays.copyOf(ticks, capacity);
+    }
+}
@@ -1,23 +1,51 @@
 package net.fortytwo.stream.shj;
 
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Consumer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * A SolutionIndex blocks for concurrent write operations, and does not block reads with respect to reads or writes.
+ * A hash-based solution index, and the default.
+ * A SolutionIndex does not block reads with respect to reads or writes.
+ * Writes block only for other writes of equal solutions, through a fixed set of lock stripes,
+ * and posting sets are updated atomically per value, so that many threads may add solutions concurrently.
+ * Finite-lifetime solutions are also kept in a heap, by expiration time, from which they are evicted.
+ * <p>
+ * Optionally, the distinct values of each column are also kept in a counting Bloom filter,
+ * so that probes for absent values, which are the majority in many workloads, are rejected without a map lookup.
+ * Filters grow with the number of distinct values in their column. The price of the filters is that
+ * creating or removing a posting set takes a lock shared among writers, which growing a filter takes exclusively.
+ * <p>
+ * Solutions evicted over budget, other than the earliest-expiring, are sampled through a cursor over the hash table
+ * of all solutions, whose order is unrelated to the age or use of the solutions.
+ * For the {@link EvictionPolicy#LEAST_RECENTLY_JOINED} policy, the index also keeps the tick at which each value
+ * of each column was last added or probed.
  *
  * @param <V> the value type, e.g. an RDF value class
  * @author Joshua Shinavier (http://fortytwo.net)
  */
-public class SolutionIndex<V> implements Index<Solution<V>> {
+public class SolutionIndex<V> extends BasicSolutionIndex<V> {
 
-    // the number of variables bound in solutions
-    private final int cardinality;
+    // note: a power of two
+    private static final int LOCK_STRIPES = 64;
 
-    private final QueryContext<?, V> queryContext;
+    private static final int INITIAL_FILTER_CAPACITY = 256;
+    // filters grow by this factor once they hold more distinct values than their capacity
+    private static final int FILTER_GROWTH_FACTOR = 4;
+
+    // the number of solutions compared by the least-recently-joined eviction policy
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    // writes of equal solutions are serialized, so that a solution is never half-added or half-superseded
+    private final Object[] locks;
 
     // note: must be thread-safe, as we read and write concurrently, even though we do not iterate
     private final Map<Solution<V>, Solution<V>> allSolutions = new ConcurrentHashMap<>();
@@ -25,41 +53,49 @@ public class SolutionIndex<V> implements Index<Solution<V>> {
     // note: must be thread-safe, as we read and write concurrently, even though we do not iterate
     private final Map<V, Set<Solution<V>>>[] solutionsByBinding;
 
-    // note: must be thread-safe because we may iterate over and add subscribers concurrently
-    private final Set<Consumer<Solution<V>>> consumers = QueryContext.newConcurrentSet();
+    // filters of the distinct values of each column, or null if filters are not used.
+    // Replaced as a whole as filters grow
+    private volatile CountingBloomFilter[] filters;
+    // shared by writers of posting sets, and exclusive while a filter grows
+    private final ReadWriteLock filterLock;
 
-    private final Index<Consumer<Solution<V>>> consumerIndex = new Index<Consumer<Solution<V>>>() {
-        @Override
-        public void add(Consumer<Solution<V>> toAdd) {
-            consumers.add(toAdd);
-        }
-
-        @Override
-        public boolean remove(Consumer<Solution<V>> toRemove) {
-            return consumers.remove(toRemove);
-        }
+    // finite-lifetime solutions, by expiration time. Removed solutions remain as tombstones until they are polled
+    private final PriorityQueue<Solution<V>> expirationHeap
+            = new PriorityQueue<>(Solution::compareByExpirationTime);
 
-        @Override
-        public void clear() {
-            consumers.clear();
-        }
+    // the tick at which each value of each column was last added or probed, or null if this is not tracked
+    private final Map<V, Integer>[] joinedTicks;
 
-        @Override
-        public boolean isEmpty() {
-            return consumers.isEmpty();
-        }
-    };
+    // a cursor over all solutions, from which candidates for eviction are sampled
+    private Iterator<Solution<V>> evictionCursor;
+    private final Object evictionCursorLock = new Object();
 
     public SolutionIndex(QueryContext<?, V> queryContext, int cardinality) {
-        this.cardinality = cardinality;
-        this.queryContext = queryContext;
+        this(queryContext, cardinality, false);
+    }
+
+    /**
+     * @param queryContext the query context
+     * @param cardinality  the number of variables bound in solutions
+     * @param useFilters   whether to keep a counting Bloom filter of the values of each column,
+     *                     rejecting probes for absent values without a map lookup
+     */
+    public SolutionIndex(QueryContext<?, V> queryContext, int cardinality, boolean useFilters) {
+        super(queryContext, cardinality);
 
-        if (null == queryContext) {
-            throw new IllegalArgumentException("null context");
+        if (useFilters) {
+            filters = new CountingBloomFilter[cardinality];
+            for (int i = 0; i < cardinality; i++) {
+                filters[i] = new CountingBloomFilter(INITIAL_FILTER_CAPACITY);
+            }
+            filterLock = new ReentrantReadWriteLock();
+        } else {
+            filterLock = null;
         }
 
-        if (cardinality < 1) {
-            throw new IllegalArgumentException("illegal index length: " + cardinality);
+        locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
         }
 
         solutionsByBinding = new Map[cardinality];
@@ -67,67 +103,38 @@ public class SolutionIndex<V> implements Index<Solution<V>> {
             // note: must be thread-safe, as we read and write concurrently
             solutionsByBinding[i] = new ConcurrentHashMap<>();
         }
-    }
-
-    /**
-     * Gets the variable-cardinality of this index
-     *
-     * @return the number of distinct variables of each solution in this index
-     */
-    public int getCardinality() {
-        return cardinality;
-    }
 
-    public Index<Consumer<Solution<V>>> getConsumerIndex() {
-        return consumerIndex;
+        if (EvictionPolicy.LEAST_RECENTLY_JOINED == queryContext.getEvictionPolicy()) {
+            joinedTicks = new Map[cardinality];
+            for (int i = 0; i < cardinality; i++) {
+                joinedTicks[i] = new ConcurrentHashMap<>();
+            }
+        } else {
+            joinedTicks = null;
+        }
     }
 
     /**
-     * Adds a solution to the index.
-     * Identical but earlier-expiring solutions are displaced
+     * Removes an equal solution from the index, unless the stored solution expires later than the given one,
+     * i.e. unless the given solution has been superseded
      *
-     * @param solution the solution to be added
+     * @param solution the solution to remove
+     * @return whether a solution was removed
      */
     @Override
-    public void add(Solution<V> solution) {
-        // step 1 of symmetric hash join: index locally
-        // this immediately makes the solution available for retrieval through all join indices
-        addInternal(solution);
-
-        // step 2 of symmetric hash join: resolve and push to join indices for join operations
-        for (Consumer<Solution<V>> s : consumers) {
-            s.accept(solution);
-        }
-    }
-
-    @Override
-    public synchronized boolean remove(Solution<V> solution) {
-        Solution<V> removed = allSolutions.remove(solution);
-        if (null != removed) {
-            for (int i = 0; i < cardinality; i++) {
-                V val = solution.getValues()[i];
-                Map<V, Set<Solution<V>>> solsForVariable = solutionsByBinding[i];
-                Set<Solution<V>> sols = solsForVariable.get(val);
-                if (null != sols) {
-                    sols.remove(solution);
-                    if (sols.isEmpty()) {
-                        solsForVariable.remove(val);
-                    }
-                }
+    public boolean remove(Solution<V> solution) {
+        synchronized (lockFor(solution)) {
+            Solution<V> existing = allSolutions.get(solution);
+            if (null != existing && existing.compareByExpirationTime(solution) <= 0) {
+                removeStored(existing);
+                return true;
+            } else {
+                return false;
             }
-            return true;
-        } else {
-            return false;
         }
     }
 
-    /**
-     * Removes any matching solution from the index.
-     * Removal is idempotent; it is possible to "remove" without error a pattern which has already been removed
-     *
-     * @param pattern a pattern matching the solutions to be removed
-     * @return whether any matching solutions were found and removed
-     */
+    @Override
     public boolean removePattern(V[] pattern) {
         // select the smallest solution set for iteration and filtering
         int minCard = Integer.MAX_VALUE;
@@ -156,50 +163,70 @@ public class SolutionIndex<V> implements Index<Solution<V>> {
             // all wildcards; remove all
             return removeAllInternal();
         } else {
-            // synchronize on write
-            synchronized (this) {
-                Set<Solution<V>> toRemove = new HashSet<>();
-
-                // TODO minor optimization: assign these above
-                Map<V, Set<Solution<V>>> byBinding = solutionsByBinding[bestIndex];
-                Set<Solution<V>> sols = byBinding.get(bestValue);
-                for (Solution<V> s : sols) {
-                    boolean matches = true;
-                    for (int i = 0; i < cardinality; i++) {
-                        V val = pattern[i];
-                        if (null != val && !val.equals(s.getValues()[i])) {
-                            matches = false;
-                            break;
-                        }
+            // find matching solutions in a snapshot of the posting set, then remove them one by one
+            Set<Solution<V>> sols = solutionsByBinding[bestIndex].get(bestValue);
+            if (null == sols) {
+                return false;
+            }
+            List<Solution<V>> toRemove = new LinkedList<>();
+            for (Solution<V> s : sols) {
+                boolean matches = true;
+                for (int i = 0; i < cardinality; i++) {
+                    V val = pattern[i];
+                    if (null != val && !val.equals(s.getValues()[i])) {
+                        matches = false;
+                        break;
                     }
+                }
 
-                    if (matches) {
-                        toRemove.add(s);
-                    }
+                if (matches) {
+                    toRemove.add(s);
                 }
-                boolean removed = !toRemove.isEmpty();
-                for (Solution<V> s : toRemove) {
-                    sols.remove(s);
-                    if (sols.isEmpty()) {
-                        byBinding.remove(bestValue);
-                    }
-                    if (null != allSolutions.remove(s)) {
-                        removeFromManager(s);
+            }
+
+            boolean removed = false;
+            for (Solution<V> s : toRemove) {
+                // note: the solution may have been removed or superseded concurrently
+                synchronized (lockFor(s)) {
+                    if (allSolutions.get(s) == s) {
+                        removeStored(s);
+                        removed = true;
                     }
                 }
-                toRemove.clear();
-                return removed;
             }
+            return removed;
         }
     }
 
+    /**
+     * Removes all solutions from this index.
+     * Note: solutions added concurrently with this operation may or may not be retained
+     */
     @Override
-    public synchronized void clear() {
+    public void clear() {
         allSolutions.clear();
         for (Map<V, Set<Solution<V>>> set : solutionsByBinding) {
             set.clear();
         }
-        consumerIndex.clear();
+        synchronized (expirationHeap) {
+            expirationHeap.clear();
+        }
+        if (null != joinedTicks) {
+            for (Map<V, Integer> ticks : joinedTicks) {
+                ticks.clear();
+            }
+        }
+        if (null != filterLock) {
+            filterLock.writeLock().lock();
+            try {
+                for (CountingBloomFilter filter : filters) {
+                    filter.clear();
+                }
+            } finally {
+                filterLock.writeLock().unlock();
+            }
+        }
+        super.clear();
     }
 
     @Override
@@ -207,62 +234,328 @@ public class SolutionIndex<V> implements Index<Solution<V>> {
         return allSolutions.isEmpty();
     }
 
+    @Override
     public Set<Solution<V>> getSolutions() {
         return allSolutions.keySet();
     }
 
+    @Override
     public Set<Solution<V>> getSolutions(int index, V value) {
+        CountingBloomFilter[] filtersSafe = filters;
+        if (null != filtersSafe && !filtersSafe[index].mightContain(value.hashCode())) {
+            return null;
+        }
+
         // note: no buffering required, as we trust the concurrent set not to lock on reads
         // during lengthy matching operations
-        return solutionsByBinding[index].get(value);
+        Set<Solution<V>> sols = solutionsByBinding[index].get(value);
+        if (null != sols && null != joinedTicks) {
+            Map<V, Integer> ticks = joinedTicks[index];
+            int nowTick = nowTick();
+            Integer tick = ticks.get(value);
+            // note: the tick changes at most once per tick duration, so most probes only read it
+            if (null == tick || tick != nowTick) {
+                ticks.put(value, nowTick);
+                // note: the posting set may have been removed concurrently, taking its tick with it
+                if (!solutionsByBinding[index].containsKey(value)) {
+                    ticks.remove(value);
+                }
+            }
+        }
+        return sols;
     }
 
-    // synchronize on write
-    private synchronized boolean removeAllInternal() {
-        boolean removed = !allSolutions.isEmpty();
+    @Override
+    protected Solution<V> evict(EvictionPolicy policy) {
+        while (!allSolutions.isEmpty()) {
+            Solution<V> victim = EvictionPolicy.EARLIEST_EXPIRING == policy ? pollEarliestExpiring() : null;
+            if (null == victim) {
+                victim = sample(policy);
+                if (null == victim) {
+                    return null;
+                }
+            }
 
-        // note: non-expiring solutions have no effect on the manager
-        allSolutions.keySet().forEach(this::removeFromManager);
-        allSolutions.clear();
+            synchronized (lockFor(victim)) {
+                // note: the solution may have been removed or superseded in the meantime
+                if (allSolutions.get(victim) == victim) {
+                    // note: the stored solution becomes a tombstone, so a copy is returned
+                    Solution<V> evicted = new Solution<>(victim.getValues(), victim.getExpirationTick());
+                    removeStored(victim);
+                    return evicted;
+                }
+            }
+        }
+
+        return null;
+    }
 
-        for (Map<V, Set<Solution<V>>> solutions : solutionsByBinding) {
-            solutions.clear();
+    private Solution<V> pollEarliestExpiring() {
+        synchronized (expirationHeap) {
+            Solution<V> first;
+            while (null != (first = expirationHeap.poll())) {
+                // discard tombstones
+                if (!first.isExpired()) {
+                    return first;
+                }
+            }
+            return null;
         }
+    }
 
-        return removed;
+    // samples a least-recently-joined or, for any other policy, a random solution
+    private Solution<V> sample(EvictionPolicy policy) {
+        boolean leastRecentlyJoined = EvictionPolicy.LEAST_RECENTLY_JOINED == policy && null != joinedTicks;
+        Random random = ThreadLocalRandom.current();
+
+        synchronized (evictionCursorLock) {
+            // note: solutions are compared by the time since they were last joined, as ticks wrap around
+            int nowTick = leastRecentlyJoined ? nowTick() : 0;
+            Solution<V> best = null;
+            int bestAge = 0;
+            int n = leastRecentlyJoined ? EVICTION_SAMPLE_SIZE : 1 + random.nextInt(EVICTION_SAMPLE_SIZE);
+            for (int i = 0; i < n; i++) {
+                Solution<V> s = nextFromCursor();
+                if (null == s) {
+                    break;
+                }
+                if (leastRecentlyJoined) {
+                    int age = getJoinedAge(s, nowTick);
+                    if (null == best || age > bestAge) {
+                        best = s;
+                        bestAge = age;
+                    }
+                } else {
+                    best = s;
+                }
+            }
+            return best;
+        }
     }
 
-    private void addInternal(Solution<V> solution) {
-        Solution<V> existing = allSolutions.get(solution);
-        if (null != existing) {
-            int cmp = solution.compareByExpirationTime(existing);
-            if (cmp <= 0) {
-                // existing solution already contains the new one
-                return;
-            } else {
-                // new solution supersedes the existing solution
-                remove(existing);
+    private Solution<V> nextFromCursor() {
+        // note: the cursor wraps around once it reaches the end of the table
+        for (int i = 0; i < 2; i++) {
+            if (null == evictionCursor || !evictionCursor.hasNext()) {
+                evictionCursor = allSolutions.keySet().iterator();
+            }
+            if (evictionCursor.hasNext()) {
+                return evictionCursor.next();
+            }
+        }
+        return null;
+    }
+
+    // finds the number of ticks since any value of a solution was last joined
+    private int getJoinedAge(Solution<V> solution, int nowTick) {
+        V[] values = solution.getValues();
+        int age = Integer.MAX_VALUE;
+        if (null != values) {
+            for (int i = 0; i < cardinality; i++) {
+                Integer t = joinedTicks[i].get(values[i]);
+                if (null != t) {
+                    age = Math.min(age, nowTick - t);
+                }
+            }
+        }
+        return age;
+    }
+
+    private int nowTick() {
+        return queryContext.getTimeBase().toTick(queryContext.getNow());
+    }
+
+    private boolean removeAllInternal() {
+        boolean removed = false;
+
+        for (Solution<V> s : allSolutions.keySet()) {
+            synchronized (lockFor(s)) {
+                Solution<V> existing = allSolutions.get(s);
+                if (null != existing) {
+                    removeStored(existing);
+                    removed = true;
+                }
             }
         }
 
-        // synchronize on write
-        synchronized (this) {
+        return removed;
+    }
+
+    @Override
+    protected Addition addInternal(Solution<V> solution) {
+        Addition addition = Addition.ADDED;
+        synchronized (lockFor(solution)) {
+            Solution<V> existing = allSolutions.get(solution);
+            if (null != existing) {
+                int cmp = solution.compareByExpirationTime(existing);
+                if (cmp <= 0) {
+                    // existing solution already contains the new one
+                    return Addition.UNCHANGED;
+                } else {
+                    // new solution supersedes the existing solution.
+                    // note: the superseded solution is left in the expiration heap until it expires,
+                    // and is not then removed, as the stored solution expires later
+                    allSolutions.remove(existing);
+                    removeBindings(existing);
+
+                    // note: an existing solution which has expired, but has not yet been evicted, is not refreshed;
+                    // the new solution takes its place as if it were new
+                    if (!TimeBase.isExpired(existing.getExpirationTick(), nowTick())) {
+                        addition = Addition.REFRESHED;
+                    }
+                }
+            }
+
             allSolutions.put(solution, solution);
+            if (null == existing) {
+                countStored(1);
+            }
+            lockFiltersShared();
+            try {
+                for (int i = 0; i < cardinality; i++) {
+                    final int column = i;
+                    solutionsByBinding[i].compute(solution.getValues()[i], (val, sols) -> {
+                        if (null == sols) {
+                            // note: must be thread-safe, as we iterate and modify concurrently
+                            sols = QueryContext.newConcurrentSet();
+                            if (null != filters) {
+                                filters[column].add(val.hashCode());
+                            }
+                            if (null != joinedTicks) {
+                                joinedTicks[column].put(val, nowTick());
+                            }
+                        }
+                        sols.add(solution);
+                        return sols;
+                    });
+                }
+            } finally {
+                unlockFiltersShared();
+            }
+            growFilters();
+
+            int expirationTick = solution.getExpirationTick();
+            if (TimeBase.NEVER_EXPIRE != expirationTick) {
+                synchronized (expirationHeap) {
+                    expirationHeap.add(solution);
+                }
+                scheduleExpiration(expirationTick);
+            }
+        }
+
+        return addition;
+    }
+
+    @Override
+    protected int evictExpired(int nowTick) {
+        List<Solution<V>> expired = new LinkedList<>();
+        Solution<V> first;
+        synchronized (expirationHeap) {
+            while (null != (first = expirationHeap.peek())
+                    && (first.isExpired() || TimeBase.isExpired(first.getExpirationTick(), nowTick))) {
+                expirationHeap.poll();
+                // discard tombstones
+                if (!first.isExpired()) {
+                    expired.add(first);
+                }
+            }
+        }
+
+        // note: solutions are removed outside of the heap lock, as adding a solution locks its stripe, then the heap
+        for (Solution<V> s : expired) {
+            synchronized (lockFor(s)) {
+                // note: the solution may have been removed or superseded in the meantime
+                if (allSolutions.get(s) == s) {
+                    removeStored(s);
+                }
+            }
+        }
+
+        return null == first ? TimeBase.NEVER_EXPIRE : first.getExpirationTick();
+    }
+
+    // note: posting sets are updated atomically per value, so that a set is never discarded while being added to
+    private void removeBindings(Solution<V> solution) {
+        lockFiltersShared();
+        try {
             for (int i = 0; i < cardinality; i++) {
-                Map<V, Set<Solution<V>>> byBinding = solutionsByBinding[i];
-                V val = solution.getValues()[i];
-                Set<Solution<V>> sols = byBinding.get(val);
-                if (null == sols) {
-                    // note: must be thread-safe, as we iterate and modify concurrently
-                    sols = QueryContext.newConcurrentSet();
-                    byBinding.put(val, sols);
+                final int column = i;
+                solutionsByBinding[i].computeIfPresent(solution.getValues()[i], (val, sols) -> {
+                    sols.remove(solution);
+                    if (sols.isEmpty()) {
+                        if (null != filters) {
+                            filters[column].remove(val.hashCode());
+                        }
+                        if (null != joinedTicks) {
+                            joinedTicks[column].remove(val);
+                        }
+                        return null;
+                    } else {
+                        return sols;
+                    }
+                });
+            }
+        } finally {
+            unlockFiltersShared();
+        }
+    }
+
+    // note: posting sets are created and removed under the shared lock, so that a growing filter,
+    // which holds the lock exclusively, sees exactly the values of its column
+    private void lockFiltersShared() {
+        if (null != filterLock) {
+            filterLock.readLock().lock();
+        }
+    }
+
+    private void unlockFiltersShared() {
+        if (null != filterLock) {
+            filterLock.readLock().unlock();
+        }
+    }
+
+    // replaces any filter which holds more values than its capacity with a larger one
+    private void growFilters() {
+        if (null == filterLock) {
+            return;
+        }
+
+        for (int i = 0; i < cardinality; i++) {
+            CountingBloomFilter filter = filters[i];
+            if (filter.size() > filter.getCapacity()) {
+                filterLock.writeLock().lock();
+                try {
+                    filter = filters[i];
+                    if (filter.size() > filter.getCapacity()) {
+                        CountingBloomFilter grown
+                                = new CountingBloomFilter(filter.getCapacity() * FILTER_GROWTH_FACTOR);
+                        for (V value : solutionsByBinding[i].keySet()) {
+                            grown.add(value.hashCode());
+                        }
+                        CountingBloomFilter[] newFilters = filters.clone();
+                        newFilters[i] = grown;
+                        filters = newFilters;
+                    }
+                } finally {
+                    filterLock.writeLock().unlock();
                 }
-                sols.add(solution);
             }
         }
     }
 
-    private void removeFromManager(Solution<V> toRemove) {
-        queryContext.getSolutionExpirationManager().remove(toRemove);
+    private Object lockFor(Solution<V> solution) {
+        int h = solution.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    // note: the solution must be stored, and its stripe must be locked
+    private void removeStored(Solution<V> solution) {
+        allSolutions.remove(solution);
+        countStored(-1);
+        removeBindings(solution);
+        // a finite-lifetime solution becomes a tombstone in the expiration heap
+        if (TimeBase.NEVER_EXPIRE != solution.getExpirationTick()) {
+            solution.expire();
+        }
     }
 }
@@ -0,0 +1,86 @@
+package net.fortytwo.stream.shj;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A complete solution of a query, as an immutable, array-backed mapping of variables to values.
+ * The variables and their slots are shared by all solutions of the query, so that each solution
+ * costs only a single array of values.
+ *
+ * @param <K> the key type, e.g. String
+ * @param <V> the value type, e.g. an RDF value class
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class SolutionMapping<K, V> extends AbstractMap<K, V> {
+
+    private final K[] variables;
+    private final Map<K, Integer> slotByVariable;
+    private final V[] values;
+
+    SolutionMapping(K[] variables, Map<K, Integer> slotByVariable, V[] values) {
+        this.variables = variables;
+        this.slotByVariable = slotByVariable;
+        this.values = values;
+    }
+
+    @Override
+    public V get(Object key) {
+        Integer slot = slotByVariable.get(key);
+        return null == slot ? null : values[slot];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return slotByVariable.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (int i = 0; i < values.length; i++) {
+            action.accept(variables[i], values[i]);
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new Iterator<Entry<K, V>>() {
+                    private int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < values.length;
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        if (i >= values.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<K, V> entry = new SimpleImmutableEntry<>(variables[i], values[i]);
+                        i++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+}
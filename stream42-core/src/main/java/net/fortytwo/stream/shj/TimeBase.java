@@ -0,0 +1,168 @@
+package net.fortytwo.stream.shj;
+
+import net.fortytwo.stream.StreamProcessor;
+
+/**
+ * A time base for compact timestamps: time is divided into ticks of a fixed duration, counted from an epoch,
+ * so that expiration times fit into 32-bit integers.
+ * Expiration times are rounded up to the end of their tick, so that items are retained for up to
+ * one tick longer than requested, but never expire early.
+ * <p>
+ * Ticks wrap around at the end of the 32-bit range, so that a time base never runs out,
+ * and are compared only by their distance from one another (see {@link #compare} and {@link #isExpired}).
+ * This requires an expiration tick to lie at most {@link #MAX_SPAN} ticks ahead of the current tick,
+ * e.g. about 12 days with ticks of 1 ms, 124 days with ticks of 10 ms, or 34 years with ticks of 1 s;
+ * later expiration times are rejected rather than cut short.
+ * An expired item remains comparable for another {@link #MAX_SPAN} ticks,
+ * by which time it must have been evicted.
+ * {@link Integer#MIN_VALUE} is never used as an expiration tick, so that it may mark unused storage.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TimeBase {
+
+    /**
+     * The tick of items which never expire
+     */
+    public static final int NEVER_EXPIRE = Integer.MAX_VALUE;
+
+    /**
+     * The default duration of a tick, in milliseconds
+     */
+    public static final long DEFAULT_TICK_DURATION = 10;
+
+    /**
+     * The greatest number of ticks by which an expiration tick may lie ahead of the current tick
+     */
+    public static final int MAX_SPAN = 1 << 30;
+
+    private final long epoch;
+    private final long tickDuration;
+
+    /**
+     * @param epoch        the start of tick 0, in milliseconds since the Unix epoch, e.g. the start time of a processor
+     * @param tickDuration the duration of a tick, in milliseconds
+     */
+    public TimeBase(long epoch, long tickDuration) {
+        if (tickDuration < 1) {
+            throw new IllegalArgumentException("illegal tick duration: " + tickDuration);
+        }
+
+        this.epoch = epoch;
+        this.tickDuration = tickDuration;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * Finds the tick which contains a given time
+     *
+     * @param time a time in milliseconds since the Unix epoch, e.g. the current time
+     * @return the tick containing the time, wrapped around to 32 bits
+     */
+    public int toTick(long time) {
+        return (int) Math.floorDiv(time - epoch, tickDuration);
+    }
+
+    /**
+     * Finds the first tick at the end of which a given expiration time has passed.
+     * An item with this tick has expired once the current tick is equal to or later than it
+     *
+     * @param expirationTime an expiration time in milliseconds since the Unix epoch,
+     *                       or {@link StreamProcessor#NEVER_EXPIRE}
+     * @param now            the current time, in milliseconds since the Unix epoch
+     * @return the expiration tick, or {@link #NEVER_EXPIRE}.
+     * An expiration time which has already passed yields the current tick, i.e. the item has expired
+     * @throws IllegalArgumentException if the expiration time lies more than {@link #MAX_SPAN} ticks ahead
+     */
+    public int toExpirationTick(long expirationTime, long now) {
+        if (StreamProcessor.NEVER_EXPIRE == expirationTime) {
+            return NEVER_EXPIRE;
+        }
+
+        // note: an item is considered expired at its expiration time, hence the end of the preceding tick
+        long tick = Math.floorDiv(expirationTime - epoch - 1, tickDuration) + 1;
+        long nowTick = Math.floorDiv(now - epoch, tickDuration);
+        if (tick - nowTick > MAX_SPAN) {
+            throw new IllegalArgumentException("expiration time " + expirationTime
+                    + " is out of range of a time base with ticks of " + tickDuration + " ms at time " + now);
+        }
+
+        int wrapped = (int) Math.max(tick, nowTick);
+        // note: the reserved values are skipped by moving to the following tick, so that nothing expires early
+        return NEVER_EXPIRE == wrapped || Integer.MIN_VALUE == wrapped ? Integer.MIN_VALUE + 1 : wrapped;
+    }
+
+    /**
+     * Converts an expiration tick back to milliseconds
+     *
+     * @param expirationTick an expiration tick, or {@link #NEVER_EXPIRE}
+     * @param now            the current time, in milliseconds since the Unix epoch,
+     *                       relative to which the wrapped tick is resolved
+     * @return the end of the tick, in milliseconds since the Unix epoch, or {@link StreamProcessor#NEVER_EXPIRE}
+     */
+    public long toExpirationTime(int expirationTick, long now) {
+        if (NEVER_EXPIRE == expirationTick) {
+            return StreamProcessor.NEVER_EXPIRE;
+        }
+
+        long nowTick = Math.floorDiv(now - epoch, tickDuration);
+        // note: the difference of wrapped ticks is their signed distance
+        return epoch + (nowTick + (expirationTick - (int) nowTick)) * tickDuration;
+    }
+
+    /**
+     * Compares two expiration ticks by their distance from one another, so that ticks which have wrapped around
+     * are later than those which have not.
+     * {@link #NEVER_EXPIRE} is later than any other tick
+     *
+     * @param first  an expiration tick, or {@link #NEVER_EXPIRE}
+     * @param second another expiration tick, or {@link #NEVER_EXPIRE}
+     * @return a negative number, zero, or a positive number as the first tick is earlier than, equal to,
+     * or later than the second
+     */
+    public static int compare(int first, int second) {
+        if (first == second) {
+            return 0;
+        } else if (NEVER_EXPIRE == first) {
+            return 1;
+        } else if (NEVER_EXPIRE == second) {
+            return -1;
+        } else {
+            return first - second < 0 ? -1 : 1;
+        }
+    }
+
+    /**
+     * @param first  an expiration tick, or {@link #NEVER_EXPIRE}
+     * @param second another expiration tick, or {@link #NEVER_EXPIRE}
+     * @return the earlier of the two ticks
+     */
+    public static int min(int first, int second) {
+        return compare(first, second) <= 0 ? first : second;
+    }
+
+    /**
+     * @param first  an expiration tick, or {@link #NEVER_EXPIRE}
+     * @param second another expiration tick, or {@link #NEVER_EXPIRE}
+     * @return the later of the two ticks
+     */
+    public static int max(int first, int second) {
+        return compare(first, second) >= 0 ? first : second;
+    }
+
+    /**
+     * @param expirationTick an expiration tick, or {@link #NEVER_EXPIRE}
+     * @param nowTick        the current tick
+     * @return whether an item with the given expiration tick has expired
+     */
+    public static boolean isExpired(int expirationTick, int nowTick) {
+        return NEVER_EXPIRE != expirationTick && expirationTick - nowTick <= 0;
+    }
+}
@@ -0,0 +1,243 @@
+package net.fortytwo.stream.shj;
+
+import net.fortytwo.stream.StreamProcessor;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * An expiration queue backed by a hierarchical timing wheel.
+ * Time is divided into ticks of a fixed duration. The lowest wheel has one bucket per tick,
+ * and each higher wheel has one bucket per full rotation of the wheel below it.
+ * Adding an item takes O(1) time, as does releasing it, and items are released a whole bucket at a time;
+ * items in higher wheels cascade into lower wheels as their time approaches.
+ * <p>
+ * An item is released once the tick containing its expiration time has passed,
+ * so items are retained for up to one tick longer than their expiration time.
+ *
+ * @param <T> the type of item
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TimingWheelExpirationQueue<T extends Expirable> implements ExpirationQueue<T> {
+
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    // enough wheels to cover all 64 bits of a tick
+    private static final int WHEELS = 64 / WHEEL_BITS;
+
+    private final long tickDuration;
+
+    // buckets are created as they are needed
+    private final ArrayList<T>[][] wheels = new ArrayList[WHEELS][WHEEL_SIZE];
+    private final int[] countsByWheel = new int[WHEELS];
+
+    // items whose tick had already passed when they were added
+    private ArrayList<T> overdue = new ArrayList<>();
+
+    // the first tick which has not yet been released
+    private long currentTick = -1;
+    private int size;
+
+    /**
+     * Creates a queue with ticks of {@link TimeBase#DEFAULT_TICK_DURATION}
+     */
+    public TimingWheelExpirationQueue() {
+        this(TimeBase.DEFAULT_TICK_DURATION);
+    }
+
+    /**
+     * @param tickDuration the duration of a tick, in milliseconds. Longer ticks mean more items are released at once,
+     *                     and that items may be retained for longer after their expiration time
+     */
+    public TimingWheelExpirationQueue(long tickDuration) {
+        if (tickDuration < 1) {
+            throw new IllegalArgumentException("illegal tick duration: " + tickDuration);
+        }
+
+        this.tickDuration = tickDuration;
+    }
+
+    @Override
+    public void add(T item) {
+        long tick = item.getExpirationTime() / tickDuration;
+        if (-1 == currentTick) {
+            // the wheel begins turning with the first item
+            currentTick = tick;
+        }
+
+        schedule(item, tick);
+        size++;
+    }
+
+    @Override
+    public void pollExpired(long now, Consumer<T> consumer) {
+        long nowTick = now / tickDuration;
+        if (currentTick > nowTick) {
+            // the wheel was started ahead of the clock, by an item which expires later than those added after it
+            rebase(nowTick);
+        }
+
+        if (!overdue.isEmpty()) {
+            ArrayList<T> items = overdue;
+            overdue = new ArrayList<>();
+            release(items, consumer);
+        }
+
+        // release every tick before the one containing the current time
+        while (currentTick < nowTick && currentTick != -1) {
+            if (0 == size) {
+                currentTick = nowTick;
+                break;
+            }
+
+            if (0 == countsByWheel[0]) {
+                // skip ahead to the end of the current rotation of the lowest wheel
+                long next = (currentTick | WHEEL_MASK) + 1;
+                currentTick = Math.min(next, nowTick);
+                if (currentTick == next) {
+                    cascade();
+                }
+                continue;
+            }
+
+            int slot = (int) (currentTick & WHEEL_MASK);
+            ArrayList<T> bucket = wheels[0][slot];
+            if (null != bucket) {
+                wheels[0][slot] = null;
+                countsByWheel[0] -= bucket.size();
+                release(bucket, consumer);
+            }
+
+            currentTick++;
+            if (0 == (currentTick & WHEEL_MASK)) {
+                cascade();
+            }
+        }
+    }
+
+    @Override
+    public void drainTo(Consumer<T> consumer) {
+        for (T item : overdue) {
+            consumer.accept(item);
+        }
+        for (ArrayList<T>[] wheel : wheels) {
+            for (ArrayList<T> bucket : wheel) {
+                if (null != bucket) {
+                    for (T item : bucket) {
+                        consumer.accept(item);
+                    }
+                }
+            }
+        }
+        clear();
+    }
+
+    @Override
+    public long getNextExpirationTime() {
+        if (0 == size) {
+            return StreamProcessor.NEVER_EXPIRE;
+        }
+        if (!overdue.isEmpty()) {
+            return 0;
+        }
+
+        // find the first non-empty bucket. The lowest non-empty wheel contains the earliest items
+        for (int w = 0; w < WHEELS; w++) {
+            if (0 == countsByWheel[w]) {
+                continue;
+            }
+
+            int shift = w * WHEEL_BITS;
+            long base = currentTick >>> shift;
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                long t = base + i;
+                if (null != wheels[w][(int) (t & WHEEL_MASK)]) {
+                    // items are released when the first tick of the bucket has passed
+                    return ((t << shift) + 1) * tickDuration;
+                }
+            }
+        }
+
+        return StreamProcessor.NEVER_EXPIRE;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (int w = 0; w < WHEELS; w++) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheels[w][i] = null;
+            }
+            countsByWheel[w] = 0;
+        }
+        overdue = new ArrayList<>();
+        currentTick = -1;
+        size = 0;
+    }
+
+    private void rebase(long tick) {
+        ArrayList<T> items = new ArrayList<>(size);
+        drainTo(items::add);
+        currentTick = tick;
+        for (T item : items) {
+            add(item);
+        }
+    }
+
+    private void schedule(T item, long tick) {
+        if (tick < currentTick) {
+            overdue.add(item);
+            return;
+        }
+
+        // find the lowest wheel which can hold the tick, i.e. the first wheel above which the tick
+        // agrees with the current tick
+        int w = 0;
+        while (w < WHEELS - 1
+                && (tick >>> ((w + 1) * WHEEL_BITS)) != (currentTick >>> ((w + 1) * WHEEL_BITS))) {
+            w++;
+        }
+
+        int slot = (int) ((tick >>> (w * WHEEL_BITS)) & WHEEL_MASK);
+        ArrayList<T> bucket = wheels[w][slot];
+        if (null == bucket) {
+            bucket = new ArrayList<>();
+            wheels[w][slot] = bucket;
+        }
+        bucket.add(item);
+        countsByWheel[w]++;
+    }
+
+    // moves items from higher wheels into lower wheels, when the current tick has entered a new rotation
+    private void cascade() {
+        // find the highest wheel whose rotation has just begun
+        int top = 1;
+        while (top < WHEELS - 1 && 0 == (currentTick & ((1L << ((top + 1) * WHEEL_BITS)) - 1))) {
+            top++;
+        }
+
+        for (int w = top; w >= 1; w--) {
+            int slot = (int) ((currentTick >>> (w * WHEEL_BITS)) & WHEEL_MASK);
+            ArrayList<T> bucket = wheels[w][slot];
+            if (null != bucket) {
+                wheels[w][slot] = null;
+                countsByWheel[w] -= bucket.size();
+                for (T item : bucket) {
+                    schedule(item, item.getExpirationTime() / tickDuration);
+                }
+            }
+        }
+    }
+
+    private void release(ArrayList<T> items, Consumer<T> consumer) {
+        size -= items.size();
+        for (T item : items) {
+            consumer.accept(item);
+        }
+    }
+}
@@ -5,12 +5,14 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 /**
@@ -65,6 +67,30 @@ public class QueryIndexTest {
         assertSolutions(now, vars, tuple, map);
     }
 
+    @Test
+    public void testNodeCount() throws Exception {
+        assertEquals(1, queryIndex.getNodeCount());
+        assertEquals(0, queryIndex.getLargestLeafSize());
+
+        VariableOrConstant<String, String>[] pattern1 = new VariableOrConstant[]{
+                newTerm(null, "x"), newTerm("isRedderThan", null), newTerm(null, "z")};
+        VariableOrConstant<String, String>[] pattern2 = new VariableOrConstant[]{
+                newTerm(null, "x"), newTerm("htmlValue", null), newTerm("ff0000", null)};
+        queryIndex.add(new Query<>(Arrays.asList(pattern1, pattern2), QUERY_TTL));
+        // the root, a wildcard, a node for each predicate, and a node for the object of each
+        assertEquals(6, queryIndex.getNodeCount());
+        assertEquals(1, queryIndex.getLargestLeafSize());
+
+        // a second query with the same pattern shares its nodes
+        Query<String, String> query2 = new Query<>(Collections.singletonList(pattern1), QUERY_TTL);
+        queryIndex.add(query2);
+        assertEquals(6, queryIndex.getNodeCount());
+        assertEquals(2, queryIndex.getLargestLeafSize());
+
+        queryIndex.remove(query2);
+        assertEquals(1, queryIndex.getLargestLeafSize());
+    }
+
     @Test
     public void testLength2Cycle() throws Exception {
         VariableOrConstant<String, String>[] pattern1 = new VariableOrConstant[]{
@@ -420,6 +420,46 @@ public class SolutionIndexTest {
         assertNull(index.getSolutions("y", "teal", then));
     }
 
+    @Test
+    public void testMaxSolutions() throws Exception {
+        index.setMaxSolutions(8);
+
+        for (int i = 0; i < 8; i++) {
+            index.add(new Solution<>(3, 0, bindingOf("x", "c" + i), i < 4 ? now + 1000L * (10 - i) : exp), now);
+        }
+        assertEquals(8, index.size());
+        assertEquals(0, index.getEvictedSolutions());
+
+        // the earliest-expiring solutions are evicted in a batch, to somewhat below the bound
+        index.add(new Solution<>(3, 0, bindingOf("x", "c8"), exp), now);
+        assertEquals(7, index.size());
+        assertEquals(2, index.getEvictedSolutions());
+        assertNull(index.getSolutions("x", "c3", now));
+        assertNull(index.getSolutions("x", "c2", now));
+        assertEquals(1, count(index.getSolutions("x", "c1", now)));
+        assertEquals(1, count(index.getSolutions("x", "c8", now)));
+    }
+
+    @Test
+    public void testSmallMaxSolutionsEvictsBelowBound() throws Exception {
+        index.setMaxSolutions(2);
+
+        for (int i = 0; i < 3; i++) {
+            index.add(new Solution<>(3, 0, bindingOf("x", "c" + i), now + 1000L * (10 - i)), now);
+        }
+
+        // even a bound smaller than the batch fraction is brought below the bound, not merely to it
+        assertEquals(1, index.size());
+        assertEquals(2, index.getEvictedSolutions());
+        assertEquals(1, count(index.getSolutions("x", "c0", now)));
+    }
+
+    private Bindings<String> bindingOf(final String variable, final String value) {
+        Map<String, String> map = new HashMap<>();
+        map.put(variable, value);
+        return new Bindings<>(map, vars);
+    }
+
     private <T> int count(final Iterator<T> iter) {
         int c = 0;
         if (null != iter) {
@@ -0,0 +1,84 @@
+package net.fortytwo.stream.metrics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class HistogramTest {
+
+    @Test
+    public void testBucketsCoverAllValues() {
+        long last = -1;
+        for (long value : new long[]{0, 1, 31, 32, 33, 63, 64, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(value <= Histogram.highestValueOf(bucket));
+            assertTrue(bucket == 0 || value > Histogram.highestValueOf(bucket - 1));
+            assertTrue(value > last);
+            last = value;
+        }
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+
+        Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(10, snapshot.getCount());
+        assertEquals(10, snapshot.getMax());
+        assertEquals(5.5, snapshot.getMean(), 0);
+        assertEquals(5, snapshot.getValueAtPercentile(50));
+        assertEquals(9, snapshot.getValueAtPercentile(90));
+        assertEquals(10, snapshot.getValueAtPercentile(100));
+        assertEquals(1, snapshot.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void testPercentilesAreWithinPrecision() {
+        Histogram histogram = new Histogram();
+        Random random = new Random(42);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (random.nextDouble() * 1000000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        Histogram.Snapshot snapshot = histogram.getSnapshot();
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long actual = snapshot.getValueAtPercentile(percentile);
+            assertTrue(actual >= expected);
+            assertTrue(actual <= expected * 1.04);
+        }
+    }
+
+    @Test
+    public void testReset() {
+        Histogram histogram = new Histogram();
+        histogram.record(100);
+        histogram.record(-5);
+        assertEquals(2, histogram.getSnapshot().getCount());
+        assertEquals(0, Histogram.bucketOf(0));
+
+        histogram.reset();
+        Histogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtPercentile(99));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalPercentile() {
+        new Histogram().getSnapshot().getValueAtPercentile(101);
+    }
+}
@@ -0,0 +1,104 @@
+package net.fortytwo.stream.metrics;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void testSnapshot() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("test.inputs");
+        assertSame(counter, registry.counter("test.inputs"));
+        counter.add(3);
+        counter.increment();
+        registry.histogram("test.latency").record(7);
+        registry.gauge("test.size", () -> 42);
+
+        MetricsSnapshot snapshot = registry.snapshot();
+        assertEquals(4, snapshot.getCount("test.inputs"));
+        assertEquals(0, snapshot.getCount("test.other"));
+        assertEquals(42.0, snapshot.getValues().get("test.size"), 0);
+        assertEquals(7, snapshot.getHistograms().get("test.latency").getMax());
+
+        // snapshots do not change with the metrics
+        counter.increment();
+        assertEquals(4, snapshot.getCount("test.inputs"));
+    }
+
+    @Test
+    public void testRate() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("inputs");
+        MetricsSnapshot earlier = registry.snapshot();
+        Thread.sleep(20);
+        counter.add(1000);
+        MetricsSnapshot later = registry.snapshot();
+
+        double rate = later.getRate("inputs", earlier);
+        assertTrue(rate > 0);
+        assertTrue(rate <= 1000.0 * 1000 / 20);
+    }
+
+    @Test
+    public void testRemoveAll() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("subscription.4.solutions");
+        registry.counter("subscription.42.solutions");
+        registry.histogram("subscription.42.latency");
+        registry.gauge("subscription.42", () -> 0);
+
+        registry.removeAll("subscription.42");
+        MetricsSnapshot snapshot = registry.snapshot();
+        assertTrue(snapshot.getCounts().containsKey("subscription.4.solutions"));
+        assertFalse(snapshot.getCounts().containsKey("subscription.42.solutions"));
+        assertTrue(snapshot.getHistograms().isEmpty());
+        assertTrue(snapshot.getValues().isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("subscription.42.solutions");
+        registry.counter("subscription.42.solutions.late");
+
+        registry.remove("subscription.42.solutions");
+        counter.increment();
+        MetricsSnapshot snapshot = registry.snapshot();
+        assertFalse(snapshot.getCounts().containsKey("subscription.42.solutions"));
+        assertTrue(snapshot.getCounts().containsKey("subscription.42.solutions.late"));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test.inputs").add(5);
+        registry.gauge("test.size", () -> 2.5);
+        registry.histogram("test.latency").record(12);
+
+        String name = "net.fortytwo.stream:type=Metrics,name=test";
+        registry.registerMBean(name);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            assertEquals(5L, server.getAttribute(objectName, "test.inputs"));
+            assertEquals(2.5, server.getAttribute(objectName, "test.size"));
+            assertEquals(12.0, server.getAttribute(objectName, "test.latency.p99"));
+            assertEquals(1.0, server.getAttribute(objectName, "test.latency.count"));
+            assertEquals(7, server.getMBeanInfo(objectName).getAttributes().length - 2);
+        } finally {
+            registry.unregisterMBean(name);
+        }
+    }
+}
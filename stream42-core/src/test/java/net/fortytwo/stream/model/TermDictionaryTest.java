@@ -0,0 +1,66 @@
+package net.fortytwo.stream.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TermDictionaryTest {
+
+    @Test
+    public void testEncodeAndDecode() {
+        TermDictionary<String> dictionary = new TermDictionary<>();
+        assertEquals(0, dictionary.size());
+
+        Long arthur = dictionary.encode("Arthur");
+        Long ford = dictionary.encode("Ford");
+        assertEquals(0L, (long) arthur);
+        assertEquals(1L, (long) ford);
+        assertEquals(2, dictionary.size());
+
+        // the same id instance is returned for an equal term
+        assertSame(arthur, dictionary.encode(new String("Arthur")));
+        assertEquals(2, dictionary.size());
+
+        assertEquals("Arthur", dictionary.decode(arthur));
+        assertEquals("Ford", dictionary.decode(ford));
+
+        assertEquals(1L, dictionary.lookup("Ford"));
+        assertEquals(TermDictionary.NO_ID, dictionary.lookup("Zaphod"));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    public void testGrowth() {
+        TermDictionary<String> dictionary = new TermDictionary<>();
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (long) dictionary.encode("term" + i));
+        }
+        assertEquals(count, dictionary.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("term" + i, dictionary.decode(i));
+        }
+    }
+
+    @Test
+    public void testClear() {
+        TermDictionary<String> dictionary = new TermDictionary<>();
+        dictionary.encode("Arthur");
+        dictionary.encode("Ford");
+        dictionary.clear();
+        assertEquals(0, dictionary.size());
+        assertEquals(TermDictionary.NO_ID, dictionary.lookup("Arthur"));
+        assertEquals(0L, (long) dictionary.encode("Ford"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeUnknownId() {
+        TermDictionary<String> dictionary = new TermDictionary<>();
+        dictionary.encode("Arthur");
+        dictionary.decode(1);
+    }
+}
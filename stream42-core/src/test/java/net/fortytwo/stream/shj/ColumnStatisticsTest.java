@@ -0,0 +1,94 @@
+package net.fortytwo.stream.shj;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ColumnStatisticsTest {
+
+    @Test
+    public void testDistinctCount() {
+        ColumnStatistics<String> stats = new ColumnStatistics<>();
+        assertEquals(0, stats.getDistinctCount());
+        assertEquals(0.0, stats.getAveragePostingSize(), 0.0);
+
+        // small counts are nearly exact
+        for (int i = 0; i < 10; i++) {
+            stats.add("value" + i);
+        }
+        assertEquals(10, stats.getDistinctCount());
+
+        stats.clear();
+        int distinct = 20000;
+        for (int j = 0; j < 3; j++) {
+            for (int i = 0; i < distinct; i++) {
+                stats.add("value" + i);
+            }
+        }
+        assertEquals(3 * distinct, stats.getCount());
+        // allow for several times the standard error of the sketch
+        assertEquals(distinct, stats.getDistinctCount(), distinct * 0.25);
+        assertEquals(3.0, stats.getAveragePostingSize(), 1.0);
+    }
+
+    @Test
+    public void testHeavyHitters() {
+        ColumnStatistics<String> stats = new ColumnStatistics<>();
+
+        // one value accounts for half of the column, and the rest occur once each.
+        // Beyond the first values, only a sample is counted in the summary, so estimates are approximate
+        for (int i = 0; i < 10000; i++) {
+            stats.add("popular");
+            stats.add("rare" + i);
+        }
+
+        assertEquals(10000, stats.getEstimatedPostingSize("popular"), 1000);
+        assertTrue(stats.getEstimatedPostingSize("rare5000") < 100);
+
+        // a value drawn from the column is the popular value half of the time
+        double expected = stats.getExpectedPostingSize();
+        assertEquals(5000, expected, 500);
+        assertTrue(expected > 100 * stats.getAveragePostingSize());
+    }
+
+    @Test
+    public void testStatisticsFollowTheLiveWindow() {
+        // a window of no more than the minimum generation of live values
+        ColumnStatistics<String> stats = new ColumnStatistics<>(ColumnStatistics.DEFAULT_HEAVY_HITTERS, () -> 0);
+
+        for (int i = 0; i < 2000; i++) {
+            stats.add("old");
+        }
+        for (int i = 0; i < 10000; i++) {
+            stats.add("new" + (i % 100));
+        }
+
+        // older generations are forgotten, together with the value which dominated them
+        assertTrue(stats.getCount() < 3000);
+        assertEquals(stats.getAveragePostingSize(), stats.getEstimatedPostingSize("old"), 0.0);
+        assertEquals(100, stats.getDistinctCount(), 10);
+        assertEquals(stats.getCount() / 100.0, stats.getExpectedPostingSize(), stats.getCount() / 200.0);
+    }
+
+    @Test
+    public void testUniformColumn() {
+        ColumnStatistics<String> stats = new ColumnStatistics<>();
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 5; j++) {
+                stats.add("value" + i);
+            }
+        }
+
+        assertEquals(5.0, stats.getAveragePostingSize(), 1.0);
+        assertEquals(5.0, stats.getExpectedPostingSize(), 1.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalHeavyHitterCount() {
+        new ColumnStatistics<String>(0);
+    }
+}
@@ -0,0 +1,77 @@
+package net.fortytwo.stream.shj;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CountingBloomFilterTest {
+
+    @Test
+    public void testAddAndRemove() {
+        CountingBloomFilter filter = new CountingBloomFilter(1000);
+        assertTrue(filter.getCapacity() >= 1000);
+
+        for (int i = 0; i < 1000; i++) {
+            filter.add(("value" + i).hashCode());
+        }
+        assertEquals(1000, filter.size());
+
+        // no false negatives
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain(("value" + i).hashCode()));
+        }
+
+        // few false positives at capacity
+        int falsePositives = 0;
+        for (int i = 1000; i < 11000; i++) {
+            if (filter.mightContain(("value" + i).hashCode())) {
+                falsePositives++;
+            }
+        }
+        assertTrue("too many false positives: " + falsePositives, falsePositives < 1000);
+
+        // removal leaves the remaining entries in place
+        for (int i = 0; i < 500; i++) {
+            filter.remove(("value" + i).hashCode());
+        }
+        assertEquals(500, filter.size());
+        for (int i = 500; i < 1000; i++) {
+            assertTrue(filter.mightContain(("value" + i).hashCode()));
+        }
+
+        for (int i = 500; i < 1000; i++) {
+            filter.remove(("value" + i).hashCode());
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(filter.mightContain(("value" + i).hashCode()));
+        }
+    }
+
+    @Test
+    public void testSaturatedCountersAreNotDecremented() {
+        CountingBloomFilter filter = new CountingBloomFilter(16);
+
+        // more additions of one entry than a counter can hold
+        for (int i = 0; i < 20; i++) {
+            filter.add(42);
+        }
+        for (int i = 0; i < 19; i++) {
+            filter.remove(42);
+        }
+        assertTrue(filter.mightContain(42));
+
+        filter.clear();
+        assertFalse(filter.mightContain(42));
+        assertEquals(0, filter.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalCapacity() {
+        new CountingBloomFilter(0);
+    }
+}
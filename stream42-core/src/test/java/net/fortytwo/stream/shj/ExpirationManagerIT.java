@@ -1,5 +1,7 @@
 package net.fortytwo.stream.shj;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 /**
@@ -7,6 +9,30 @@ import org.junit.Test;
  */
 public class ExpirationManagerIT extends SHJTestBase {
 
+    // note: solutions are ordered by expiration time within their indices, so the manager is tested with
+    // free-standing items, as many as there would be solutions
+    private ExpirationManager<Item> manager;
+    private long simTime;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+
+        manager = new ExpirationManager<Item>() {
+            @Override
+            protected long getNow() {
+                return simTime;
+            }
+        };
+        manager.setVerbose(true);
+    }
+
+    @After
+    public void tearDown() {
+        manager.stop();
+        super.tearDown();
+    }
+
     /*
     On test machine Marvin5, between 1200 and 2400 items/ms are evicted from a heap with as many as 1M items.
     There is the expected logarithmic decline in eviction rate with increasing heap size.
@@ -39,20 +65,20 @@ public class ExpirationManagerIT extends SHJTestBase {
         long maxTtl = span * 10;
 
         for (int i = 1; i <= 10; i++) {
-            solutionExpirationManager.clear();
+            manager.clear();
 
             // build an expiration heap of variable size, with TTLs uniformly distributed
             int total = i * 100000;
             for (int j = 0; j < total; j++) {
                 long ttl = 1L + (long) (random.nextDouble() * maxTtl);
-                solutionExpirationManager.add(randomSolution(4, ttl));
+                manager.add(new Item(ttl));
             }
 
             // evict an approximately constant fraction of items
-            int size = solutionExpirationManager.getHeapSize();
+            int size = manager.getHeapSize();
             long before = System.currentTimeMillis();
-            setCurrentTime(span);
-            int evictCount = solutionExpirationManager.evictExpired();
+            simTime = span;
+            int evictCount = manager.evictExpired();
             long after = System.currentTimeMillis();
             if (evictCount > 0) {
                 System.out.println("###\t\tevicted " + evictCount + " of " + size + " items in " + (after - before) + " ms");
@@ -62,20 +88,20 @@ public class ExpirationManagerIT extends SHJTestBase {
 
     @Test
     public void testEvictionThread() {
-        solutionExpirationManager.start();
+        manager.start();
         try {
             long now;
             long stopAt = System.currentTimeMillis() + 10000L;
             long maxTtl = 10000L;
-            while ((now = setCurrentTime(System.currentTimeMillis())) < stopAt) {
-                solutionExpirationManager.evictExpired();
+            while ((now = simTime = System.currentTimeMillis()) < stopAt) {
+                manager.evictExpired();
                 long ttl = (long) (random.nextDouble() * maxTtl);
-                Solution<String> d = randomSolution(4, now + ttl);
-                solutionExpirationManager.add(d);
-                solutionExpirationManager.notifyFinishedAdding();
+                Item d = new Item(now + ttl);
+                manager.add(d);
+                manager.notifyFinishedAdding();
             }
         } finally {
-            solutionExpirationManager.stop();
+            manager.stop();
         }
     }
 
@@ -84,16 +110,40 @@ public class ExpirationManagerIT extends SHJTestBase {
      */
     @Test
     public void testEvictionThreadWithoutExplicitCall() {
-        solutionExpirationManager.start();
+        manager.start();
 
         long now;
         long stopAt = System.currentTimeMillis() + 10000L;
         long maxTtl = 10000L;
-        while ((now = setCurrentTime(System.currentTimeMillis())) < stopAt) {
+        while ((now = simTime = System.currentTimeMillis()) < stopAt) {
             long ttl = (long) (random.nextDouble() * maxTtl);
-            Solution<String> d = randomSolution(4, now + ttl);
-            solutionExpirationManager.add(d);
-            solutionExpirationManager.notifyFinishedAdding();
+            Item d = new Item(now + ttl);
+            manager.add(d);
+            manager.notifyFinishedAdding();
+        }
+    }
+
+    private static class Item implements Expirable {
+        private final long expirationTime;
+        private boolean expired;
+
+        private Item(long expirationTime) {
+            this.expirationTime = expirationTime;
+        }
+
+        @Override
+        public long getExpirationTime() {
+            return expirationTime;
+        }
+
+        @Override
+        public void expire() {
+            expired = true;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return expired;
         }
     }
 }
@@ -0,0 +1,274 @@
+package net.fortytwo.stream.shj;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class LongSolutionIndexTest {
+
+    protected long simTime;
+
+    private ExpirationManager<Query<String, Long>> queryExpirationManager;
+    private ExpirationManager<ExpirationTicket> solutionExpirationManager;
+
+    protected QueryContext<String, Long> context;
+    protected LongSolutionIndex<Long> index;
+
+    @Before
+    public void setUp() {
+        simTime = 0;
+
+        queryExpirationManager = new ExpirationManager<Query<String, Long>>() {
+            @Override
+            protected long getNow() {
+                return simTime;
+            }
+        };
+        solutionExpirationManager = new ExpirationManager<ExpirationTicket>() {
+            @Override
+            protected long getNow() {
+                return simTime;
+            }
+        };
+
+        // note: ticks of 1 ms, so that ticks are milliseconds since simulated time 0
+        context = new QueryContext<>(queryExpirationManager, solutionExpirationManager, new TimeBase(0, 1));
+        index = createIndex(context, 2);
+    }
+
+    protected LongSolutionIndex<Long> createIndex(QueryContext<String, Long> context, int cardinality) {
+        return new LongSolutionIndex<>(context, cardinality);
+    }
+
+    @After
+    public void tearDown() {
+        queryExpirationManager.stop();
+        solutionExpirationManager.stop();
+    }
+
+    @Test
+    public void testAddAndRetrieve() {
+        assertTrue(index.isEmpty());
+        assertNull(index.getSolutions(0, 1L));
+
+        index.add(solution(1L, 2L));
+        index.add(solution(1L, 3L));
+        index.add(solution(4L, 3L));
+        assertFalse(index.isEmpty());
+        assertEquals(3, index.size());
+
+        assertEquals(2, index.getSolutions(0, 1L).size());
+        assertEquals(1, index.getSolutions(0, 4L).size());
+        assertEquals(2, index.getSolutions(1, 3L).size());
+        assertNull(index.getSolutions(1, 1L));
+        assertEquals(3, index.getSolutions().size());
+
+        Solution<Long> s = index.getSolutions(1, 2L).iterator().next();
+        assertEquals(1L, (long) s.getValues()[0]);
+        assertEquals(2L, (long) s.getValues()[1]);
+    }
+
+    @Test
+    public void testProbe() {
+        int[] noColumns = new int[0];
+        Long[] bindings = new Long[]{1L, 2L};
+        SolutionCursor<Long> rows = context.acquireCursor();
+        index.probe(0, 1L, noColumns, noColumns, bindings, rows);
+        assertEquals(0, rows.size());
+        context.releaseCursor(rows);
+
+        index.add(solution(1L, 2L, 100));
+        index.add(solution(1L, 3L));
+        index.add(solution(4L, 3L));
+
+        rows = context.acquireCursor();
+        index.probe(0, 1L, noColumns, noColumns, bindings, rows);
+        assertEquals(2, rows.size());
+        long sum = 0;
+        int count = 0;
+        while (rows.next()) {
+            assertEquals(1L, (long) rows.getValue(0));
+            sum += rows.getValue(1);
+            count++;
+            if (2L == rows.getValue(1)) {
+                assertEquals(100, rows.getExpirationTick());
+            }
+        }
+        assertEquals(2, count);
+        assertEquals(5L, sum);
+        context.releaseCursor(rows);
+
+        // only rows which agree with the bindings in the checked columns are found
+        rows = context.acquireCursor();
+        index.probe(0, 1L, new int[]{1}, new int[]{1}, bindings, rows);
+        assertEquals(1, rows.size());
+        assertTrue(rows.next());
+        assertEquals(2L, (long) rows.getValue(1));
+        assertFalse(rows.next());
+        context.releaseCursor(rows);
+
+        rows = context.acquireCursor();
+        index.probe(1, 1L, noColumns, noColumns, bindings, rows);
+        assertEquals(0, rows.size());
+        context.releaseCursor(rows);
+    }
+
+    @Test
+    public void testDuplicatesAreMerged() {
+        index.add(solution(1L, 2L, 100));
+        index.add(solution(1L, 2L, 50));
+        assertEquals(1, index.size());
+        assertEquals(100, index.getSolutions(0, 1L).iterator().next().getExpirationTick());
+
+        // a later-expiring solution supersedes the existing one
+        index.add(solution(1L, 2L, 200));
+        assertEquals(1, index.size());
+        assertEquals(200, index.getSolutions(0, 1L).iterator().next().getExpirationTick());
+    }
+
+    @Test
+    public void testExpiration() {
+        index.add(solution(1L, 2L, 100));
+        index.add(solution(1L, 3L, 200));
+        index.add(solution(1L, 4L));
+
+        simTime = 150;
+        // expired solutions are not retrieved, although they are not yet evicted
+        assertEquals(2, index.getSolutions(0, 1L).size());
+        assertNull(index.getSolutions(1, 2L));
+        assertEquals(3, index.size());
+
+        // expired solutions are evicted on the next addition
+        index.add(solution(5L, 6L, 300));
+        assertEquals(3, index.size());
+
+        simTime = 1000;
+        index.add(solution(7L, 8L));
+        assertEquals(2, index.size());
+        assertEquals(1, index.getSolutions(0, 1L).size());
+        assertNull(index.getSolutions(0, 5L));
+    }
+
+    @Test
+    public void testRemove() {
+        index.add(solution(1L, 2L));
+        index.add(solution(1L, 3L));
+        index.add(solution(4L, 3L));
+
+        assertTrue(index.remove(solution(1L, 3L)));
+        assertFalse(index.remove(solution(1L, 3L)));
+        assertEquals(2, index.size());
+        assertEquals(1, index.getSolutions(1, 3L).size());
+
+        assertTrue(index.removePattern(new Long[]{4L, null}));
+        assertFalse(index.removePattern(new Long[]{4L, null}));
+        assertNull(index.getSolutions(1, 3L));
+
+        assertTrue(index.removePattern(new Long[]{null, null}));
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void testManySolutions() {
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            index.add(solution((long) (i % 10), (long) i, i % 2 == 0 ? 100 : TimeBase.NEVER_EXPIRE));
+        }
+        assertEquals(count, index.size());
+        assertEquals(count / 10, index.getSolutions(0, 3L).size());
+
+        for (int i = 0; i < count; i += 3) {
+            index.remove(solution((long) (i % 10), (long) i));
+        }
+        Set<Solution<Long>> remaining = index.getSolutions();
+        assertEquals(count - (count + 2) / 3, remaining.size());
+
+        simTime = 100;
+        index.add(solution(-1L, -1L));
+        for (Solution<Long> s : index.getSolutions()) {
+            assertEquals(TimeBase.NEVER_EXPIRE, s.getExpirationTick());
+        }
+        for (int i = 0; i < count; i++) {
+            Set<Solution<Long>> sols = index.getSolutions(1, (long) i);
+            boolean expected = i % 3 != 0 && i % 2 != 0;
+            assertEquals(expected ? 1 : 0, null == sols ? 0 : sols.size());
+        }
+    }
+
+    @Test
+    public void testSolutionBudget() {
+        List<Solution<Long>> evicted = new LinkedList<>();
+        context.setEvictionListener((i, s) -> evicted.add(s));
+        context.setSolutionBudget(Long.MAX_VALUE, 3);
+
+        index.add(solution(1L, 1L, 300));
+        index.add(solution(1L, 2L, 100));
+        index.add(solution(1L, 3L));
+        assertEquals(3, index.size());
+        assertTrue(evicted.isEmpty());
+
+        // the earliest-expiring solution is evicted first
+        index.add(solution(1L, 4L, 200));
+        assertEquals(3, index.size());
+        assertEquals(1, evicted.size());
+        assertEquals(2L, (long) evicted.get(0).getValues()[1]);
+        assertEquals(100, evicted.get(0).getExpirationTick());
+        assertNull(index.getSolutions(1, 2L));
+
+        // solutions which never expire are evicted last
+        index.add(solution(1L, 5L));
+        index.add(solution(1L, 6L));
+        assertEquals(3, index.size());
+        assertEquals(3, evicted.size());
+        assertNull(index.getSolutions(1, 1L));
+        assertNull(index.getSolutions(1, 4L));
+        index.add(solution(1L, 7L));
+        assertEquals(4, evicted.size());
+        assertEquals(TimeBase.NEVER_EXPIRE, evicted.get(3).getExpirationTick());
+        assertEquals(3, index.size());
+
+        assertEquals(3, context.getStoredSolutions());
+        assertEquals(4, context.getEvictedSolutions());
+        index.clear();
+        assertEquals(0, context.getStoredSolutions());
+    }
+
+    @Test
+    public void testLeastRecentlyJoinedEviction() {
+        context.setEvictionPolicy(EvictionPolicy.LEAST_RECENTLY_JOINED);
+        index = createIndex(context, 2);
+        context.setSolutionBudget(2, Integer.MAX_VALUE);
+
+        index.add(solution(1L, 10L, 100));
+        index.add(solution(2L, 20L));
+        simTime = 10;
+        assertEquals(1, index.getSolutions(0, 1L).size());
+
+        // the unprobed solution is evicted, although it would never expire
+        simTime = 20;
+        index.add(solution(3L, 30L));
+        assertEquals(2, index.size());
+        assertNull(index.getSolutions(0, 2L));
+        assertEquals(1, context.getEvictedSolutions());
+    }
+
+    protected Solution<Long> solution(Long first, Long second) {
+        return new Solution<>(new Long[]{first, second});
+    }
+
+    protected Solution<Long> solution(Long first, Long second, int expirationTime) {
+        return new Solution<>(new Long[]{first, second}, (int) expirationTime);
+    }
+}
@@ -0,0 +1,47 @@
+package net.fortytwo.stream.shj;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class OffHeapSolutionIndexTest extends LongSolutionIndexTest {
+
+    @Override
+    protected LongSolutionIndex<Long> createIndex(QueryContext<String, Long> context, int cardinality) {
+        return new OffHeapSolutionIndex<>(context, cardinality);
+    }
+
+    @Test
+    public void testRowsSpanningSlabs() {
+        // note: more than two full slabs
+        int count = 131200;
+        assertTrue(count > 2 * OffHeapSolutionIndex.SLAB_ROWS);
+        for (int i = 0; i < count; i++) {
+            index.add(solution((long) (i % 100), (long) i, i % 2 == 0 ? 100 : TimeBase.NEVER_EXPIRE));
+        }
+        assertEquals(count, index.size());
+        assertEquals(count / 100, index.getSolutions(0, 42L).size());
+        Solution<Long> last = index.getSolutions(1, (long) count - 1).iterator().next();
+        assertEquals(99L, (long) last.getValues()[0]);
+        assertEquals(TimeBase.NEVER_EXPIRE, last.getExpirationTick());
+
+        // expired rows are evicted, and their space is reused
+        simTime = 100;
+        index.add(solution(-1L, -1L));
+        assertEquals(count / 2 + 1, index.size());
+        assertNull(index.getSolutions(1, 0L));
+        for (int i = 0; i < count / 2; i++) {
+            index.add(solution(-2L, (long) -i));
+        }
+        assertEquals(count + 1, index.size());
+        assertEquals(count / 2, index.getSolutions(0, -2L).size());
+
+        assertTrue(index.removePattern(new Long[]{null, null}));
+        assertTrue(index.isEmpty());
+    }
+}
@@ -1,9 +1,13 @@
 package net.fortytwo.stream.shj;
 
 import net.fortytwo.stream.StreamProcessor;
+import net.fortytwo.stream.metrics.MetricsRegistry;
+import net.fortytwo.stream.metrics.MetricsSnapshot;
 import org.junit.Test;
 
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -48,6 +52,277 @@ public class QueryIndexTest extends SHJTestBase {
         // TODO: test that solutions are no longer computed as queries are removed
     }
 
+    @Test
+    public void testExpiredQueriesAreRemoved() {
+        setCurrentTime(0);
+        Query<String, String> query = new Query<>(graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?y", "likes", "?z")),
+                100,
+                context.getTimeBase(),
+                queryIndex,
+                createConsumer("query1"));
+        queryIndex.add(query);
+        assertTrue(queryIndex.add(tuple("Arthur", "knows", "Ford"), StreamProcessor.NEVER_EXPIRE));
+        assertFalse(query.isExpired());
+
+        // the query expires before the next tuple is added, and is removed from the index with its patterns
+        setCurrentTime(200);
+        assertFalse(queryIndex.add(tuple("Ford", "likes", "Zaphod"), StreamProcessor.NEVER_EXPIRE));
+        assertTrue(query.isExpired());
+        assertTrue(queryIndex.isEmpty());
+        assertFalse(queryIndex.remove(query));
+        expectQuerySolutions("query1", 0);
+    }
+
+    @Test
+    public void testAddAll() {
+        List<JoinHelper<String, String>> helpers = addQuery("query1", graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?y", "likes", "?z"))).getAllHelpers();
+
+        boolean[] added = queryIndex.addAll(new String[][]{
+                tuple("Arthur", "knows", "Ford"),
+                tuple("Ford", "likes", "Zaphod"),
+                tuple("Ford", "hates", "Vogons"),
+                tuple("Ford", "likes", "Trillian")
+        }, new long[]{100, 100, 100, StreamProcessor.NEVER_EXPIRE});
+        assertTrue(added[0]);
+        assertTrue(added[1]);
+        assertFalse(added[2]);
+        assertTrue(added[3]);
+
+        expectIndexSolutions(helpers.get(0), 1);
+        expectIndexSolutions(helpers.get(1), 2);
+        expectQuerySolutions("query1", 2);
+
+        // the batch is evicted together
+        setCurrentTime(100);
+        queryIndex.addAll(new String[][]{tuple("Zaphod", "knows", "Ford")}, new long[]{200});
+        expectIndexSolutions(helpers.get(0), 1);
+        expectIndexSolutions(helpers.get(1), 1);
+        // only the non-expiring "likes" solution remains to be joined
+        expectQuerySolutions("query1", 3);
+    }
+
+    @Test
+    public void testMetrics() {
+        MetricsRegistry registry = new MetricsRegistry();
+        queryIndex.setMetricsRegistry(registry);
+
+        addQuery("query1", graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?y", "likes", "?z")));
+        queryIndex.addAll(new String[][]{
+                tuple("Ford", "likes", "Zaphod"),
+                tuple("Ford", "likes", "Trillian"),
+                tuple("Zaphod", "likes", "Ford"),
+                tuple("Arthur", "knows", "Ford")
+        }, new long[]{100, 100, 100, 100});
+        expectQuerySolutions("query1", 2);
+
+        MetricsSnapshot snapshot = registry.snapshot();
+        assertEquals(4, snapshot.getCount("shj.inputs"));
+        assertEquals(2, snapshot.getCount("shj.solutions"));
+        // each "likes" tuple finds no "knows" solution; the "knows" tuple finds two "likes" solutions
+        assertEquals(4, snapshot.getCount("shj.probes"));
+        assertEquals(3, snapshot.getCount("shj.probeMisses"));
+        assertEquals(1.0, snapshot.getValues().get("shj.queries"), 0);
+        assertEquals(2.0, snapshot.getValues().get("shj.solutionIndices"), 0);
+        assertEquals(3.0, snapshot.getValues().get("shj.largestSolutionIndex"), 0);
+        assertEquals(1.0, snapshot.getValues().get("shj.largestConsumerCount"), 0);
+        // the root, a shared variable node, a node for each predicate, and a variable node beneath each
+        assertEquals(6.0, snapshot.getValues().get("shj.nodes"), 0);
+        assertEquals(4.0, snapshot.getValues().get("shj.storedSolutions"), 0);
+        assertEquals(2, snapshot.getHistograms().get("shj.joinFanOut").getMax());
+
+        setCurrentTime(150);
+        queryIndex.addAll(new String[][]{tuple("Ford", "knows", "Arthur")}, new long[]{200});
+        snapshot = registry.snapshot();
+        assertEquals(1.0, snapshot.getValues().get("shj.storedSolutions"), 0);
+        assertEquals(50, snapshot.getHistograms().get("shj.expirationLag").getMax());
+
+        // metrics may be disabled again
+        queryIndex.setMetricsRegistry(null);
+        queryIndex.add(tuple("Trillian", "knows", "Arthur"), 200);
+        assertEquals(5, registry.snapshot().getCount("shj.inputs"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddAllRequiresExpirationTimes() {
+        queryIndex.addAll(new String[][]{tuple("Arthur", "knows", "Ford")}, new long[0]);
+    }
+
+    @Test
+    public void testRepeatedTuplesAreNotRejoined() {
+        AtomicInteger produced = new AtomicInteger();
+        addCountingQuery(produced);
+
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), 100);
+        queryIndex.add(tuple("Ford", "likes", "Zaphod"), 100);
+        assertEquals(1, produced.get());
+
+        // a repeat which adds nothing new is not joined again
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), 100);
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), 50);
+        assertEquals(1, produced.get());
+
+        // by default, a repeat which extends the expiration time of a solution is joined again
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), 200);
+        assertEquals(2, produced.get());
+    }
+
+    @Test
+    public void testTicksWrapAround() {
+        AtomicInteger produced = new AtomicInteger();
+        List<JoinHelper<String, String>> helpers = addCountingQuery(produced).getAllHelpers();
+
+        // long after the 32-bit range of ticks has been used up, solutions are still produced, and still expire
+        long now = setCurrentTime(3L * Integer.MAX_VALUE * context.getTimeBase().getTickDuration());
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), now + 100);
+        queryIndex.add(tuple("Ford", "likes", "Zaphod"), now + 100);
+        assertEquals(1, produced.get());
+        expectIndexSolutions(helpers.get(0), 1);
+
+        setCurrentTime(now + 100);
+        queryIndex.add(tuple("Ford", "likes", "Trillian"), now + 200);
+        assertEquals(1, produced.get());
+        expectIndexSolutions(helpers.get(0), 0);
+        expectIndexSolutions(helpers.get(1), 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfRangeExpirationTimesAreRejected() {
+        addCountingQuery(new AtomicInteger());
+
+        long span = TimeBase.MAX_SPAN * context.getTimeBase().getTickDuration();
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), span + context.getTimeBase().getTickDuration());
+    }
+
+    @Test
+    public void testDuplicateSuppression() {
+        context.setDuplicateSuppression(true);
+        setCurrentTime(0);
+        AtomicInteger produced = new AtomicInteger();
+        List<JoinHelper<String, String>> helpers = addCountingQuery(produced).getAllHelpers();
+
+        assertTrue(queryIndex.add(tuple("Arthur", "knows", "Ford"), 100));
+        assertTrue(queryIndex.add(tuple("Ford", "likes", "Zaphod"), 100));
+        assertEquals(1, produced.get());
+
+        // an exact repeat is skipped entirely
+        assertFalse(queryIndex.add(tuple("Arthur", "knows", "Ford"), 100));
+        assertEquals(1, produced.get());
+
+        // a repeat with a later expiration time extends the stored solution, without joining it again
+        assertTrue(queryIndex.add(tuple("Arthur", "knows", "Ford"), 300));
+        assertEquals(1, produced.get());
+        Solution<String> solution = helpers.get(0).getSolutions().iterator().next();
+        assertEquals(300, context.getTimeBase().toExpirationTime(solution.getExpirationTick(), 100));
+
+        // the extended solution outlives its original expiration time
+        setCurrentTime(150);
+        queryIndex.add(tuple("Ford", "likes", "Trillian"), 500);
+        expectIndexSolutions(helpers.get(0), 1);
+        expectIndexSolutions(helpers.get(1), 1);
+        assertEquals(2, produced.get());
+
+        // once a tuple has expired, it is no longer a repeat
+        setCurrentTime(400);
+        assertTrue(queryIndex.add(tuple("Arthur", "knows", "Ford"), 600));
+        assertEquals(3, produced.get());
+
+        // a new query with only existing tuple patterns does not affect the suppression of repeats
+        addCountingQuery(new AtomicInteger());
+        assertFalse(queryIndex.add(tuple("Arthur", "knows", "Ford"), 600));
+        assertEquals(3, produced.get());
+
+        // a removed tuple is forgotten, while other tuples are still remembered
+        assertTrue(queryIndex.remove(tuple("Ford", "likes", "Trillian")));
+        assertTrue(queryIndex.add(tuple("Ford", "likes", "Trillian"), 500));
+        assertEquals(4, produced.get());
+        assertFalse(queryIndex.add(tuple("Arthur", "knows", "Ford"), 600));
+
+        // a new query with a new tuple pattern receives repeats of tuples added before it
+        addQuery("query2", graphPattern(tuplePattern("?a", "knows", "Ford")));
+        assertTrue(queryIndex.add(tuple("Arthur", "knows", "Ford"), 600));
+        expectQuerySolutions("query2", 1);
+        assertEquals(4, produced.get());
+    }
+
+    @Test
+    public void testDuplicateSuppressionForgetsUnstoredAndEvictedTuples() {
+        context.setDuplicateSuppression(true);
+        context.setSolutionBudget(Long.MAX_VALUE, 1);
+        setCurrentTime(0);
+        AtomicInteger produced = new AtomicInteger();
+        List<JoinHelper<String, String>> helpers = addCountingQuery(produced).getAllHelpers();
+
+        // a tuple which matches no tuple pattern is not remembered
+        assertFalse(queryIndex.add(tuple("Arthur", "hates", "Ford"), 100));
+        assertEquals(0, queryIndex.getDuplicateWindowSize());
+
+        assertTrue(queryIndex.add(tuple("Arthur", "knows", "Ford"), 100));
+        assertEquals(1, queryIndex.getDuplicateWindowSize());
+
+        // the first tuple is evicted over the per-index budget, so its repeat is new input
+        assertTrue(queryIndex.add(tuple("Zaphod", "knows", "Ford"), 200));
+        expectIndexSolutions(helpers.get(0), 1);
+        // only the evicted tuple is forgotten; a repeat of the other is still skipped
+        assertEquals(1, queryIndex.getDuplicateWindowSize());
+        assertFalse(queryIndex.add(tuple("Zaphod", "knows", "Ford"), 200));
+        assertTrue(queryIndex.add(tuple("Arthur", "knows", "Ford"), 100));
+        assertTrue(queryIndex.add(tuple("Ford", "likes", "Marvin"), 100));
+        assertEquals(1, produced.get());
+    }
+
+    @Test
+    public void testReentrantJoinsHaveFramesOfTheirOwn() {
+        List<String> outer = new LinkedList<>();
+        AtomicInteger inner = new AtomicInteger();
+        queryIndex.add(new Query<>(graphPattern(
+                tuplePattern("?a", "admires", "?b"),
+                tuplePattern("?b", "trusts", "?c"),
+                tuplePattern("?c", "likes", "?d")),
+                StreamProcessor.NEVER_EXPIRE,
+                context.getTimeBase(),
+                queryIndex,
+                (mapping, expirationTime) -> inner.incrementAndGet()));
+        queryIndex.add(new Query<>(graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?y", "likes", "?z")),
+                StreamProcessor.NEVER_EXPIRE,
+                context.getTimeBase(),
+                queryIndex,
+                (mapping, expirationTime) -> {
+                    // a larger join runs within this one, while this join's frame is still in use
+                    queryIndex.add(tuple(mapping.get("?z"), "admires", mapping.get("?x")), StreamProcessor.NEVER_EXPIRE);
+                    outer.add(mapping.get("?x") + " " + mapping.get("?z"));
+                }));
+
+        queryIndex.add(tuple("Ford", "likes", "Zaphod"), StreamProcessor.NEVER_EXPIRE);
+        queryIndex.add(tuple("Ford", "likes", "Trillian"), StreamProcessor.NEVER_EXPIRE);
+        queryIndex.add(tuple("Arthur", "trusts", "Ford"), StreamProcessor.NEVER_EXPIRE);
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), StreamProcessor.NEVER_EXPIRE);
+
+        assertEquals(2, outer.size());
+        assertTrue(outer.contains("Arthur Zaphod"));
+        assertTrue(outer.contains("Arthur Trillian"));
+        assertEquals(4, inner.get());
+    }
+
+    private Query<String, String> addCountingQuery(AtomicInteger produced) {
+        Query<String, String> query = new Query<>(graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?y", "likes", "?z")),
+                StreamProcessor.NEVER_EXPIRE,
+                context.getTimeBase(),
+                queryIndex,
+                (mapping, expirationTime) -> produced.incrementAndGet());
+        queryIndex.add(query);
+        return query;
+    }
+
     @Test
     public void testRemoveTuples() {
         List<JoinHelper<String, String>> consumers1, consumers2;
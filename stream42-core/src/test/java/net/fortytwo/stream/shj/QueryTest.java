@@ -4,8 +4,13 @@ import net.fortytwo.stream.StreamProcessor;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
@@ -439,6 +444,53 @@ public class QueryTest extends SHJTestBase {
         expectQuerySolutions("query1", 4);
     }
 
+    @Test
+    public void testSolutionsExpire() {
+        List<JoinHelper<String, String>> consumers1;
+        JoinHelper<String, String> consumer1a;
+
+        setCurrentTime(0);
+        consumers1 = addQuery("query1", graphPattern(
+                tuplePattern("?x", "knows", "?y"))).getAllHelpers();
+        consumer1a = consumers1.get(0);
+
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), 100L);
+        queryIndex.add(tuple("Ford", "knows", "Zaphod"), 1000L);
+        expectIndexSolutions(consumer1a, 2);
+
+        // the first solution is evicted as the next tuple is added
+        setCurrentTime(500);
+        queryIndex.add(tuple("Arthur", "likes", "Trillian"), StreamProcessor.NEVER_EXPIRE);
+        expectIndexSolutions(consumer1a, 1);
+
+        // a later-expiring duplicate supersedes the second solution, which therefore does not expire
+        queryIndex.add(tuple("Ford", "knows", "Zaphod"), 2000L);
+        setCurrentTime(1500);
+        queryIndex.add(tuple("Arthur", "likes", "Trillian"), StreamProcessor.NEVER_EXPIRE);
+        expectIndexSolutions(consumer1a, 1);
+
+        setCurrentTime(2500);
+        queryIndex.add(tuple("Arthur", "likes", "Trillian"), StreamProcessor.NEVER_EXPIRE);
+        expectIndexSolutions(consumer1a, 0);
+    }
+
+    @Test
+    public void testLongPathQuery() {
+        // a query too large for its join plan to be tabulated in advance
+        int length = 20;
+        TuplePattern<String, String>[] patterns = new TuplePattern[length];
+        for (int i = 0; i < length; i++) {
+            patterns[i] = tuplePattern("?x" + i, "next", "?x" + (i + 1));
+        }
+        addQuery("query1", graphPattern(patterns));
+
+        for (int i = length; i >= 0; i--) {
+            queryIndex.add(tuple("node" + i, "next", "node" + (i + 1)), StreamProcessor.NEVER_EXPIRE);
+        }
+        // one path of the full length begins at each of the first two nodes
+        expectQuerySolutions("query1", 2);
+    }
+
     @Test
     public void testPathQueries1() {
         List<JoinHelper<String, String>> consumers1;
@@ -521,6 +573,92 @@ public class QueryTest extends SHJTestBase {
         expectQuerySolutions("query1", 27);
     }
 
+    @Test
+    public void testParallelDispatch() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            context.setParallelDispatch(pool, 2);
+
+            int queries = 50;
+            for (int i = 0; i < queries; i++) {
+                // all queries share a single solution index, to which each query subscribes twice
+                addQuery("query" + i, graphPattern(
+                        tuplePattern("?x", "knows", "?y"),
+                        tuplePattern("?y", "knows", "?z"),
+                        tuplePattern("?z", "knows", "?a"),
+                        tuplePattern("?a", "knows", "?b")));
+            }
+
+            addExampleTuples();
+            for (int i = 0; i < queries; i++) {
+                expectQuerySolutions("query" + i, 27);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedJoins() {
+        context.setJoinSharing(true);
+
+        Query<String, String> query1 = addQuery("query1", graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?y", "knows", "?z"),
+                tuplePattern("?z", "knows", "?a"),
+                tuplePattern("?a", "knows", "?b")));
+        // the same pair of patterns, with other variable names
+        Query<String, String> query2 = addQuery("query2", graphPattern(
+                tuplePattern("?a", "knows", "?b"),
+                tuplePattern("?b", "knows", "?c")));
+        // the same pair, in the opposite order
+        Query<String, String> query3 = addQuery("query3", graphPattern(
+                tuplePattern("?b", "knows", "?c"),
+                tuplePattern("?a", "knows", "?b")));
+
+        // query 1 joins two instances of the shared pair, and the other queries one instance each
+        assertEquals(2, query1.getAllHelpers().size());
+        assertEquals(1, query2.getAllHelpers().size());
+        assertEquals(1, query3.getAllHelpers().size());
+        assertSame(query1.getAllHelpers().get(0).getSolutionIndex(),
+                query2.getAllHelpers().get(0).getSolutionIndex());
+        assertSame(query2.getAllHelpers().get(0).getSolutionIndex(),
+                query3.getAllHelpers().get(0).getSolutionIndex());
+
+        addExampleTuples();
+        expectQuerySolutions("query1", 27);
+        expectQuerySolutions("query2", 10);
+        expectQuerySolutions("query3", 10);
+
+        // a query added later sees only solutions derived from new tuples
+        Query<String, String> query4 = addQuery("query4", graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?y", "knows", "?z")));
+        queryIndex.add(tuple("Marvin", "knows", "Arthur"), StreamProcessor.NEVER_EXPIRE);
+        expectQuerySolutions("query4", 5);
+
+        // a new shared join over existing solution indices is populated with the solutions they already contain
+        Query<String, String> query5 = addQuery("query5", graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?x", "knows", "?z")));
+        JoinHelper<String, String> helper5 = query5.getAllHelpers().get(0);
+        expectIndexSolutions(helper5, 22);
+        expectSolutions(helper5, 16, "?x", "Arthur");
+
+        // joined solutions are removed along with the tuples from which they were derived
+        queryIndex.remove(tuple("Arthur", "knows", "Ford"));
+        expectIndexSolutions(helper5, 15);
+        expectSolutions(helper5, 9, "?x", "Arthur");
+
+        for (Query<String, String> query : new Query[]{query1, query2, query3, query5}) {
+            assertTrue(queryIndex.remove(query));
+        }
+        // the pair shared with query 4 is retained
+        assertFalse(queryIndex.isEmpty());
+        assertTrue(queryIndex.remove(query4));
+        assertTrue(queryIndex.isEmpty());
+    }
+
     private void addExampleTuples() {
         for (String[] tuple : new String[][]{
                 {"Arthur", "knows", "Trillian"},
@@ -5,12 +5,11 @@ import net.fortytwo.stream.model.VariableOrConstant;
 import org.junit.After;
 import org.junit.Before;
 
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 
 import static org.junit.Assert.assertEquals;
@@ -22,7 +21,7 @@ import static org.junit.Assert.assertNull;
  */
 public class SHJTestBase {
 
-    protected ExpirationManager<Solution<String>> solutionExpirationManager;
+    protected ExpirationManager<ExpirationTicket> solutionExpirationManager;
     private ExpirationManager<Query<String, String>> queryExpirationManager;
 
     private long simTime;
@@ -33,30 +32,9 @@ public class SHJTestBase {
 
     protected QueryIndex<String, String> queryIndex;
 
+    // note: thread-safe, as solutions of different queries may be handled concurrently
     private final Map<String, Set<CompleteSolution<String, String>>> solutionsByName
-            = new HashMap<>();
-
-    private final Index<Solution<String>> noopIndex = new Index<Solution<String>>() {
-        @Override
-        public void add(Solution<String> toAdd) {
-            // do nothing
-        }
-
-        @Override
-        public boolean remove(Solution<String> toRemove) {
-            return false;
-        }
-
-        @Override
-        public void clear() {
-            // do nothing
-        }
-
-        @Override
-        public boolean isEmpty() {
-            return false;
-        }
-    };
+            = new ConcurrentHashMap<>();
 
     @Before
     public void setUp() {
@@ -70,7 +48,7 @@ public class SHJTestBase {
         };
         queryExpirationManager.setVerbose(true);
 
-        solutionExpirationManager = new ExpirationManager<Solution<String>>() {
+        solutionExpirationManager = new ExpirationManager<ExpirationTicket>() {
             @Override
             protected long getNow() {
                 return simTime;
@@ -95,11 +73,11 @@ public class SHJTestBase {
     }
 
     protected Solution<String> newSolution(String[] values) {
-        return new Solution<>(values, StreamProcessor.NEVER_EXPIRE, noopIndex);
+        return new Solution<>(values);
     }
 
     protected Solution<String> newSolution(String[] values, long expTime) {
-        return new Solution<>(values, expTime, noopIndex);
+        return new Solution<>(values, context.getTimeBase().toExpirationTick(expTime, simTime));
     }
 
     protected Solution<String> randomSolution(int tupleLength, long expTime) {
@@ -107,7 +85,7 @@ public class SHJTestBase {
         for (int i = 0; i < values.length; i++) {
             values[i] = "value" + random.nextInt();
         }
-        return new Solution<>(values, expTime, noopIndex);
+        return new Solution<>(values, context.getTimeBase().toExpirationTick(expTime, simTime));
     }
 
     protected GraphPattern<String, String> graphPattern(TuplePattern<String, String>... patterns) {
@@ -136,11 +114,8 @@ public class SHJTestBase {
 
     protected BiConsumer<Map<String, String>, Long> createConsumer(final String name) {
         return (mapping, expTime) -> {
-            Set<CompleteSolution<String, String>> set = solutionsByName.get(name);
-            if (null == set) {
-                set = new HashSet<>();
-                solutionsByName.put(name, set);
-            }
+            Set<CompleteSolution<String, String>> set
+                    = solutionsByName.computeIfAbsent(name, n -> ConcurrentHashMap.newKeySet());
             CompleteSolution<String, String> comp = new CompleteSolution<>(mapping, expTime);
             set.add(comp);
         };
@@ -190,11 +165,14 @@ public class SHJTestBase {
 
         query = new Query<>(
                 pattern, StreamProcessor.NEVER_EXPIRE,
-                context.getQueryExpirationManager(),
+                context.getTimeBase(),
+                queryIndex,
                 createConsumer(name));
         queryIndex.add(query);
         consumers = query.getAllHelpers();
-        assertEquals(pattern.getPatterns().length, consumers.size());
+        if (!context.isJoinSharing()) {
+            assertEquals(pattern.getPatterns().length, consumers.size());
+        }
         return query;
     }
 
@@ -0,0 +1,134 @@
+package net.fortytwo.stream.shj;
+
+import net.fortytwo.stream.StreamProcessor;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SolutionCheckpointTest extends SHJTestBase {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        setCurrentTime(0);
+        addQuery("query1", graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?y", "likes", "?z")));
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), 1000);
+        queryIndex.add(tuple("Zaphod", "knows", "Trillian"), StreamProcessor.NEVER_EXPIRE);
+        queryIndex.add(tuple("Ford", "hates", "Vogons"), 1000);
+
+        byte[] checkpoint = write();
+
+        // restart, with a new time base
+        restart(500);
+        List<JoinHelper<String, String>>[] helpers = new List[1];
+        assertEquals(2, read(checkpoint, () -> helpers[0] = addQuery("query2", graphPattern(
+                tuplePattern("?a", "knows", "?b"),
+                tuplePattern("?b", "likes", "?c"))).getAllHelpers()));
+        expectIndexSolutions(helpers[0].get(0), 2);
+        expectIndexSolutions(helpers[0].get(1), 0);
+        // restored solutions do not produce complete solutions by themselves
+        expectQuerySolutions("query2", 0);
+
+        // restored solutions join with new ones
+        queryIndex.add(tuple("Ford", "likes", "Zaphod"), 2000);
+        expectQuerySolutions("query2", 1);
+
+        // restored solutions expire at their original expiration times
+        setCurrentTime(1000);
+        queryIndex.add(tuple("Trillian", "likes", "Marvin"), 2000);
+        expectIndexSolutions(helpers[0].get(0), 1);
+        expectQuerySolutions("query2", 2);
+    }
+
+    @Test
+    public void testExpiredSolutionsAreDiscarded() throws Exception {
+        setCurrentTime(0);
+        addQuery("query1", graphPattern(tuplePattern("?x", "knows", "?y")));
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), 1000);
+        queryIndex.add(tuple("Zaphod", "knows", "Trillian"), StreamProcessor.NEVER_EXPIRE);
+
+        byte[] checkpoint = write();
+
+        restart(1000);
+        List<JoinHelper<String, String>>[] helpers = new List[1];
+        assertEquals(1, read(checkpoint, () -> helpers[0] = addQuery("query2", graphPattern(
+                tuplePattern("?a", "knows", "?b"))).getAllHelpers()));
+        expectIndexSolutions(helpers[0].get(0), 1);
+    }
+
+    @Test
+    public void testPatternsNotAddedAgainAreDiscarded() throws Exception {
+        setCurrentTime(0);
+        addQuery("query1", graphPattern(tuplePattern("?x", "knows", "?y")));
+        addQuery("query2", graphPattern(tuplePattern("?x", "likes", "?x")));
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), 1000);
+        queryIndex.add(tuple("Ford", "likes", "Ford"), 1000);
+
+        byte[] checkpoint = write();
+
+        restart(0);
+        // the repeated variable distinguishes the patterns
+        List<JoinHelper<String, String>>[] helpers = new List[1];
+        assertEquals(1, read(checkpoint, () -> helpers[0] = addQuery("query3", graphPattern(
+                tuplePattern("?z", "likes", "?z"))).getAllHelpers()));
+        expectIndexSolutions(helpers[0].get(0), 1);
+
+        // staged solutions do not outlast the restore
+        helpers[0] = addQuery("query4", graphPattern(tuplePattern("?x", "knows", "?y"))).getAllHelpers();
+        expectIndexSolutions(helpers[0].get(0), 0);
+    }
+
+    @Test
+    public void testRestoreIntoSharedJoins() throws Exception {
+        setCurrentTime(0);
+        addQuery("query1", graphPattern(
+                tuplePattern("?x", "knows", "?y"),
+                tuplePattern("?y", "likes", "?z")));
+        queryIndex.add(tuple("Arthur", "knows", "Ford"), 1000);
+
+        byte[] checkpoint = write();
+
+        restart(0);
+        context.setJoinSharing(true);
+        read(checkpoint, () -> addQuery("query2", graphPattern(
+                tuplePattern("?a", "knows", "?b"),
+                tuplePattern("?b", "likes", "?c"))));
+
+        queryIndex.add(tuple("Ford", "likes", "Zaphod"), 1000);
+        expectQuerySolutions("query2", 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidCheckpoint() throws Exception {
+        read(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, () -> {
+        });
+    }
+
+    private byte[] write() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SolutionCheckpoint.write(queryIndex, new DataOutputStream(bytes), (value, out) -> out.writeUTF(value));
+        return bytes.toByteArray();
+    }
+
+    private long read(byte[] checkpoint, Runnable registration) throws IOException {
+        return SolutionCheckpoint.read(queryIndex, new DataInputStream(new ByteArrayInputStream(checkpoint)),
+                DataInputStream::readUTF, registration);
+    }
+
+    private void restart(long now) {
+        tearDown();
+        setCurrentTime(now);
+        setUp();
+    }
+}
@@ -2,9 +2,14 @@ package net.fortytwo.stream.shj;
 
 import org.junit.Test;
 
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -33,16 +38,233 @@ public class SolutionIndexTest extends SHJTestBase {
 
         values = new String[]{"Arthur", "Ford"};
 
-        solution = new Solution<>(values, solutionIndex);
+        solution = new Solution<>(values);
         solutionIndex.add(solution);
         assertFalse(solutionIndex.isEmpty());
     }
 
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        testConcurrentAdd(new SolutionIndex<>(context, 2));
+    }
+
+    @Test
+    public void testConcurrentAddWithFilters() throws Exception {
+        testConcurrentAdd(new SolutionIndex<>(context, 2, true));
+    }
+
+    @Test
+    public void testFilters() {
+        SolutionIndex<String> solutionIndex = new SolutionIndex<>(context, 2, true);
+
+        // enough distinct values for the filters to grow several times
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            solutionIndex.add(newSolution(new String[]{"s" + i % 100, "o" + i}));
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, solutionIndex.getSolutions(1, "o" + i).size());
+        }
+        assertEquals(count / 100, solutionIndex.getSolutions(0, "s42").size());
+        assertNull(solutionIndex.getSolutions(0, "o42"));
+        assertNull(solutionIndex.getSolutions(1, "o" + count));
+
+        // removed values are no longer found
+        assertTrue(solutionIndex.removePattern(new String[]{"s42", null}));
+        assertNull(solutionIndex.getSolutions(0, "s42"));
+        assertNull(solutionIndex.getSolutions(1, "o42"));
+        assertEquals(1, solutionIndex.getSolutions(1, "o43").size());
+
+        solutionIndex.clear();
+        assertNull(solutionIndex.getSolutions(0, "s43"));
+        solutionIndex.add(newSolution(new String[]{"s43", "o43"}));
+        assertEquals(1, solutionIndex.getSolutions(0, "s43").size());
+    }
+
+    private void testConcurrentAdd(final SolutionIndex<String> solutionIndex) throws Exception {
+        final int threads = 8, perThread = 2000, distinct = 500;
+
+        List<Thread> producers = new LinkedList<>();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            producers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    // producers overlap, so that many additions are duplicates or supersede one another
+                    int n = (i + offset) % distinct;
+                    solutionIndex.add(newSolution(new String[]{"s" + n % 10, "o" + n}, i));
+                }
+            }));
+        }
+        for (Thread t : producers) {
+            t.start();
+        }
+        for (Thread t : producers) {
+            t.join();
+        }
+
+        assertEquals(distinct, solutionIndex.getSolutions().size());
+        int total = 0;
+        for (int i = 0; i < 10; i++) {
+            Set<Solution<String>> sols = solutionIndex.getSolutions(0, "s" + i);
+            assertEquals(distinct / 10, sols.size());
+            total += sols.size();
+        }
+        assertEquals(distinct, total);
+        for (int n = 0; n < distinct; n++) {
+            assertEquals(1, solutionIndex.getSolutions(1, "o" + n).size());
+        }
+    }
+
+    @Test
+    public void testExpiration() {
+        SolutionIndex<String> solutionIndex = new SolutionIndex<>(context, 2);
+        setCurrentTime(0);
+
+        solutionIndex.add(newSolution(new String[]{"Arthur", "Ford"}, 100));
+        solutionIndex.add(newSolution(new String[]{"Arthur", "Zaphod"}, 200));
+        solutionIndex.add(newSolution(new String[]{"Arthur", "Trillian"}));
+        // an earlier-expiring solution reschedules the index
+        solutionIndex.add(newSolution(new String[]{"Ford", "Zaphod"}, 50));
+        // a superseding solution expires later than the solution it displaces
+        solutionIndex.add(newSolution(new String[]{"Arthur", "Ford"}, 300));
+        assertEquals(4, solutionIndex.getSolutions().size());
+
+        // one live ticket per index, plus a tombstone for the superseded ticket
+        assertEquals(2, solutionExpirationManager.getHeapSize());
+
+        setCurrentTime(150);
+        assertEquals(1, solutionExpirationManager.evictExpired());
+        assertEquals(3, solutionIndex.getSolutions().size());
+        assertEquals(3, solutionIndex.getSolutions(0, "Arthur").size());
+        assertNull(solutionIndex.getSolutions(0, "Ford"));
+
+        setCurrentTime(250);
+        assertEquals(1, solutionExpirationManager.evictExpired());
+        assertEquals(2, solutionIndex.getSolutions().size());
+        assertNull(solutionIndex.getSolutions(1, "Zaphod"));
+
+        setCurrentTime(1000);
+        assertEquals(1, solutionExpirationManager.evictExpired());
+        assertEquals(1, solutionIndex.getSolutions().size());
+        assertEquals("Trillian", solutionIndex.getSolutions().iterator().next().getValues()[1]);
+
+        // non-expiring solutions require no ticket
+        assertTrue(solutionExpirationManager.isEmpty());
+    }
+
+    @Test
+    public void testSolutionBudget() {
+        SolutionIndex<String> first = new SolutionIndex<>(context, 2);
+        SolutionIndex<String> second = new SolutionIndex<>(context, 2);
+        List<Solution<String>> evicted = new LinkedList<>();
+        context.setEvictionListener((index, s) -> {
+            assertTrue(index == second);
+            evicted.add(s);
+        });
+        context.setSolutionBudget(4, 3);
+        setCurrentTime(0);
+
+        first.add(newSolution(new String[]{"Arthur", "Ford"}, 100));
+        first.add(newSolution(new String[]{"Arthur", "Zaphod"}));
+        second.add(newSolution(new String[]{"Ford", "Zaphod"}, 300));
+        second.add(newSolution(new String[]{"Ford", "Trillian"}, 200));
+        assertEquals(4, context.getStoredSolutions());
+        assertTrue(evicted.isEmpty());
+
+        // over the overall budget, the largest index evicts its earliest-expiring solution
+        second.add(newSolution(new String[]{"Ford", "Arthur"}, 400));
+        assertEquals(1, evicted.size());
+        assertEquals("Trillian", evicted.get(0).getValues()[1]);
+        assertNull(second.getSolutions(1, "Trillian"));
+        assertEquals(2, first.getSolutions().size());
+        assertEquals(4, context.getStoredSolutions());
+
+        // a superseding solution does not count twice
+        second.add(newSolution(new String[]{"Ford", "Arthur"}, 500));
+        assertEquals(1, evicted.size());
+
+        second.clear();
+        assertEquals(2, context.getStoredSolutions());
+        assertEquals(1, context.getEvictedSolutions());
+    }
+
+    @Test
+    public void testOverallBudgetIsPaidByLargestIndex() {
+        SolutionIndex<String> burst = new SolutionIndex<>(context, 2);
+        SolutionIndex<String> small = new SolutionIndex<>(context, 2);
+        List<Solution<String>> evicted = new LinkedList<>();
+        context.setEvictionListener((index, s) -> {
+            assertTrue(index == burst);
+            evicted.add(s);
+        });
+        context.setSolutionBudget(5, Integer.MAX_VALUE);
+        setCurrentTime(0);
+
+        for (int i = 0; i < 5; i++) {
+            burst.add(newSolution(new String[]{"Ford", "o" + i}, 100 + i));
+        }
+        assertTrue(evicted.isEmpty());
+
+        // a new solution in a small index is kept; the index whose burst filled the budget pays for it
+        small.add(newSolution(new String[]{"Arthur", "Zaphod"}, 50));
+        assertEquals(1, small.getSolutions().size());
+        assertEquals(4, burst.getSolutions().size());
+        assertEquals(1, evicted.size());
+        assertEquals("o0", evicted.get(0).getValues()[1]);
+        assertEquals(5, context.getStoredSolutions());
+
+        // note: stops short of a tie between the two indices, in which either might pay
+        small.add(newSolution(new String[]{"Arthur", "Trillian"}));
+        assertEquals(2, small.getSolutions().size());
+        assertEquals(3, burst.getSolutions().size());
+        assertEquals(2, evicted.size());
+    }
+
+    @Test
+    public void testLeastRecentlyJoinedEviction() {
+        context.setEvictionPolicy(EvictionPolicy.LEAST_RECENTLY_JOINED);
+        SolutionIndex<String> solutionIndex = new SolutionIndex<>(context, 2);
+        context.setSolutionBudget(Long.MAX_VALUE, 2);
+        setCurrentTime(0);
+
+        solutionIndex.add(newSolution(new String[]{"Arthur", "Ford"}, 100));
+        solutionIndex.add(newSolution(new String[]{"Zaphod", "Trillian"}));
+        setCurrentTime(10);
+        assertEquals(1, solutionIndex.getSolutions(0, "Arthur").size());
+
+        // the unprobed solution is evicted, although it would never expire
+        setCurrentTime(20);
+        solutionIndex.add(newSolution(new String[]{"Marvin", "Ford"}));
+        assertEquals(2, solutionIndex.getSolutions().size());
+        assertNull(solutionIndex.getSolutions(0, "Zaphod"));
+        assertEquals(2, solutionIndex.getSolutions(1, "Ford").size());
+    }
+
+    @Test
+    public void testRandomEviction() {
+        context.setEvictionPolicy(EvictionPolicy.RANDOM);
+        SolutionIndex<String> solutionIndex = new SolutionIndex<>(context, 2);
+        context.setSolutionBudget(Long.MAX_VALUE, 100);
+
+        for (int i = 0; i < 1000; i++) {
+            solutionIndex.add(newSolution(new String[]{"s" + i % 10, "o" + i}));
+        }
+        assertEquals(100, solutionIndex.getSolutions().size());
+        assertEquals(100, context.getStoredSolutions());
+        assertEquals(900, context.getEvictedSolutions());
+        int total = 0;
+        for (int i = 0; i < 10; i++) {
+            Set<Solution<String>> sols = solutionIndex.getSolutions(0, "s" + i);
+            total += null == sols ? 0 : sols.size();
+        }
+        assertEquals(100, total);
+    }
+
     private static class TestVisitor implements Consumer<Solution<String>> {
         @Override
         public void accept(Solution<String> solution) {
             System.out.println("### solution " + solution
-                    + " valid until " + solution.getExpirationTime());
+                    + " valid until " + solution.getExpirationTick());
         }
     }
 }
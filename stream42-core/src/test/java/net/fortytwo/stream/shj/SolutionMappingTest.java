@@ -0,0 +1,41 @@
+package net.fortytwo.stream.shj;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SolutionMappingTest {
+
+    @Test
+    public void testMapSemantics() {
+        String[] variables = new String[]{"?x", "?y"};
+        Map<String, Integer> slotByVariable = new HashMap<>();
+        slotByVariable.put("?x", 0);
+        slotByVariable.put("?y", 1);
+
+        Map<String, String> mapping = new SolutionMapping<>(
+                variables, slotByVariable, new String[]{"Arthur", "Ford"});
+        assertEquals(2, mapping.size());
+        assertEquals("Arthur", mapping.get("?x"));
+        assertEquals("Ford", mapping.get("?y"));
+        assertNull(mapping.get("?z"));
+        assertTrue(mapping.containsKey("?y"));
+        assertFalse(mapping.containsKey("?z"));
+
+        Map<String, String> expected = new HashMap<>();
+        expected.put("?x", "Arthur");
+        expected.put("?y", "Ford");
+        assertEquals(expected, mapping);
+        assertEquals(expected.hashCode(), mapping.hashCode());
+        assertEquals(expected, new HashMap<>(mapping));
+    }
+}
@@ -0,0 +1,116 @@
+package net.fortytwo.stream.shj;
+
+import net.fortytwo.stream.StreamProcessor;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TimeBaseTest {
+
+    @Test
+    public void testMillisecondTicksAreExact() {
+        TimeBase timeBase = new TimeBase(1000, 1);
+
+        assertEquals(0, timeBase.toTick(1000));
+        assertEquals(234, timeBase.toExpirationTick(1234, 1000));
+        assertEquals(1234, timeBase.toExpirationTime(timeBase.toExpirationTick(1234, 1000), 1000));
+        assertEquals(-1, timeBase.toTick(999));
+    }
+
+    @Test
+    public void testExpirationTimesAreRoundedUp() {
+        TimeBase timeBase = new TimeBase(1000, 10);
+
+        assertEquals(0, timeBase.toTick(1009));
+        assertEquals(1, timeBase.toTick(1010));
+
+        // an expiration time on a tick boundary is kept exactly
+        assertEquals(1, timeBase.toExpirationTick(1010, 1000));
+        assertEquals(1010, timeBase.toExpirationTime(1, 1000));
+
+        // otherwise, it is rounded up to the end of its tick
+        assertEquals(2, timeBase.toExpirationTick(1011, 1000));
+        assertEquals(2, timeBase.toExpirationTick(1019, 1000));
+        assertEquals(1020, timeBase.toExpirationTime(2, 1000));
+
+        // an item has expired once the current tick reaches its expiration tick
+        int expirationTick = timeBase.toExpirationTick(1015, 1000);
+        assertFalse(TimeBase.isExpired(expirationTick, timeBase.toTick(1014)));
+        assertTrue(TimeBase.isExpired(expirationTick, timeBase.toTick(1020)));
+    }
+
+    @Test
+    public void testNeverExpire() {
+        TimeBase timeBase = new TimeBase(1000, 10);
+
+        assertEquals(TimeBase.NEVER_EXPIRE, timeBase.toExpirationTick(StreamProcessor.NEVER_EXPIRE, 1000));
+        assertEquals(StreamProcessor.NEVER_EXPIRE, timeBase.toExpirationTime(TimeBase.NEVER_EXPIRE, 1000));
+        assertFalse(TimeBase.isExpired(TimeBase.NEVER_EXPIRE, Integer.MAX_VALUE));
+        assertTrue(TimeBase.compare(TimeBase.NEVER_EXPIRE, Integer.MIN_VALUE + 1) > 0);
+    }
+
+    @Test
+    public void testTicksWrapAround() {
+        TimeBase timeBase = new TimeBase(0, 1);
+
+        // long after the 32-bit range of ticks has been used up, ticks still compare by their distance
+        long now = 10L * Integer.MAX_VALUE + 12345;
+        int nowTick = timeBase.toTick(now);
+        int soon = timeBase.toExpirationTick(now + 10, now);
+        int later = timeBase.toExpirationTick(now + TimeBase.MAX_SPAN, now);
+        assertFalse(TimeBase.isExpired(soon, nowTick));
+        assertFalse(TimeBase.isExpired(later, nowTick));
+        assertTrue(TimeBase.compare(soon, later) < 0);
+        assertEquals(soon, TimeBase.min(later, soon));
+        assertTrue(TimeBase.isExpired(soon, timeBase.toTick(now + 10)));
+        assertEquals(now + 10, timeBase.toExpirationTime(soon, now));
+        assertEquals(now + TimeBase.MAX_SPAN, timeBase.toExpirationTime(later, now + 1000));
+
+        // across the end of the range
+        long edge = (long) Integer.MAX_VALUE - 5;
+        int before = timeBase.toExpirationTick(edge, edge - 1);
+        int after = timeBase.toExpirationTick(edge + 20, edge - 1);
+        assertTrue(after < before);
+        assertTrue(TimeBase.compare(before, after) < 0);
+        assertFalse(TimeBase.isExpired(after, timeBase.toTick(edge + 10)));
+        assertTrue(TimeBase.isExpired(after, timeBase.toTick(edge + 20)));
+    }
+
+    @Test
+    public void testReservedTicksAreSkipped() {
+        TimeBase timeBase = new TimeBase(0, 1);
+
+        // neither the tick of non-expiring items, nor the marker of unused storage, is an expiration tick
+        int tick = timeBase.toExpirationTick(Integer.MAX_VALUE, Integer.MAX_VALUE - 1L);
+        assertNotEquals(TimeBase.NEVER_EXPIRE, tick);
+        assertNotEquals(Integer.MIN_VALUE, tick);
+        assertFalse(TimeBase.isExpired(tick, timeBase.toTick(Integer.MAX_VALUE - 1L)));
+    }
+
+    @Test
+    public void testPastExpirationTimesHaveExpired() {
+        TimeBase timeBase = new TimeBase(0, 1);
+
+        long now = 5L * Integer.MAX_VALUE;
+        assertTrue(TimeBase.isExpired(timeBase.toExpirationTick(now - 1000, now), timeBase.toTick(now)));
+        assertTrue(TimeBase.isExpired(timeBase.toExpirationTick(0, now), timeBase.toTick(now)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfRangeTimesAreRejected() {
+        TimeBase timeBase = new TimeBase(0, 1);
+
+        timeBase.toExpirationTick(1000L + TimeBase.MAX_SPAN + 1, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalTickDuration() {
+        new TimeBase(0, 0);
+    }
+}
@@ -0,0 +1,113 @@
+package net.fortytwo.stream.shj;
+
+import net.fortytwo.stream.StreamProcessor;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TimingWheelExpirationQueueTest {
+
+    private final Random random = new Random();
+
+    @Test
+    public void testItemsAreReleasedOnTime() {
+        long tick = 10;
+        TimingWheelExpirationQueue<Item> queue = new TimingWheelExpirationQueue<>(tick);
+        assertEquals(StreamProcessor.NEVER_EXPIRE, queue.getNextExpirationTime());
+
+        long start = 1000000L;
+        Set<Item> pending = new HashSet<>();
+        for (int i = 0; i < 10000; i++) {
+            // a wide range of lifetimes, so that every level of the wheel is used
+            long lifetime = 1 + (long) (Math.pow(random.nextDouble(), 4) * 10000000L);
+            Item item = new Item(start + lifetime);
+            queue.add(item);
+            pending.add(item);
+        }
+        assertEquals(pending.size(), queue.size());
+
+        long now = start;
+        while (!pending.isEmpty()) {
+            now += 1 + random.nextInt(100000);
+            final long time = now;
+            List<Item> released = new LinkedList<>();
+            queue.pollExpired(time, released::add);
+            for (Item item : released) {
+                // never released early
+                assertTrue(item.getExpirationTime() <= time);
+                assertTrue(pending.remove(item));
+            }
+            // never released more than a tick late
+            for (Item item : pending) {
+                assertTrue(item.getExpirationTime() >= time - tick);
+            }
+            assertEquals(pending.size(), queue.size());
+        }
+    }
+
+    @Test
+    public void testItemsAddedOutOfOrder() {
+        TimingWheelExpirationQueue<Item> queue = new TimingWheelExpirationQueue<>(10);
+        Item late = new Item(100000);
+        Item early = new Item(500);
+        queue.add(late);
+        queue.add(early);
+
+        List<Item> released = new LinkedList<>();
+        queue.pollExpired(100, released::add);
+        assertEquals(0, released.size());
+        assertTrue(queue.getNextExpirationTime() <= 510);
+
+        queue.pollExpired(1000, released::add);
+        assertEquals(1, released.size());
+        assertEquals(early, released.get(0));
+
+        queue.pollExpired(200000, released::add);
+        assertEquals(2, released.size());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDrain() {
+        TimingWheelExpirationQueue<Item> queue = new TimingWheelExpirationQueue<>();
+        for (int i = 0; i < 100; i++) {
+            queue.add(new Item(1000L * i));
+        }
+        List<Item> drained = new LinkedList<>();
+        queue.drainTo(drained::add);
+        assertEquals(100, drained.size());
+        assertEquals(0, queue.size());
+    }
+
+    private static class Item implements Expirable {
+        private final long expirationTime;
+
+        private Item(long expirationTime) {
+            this.expirationTime = expirationTime;
+        }
+
+        @Override
+        public long getExpirationTime() {
+            return expirationTime;
+        }
+
+        @Override
+        public void expire() {
+        }
+
+        @Override
+        public boolean isExpired() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package net.fortytwo.stream.sparql;
+
+import net.fortytwo.stream.StreamProcessor;
+import net.fortytwo.stream.sparql.etc.ValueCodec;
+import org.openrdf.model.IRI;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.SimpleValueFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the statements added to a stream processor, for recovery after a crash.
+ * Each batch of statements is logged with its time-to-live and time of arrival, so that a restarted processor
+ * can replay only those statements which have not yet expired (see {@link RDFStreamProcessor#replay}).
+ * <p>
+ * Logging is kept off the path of query processing: adding a batch only places it in a bounded queue,
+ * from which a single writer thread encodes batches into a memory-mapped file.
+ * The writer commits all batches which have arrived since its last commit as a group,
+ * forcing them to storage at most once per group, if at all.
+ * Without forcing, logged batches survive a crash of the process, but not necessarily of the operating system.
+ * <p>
+ * A log is a sequence of records, each consisting of its length, a CRC-32 checksum, the time of arrival,
+ * the time-to-live and the statements of a batch. A record which was only partially written before a crash
+ * fails its checksum, and ends the log.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class InputLog implements Closeable {
+    private static final Logger logger = Logger.getLogger(InputLog.class.getName());
+
+    /**
+     * The default size of each region of the log file which is mapped into memory at a time
+     */
+    public static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The default number of batches which may be waiting to be written before additional batches are blocked
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+
+    private static final ValueCodec valueCodec = new ValueCodec(SimpleValueFactory.getInstance());
+
+    // a marker which stops the writer thread
+    private static final Batch END = new Batch(0, 0, null, null);
+
+    private final FileChannel channel;
+    private final int regionSize;
+    private final boolean forceOnCommit;
+
+    private final BlockingQueue<Batch> queue;
+    private final Thread writerThread;
+
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long position;
+    private final byte[] header = new byte[8];
+
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * Creates a new log, replacing any existing file.
+     * Batches are not forced to storage when committed
+     *
+     * @param file the log file
+     * @throws IOException if the file cannot be created
+     */
+    public InputLog(final Path file) throws IOException {
+        this(file, DEFAULT_REGION_SIZE, DEFAULT_QUEUE_CAPACITY, false);
+    }
+
+    /**
+     * Creates a new log, replacing any existing file
+     *
+     * @param file          the log file
+     * @param regionSize    the size of each region of the file which is mapped into memory at a time, in bytes
+     * @param queueCapacity the number of batches which may be waiting to be written
+     *                      before additional batches are blocked
+     * @param forceOnCommit whether to force each group of batches to storage once it is written
+     * @throws IOException if the file cannot be created
+     */
+    public InputLog(final Path file,
+                    final int regionSize,
+                    final int queueCapacity,
+                    final boolean forceOnCommit) throws IOException {
+        if (regionSize < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("illegal region size or queue capacity");
+        }
+
+        this.regionSize = regionSize;
+        this.forceOnCommit = forceOnCommit;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mapRegion(0);
+
+        writerThread = new Thread(this::writeBatches, "input-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Adds a batch of statements to the log. The batch is written asynchronously;
+     * this method blocks only if the writer has fallen behind by more than the queue capacity
+     *
+     * @param timestamp  the time at which the statements were received, in milliseconds since the Unix epoch
+     * @param ttl        the time-to-live of the statements, in seconds, or {@link StreamProcessor#INFINITE_TTL}
+     * @param statements the statements to log
+     */
+    public void append(final long timestamp, final int ttl, final Statement... statements) {
+        checkOpen();
+        // note: the array is copied, as the caller may reuse it
+        put(new Batch(timestamp, ttl, statements.clone(), null));
+    }
+
+    /**
+     * Waits until all batches added so far have been written, and forced to storage if so configured
+     *
+     * @throws IOException if the log has failed
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        awaitWritten();
+    }
+
+    /**
+     * Writes all remaining batches, and closes the log file
+     *
+     * @throws IOException if the log has failed or cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            awaitWritten();
+        } finally {
+            put(END);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            try {
+                region.force();
+                // note: the mapped region extends beyond the last record
+                channel.truncate(position);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void awaitWritten() throws IOException {
+        CountDownLatch written = new CountDownLatch(1);
+        put(new Batch(0, 0, null, written));
+        try {
+            written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while flushing input log", e);
+        }
+
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    /**
+     * A handler for the batches of a log
+     */
+    public interface BatchHandler {
+        void handle(long timestamp, int ttl, Statement[] statements);
+    }
+
+    /**
+     * Reads the time of arrival of the first batch of a log, e.g. as the start time of a replay in virtual time
+     *
+     * @param file the log file
+     * @return the time of arrival of the first batch, in milliseconds since the Unix epoch,
+     * or -1 if the log contains no complete batch
+     * @throws IOException if the log cannot be read
+     */
+    public static long getStartTime(final Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            DataInputStream data = new DataInputStream(in);
+            int length = data.readInt();
+            data.readInt();
+            // note: the time of arrival is the first field of a record
+            return length < 8 ? -1 : data.readLong();
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the batches of a log which have not yet expired at the given time.
+     * Batches are read in the order in which they were logged, and expired batches are skipped
+     *
+     * @param file    the log file
+     * @param now     the current time, in milliseconds since the Unix epoch
+     * @param handler a handler for each batch with unexpired statements
+     * @return the number of statements passed to the handler
+     * @throws IOException if the log cannot be read
+     */
+    public static long replay(final Path file, final long now, final BatchHandler handler) throws IOException {
+        ValueFactory valueFactory = SimpleValueFactory.getInstance();
+        long replayed = 0, expired = 0;
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            DataInputStream data = new DataInputStream(in);
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[0];
+
+            while (true) {
+                int length, checksum;
+                try {
+                    length = data.readInt();
+                    checksum = data.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                // note: a length of 0 marks the unused remainder of a log which was not closed
+                if (length <= 0) {
+                    break;
+                }
+
+                if (record.length < length) {
+                    record = new byte[length];
+                }
+                try {
+                    data.readFully(record, 0, length);
+                } catch (EOFException e) {
+                    logger.warning("input log ends with an incomplete record");
+                    break;
+                }
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    logger.warning("input log ends with a corrupt record");
+                    break;
+                }
+
+                DataInputStream r = new DataInputStream(new ByteArrayInputStream(record, 0, length));
+                long timestamp = r.readLong();
+                int ttl = r.readInt();
+                int count = r.readInt();
+                if (StreamProcessor.INFINITE_TTL != ttl && timestamp + 1000L * ttl <= now) {
+                    expired += count;
+                    continue;
+                }
+
+                Statement[] statements = new Statement[count];
+                for (int i = 0; i < count; i++) {
+                    statements[i] = valueFactory.createStatement(
+                            (Resource) valueCodec.readValue(r),
+                            (IRI) valueCodec.readValue(r),
+                            valueCodec.readValue(r));
+                }
+                handler.handle(timestamp, ttl, statements);
+                replayed += count;
+            }
+        }
+
+        logger.info("replayed " + replayed + " statements from input log; skipped " + expired + " expired statements");
+        return replayed;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("input log is closed");
+        }
+        if (null != failure) {
+            throw new IllegalStateException("input log has failed", failure);
+        }
+    }
+
+    private void put(final Batch batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while logging inputs", e);
+        }
+    }
+
+    // the writer thread's main loop: writes and commits groups of batches until the log is closed
+    private void writeBatches() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
+        List<Batch> group = new ArrayList<>();
+
+        boolean ended = false;
+        while (!ended) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                logger.warning("input log writer interrupted; no further inputs are logged");
+                failure = new IOException("input log writer interrupted");
+                break;
+            }
+            queue.drainTo(group);
+
+            List<CountDownLatch> flushed = new ArrayList<>();
+            try {
+                for (Batch batch : group) {
+                    if (END == batch) {
+                        ended = true;
+                    } else if (null != batch.flushed) {
+                        flushed.add(batch.flushed);
+                    } else if (null == failure) {
+                        bytes.reset();
+                        batch.writeTo(out);
+                        byte[] record = bytes.toByteArray();
+                        crc.reset();
+                        crc.update(record);
+                        writeRecord(record, (int) crc.getValue());
+                    }
+                }
+
+                if (forceOnCommit && null == failure) {
+                    region.force();
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "failed to write input log; no further inputs are logged", e);
+                failure = e;
+            } finally {
+                group.clear();
+                flushed.forEach(CountDownLatch::countDown);
+            }
+        }
+    }
+
+    private void writeRecord(final byte[] record, final int checksum) throws IOException {
+        putInt(record.length, 0);
+        putInt(checksum, 4);
+        put(header);
+        put(record);
+    }
+
+    private void putInt(final int value, final int offset) {
+        header[offset] = (byte) (value >>> 24);
+        header[offset + 1] = (byte) (value >>> 16);
+        header[offset + 2] = (byte) (value >>> 8);
+        header[offset + 3] = (byte) value;
+    }
+
+    // note: records may span regions
+    private void put(final byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!region.hasRemaining()) {
+                mapRegion(regionStart + regionSize);
+            }
+            int n = Math.min(region.remaining(), bytes.length - offset);
+            region.put(bytes, offset, n);
+            offset += n;
+        }
+        position += bytes.length;
+    }
+
+    private void mapRegion(final long start) throws IOException {
+        if (null != region) {
+            // note: an earlier region is forced only once it is complete
+            region.force();
+        }
+        region = channel.map(FileChannel.MapMode.READ_WRITE, start, regionSize);
+        regionStart = start;
+    }
+
+    private static class Batch {
+        private final long timestamp;
+        private final int ttl;
+        private final Statement[] statements;
+        // for a flush marker, rather than a batch of statements
+        private final CountDownLatch flushed;
+
+        private Batch(final long timestamp,
+                      final int ttl,
+                      final Statement[] statements,
+                      final CountDownLatch flushed) {
+            this.timestamp = timestamp;
+            this.ttl = ttl;
+            this.statements = statements;
+            this.flushed = flushed;
+        }
+
+        private void writeTo(final DataOutputStream out) throws IOException {
+            out.writeLong(timestamp);
+            out.writeInt(ttl);
+            out.writeInt(statements.length);
+            for (Statement s : statements) {
+                valueCodec.writeValue(s.getSubject(), out);
+                valueCodec.writeValue(s.getPredicate(), out);
+                valueCodec.writeValue(s.getObject(), out);
+            }
+            out.flush();
+        }
+    }
+}
@@ -4,13 +4,17 @@ import net.fortytwo.stream.BasicStreamProcessor;
 import net.fortytwo.stream.BasicSubscription;
 import net.fortytwo.stream.StreamProcessor;
 import net.fortytwo.stream.Subscription;
+import net.fortytwo.stream.metrics.Counter;
+import net.fortytwo.stream.metrics.MetricsRegistry;
 import org.openrdf.model.Statement;
 import org.openrdf.model.Value;
 import org.openrdf.query.BindingSet;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
@@ -18,6 +22,7 @@ import java.util.logging.Logger;
 /**
  * A base class for streaming SPARQL 1.1 implementations.
  * Optionally, performance data is generated in the process of query processing.
+ * Inputs may be added by any number of threads concurrently.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
@@ -29,10 +34,16 @@ public abstract class RDFStreamProcessor<C, Q> extends BasicStreamProcessor<Stri
         Queries, Inputs, Solutions,
     }
 
-    private Supplier<Long> clock;
-    private boolean logHasChanged;
+    // note: volatile, as the clock is replaced temporarily while replaying an input log
+    private volatile Supplier<Long> clock;
+    // the virtual clock of this processor, if it runs in virtual time
+    private volatile AtomicLong virtualTime;
+    private volatile InputLog inputLog;
+    private volatile MetricsRegistry metricsRegistry;
+    private volatile boolean logHasChanged;
     private final Map<Quantity, Counter> counters;
-    private long startTime;
+    // note: each producer thread has its own operation start time
+    private final ThreadLocal<Long> startTime = ThreadLocal.withInitial(() -> 0L);
     private final Counter
             countQueries = new Counter(),
             countStatements = new Counter(),
@@ -78,9 +89,217 @@ public abstract class RDFStreamProcessor<C, Q> extends BasicStreamProcessor<Stri
      */
     protected abstract boolean addTuple(Value[] tuple, int ttl, long now);
 
+    /**
+     * Adds a batch of tuples to an internal index, possibly generating new solutions.
+     * By default, tuples are added one at a time; implementations may override this method in order to
+     * amortize per-tuple costs over the batch
+     *
+     * @param tuples the tuples to add
+     * @param ttl    the time-to-live of each tuple, in seconds
+     * @param now    the current time in milliseconds
+     * @return whether the addition of each tuple changed the state of the index
+     */
+    protected boolean[] addTuples(Value[][] tuples, int ttl, long now) {
+        boolean[] changed = new boolean[tuples.length];
+        for (int i = 0; i < tuples.length; i++) {
+            changed[i] = addTuple(tuples[i], ttl, now);
+        }
+        return changed;
+    }
+
     @Override
     public void setClock(final Supplier<Long> clock) {
         this.clock = clock;
+        virtualTime = null;
+    }
+
+    /**
+     * Runs this processor in virtual time, e.g. in order to reproduce recorded traffic.
+     * The clock of this processor is replaced with a virtual clock which moves only when advanced
+     * (see {@link #advanceTime}) or when an input log is replayed (see {@link #replay}),
+     * and expired data is removed synchronously as the clock moves, rather than by background threads.
+     * Queries should be added after this call, so that their expiration times are in virtual time.
+     * Setting another clock (see {@link #setClock}) ends virtual time
+     *
+     * @param startTime the initial time of the virtual clock, in milliseconds,
+     *                  e.g. the time of the first batch of an input log (see {@link InputLog#getStartTime})
+     */
+    public void setVirtualTime(final long startTime) {
+        AtomicLong time = new AtomicLong(startTime);
+        setClock(time::get);
+        virtualTime = time;
+    }
+
+    /**
+     * @return whether this processor runs in virtual time (see {@link #setVirtualTime})
+     */
+    public boolean isVirtualTime() {
+        return null != virtualTime;
+    }
+
+    /**
+     * @return the current time of the virtual clock of this processor, in milliseconds
+     */
+    public long getVirtualTime() {
+        AtomicLong current = virtualTime;
+        if (null == current) {
+            throw new IllegalStateException("processor is not in virtual time");
+        }
+
+        return current.get();
+    }
+
+    /**
+     * Advances the virtual clock of this processor, removing any data which has expired in the meantime
+     *
+     * @param time the new time of the virtual clock, in milliseconds. The clock may not move backward
+     */
+    public void advanceTime(final long time) {
+        AtomicLong current = virtualTime;
+        if (null == current) {
+            throw new IllegalStateException("processor is not in virtual time");
+        }
+        if (time < current.get()) {
+            throw new IllegalArgumentException("virtual time may not move backward: " + time + " < " + current.get());
+        }
+
+        current.set(time);
+        evictExpired(time);
+    }
+
+    /**
+     * Removes data which has expired at the given time, as the virtual clock of this processor has advanced.
+     * The removal is synchronous, so that replay in virtual time is deterministic,
+     * though implementations may defer it to a later advance of the clock, e.g. according to a cleanup policy.
+     * By default, nothing is removed
+     *
+     * @param now the current time, in milliseconds
+     */
+    protected void evictExpired(final long now) {
+    }
+
+    /**
+     * Sets a log to which all statements subsequently added to this processor are appended,
+     * for recovery after a crash (see {@link #replay})
+     *
+     * @param inputLog the input log, or null to stop logging. The log is not closed by this processor
+     */
+    public void setInputLog(final InputLog inputLog) {
+        this.inputLog = inputLog;
+    }
+
+    /**
+     * Enables metrics of this processor: the counts of queries, statements and solutions
+     * ("processor.queries", "processor.inputs", "processor.solutions"), and the count of solutions of
+     * each subscription registered while metrics are enabled ({@code subscription.<id>.solutions}),
+     * which is removed when the subscription is cancelled.
+     * Subclasses may add metrics of their own.
+     * Unlike performance metrics (see {@link #setDoPerformanceMetrics}), these metrics are not logged,
+     * but are read from the registry, e.g. through JMX
+     *
+     * @param registry the registry in which to keep metrics, or null to disable metrics
+     */
+    public void setMetricsRegistry(final MetricsRegistry registry) {
+        if (null != registry) {
+            for (Map.Entry<Quantity, Counter> entry : counters.entrySet()) {
+                Counter counter = entry.getValue();
+                registry.gauge("processor." + entry.getKey().name().toLowerCase(), counter::getCount);
+            }
+        }
+
+        this.metricsRegistry = registry;
+    }
+
+    /**
+     * @return the registry in which metrics of this processor are kept, or null if metrics are disabled
+     */
+    protected MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * Creates the solution counter of a new subscription, if metrics are enabled.
+     * The counter is kept on the subscription, so that counting a solution is a single atomic increment
+     *
+     * @param subscription a subscription which is about to be registered
+     */
+    protected void addMetrics(final BasicSubscription<?, ?, ?> subscription) {
+        MetricsRegistry registry = metricsRegistry;
+        if (null != registry) {
+            subscription.setSolutionCounter(registry.counter(solutionCounterName(subscription)));
+        }
+    }
+
+    /**
+     * Counts a solution of a subscription, if metrics were enabled when the subscription was registered
+     *
+     * @param subscription the subscription which received a solution
+     */
+    protected void countSolution(final BasicSubscription<?, ?, ?> subscription) {
+        Counter counter = subscription.getSolutionCounter();
+        if (null != counter) {
+            counter.increment();
+        }
+    }
+
+    /**
+     * Removes the metrics of a subscription, if any.
+     * A solution which is delivered after removal is counted by the detached counter, and does not recreate it
+     *
+     * @param subscription a subscription which has been cancelled
+     */
+    protected void removeMetrics(final BasicSubscription<?, ?, ?> subscription) {
+        MetricsRegistry registry = metricsRegistry;
+        if (null != registry && null != subscription.getSolutionCounter()) {
+            registry.remove(solutionCounterName(subscription));
+        }
+    }
+
+    private static String solutionCounterName(final Subscription subscription) {
+        return "subscription." + subscription.getId() + ".solutions";
+    }
+
+    /**
+     * Replays the unexpired statements of an input log, e.g. after a restart.
+     * Queries should be added beforehand, so that the statements can match them.
+     * While replaying, the clock of this processor is replaced with a virtual clock which follows the original times
+     * of arrival of the statements, so that statements expire and solutions are produced as before;
+     * no other statements should be added in the meantime.
+     * If this processor runs in virtual time (see {@link #setVirtualTime}), its own virtual clock is advanced
+     * to the time of each batch instead, expiring data synchronously, and remains at the time of the last batch,
+     * so that recorded traffic may be reproduced deterministically, and as fast as it can be processed.
+     * If an input log is set, the replayed statements are logged again, so the log being replayed must be a
+     * different file. This lets a new log take over the unexpired tail of the old one.
+     *
+     * @param logFile the log file to replay
+     * @return the number of statements replayed
+     * @throws IOException if the log cannot be read
+     */
+    public long replay(final Path logFile) throws IOException {
+        AtomicLong time = virtualTime;
+        if (null != time) {
+            return InputLog.replay(logFile, time.get(), (timestamp, ttl, statements) -> {
+                // note: batches from concurrent producers may have been logged slightly out of order
+                advanceTime(Math.max(timestamp, time.get()));
+                addInputs(ttl, statements);
+            });
+        }
+
+        Supplier<Long> realClock = clock;
+        long now = realClock.get();
+        AtomicLong virtualNow = new AtomicLong(now);
+
+        // note: the clock is replaced directly, rather than through setClock,
+        // as an engine's time base need not change
+        clock = virtualNow::get;
+        try {
+            return InputLog.replay(logFile, now, (timestamp, ttl, statements) -> {
+                virtualNow.set(timestamp);
+                addInputs(ttl, statements);
+            });
+        } finally {
+            clock = realClock;
+        }
     }
 
     /**
@@ -141,25 +360,57 @@ public abstract class RDFStreamProcessor<C, Q> extends BasicStreamProcessor<Stri
             throw new IllegalArgumentException("no counter for quantity: " + quantity);
         }
 
-        return counter.count;
+        return counter.getCount();
     }
 
+    /**
+     * Adds statements to the index, possibly generating new solutions.
+     * Multiple statements are added as a single batch, sharing the same time of addition
+     *
+     * @param ttl    the time-to-live of the statements, in seconds
+     * @param inputs the statements to add
+     * @return whether the addition of any statement changed the state of the index
+     */
     @Override
     public boolean addInputs(final int ttl, final Statement... inputs) {
-        boolean changed = false;
-        for (Statement s : inputs) {
+        if (1 == inputs.length) {
             incrementStatements();
             long now = beginOperation();
+            logInputs(ttl, now, inputs);
 
-            Value[] tuple = toNative(s);
-            changed |= addTuple(tuple, ttl, now);
+            boolean changed = addTuple(toNative(inputs[0]), ttl, now);
 
             logEntry();
+            return changed;
+        } else if (0 == inputs.length) {
+            return false;
+        }
+
+        incrementStatements(inputs.length);
+        long now = beginOperation();
+        logInputs(ttl, now, inputs);
+
+        Value[][] tuples = new Value[inputs.length][];
+        for (int i = 0; i < inputs.length; i++) {
+            tuples[i] = toNative(inputs[i]);
+        }
+
+        boolean changed = false;
+        for (boolean b : addTuples(tuples, ttl, now)) {
+            changed |= b;
         }
 
+        logEntry();
         return changed;
     }
 
+    private void logInputs(final int ttl, final long now, final Statement[] inputs) {
+        InputLog log = inputLog;
+        if (null != log) {
+            log.append(now, ttl, inputs);
+        }
+    }
+
     private Value[] toNative(final Statement s) {
         // note: assumes tupleSize==3
         return new Value[]{s.getSubject(), s.getPredicate(), s.getObject()};
@@ -167,8 +418,14 @@ public abstract class RDFStreamProcessor<C, Q> extends BasicStreamProcessor<Stri
 
     protected void increment(final Counter counter,
                              final boolean logChange) {
-        if (performanceMetrics) {
-            counter.increment();
+        increment(counter, 1, logChange);
+    }
+
+    protected void increment(final Counter counter,
+                             final long amount,
+                             final boolean logChange) {
+        if (performanceMetrics || null != metricsRegistry) {
+            counter.add(amount);
             if (logChange) {
                 logHasChanged = true;
             }
@@ -183,13 +440,17 @@ public abstract class RDFStreamProcessor<C, Q> extends BasicStreamProcessor<Stri
         increment(countStatements, false);
     }
 
+    protected void incrementStatements(final int count) {
+        increment(countStatements, count, false);
+    }
+
     protected void incrementSolutions() {
         increment(countSolutions, true);
     }
 
     protected long beginOperation() {
         long now = getNow();
-        startTime = now;
+        startTime.set(now);
         return now;
     }
 
@@ -201,9 +462,9 @@ public abstract class RDFStreamProcessor<C, Q> extends BasicStreamProcessor<Stri
         if (performanceMetrics) {
             if (!useCompactLogFormat || logHasChanged) {
                 StringBuilder sb = new StringBuilder("LOG\t");
-                sb.append(startTime).append(",").append(getNow());
+                sb.append(startTime.get()).append(",").append(getNow());
                 for (Map.Entry<Quantity, Counter> entry : counters.entrySet()) {
-                    sb.append(",").append(entry.getValue().count);
+                    sb.append(",").append(entry.getValue().getCount());
                 }
                 System.out.println(sb.toString());
 
@@ -261,20 +522,4 @@ public abstract class RDFStreamProcessor<C, Q> extends BasicStreamProcessor<Stri
         countSolutions.reset();
         logHeader();
     }
-
-    protected static class Counter {
-        private long count = 0;
-
-        public void increment() {
-            count++;
-        }
-
-        public void reset() {
-            count = 0;
-        }
-
-        public long getCount() {
-            return count;
-        }
-    }
 }
@@ -87,6 +87,22 @@ public abstract class SparqlStreamProcessor<Q> extends RDFStreamProcessor<Sparql
 
     protected abstract boolean addTupleInternal(Value[] tuple, int ttl, long now);
 
+    /**
+     * Adds a batch of tuples to the query index. By default, tuples are added one at a time
+     *
+     * @param tuples the tuples to add
+     * @param ttl    the time-to-live of each tuple, in seconds
+     * @param now    the current time in milliseconds
+     * @return whether the addition of each tuple changed the state of the index
+     */
+    protected boolean[] addTuplesInternal(Value[][] tuples, int ttl, long now) {
+        boolean[] changed = new boolean[tuples.length];
+        for (int i = 0; i < tuples.length; i++) {
+            changed[i] = addTupleInternal(tuples[i], ttl, now);
+        }
+        return changed;
+    }
+
     protected abstract void register(BasicSubscription<SparqlQuery, Q, BindingSet> subscription);
 
     protected abstract BasicSubscription<SparqlQuery, Q, BindingSet> createSubscriptionInternal(
@@ -108,6 +124,21 @@ public abstract class SparqlStreamProcessor<Q> extends RDFStreamProcessor<Sparql
         return changed;
     }
 
+    @Override
+    protected boolean[] addTuples(Value[][] tuples, int ttl, long now) {
+        boolean[] changed = addTuplesInternal(tuples, ttl, now);
+
+        if (null != linkedDataCache) {
+            for (int i = 0; i < tuples.length; i++) {
+                if (changed[i]) {
+                    triggerLinkedDataCache(tuples[i]);
+                }
+            }
+        }
+
+        return changed;
+    }
+
     public RDFHandler createRDFHandler(final int ttl) {
         return new RDFHandler() {
             public void startRDF() throws RDFHandlerException {
@@ -205,6 +236,7 @@ public abstract class SparqlStreamProcessor<Q> extends RDFStreamProcessor<Sparql
             visitQueryPatterns(sub.getQuery(), this::triggerLinkedDataCache);
         }
 
+        addMetrics(sub);
         register(sub);
 
         return sub;
@@ -288,6 +320,7 @@ public abstract class SparqlStreamProcessor<Q> extends RDFStreamProcessor<Sparql
         // A result of false is never produced, as data sources are assumed to be infinite streams
         if (SparqlQuery.QueryForm.SELECT == form) {
             if (sparqlQuery.getSequenceModifier().trySolution(solution, subscription)) {
+                countSolution(subscription);
                 handleSolution(subscription.getSolutionConsumer(), solution, expirationTime);
             }
         } else {
@@ -0,0 +1,82 @@
+package net.fortytwo.stream.sparql.etc;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.IRI;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/**
+ * A compact binary encoding of RDF values, for checkpoints and logs.
+ * Each value is written as a one-byte kind, followed by its lexical parts as length-prefixed UTF-8 strings
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ValueCodec {
+    private static final int IRI_VALUE = 0, BNODE_VALUE = 1, LITERAL_VALUE = 2, LANGUAGE_LITERAL_VALUE = 3;
+
+    private final ValueFactory valueFactory;
+
+    public ValueCodec(final ValueFactory valueFactory) {
+        this.valueFactory = valueFactory;
+    }
+
+    public void writeValue(final Value value, final DataOutput out) throws IOException {
+        if (value instanceof IRI) {
+            out.writeByte(IRI_VALUE);
+            writeString(value.stringValue(), out);
+        } else if (value instanceof BNode) {
+            out.writeByte(BNODE_VALUE);
+            writeString(((BNode) value).getID(), out);
+        } else {
+            Literal literal = (Literal) value;
+            Optional<String> language = literal.getLanguage();
+            if (language.isPresent()) {
+                out.writeByte(LANGUAGE_LITERAL_VALUE);
+                writeString(literal.getLabel(), out);
+                writeString(language.get(), out);
+            } else {
+                out.writeByte(LITERAL_VALUE);
+                writeString(literal.getLabel(), out);
+                writeString(literal.getDatatype().stringValue(), out);
+            }
+        }
+    }
+
+    public Value readValue(final DataInput in) throws IOException {
+        int kind = in.readByte();
+        switch (kind) {
+            case IRI_VALUE:
+                return valueFactory.createIRI(readString(in));
+            case BNODE_VALUE:
+                return valueFactory.createBNode(readString(in));
+            case LITERAL_VALUE:
+                String label = readString(in);
+                return valueFactory.createLiteral(label, valueFactory.createIRI(readString(in)));
+            case LANGUAGE_LITERAL_VALUE:
+                String languageLabel = readString(in);
+                return valueFactory.createLiteral(languageLabel, readString(in));
+            default:
+                throw new IOException("unknown kind of value: " + kind);
+        }
+    }
+
+    // note: unlike DataOutput.writeUTF, not limited to 64 KB, as literals may be long
+    private static void writeString(final String s, final DataOutput out) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
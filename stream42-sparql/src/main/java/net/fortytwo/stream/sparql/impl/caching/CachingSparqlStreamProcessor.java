@@ -100,6 +100,26 @@ public class CachingSparqlStreamProcessor extends SparqlStreamProcessor<Query<Va
         this.cleanupPolicy = cleanupPolicy;
     }
 
+    /**
+     * Bounds the number of partial solutions stored for each query, so that a burst of input
+     * or an unselective query degrades the completeness of that query's answers rather than exhausting memory.
+     * Over the bound, the earliest-expiring solutions are evicted first.
+     * This affects only queries registered afterwards.
+     * There is no overall bound across queries, and no choice of eviction order.
+     *
+     * @param maxSolutionsPerQuery the maximum number of solutions of each query
+     */
+    public void setSolutionBudget(final int maxSolutionsPerQuery) {
+        queryIndex.setSolutionBudget(maxSolutionsPerQuery);
+    }
+
+    /**
+     * @return the total number of solutions which have been evicted over the solution budget
+     */
+    public long getEvictedSolutions() {
+        return queryIndex.getEvictedSolutions();
+    }
+
     @Override
     public void clear() {
         queryIndex.clear();
@@ -123,6 +143,12 @@ public class CachingSparqlStreamProcessor extends SparqlStreamProcessor<Query<Va
             timeOfLastCleanup = now;
             queriesAddedSinceLastCleanup = 0;
             statementsAddedSinceLastCleanup = 0;
+            // in virtual time, cleanup is synchronous, so that a replay is deterministic
+            if (isVirtualTime()) {
+                queryIndex.removeExpired(now);
+                return;
+            }
+
             cleanupNow = now;
 
             synchronized (cleanupLock) {
@@ -131,9 +157,16 @@ public class CachingSparqlStreamProcessor extends SparqlStreamProcessor<Query<Va
         }
     }
 
+    @Override
+    protected void evictExpired(final long now) {
+        // note: the cleanup policy applies in virtual time as well
+        checkCleanup(now);
+    }
+
     @Override
     public void unregister(final BasicSubscription<SparqlQuery, Query<Value, ?>, BindingSet> subscription) {
         queryIndex.remove((Query<Value, BasicSubscription<SparqlQuery, Query<Value, ?>, BindingSet>>) subscription.getQuery());
+        removeMetrics(subscription);
     }
 
     @Override
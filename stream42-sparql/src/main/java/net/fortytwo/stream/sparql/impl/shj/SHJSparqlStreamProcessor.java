@@ -1,25 +1,47 @@
 package net.fortytwo.stream.sparql.impl.shj;
 
 import net.fortytwo.stream.BasicSubscription;
+import net.fortytwo.stream.metrics.MetricsRegistry;
+import net.fortytwo.stream.model.TermDictionary;
 import net.fortytwo.stream.model.VariableOrConstant;
+import net.fortytwo.stream.shj.BasicSolutionIndex;
+import net.fortytwo.stream.shj.EvictionPolicy;
 import net.fortytwo.stream.shj.ExpirationManager;
+import net.fortytwo.stream.shj.ExpirationTicket;
+import net.fortytwo.stream.shj.LongSolutionIndex;
+import net.fortytwo.stream.shj.OffHeapSolutionIndex;
 import net.fortytwo.stream.shj.GraphPattern;
+import net.fortytwo.stream.shj.HeapExpirationQueue;
 import net.fortytwo.stream.shj.Query;
 import net.fortytwo.stream.shj.QueryContext;
 import net.fortytwo.stream.shj.QueryIndex;
-import net.fortytwo.stream.shj.Solution;
+import net.fortytwo.stream.shj.SolutionCheckpoint;
+import net.fortytwo.stream.shj.SolutionIndex;
+import net.fortytwo.stream.shj.TimeBase;
+import net.fortytwo.stream.shj.TimingWheelExpirationQueue;
 import net.fortytwo.stream.shj.TuplePattern;
 import net.fortytwo.stream.sparql.SparqlQuery;
 import net.fortytwo.stream.sparql.SparqlStreamProcessor;
+import net.fortytwo.stream.sparql.etc.ValueCodec;
 import org.openrdf.model.Value;
+import org.openrdf.model.impl.SimpleValueFactory;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.impl.MapBindingSet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 /**
@@ -27,121 +49,611 @@ import java.util.logging.Level;
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
-public class SHJSparqlStreamProcessor extends SparqlStreamProcessor<Query<String, Value>> {
+public class SHJSparqlStreamProcessor extends SparqlStreamProcessor<Query<String, ?>> {
 
-    private final QueryContext<String, Value> context;
-    private final QueryIndex<String, Value> queryIndex;
+    /**
+     * The representation of values inside the join engine
+     */
+    public enum ValueStorage {
+        /**
+         * RDF values are stored and joined directly
+         */
+        OBJECTS,
+        /**
+         * RDF values are interned as integer ids as statements and queries arrive,
+         * so that the join engine hashes and compares only ids.
+         * Values are decoded only when solutions are produced
+         */
+        DICTIONARY,
+        /**
+         * As {@link #DICTIONARY}, but partial solutions are additionally stored as rows of primitive ids
+         * (see {@link LongSolutionIndex}) rather than as objects,
+         * reducing the memory footprint and garbage collection load of large windows
+         */
+        PRIMITIVE,
+        /**
+         * As {@link #PRIMITIVE}, but the rows are stored outside of the Java heap
+         * (see {@link OffHeapSolutionIndex}), so that very large windows do not lengthen garbage collection pauses.
+         * Direct memory must be sized accordingly, e.g. with -XX:MaxDirectMemorySize
+         */
+        OFF_HEAP
+    }
+
+    /**
+     * The data structure which schedules the expiration of solutions and queries
+     */
+    public enum ExpirationStrategy {
+        /**
+         * A binary heap, which expires items in exact order at a cost of O(log(n)) time per item
+         */
+        HEAP,
+        /**
+         * A hierarchical timing wheel, which schedules and expires items in O(1) time,
+         * a bucket of one tick of the engine's time base at a time (see {@link #setTickDuration})
+         */
+        TIMING_WHEEL
+    }
+
+    /**
+     * The default duration of a tick of the engine's time base, in milliseconds.
+     * Expiration times are kept at this granularity, and may lie up to about 124 days in the future
+     */
+    public static final long DEFAULT_TICK_DURATION = TimeBase.DEFAULT_TICK_DURATION;
+
+    private static final ValueCodec valueCodec = new ValueCodec(SimpleValueFactory.getInstance());
 
+    private final Engine<?> engine;
+
+    private long tickDuration = DEFAULT_TICK_DURATION;
+
+    /**
+     * Creates a new query engine which operates directly on RDF values
+     */
     public SHJSparqlStreamProcessor() {
+        this(ValueStorage.OBJECTS);
+    }
+
+    /**
+     * Creates a new query engine
+     *
+     * @param useTermDictionary whether to intern RDF values as integer ids as statements and queries arrive.
+     *                          If so, the join engine hashes and compares only ids,
+     *                          and values are decoded only when solutions are produced.
+     *                          Note: the dictionary grows with the number of distinct values received,
+     *                          and is emptied only by {@link #clear()}
+     */
+    public SHJSparqlStreamProcessor(final boolean useTermDictionary) {
+        this(useTermDictionary ? ValueStorage.DICTIONARY : ValueStorage.OBJECTS);
+    }
+
+    /**
+     * Creates a new query engine
+     *
+     * @param valueStorage the representation of values inside the join engine.
+     *                     Note: with any storage other than {@link ValueStorage#OBJECTS},
+     *                     a dictionary of values grows with the number of distinct values received,
+     *                     and is emptied only by {@link #clear()}
+     */
+    public SHJSparqlStreamProcessor(final ValueStorage valueStorage) {
         super();
 
-        ExpirationManager<Query<String, Value>> queryExpirationManager = new ExpirationManager<Query<String, Value>>() {
-            @Override
-            protected long getNow() {
-                return SHJSparqlStreamProcessor.this.getNow();
-            }
-        };
-        queryExpirationManager.setVerbose(true);
+        switch (valueStorage) {
+            case OBJECTS:
+                engine = new Engine<>(new IdentityEncoding(), null);
+                break;
+            case DICTIONARY:
+                engine = new Engine<>(new DictionaryEncoding(), null);
+                break;
+            case PRIMITIVE:
+                engine = new Engine<>(new DictionaryEncoding(), LongSolutionIndex::new);
+                break;
+            case OFF_HEAP:
+                engine = new Engine<>(new DictionaryEncoding(), OffHeapSolutionIndex::new);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported value storage: " + valueStorage);
+        }
+    }
 
-        ExpirationManager<Solution<Value>> solutionExpirationManager = new ExpirationManager<Solution<Value>>() {
-            @Override
-            protected long getNow() {
-                return SHJSparqlStreamProcessor.this.getNow();
-            }
-        };
-        solutionExpirationManager.setVerbose(true);
+    /**
+     * Selects the data structure which schedules the expiration of solutions and queries.
+     * Any solutions and queries already scheduled are carried over.
+     * The default is {@link ExpirationStrategy#HEAP}
+     *
+     * @param strategy the new expiration strategy
+     */
+    public void setExpirationStrategy(final ExpirationStrategy strategy) {
+        engine.setExpirationStrategy(strategy);
+    }
 
-        context = new QueryContext<>(queryExpirationManager, solutionExpirationManager);
+    /**
+     * Enables the parallel dispatch of new partial solutions to the queries which share a tuple pattern.
+     * This reduces the latency of adding a statement which matches the patterns of many queries
+     * from the sum of the queries' join times to roughly the longest of them.
+     * Solutions of any one query are still produced in order, on the thread which added the statement or
+     * on a thread of the pool.
+     *
+     * @param pool      the pool in which to dispatch solutions, e.g. {@link ForkJoinPool#commonPool()},
+     *                  or null to disable parallel dispatch
+     * @param threshold the minimum number of queries sharing a tuple pattern
+     *                  for which solutions are dispatched in parallel
+     */
+    public void setParallelDispatch(final ForkJoinPool pool, final int threshold) {
+        engine.context.setParallelDispatch(pool, threshold);
+    }
 
-        queryIndex = new QueryIndex<>(context);
+    /**
+     * Enables or disables the sharing of joins among overlapping queries.
+     * When enabled, the join of each pair of connected triple patterns in a query is materialized
+     * and shared with any other query containing the same pair, up to variable renaming,
+     * so that queries with common subpatterns join only their distinct remainder.
+     * This affects only queries registered afterwards.
+     *
+     * @param joinSharing whether to share joins among queries. Joins are not shared by default
+     */
+    public void setJoinSharing(final boolean joinSharing) {
+        engine.context.setJoinSharing(joinSharing);
+    }
+
+    /**
+     * Enables or disables the suppression of repeated statements, e.g. from sensors or from re-fetched Linked Data.
+     * When enabled, a statement received again while still stored is skipped,
+     * or, if it arrives with a later expiration time, only extends the expiration of the partial solutions
+     * it produced, without re-running joins or producing complete solutions again.
+     *
+     * @param duplicateSuppression whether to suppress repeated statements. Repeats are not suppressed by default
+     */
+    public void setDuplicateSuppression(final boolean duplicateSuppression) {
+        engine.context.setDuplicateSuppression(duplicateSuppression);
+    }
+
+    /**
+     * Enables or disables Bloom filters over the values of each column of the join engine's partial solutions.
+     * A filter rejects probes for values without partial solutions before they reach the hash index,
+     * which helps most where, as is typical, most probes find no partner.
+     * Filters apply to the hash-based storage of {@link ValueStorage#OBJECTS} and {@link ValueStorage#DICTIONARY},
+     * and are not used by default.
+     *
+     * @param useFilters whether to use Bloom filters
+     */
+    public void setBloomFilters(final boolean useFilters) {
+        if (!engine.isEmpty()) {
+            throw new IllegalStateException("Bloom filters cannot be enabled or disabled while queries are registered");
+        }
+
+        engine.setBloomFilters(useFilters);
+    }
+
+    /**
+     * Bounds the number of partial solutions held by the join engine, so that a burst of input
+     * or an unselective triple pattern degrades the completeness of answers rather than exhausting memory.
+     * When a triple pattern exceeds its own bound, it evicts partial solutions of its own, in the order of the
+     * eviction policy. When the overall bound is exceeded, the triple patterns with the most partial solutions
+     * evict theirs, so that a burst of input is paid for by the patterns which receive it.
+     * As a rough guide to memory, a partial solution of {@link ValueStorage#PRIMITIVE} storage costs about
+     * 16 bytes per variable plus 16 bytes, and one of hash-based storage several times as much.
+     * The number of solutions is unbounded by default.
+     *
+     * @param maxSolutions         the maximum number of partial solutions in all triple patterns together
+     * @param maxSolutionsPerIndex the maximum number of partial solutions of any one triple pattern
+     */
+    public void setSolutionBudget(final long maxSolutions, final int maxSolutionsPerIndex) {
+        engine.context.setSolutionBudget(maxSolutions, maxSolutionsPerIndex);
+    }
+
+    /**
+     * Sets the order in which partial solutions are evicted over budget (see {@link #setSolutionBudget}).
+     * The default is {@link EvictionPolicy#EARLIEST_EXPIRING}
+     *
+     * @param evictionPolicy the new eviction policy
+     */
+    public void setEvictionPolicy(final EvictionPolicy evictionPolicy) {
+        if (!engine.isEmpty()) {
+            throw new IllegalStateException("the eviction policy cannot be changed while queries are registered");
+        }
+
+        engine.context.setEvictionPolicy(evictionPolicy);
+    }
+
+    /**
+     * @return the total number of partial solutions which have been evicted over budget
+     */
+    public long getEvictedSolutions() {
+        return engine.context.getEvictedSolutions();
+    }
+
+    /**
+     * Sets the granularity of expiration times in the join engine.
+     * Solutions keep their expiration times as 32-bit numbers of ticks, which wrap around, so that the processor
+     * may run indefinitely. Coarser ticks allow longer times-to-live ({@link TimeBase#MAX_SPAN} ticks),
+     * and let more items expire together, at the cost of retaining items for up to one tick longer than
+     * their time-to-live. Inputs with longer times-to-live are rejected.
+     * This must be done before any queries are added.
+     * The default is {@link #DEFAULT_TICK_DURATION}
+     *
+     * @param tickDuration the duration of a tick, in milliseconds
+     */
+    public void setTickDuration(final long tickDuration) {
+        if (tickDuration < 1) {
+            throw new IllegalArgumentException("illegal tick duration: " + tickDuration);
+        }
+        if (!engine.isEmpty()) {
+            throw new IllegalStateException("the tick duration cannot be changed while queries are registered");
+        }
+
+        this.tickDuration = tickDuration;
+        engine.resetTimeBase();
+    }
+
+    @Override
+    public void setClock(final Supplier<Long> clock) {
+        super.setClock(clock);
+
+        // the time base begins at the current time of the new clock
+        if (engine.isEmpty()) {
+            engine.resetTimeBase();
+        } else {
+            logger.warning("clock changed while queries are registered; expiration times may be inaccurate");
+        }
+    }
+
+    @Override
+    protected void evictExpired(final long now) {
+        // note: the expiration managers of the engine read the clock of this processor
+        engine.context.evictExpired();
+    }
+
+    /**
+     * Writes a checkpoint of the partial solutions of the join engine, so that a restarted processor
+     * can resume with them rather than waiting for their statements to be received again.
+     * Partial solutions are written with their remaining time-to-live, and each distinct RDF value only once.
+     * Registered queries are not written; see {@link #restore}
+     *
+     * @param out the stream to which the checkpoint is written. It is flushed, but not closed
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void checkpoint(final OutputStream out) throws IOException {
+        engine.checkpoint(out);
+    }
+
+    /**
+     * Restores a checkpoint into this processor, which must not have any registered queries.
+     * The partial solutions of the checkpoint are read first, and the given registration is then run
+     * to add the application's queries again, e.g. with {@link #addQuery}.
+     * Each triple pattern of the new queries receives the partial solutions of an equivalent triple pattern
+     * (up to variable renaming) in the checkpoint, and any remaining partial solutions are discarded.
+     * Partial solutions expire at their original expiration times, by the clock of this processor;
+     * those which have already expired are discarded.
+     * Complete solutions which were produced before the checkpoint are not produced again
+     *
+     * @param in           the stream from which the checkpoint is read
+     * @param registration an action which adds this processor's queries
+     * @return the number of partial solutions restored
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public long restore(final InputStream in, final Runnable registration) throws IOException {
+        if (!engine.isEmpty()) {
+            throw new IllegalStateException("a checkpoint cannot be restored while queries are registered");
+        }
+
+        return engine.restore(in, registration);
+    }
+
+    /**
+     * Enables the metrics of this processor (see {@link SparqlStreamProcessor#setMetricsRegistry})
+     * together with those of the join engine, whose names begin with "shj."
+     *
+     * @param registry the registry in which to keep metrics, or null to disable metrics
+     */
+    @Override
+    public void setMetricsRegistry(final MetricsRegistry registry) {
+        super.setMetricsRegistry(registry);
+        engine.queryIndex.setMetricsRegistry(registry);
     }
 
     @Override
     public void clear() {
-        // TODO: consider using a shared lock to avoid a race condition
-        queryIndex.clear();
-        context.clear();
+        engine.clear();
     }
 
     @Override
     protected boolean addTupleInternal(Value[] tuple, int ttl, long now) {
         long expirationTime = toExpirationTime(ttl, now);
 
-        return queryIndex.add(tuple, expirationTime);
+        return engine.add(tuple, expirationTime);
+    }
+
+    @Override
+    protected boolean[] addTuplesInternal(Value[][] tuples, int ttl, long now) {
+        long expirationTime = toExpirationTime(ttl, now);
+
+        return engine.addAll(tuples, expirationTime);
     }
 
     @Override
-    protected void register(BasicSubscription<SparqlQuery, Query<String, Value>, BindingSet> subscription) {
-        Query<String, Value> query = subscription.getQuery();
-        queryIndex.add(query);
+    protected void register(BasicSubscription<SparqlQuery, Query<String, ?>, BindingSet> subscription) {
+        engine.register(subscription.getQuery());
     }
 
     @Override
-    public void unregister(BasicSubscription<SparqlQuery, Query<String, Value>, BindingSet> subscription) {
-        queryIndex.remove(subscription.getQuery());
+    public void unregister(BasicSubscription<SparqlQuery, Query<String, ?>, BindingSet> subscription) {
+        engine.unregister(subscription.getQuery());
+        removeMetrics(subscription);
     }
 
     @Override
-    public boolean renew(BasicSubscription<SparqlQuery, Query<String, Value>, BindingSet> subscription, int ttl) {
+    public boolean renew(BasicSubscription<SparqlQuery, Query<String, ?>, BindingSet> subscription, int ttl) {
 
         throw new UnsupportedOperationException(
                 "query renewal is not yet supported; remove the query and add a new one");
     }
 
     @Override
-    protected void visitQueryPatterns(Query<String, Value> query, Consumer<VariableOrConstant<String, Value>[]> visitor) {
-        for (TuplePattern<String, Value> tuplePattern : query.getGraphPattern().getPatterns()) {
-            visitor.accept(tuplePattern.getPattern());
-        }
+    protected void visitQueryPatterns(Query<String, ?> query, Consumer<VariableOrConstant<String, Value>[]> visitor) {
+        engine.visitQueryPatterns(query, visitor);
     }
 
     @Override
-    protected BasicSubscription<SparqlQuery, Query<String, Value>, BindingSet> createSubscriptionInternal(
+    protected BasicSubscription<SparqlQuery, Query<String, ?>, BindingSet> createSubscriptionInternal(
             SparqlQuery sparqlQuery,
             List<VariableOrConstant<String, Value>[]> patterns,
             long expirationTime,
             BiConsumer<BindingSet, Long> consumer) {
 
-        final BasicSubscription<SparqlQuery, Query<String, Value>, BindingSet> subscription
+        final BasicSubscription<SparqlQuery, Query<String, ?>, BindingSet> subscription
                 = new BasicSubscription<>(sparqlQuery, null, null, this);
 
-        BiConsumer<Map<String, Value>, Long> solutionHandler = (mapping, expirationTime1) -> {
-            BindingSet solution = toBindingSet(mapping);
-            try {
-                handleCandidateSolution(subscription, solution, expirationTime1);
-            } catch (IOException e) {
-                logger.log(Level.WARNING, "failed to handle solution " + solution, e);
-            }
-        };
+        subscription.setQuery(engine.createQuery(subscription, patterns, expirationTime));
+        subscription.setSolutionConsumer(consumer);
+
+        return subscription;
+    }
+
+    /**
+     * A translation between RDF values and the values on which the join engine operates
+     *
+     * @param <V> the value type of the join engine
+     */
+    private interface ValueEncoding<V> {
+        V encode(Value value);
 
-        Query<String, Value> query;
+        Value decode(V encoded);
 
-        TuplePattern<String, Value>[] tuplePatterns = new TuplePattern[patterns.size()];
-        int i = 0;
-        for (VariableOrConstant<String, Value>[] p : patterns) {
-            tuplePatterns[i++] = new TuplePattern<>(p);
+        void clear();
+    }
+
+    private static class IdentityEncoding implements ValueEncoding<Value> {
+        @Override
+        public Value encode(Value value) {
+            return value;
         }
 
-        GraphPattern<String, Value> graphPattern = new GraphPattern<>(tuplePatterns);
-        query = new Query<>(
-                graphPattern,
-                expirationTime,
-                context.getQueryExpirationManager(),
-                solutionHandler);
+        @Override
+        public Value decode(Value encoded) {
+            return encoded;
+        }
 
-        subscription.setQuery(query);
-        subscription.setSolutionConsumer(consumer);
+        @Override
+        public void clear() {
+            // nothing to do
+        }
+    }
 
-        return subscription;
+    private static class DictionaryEncoding implements ValueEncoding<Long> {
+        private final TermDictionary<Value> dictionary = new TermDictionary<>();
+
+        @Override
+        public Long encode(Value value) {
+            return dictionary.encode(value);
+        }
+
+        @Override
+        public Value decode(Long encoded) {
+            return dictionary.decode(encoded);
+        }
+
+        @Override
+        public void clear() {
+            dictionary.clear();
+        }
     }
 
-    private BindingSet toBindingSet(final Map<String, Value> mapping) {
+    /**
+     * The join engine proper, together with the encoding of its values
+     *
+     * @param <V> the value type of the join engine
+     */
+    private class Engine<V> {
+        private final ValueEncoding<V> encoding;
+        private final QueryContext<String, V> context;
+        private final QueryIndex<String, V> queryIndex;
+        // whether partial solutions are kept in the default, hash-based solution indices
+        private final boolean hashIndices;
+        private ExpirationStrategy expirationStrategy = ExpirationStrategy.HEAP;
+
+        private Engine(final ValueEncoding<V> encoding,
+                       final BiFunction<QueryContext<String, V>, Integer, BasicSolutionIndex<V>> indexFactory) {
+            this.encoding = encoding;
+
+            ExpirationManager<Query<String, V>> queryExpirationManager = new ExpirationManager<Query<String, V>>() {
+                @Override
+                protected long getNow() {
+                    return SHJSparqlStreamProcessor.this.getNow();
+                }
+            };
+            queryExpirationManager.setVerbose(true);
+
+            ExpirationManager<ExpirationTicket> solutionExpirationManager = new ExpirationManager<ExpirationTicket>() {
+                @Override
+                protected long getNow() {
+                    return SHJSparqlStreamProcessor.this.getNow();
+                }
+            };
+            solutionExpirationManager.setVerbose(true);
+
+            context = new QueryContext<>(queryExpirationManager, solutionExpirationManager, newTimeBase());
+            hashIndices = null == indexFactory;
+            if (!hashIndices) {
+                context.setSolutionIndexFactory(indexFactory);
+            }
+
+            queryIndex = new QueryIndex<>(context);
+        }
+
+        private void setExpirationStrategy(final ExpirationStrategy strategy) {
+            switch (strategy) {
+                case HEAP:
+                    context.getQueryExpirationManager().setQueue(new HeapExpirationQueue<>());
+                    context.getSolutionExpirationManager().setQueue(new HeapExpirationQueue<>());
+                    break;
+                case TIMING_WHEEL:
+                    // the buckets of the wheels are ticks of the engine's time base
+                    context.getQueryExpirationManager().setQueue(new TimingWheelExpirationQueue<>(tickDuration));
+                    context.getSolutionExpirationManager().setQueue(new TimingWheelExpirationQueue<>(tickDuration));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported expiration strategy: " + strategy);
+            }
+
+            expirationStrategy = strategy;
+        }
+
+        private void setBloomFilters(final boolean useFilters) {
+            if (hashIndices) {
+                context.setSolutionIndexFactory((c, cardinality) -> new SolutionIndex<>(c, cardinality, useFilters));
+            }
+        }
+
+        private TimeBase newTimeBase() {
+            return new TimeBase(getNow(), tickDuration);
+        }
+
+        private void resetTimeBase() {
+            context.setTimeBase(newTimeBase());
+
+            // timing wheels are rebuilt with the new tick duration, carrying over any scheduled items
+            if (ExpirationStrategy.TIMING_WHEEL == expirationStrategy) {
+                setExpirationStrategy(expirationStrategy);
+            }
+        }
+
+        private boolean isEmpty() {
+            return queryIndex.isEmpty();
+        }
+
+        private void clear() {
+            // TODO: consider using a shared lock to avoid a race condition
+            queryIndex.clear();
+            context.clear();
+            encoding.clear();
+
+            // note: the engine is now empty, so a new time base may begin at the current time
+            resetTimeBase();
+        }
+
+        private boolean add(final Value[] tuple, final long expirationTime) {
+            V[] encoded = (V[]) new Object[tuple.length];
+            for (int i = 0; i < tuple.length; i++) {
+                encoded[i] = encoding.encode(tuple[i]);
+            }
+
+            return queryIndex.add(encoded, expirationTime);
+        }
+
+        private boolean[] addAll(final Value[][] tuples, final long expirationTime) {
+            V[][] encoded = (V[][]) new Object[tuples.length][];
+            long[] expirationTimes = new long[tuples.length];
+            for (int i = 0; i < tuples.length; i++) {
+                Value[] tuple = tuples[i];
+                V[] enc = (V[]) new Object[tuple.length];
+                for (int j = 0; j < tuple.length; j++) {
+                    enc[j] = encoding.encode(tuple[j]);
+                }
+                encoded[i] = enc;
+                expirationTimes[i] = expirationTime;
+            }
+
+            return queryIndex.addAll(encoded, expirationTimes);
+        }
+
+        private void checkpoint(final OutputStream out) throws IOException {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            SolutionCheckpoint.write(queryIndex, data,
+                    (value, o) -> valueCodec.writeValue(encoding.decode(value), o));
+            data.flush();
+        }
+
+        private long restore(final InputStream in, final Runnable registration) throws IOException {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+            return SolutionCheckpoint.read(queryIndex, data,
+                    i -> encoding.encode(valueCodec.readValue(i)), registration);
+        }
+
+        private void register(final Query<String, ?> query) {
+            queryIndex.add((Query<String, V>) query);
+        }
+
+        private void unregister(final Query<String, ?> query) {
+            queryIndex.remove((Query<String, V>) query);
+        }
+
+        private void visitQueryPatterns(final Query<String, ?> query,
+                                        final Consumer<VariableOrConstant<String, Value>[]> visitor) {
+            for (TuplePattern<String, V> tuplePattern : ((Query<String, V>) query).getGraphPattern().getPatterns()) {
+                VariableOrConstant<String, V>[] pattern = tuplePattern.getPattern();
+                VariableOrConstant<String, Value>[] decoded = new VariableOrConstant[pattern.length];
+                for (int i = 0; i < pattern.length; i++) {
+                    V constant = pattern[i].getConstant();
+                    decoded[i] = null == constant
+                            ? new VariableOrConstant<>(pattern[i].getVariable(), null)
+                            : new VariableOrConstant<>(null, encoding.decode(constant));
+                }
+                visitor.accept(decoded);
+            }
+        }
+
+        private Query<String, V> createQuery(
+                final BasicSubscription<SparqlQuery, Query<String, ?>, BindingSet> subscription,
+                final List<VariableOrConstant<String, Value>[]> patterns,
+                final long expirationTime) {
+
+            BiConsumer<Map<String, V>, Long> solutionHandler = (mapping, expirationTime1) -> {
+                BindingSet solution = toBindingSet(mapping);
+                try {
+                    handleCandidateSolution(subscription, solution, expirationTime1);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "failed to handle solution " + solution, e);
+                }
+            };
+
+            TuplePattern<String, V>[] tuplePatterns = new TuplePattern[patterns.size()];
+            int i = 0;
+            for (VariableOrConstant<String, Value>[] p : patterns) {
+                VariableOrConstant<String, V>[] encoded = new VariableOrConstant[p.length];
+                for (int j = 0; j < p.length; j++) {
+                    Value constant = p[j].getConstant();
+                    encoded[j] = null == constant
+                            ? new VariableOrConstant<>(p[j].getVariable(), null)
+                            : new VariableOrConstant<>(null, encoding.encode(constant));
+                }
+                tuplePatterns[i++] = new TuplePattern<>(encoded);
+            }
 
-        MapBindingSet bs = new MapBindingSet();
-        for (Map.Entry<String, Value> e : mapping.entrySet()) {
-            bs.addBinding(e.getKey(), e.getValue());
+            GraphPattern<String, V> graphPattern = new GraphPattern<>(tuplePatterns);
+            return new Query<>(
+                    graphPattern,
+                    expirationTime,
+                    context.getTimeBase(),
+                    queryIndex,
+                    solutionHandler);
         }
 
-        return bs;
+        private BindingSet toBindingSet(final Map<String, V> mapping) {
+
+            MapBindingSet bs = new MapBindingSet();
+            mapping.forEach((key, value) -> bs.addBinding(key, encoding.decode(value)));
+
+            return bs;
+        }
     }
 }
@@ -1,6 +1,9 @@
 package net.fortytwo.stream;
 
 import info.aduna.io.IOUtil;
+import net.fortytwo.stream.metrics.MetricsRegistry;
+import net.fortytwo.stream.metrics.MetricsSnapshot;
+import net.fortytwo.stream.sparql.InputLog;
 import net.fortytwo.stream.sparql.RDFStreamProcessor;
 import net.fortytwo.stream.sparql.SparqlStreamProcessor;
 import net.fortytwo.stream.sparql.etc.SparqlTestBase;
@@ -15,15 +18,26 @@ import org.openrdf.query.BindingSet;
 import org.openrdf.query.algebra.TupleExpr;
 import org.openrdf.sail.memory.MemoryStore;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 
 import static junit.framework.Assert.assertNotNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
@@ -407,6 +421,240 @@ public class SparqlStreamProcessorTest extends SparqlTestBase {
 
     }
 
+    @Test
+    public void testTermDictionary() throws Exception {
+        queryEngine = new SHJSparqlStreamProcessor(true);
+
+        compareAnswers(
+                loadData("example.nq"),
+                loadQuery("multiple-join-1.rq"));
+        compareAnswers(
+                loadData("example.nq"),
+                loadQuery("filter-with-projection.rq"));
+        compareAnswers(
+                loadData("example.nq"),
+                loadQuery("circle-join.rq"));
+    }
+
+    @Test
+    public void testPrimitiveStorage() throws Exception {
+        queryEngine = new SHJSparqlStreamProcessor(SHJSparqlStreamProcessor.ValueStorage.PRIMITIVE);
+
+        compareAnswers(
+                loadData("example.nq"),
+                loadQuery("multiple-join-1.rq"));
+        compareAnswers(
+                loadData("example.nq"),
+                loadQuery("filter-with-projection.rq"));
+        compareAnswers(
+                loadData("example.nq"),
+                loadQuery("circle-join.rq"));
+    }
+
+    @Test
+    public void testOffHeapStorage() throws Exception {
+        queryEngine = new SHJSparqlStreamProcessor(SHJSparqlStreamProcessor.ValueStorage.OFF_HEAP);
+
+        compareAnswers(
+                loadData("example.nq"),
+                loadQuery("multiple-join-1.rq"));
+        compareAnswers(
+                loadData("example.nq"),
+                loadQuery("filter-with-projection.rq"));
+        compareAnswers(
+                loadData("example.nq"),
+                loadQuery("circle-join.rq"));
+    }
+
+    @Test
+    public void testBatchedInputs() throws Exception {
+        List<Statement> data = loadData("example.nq");
+        TupleExpr query = loadQuery("multiple-join-1.rq");
+        Set<BindingSet> expected = distinctStaticQueryAnswers(data, query)[0];
+
+        for (SHJSparqlStreamProcessor.ValueStorage storage : SHJSparqlStreamProcessor.ValueStorage.values()) {
+            queryEngine = new SHJSparqlStreamProcessor(storage);
+            Set<BindingSet> actual = new HashSet<>();
+            BiConsumer<BindingSet, Long> consumer = (result, expirationTime) -> actual.add(result);
+            queryEngine.addQuery(QUERY_TTL, query, consumer);
+
+            // all statements are added in a single batch
+            assertTrue(queryEngine.addInputs(TUPLE_TTL, data.toArray(new Statement[data.size()])));
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testSolutionBudget() throws Exception {
+        List<Statement> data = loadData("example.nq");
+        TupleExpr query = loadQuery("multiple-join-1.rq");
+        Set<BindingSet> expected = distinctStaticQueryAnswers(data, query)[0];
+
+        for (SHJSparqlStreamProcessor.ValueStorage storage : SHJSparqlStreamProcessor.ValueStorage.values()) {
+            SHJSparqlStreamProcessor engine = new SHJSparqlStreamProcessor(storage);
+            engine.setSolutionBudget(Long.MAX_VALUE, 1);
+            queryEngine = engine;
+            Set<BindingSet> actual = new HashSet<>();
+            BiConsumer<BindingSet, Long> consumer = (result, expirationTime) -> actual.add(result);
+            queryEngine.addQuery(QUERY_TTL, query, consumer);
+            queryEngine.addInputs(TUPLE_TTL, data.toArray(new Statement[data.size()]));
+
+            // evictions lose answers, but never produce wrong ones
+            assertTrue(engine.getEvictedSolutions() > 0);
+            assertTrue(expected.containsAll(actual));
+        }
+    }
+
+    @Test
+    public void testCheckpointAndRestore() throws Exception {
+        List<Statement> data = loadData("example.nq");
+        TupleExpr query = loadQuery("multiple-join-1.rq");
+        Set<BindingSet> expected = distinctStaticQueryAnswers(data, query)[0];
+        List<Statement> before = data.subList(0, data.size() / 2);
+        List<Statement> after = data.subList(data.size() / 2, data.size());
+
+        for (SHJSparqlStreamProcessor.ValueStorage storage : SHJSparqlStreamProcessor.ValueStorage.values()) {
+            Set<BindingSet> actual = new HashSet<>();
+            BiConsumer<BindingSet, Long> consumer = (result, expirationTime) -> actual.add(result);
+
+            SHJSparqlStreamProcessor engine = new SHJSparqlStreamProcessor(storage);
+            engine.addQuery(QUERY_TTL, query, consumer);
+            engine.addInputs(TUPLE_TTL, before.toArray(new Statement[before.size()]));
+            ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+            engine.checkpoint(checkpoint);
+
+            // the restored processor has the partial solutions of the first half of the data
+            SHJSparqlStreamProcessor restored = new SHJSparqlStreamProcessor(storage);
+            assertTrue(restored.restore(new ByteArrayInputStream(checkpoint.toByteArray()), () -> {
+                try {
+                    restored.addQuery(QUERY_TTL, query, consumer);
+                } catch (StreamProcessor.IncompatibleQueryException | IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }) > 0);
+            restored.addInputs(TUPLE_TTL, after.toArray(new Statement[after.size()]));
+
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testInputLogReplay() throws Exception {
+        List<Statement> data = loadData("example.nq");
+        TupleExpr query = loadQuery("multiple-join-1.rq");
+        Set<BindingSet> expected = distinctStaticQueryAnswers(data, query)[0];
+        Statement[] statements = data.toArray(new Statement[data.size()]);
+
+        Path logFile = Files.createTempFile("stream42-input", ".log");
+        try {
+            SHJSparqlStreamProcessor engine = new SHJSparqlStreamProcessor();
+            engine.setClock(() -> 0L);
+            try (InputLog log = new InputLog(logFile)) {
+                engine.setInputLog(log);
+                engine.addInputs(TUPLE_TTL, statements);
+                engine.addInputs(10, statements);
+            }
+
+            // statements with an infinite TTL are replayed, but those with a TTL of 10 seconds have expired
+            Set<BindingSet> actual = new HashSet<>();
+            SHJSparqlStreamProcessor restarted = new SHJSparqlStreamProcessor();
+            restarted.setClock(() -> 10000L);
+            restarted.addQuery(QUERY_TTL, query, (result, expirationTime) -> actual.add(result));
+            assertEquals(statements.length, restarted.replay(logFile));
+            assertEquals(expected, actual);
+        } finally {
+            Files.delete(logFile);
+        }
+    }
+
+    @Test
+    public void testVirtualTimeReplay() throws Exception {
+        String query = "SELECT ?x ?z WHERE { ?x <" + knows + "> ?y . ?y <" + knows + "> ?z }";
+        Statement first = valueFactory.createStatement(arthur, knows, zaphod);
+        Statement second = valueFactory.createStatement(zaphod, knows, ford);
+
+        Path logFile = Files.createTempFile("stream42-input", ".log");
+        try {
+            AtomicLong time = new AtomicLong();
+            SHJSparqlStreamProcessor engine = new SHJSparqlStreamProcessor();
+            engine.setClock(time::get);
+            try (InputLog log = new InputLog(logFile)) {
+                engine.setInputLog(log);
+                time.set(1000L);
+                engine.addInputs(10, first);
+                // the first statement has expired by the time the second arrives
+                time.set(20000L);
+                engine.addInputs(10, second);
+                time.set(25000L);
+                engine.addInputs(10, first);
+            }
+            assertEquals(1000L, InputLog.getStartTime(logFile));
+
+            // both implementations expire data in virtual time, and produce only the later solution
+            CachingSparqlStreamProcessor caching = new CachingSparqlStreamProcessor();
+            caching.setCleanupPolicy((seconds, queries, statements) -> true);
+            for (RDFStreamProcessor<?, ?> replayed : new RDFStreamProcessor<?, ?>[]{
+                    new SHJSparqlStreamProcessor(), caching}) {
+                List<Long> solutionTimes = new LinkedList<>();
+                replayed.setVirtualTime(InputLog.getStartTime(logFile));
+                assertTrue(replayed.isVirtualTime());
+                replayed.addQuery(QUERY_TTL, query, (result, expirationTime) -> {
+                    assertEquals(arthur, result.getValue("x"));
+                    assertEquals(ford, result.getValue("z"));
+                    solutionTimes.add(replayed.getVirtualTime());
+                });
+                assertEquals(3, replayed.replay(logFile));
+                assertEquals(Collections.singletonList(25000L), solutionTimes);
+                assertEquals(25000L, replayed.getVirtualTime());
+
+                // the clock may be advanced, but not turned back
+                replayed.advanceTime(40000L);
+                assertEquals(40000L, replayed.getVirtualTime());
+                try {
+                    replayed.advanceTime(30000L);
+                    fail();
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+
+                replayed.setClock(System::currentTimeMillis);
+                assertFalse(replayed.isVirtualTime());
+                replayed.shutDown();
+            }
+        } finally {
+            Files.delete(logFile);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        List<Statement> data = loadData("example.nq");
+        TupleExpr query = loadQuery("multiple-join-1.rq");
+        Set<BindingSet> expected = distinctStaticQueryAnswers(data, query)[0];
+
+        SHJSparqlStreamProcessor engine = new SHJSparqlStreamProcessor();
+        MetricsRegistry registry = new MetricsRegistry();
+        engine.setMetricsRegistry(registry);
+        Subscription subscription = engine.addQuery(QUERY_TTL, query, (result, expirationTime) -> {
+        });
+        engine.addInputs(TUPLE_TTL, data.toArray(new Statement[data.size()]));
+
+        MetricsSnapshot snapshot = registry.snapshot();
+        assertEquals(1.0, snapshot.getValues().get("processor.queries"), 0);
+        assertEquals(data.size(), snapshot.getValues().get("processor.inputs"), 0);
+        assertEquals(data.size(), snapshot.getCount("shj.inputs"));
+        long solutions = snapshot.getCount("subscription." + subscription.getId() + ".solutions");
+        assertTrue(solutions >= expected.size());
+        assertEquals(solutions, snapshot.getValues().get("processor.solutions"), 0);
+        assertTrue(snapshot.getCount("shj.solutions") >= solutions);
+
+        // the metrics of a subscription are removed together with the subscription
+        subscription.cancel();
+        snapshot = registry.snapshot();
+        assertFalse(snapshot.getCounts().containsKey("subscription." + subscription.getId() + ".solutions"));
+        assertEquals(0.0, snapshot.getValues().get("shj.queries"), 0);
+    }
+
     @Test(expected = StreamProcessor.IncompatibleQueryException.class)
     public void testNotExistsUnsupported() throws Exception {
         continuousQueryAnswers(loadData("example.nq"), loadQuery("not-exists.rq"), false);